@@ -20,15 +20,21 @@
 package org.apache.directory.scim;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.directory.scim.cbor.CborReader;
+import org.apache.directory.scim.cbor.CborWriter;
 import org.apache.directory.scim.schema.CoreResource;
 import org.apache.directory.scim.schema.ErrorResponse;
 import org.apache.directory.scim.schema.ErrorResponse.ScimError;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpMessage;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.auth.AuthScope;
@@ -40,6 +46,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCredentialsProvider;
@@ -80,6 +87,11 @@ public class EscimoClient
     
     private String authToken = null;
 
+    private static final ContentType CBOR_TYPE = ContentType.create( CborWriter.MEDIA_TYPE );
+
+    /** flag to exchange the resources in CBOR instead of JSON */
+    private boolean cbor;
+
     public EscimoClient( String providerUrl, Map<String,Class<? extends CoreResource>> uriClassMap )
     {
         this.providerUrl = providerUrl;
@@ -95,6 +107,7 @@ public class EscimoClient
     public EscimoResult authenticate( String userName, String password )
     {
         HttpGet get = new HttpGet( providerUrl + USERS_URI + "/" + "dummy-req-for-auth" );
+        addAccept( get );
         
         UsernamePasswordCredentials credentials = new UsernamePasswordCredentials( userName, password );
         AuthScope authScope = new AuthScope(get.getURI().getHost(), get.getURI().getPort(), AuthScope.ANY_REALM, "BASIC");
@@ -185,6 +198,7 @@ public class EscimoClient
 
         HttpDelete delete = new HttpDelete( providerUrl + uri + "/" + id );
         delete.addHeader( USER_AUTH_HEADER, authToken );
+        addAccept( delete );
         
         LOG.debug( "Trying to delete resource with ID {} at URI {}", id, uri );
 
@@ -226,6 +240,7 @@ public class EscimoClient
 
         HttpGet get = new HttpGet( providerUrl + uri + "/" + id );
         get.addHeader( USER_AUTH_HEADER, authToken );
+        addAccept( get );
         
         LOG.debug( "Trying to retrieve resource with ID {} at URI {}", id, uri );
         
@@ -244,15 +259,13 @@ public class EscimoClient
 
             EscimoResult result = new EscimoResult( sl.getStatusCode(), resp.getAllHeaders() );
             
-            String retVal = EntityUtils.toString( resp.getEntity() );
-
             if ( sl.getStatusCode() == 200 )
             {
-                result.setResource( deserialize( retVal ) );
+                result.setResource( readResource( resp.getEntity() ) );
             }
             else
             {
-                result.setErrorResponse( deserializeError( retVal ) );
+                result.setErrorResponse( deserializeError( EntityUtils.toString( resp.getEntity() ) ) );
             }
             
             return result;
@@ -274,12 +287,13 @@ public class EscimoClient
 
         HttpPost post = new HttpPost( providerUrl + uri );
         post.addHeader( USER_AUTH_HEADER, authToken );
+        addAccept( post );
         
-        String payload = serialize( resource ).toString();
+        JsonObject payload = serialize( resource );
 
         LOG.debug( "sending JSON payload to URI {} for adding resource:\n{}", uri, payload );
 
-        post.setEntity( new StringEntity( payload, ContentType.APPLICATION_JSON ) );
+        post.setEntity( toEntity( payload ) );
 
         HttpClient client = HttpClients.createDefault();
 
@@ -290,15 +304,13 @@ public class EscimoClient
             
             EscimoResult result = new EscimoResult( sl.getStatusCode(), resp.getAllHeaders() );
             
-            String retVal = EntityUtils.toString( resp.getEntity() );
-            
             if ( sl.getStatusCode() == 201 )
             {
-                result.setResource( deserialize( retVal ) );
+                result.setResource( readResource( resp.getEntity() ) );
             }
             else
             {
-                result.setErrorResponse( deserializeError( retVal ) );
+                result.setErrorResponse( deserializeError( EntityUtils.toString( resp.getEntity() ) ) );
             }
             
             return result;
@@ -322,12 +334,13 @@ public class EscimoClient
         
         HttpPut put = new HttpPut( providerUrl + uri );
         put.addHeader( USER_AUTH_HEADER, authToken );
+        addAccept( put );
         
-        String payload = serialize( resource ).toString();
+        JsonObject payload = serialize( resource );
 
         LOG.debug( "sending JSON payload to URI {} for adding resource:\n{}", uri, payload );
 
-        put.setEntity( new StringEntity( payload, ContentType.APPLICATION_JSON ) );
+        put.setEntity( toEntity( payload ) );
 
         HttpClient client = HttpClients.createDefault();
 
@@ -338,15 +351,13 @@ public class EscimoClient
 
             EscimoResult result = new EscimoResult( sl.getStatusCode(), resp.getAllHeaders() );
             
-            String retVal = EntityUtils.toString( resp.getEntity() );
-            
             if ( sl.getStatusCode() == 200 )
             {
-                result.setResource( deserialize( retVal ) );
+                result.setResource( readResource( resp.getEntity() ) );
             }
             else
             {
-                result.setErrorResponse( deserializeError( retVal ) );
+                result.setErrorResponse( deserializeError( EntityUtils.toString( resp.getEntity() ) ) );
             }
             
             return result;
@@ -370,12 +381,13 @@ public class EscimoClient
         
         HttpPatch patch = new HttpPatch( providerUrl + uri );
         patch.addHeader( USER_AUTH_HEADER, authToken );
+        addAccept( patch );
         
-        String payload = serialize( resource ).toString();
+        JsonObject payload = serialize( resource );
 
         LOG.debug( "sending JSON payload to URI {} for adding resource:\n{}", uri, payload );
 
-        patch.setEntity( new StringEntity( payload, ContentType.APPLICATION_JSON ) );
+        patch.setEntity( toEntity( payload ) );
 
         HttpClient client = HttpClients.createDefault();
 
@@ -389,8 +401,7 @@ public class EscimoClient
             
             if ( sl.getStatusCode() == 200 )
             {
-                String retVal = EntityUtils.toString( resp.getEntity() );
-                result.setResource( deserialize( retVal ) );
+                result.setResource( readResource( resp.getEntity() ) );
             }
             else if ( sl.getStatusCode() == 204 )
             {
@@ -411,6 +422,77 @@ public class EscimoClient
         }
     }
 
+    /**
+     * Exchanges the resources in CBOR instead of JSON, error responses are still read in JSON
+     */
+    public void setCbor( boolean cbor )
+    {
+        this.cbor = cbor;
+    }
+
+
+    private void addAccept( HttpMessage msg )
+    {
+        if ( cbor )
+        {
+            // the server falls back to JSON if it doesn't support CBOR
+            msg.addHeader( "Accept", CborWriter.MEDIA_TYPE + ", " + ContentType.APPLICATION_JSON.getMimeType() + ";q=0.5" );
+        }
+    }
+
+
+    private HttpEntity toEntity( JsonObject payload )
+    {
+        if ( !cbor )
+        {
+            return new StringEntity( payload.toString(), ContentType.APPLICATION_JSON );
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter( out );
+
+        try
+        {
+            writer.value( payload );
+            writer.flush();
+        }
+        catch ( IOException e )
+        {
+            // cannot happen with a ByteArrayOutputStream
+            throw new RuntimeException( e );
+        }
+
+        return new ByteArrayEntity( out.toByteArray(), CBOR_TYPE );
+    }
+
+
+    private CoreResource readResource( HttpEntity entity ) throws IOException
+    {
+        if ( entity == null )
+        {
+            return null;
+        }
+
+        Header type = entity.getContentType();
+
+        if ( ( type != null ) && type.getValue().toLowerCase().startsWith( CborWriter.MEDIA_TYPE ) )
+        {
+            CborReader reader = new CborReader( entity.getContent() );
+
+            try
+            {
+                return deserialize( new JsonParser().parse( reader ).getAsJsonObject() );
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+
+        return deserialize( EntityUtils.toString( entity ) );
+    }
+
+
     private CoreResource deserialize( String json )
     {
         if( json == null )
@@ -419,8 +501,13 @@ public class EscimoClient
         }
         
         JsonParser parser = new JsonParser();
-        JsonObject obj = ( JsonObject ) parser.parse( json );
+        
+        return deserialize( ( JsonObject ) parser.parse( json ) );
+    }
+
 
+    private CoreResource deserialize( JsonObject obj )
+    {
         JsonArray schemas = obj.get( "schemas" ).getAsJsonArray();
         
         CoreResource top = null;
@@ -0,0 +1,434 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+
+/**
+ * An operation of a bulk request as defined in RFC 7644 section 3.7,
+ * e.x. <code>{"method":"POST", "path":"/Users", "bulkId":"qwerty", "data":{...}}</code>
+ *
+ * A value of the form <code>bulkId:qwerty</code> present in the data or in the path
+ * refers to the resource created by the operation with the bulkId qwerty, the operation
+ * can only be performed after that resource was created.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BulkOperation
+{
+    /** the schema URI of the bulk request */
+    public static final String BULK_REQUEST_URI = "urn:ietf:params:scim:api:messages:2.0:BulkRequest";
+
+    /** the schema URI of the bulk response */
+    public static final String BULK_RESPONSE_URI = "urn:ietf:params:scim:api:messages:2.0:BulkResponse";
+
+    /** the name of the array holding the operations */
+    public static final String OPERATIONS = "Operations";
+
+    /** the prefix of a value referring to the resource created by another operation */
+    public static final String BULK_ID_PREFIX = "bulkId:";
+
+    public enum Method
+    {
+        POST, PUT, PATCH, DELETE
+    }
+
+    private Method method;
+
+    private String bulkId;
+
+    private String path;
+
+    private String version;
+
+    private JsonObject data;
+
+    /** the bulkIds this operation refers to */
+    private Set<String> references = new LinkedHashSet<String>();
+
+
+    public BulkOperation( Method method )
+    {
+        this.method = method;
+    }
+
+
+    /**
+     * Parses all the operations present in the given bulk request
+     *
+     * @param obj the bulk request
+     * @return the operations in the order they are present in the request
+     * @throws IllegalArgumentException if an operation is invalid
+     */
+    public static List<BulkOperation> parseAll( JsonObject obj )
+    {
+        JsonElement el = obj.get( OPERATIONS );
+
+        if ( ( el == null ) || !el.isJsonArray() )
+        {
+            throw new IllegalArgumentException( "The bulk request has no " + OPERATIONS + " array" );
+        }
+
+        JsonArray array = el.getAsJsonArray();
+
+        List<BulkOperation> operations = new ArrayList<BulkOperation>( array.size() );
+
+        Set<String> bulkIds = new HashSet<String>();
+
+        for ( JsonElement je : array )
+        {
+            if ( !je.isJsonObject() )
+            {
+                throw new IllegalArgumentException( "Invalid bulk operation " + je );
+            }
+
+            BulkOperation operation = parse( je.getAsJsonObject() );
+
+            if ( ( operation.bulkId != null ) && !bulkIds.add( operation.bulkId ) )
+            {
+                throw new IllegalArgumentException( "Duplicate bulkId " + operation.bulkId );
+            }
+
+            operations.add( operation );
+        }
+
+        return operations;
+    }
+
+
+    /**
+     * Parses a single operation
+     *
+     * @throws IllegalArgumentException if the operation is invalid
+     */
+    public static BulkOperation parse( JsonObject jo )
+    {
+        String m = getString( jo, "method" );
+
+        if ( m == null )
+        {
+            throw new IllegalArgumentException( "The bulk operation has no method " + jo );
+        }
+
+        BulkOperation operation = null;
+
+        try
+        {
+            operation = new BulkOperation( Method.valueOf( m.trim().toUpperCase() ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new IllegalArgumentException( "Unknown bulk operation method " + m );
+        }
+
+        operation.bulkId = getString( jo, "bulkId" );
+        operation.version = getString( jo, "version" );
+
+        String path = getString( jo, "path" );
+
+        if ( ( path == null ) || !path.startsWith( "/" ) || ( path.length() == 1 ) )
+        {
+            throw new IllegalArgumentException( "Invalid path " + path + " in the bulk operation " + jo );
+        }
+
+        operation.path = path;
+
+        boolean hasId = ( path.indexOf( '/', 1 ) > 0 );
+
+        if ( operation.method == Method.POST )
+        {
+            if ( operation.bulkId == null )
+            {
+                throw new IllegalArgumentException( "The bulkId is required for the POST operation " + jo );
+            }
+
+            if ( hasId )
+            {
+                throw new IllegalArgumentException( "The path of the POST operation must be a resource endpoint " + path );
+            }
+        }
+        else if ( !hasId )
+        {
+            throw new IllegalArgumentException( "The path of the " + m + " operation must contain the resource ID " + path );
+        }
+
+        JsonElement dataEl = jo.get( "data" );
+
+        if ( operation.method != Method.DELETE )
+        {
+            if ( ( dataEl == null ) || !dataEl.isJsonObject() )
+            {
+                throw new IllegalArgumentException( "The data is required for the " + m + " operation " + jo );
+            }
+
+            operation.data = dataEl.getAsJsonObject();
+
+            collectReferences( operation.data, operation.references );
+        }
+
+        for ( String segment : path.split( "/" ) )
+        {
+            if ( segment.startsWith( BULK_ID_PREFIX ) )
+            {
+                operation.references.add( segment.substring( BULK_ID_PREFIX.length() ) );
+            }
+        }
+
+        return operation;
+    }
+
+
+    private static String getString( JsonObject jo, String name )
+    {
+        JsonElement el = jo.get( name );
+
+        if ( ( el == null ) || el.isJsonNull() )
+        {
+            return null;
+        }
+
+        return el.getAsString();
+    }
+
+
+    private static void collectReferences( JsonElement el, Set<String> references )
+    {
+        if ( el.isJsonObject() )
+        {
+            for ( Entry<String, JsonElement> e : el.getAsJsonObject().entrySet() )
+            {
+                collectReferences( e.getValue(), references );
+            }
+        }
+        else if ( el.isJsonArray() )
+        {
+            for ( JsonElement je : el.getAsJsonArray() )
+            {
+                collectReferences( je, references );
+            }
+        }
+        else if ( el.isJsonPrimitive() && el.getAsJsonPrimitive().isString() )
+        {
+            String val = el.getAsString();
+
+            if ( val.startsWith( BULK_ID_PREFIX ) )
+            {
+                references.add( val.substring( BULK_ID_PREFIX.length() ) );
+            }
+        }
+    }
+
+
+    /**
+     * Replaces the references to other operations present in the path and data
+     * with the IDs of the resources created by those operations
+     *
+     * @param resourceIds the IDs of the created resources keyed by bulkId
+     * @throws IllegalArgumentException if a referenced resource is not present
+     */
+    public void resolveReferences( Map<String, String> resourceIds )
+    {
+        if ( references.isEmpty() )
+        {
+            return;
+        }
+
+        for ( String ref : references )
+        {
+            if ( !resourceIds.containsKey( ref ) )
+            {
+                throw new IllegalArgumentException( "No resource was created with the bulkId " + ref );
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for ( String segment : path.substring( 1 ).split( "/" ) )
+        {
+            sb.append( '/' );
+
+            if ( segment.startsWith( BULK_ID_PREFIX ) )
+            {
+                segment = resourceIds.get( segment.substring( BULK_ID_PREFIX.length() ) );
+            }
+
+            sb.append( segment );
+        }
+
+        path = sb.toString();
+
+        if ( data != null )
+        {
+            data = ( JsonObject ) replaceReferences( data, resourceIds );
+        }
+    }
+
+
+    /**
+     * Replaces the references to other resources present in the given data with the IDs of those resources
+     *
+     * @param resourceIds the IDs of the created resources keyed by bulkId
+     * @throws IllegalArgumentException if a referenced resource is not present
+     */
+    public static void resolveReferences( JsonObject data, Map<String, String> resourceIds )
+    {
+        Set<String> references = new HashSet<String>();
+        collectReferences( data, references );
+
+        for ( String ref : references )
+        {
+            if ( !resourceIds.containsKey( ref ) )
+            {
+                throw new IllegalArgumentException( "No resource was created with the bulkId " + ref );
+            }
+        }
+
+        if ( !references.isEmpty() )
+        {
+            replaceReferences( data, resourceIds );
+        }
+    }
+
+
+    private static JsonElement replaceReferences( JsonElement el, Map<String, String> resourceIds )
+    {
+        if ( el.isJsonObject() )
+        {
+            for ( Entry<String, JsonElement> e : el.getAsJsonObject().entrySet() )
+            {
+                e.setValue( replaceReferences( e.getValue(), resourceIds ) );
+            }
+        }
+        else if ( el.isJsonArray() )
+        {
+            JsonArray array = el.getAsJsonArray();
+
+            for ( int i = 0; i < array.size(); i++ )
+            {
+                array.set( i, replaceReferences( array.get( i ), resourceIds ) );
+            }
+        }
+        else if ( el.isJsonPrimitive() && el.getAsJsonPrimitive().isString() )
+        {
+            String val = el.getAsString();
+
+            if ( val.startsWith( BULK_ID_PREFIX ) )
+            {
+                return new JsonPrimitive( resourceIds.get( val.substring( BULK_ID_PREFIX.length() ) ) );
+            }
+        }
+
+        return el;
+    }
+
+
+    public Method getMethod()
+    {
+        return method;
+    }
+
+
+    public String getBulkId()
+    {
+        return bulkId;
+    }
+
+
+    /**
+     * @return the path of the resource, e.x /Users/2819c223 or /Users for the POST operation
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+
+    /**
+     * @return the path of the resource endpoint, e.x /Users
+     */
+    public String getEndpoint()
+    {
+        int pos = path.indexOf( '/', 1 );
+
+        if ( pos < 0 )
+        {
+            return path;
+        }
+
+        return path.substring( 0, pos );
+    }
+
+
+    /**
+     * @return the ID of the target resource, null for the POST operation
+     */
+    public String getResourceId()
+    {
+        int pos = path.indexOf( '/', 1 );
+
+        if ( pos < 0 )
+        {
+            return null;
+        }
+
+        return path.substring( pos + 1 );
+    }
+
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+
+    public JsonObject getData()
+    {
+        return data;
+    }
+
+
+    /**
+     * @return the bulkIds of the operations this operation depends on
+     */
+    public Set<String> getReferences()
+    {
+        return references;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "BulkOperation [method=" + method + ", bulkId=" + bulkId + ", path=" + path + "]";
+    }
+}
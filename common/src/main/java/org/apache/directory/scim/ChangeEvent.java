@@ -0,0 +1,104 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+/**
+ * A change made to a resource, or a notice that the changes were lost
+ * and the resources must be read again
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ChangeEvent
+{
+    public enum Type
+    {
+        CREATE, UPDATE, DELETE, RESYNC
+    }
+
+    private Type type;
+
+    private String eventId;
+
+    private String resourceType;
+
+    private String id;
+
+    private ServerResource resource;
+
+
+    public ChangeEvent( Type type, String eventId, String resourceType )
+    {
+        this.type = type;
+        this.eventId = eventId;
+        this.resourceType = resourceType;
+    }
+
+
+    public Type getType()
+    {
+        return type;
+    }
+
+
+    /**
+     * @return the ID of the event for resuming the stream after it, null if the stream cannot be resumed
+     */
+    public String getEventId()
+    {
+        return eventId;
+    }
+
+
+    public String getResourceType()
+    {
+        return resourceType;
+    }
+
+
+    /**
+     * @return the ID of the changed resource, null for the {@link Type#RESYNC} events
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+
+    public void setId( String id )
+    {
+        this.id = id;
+    }
+
+
+    /**
+     * @return the changed resource, null if it was not requested or the resource was deleted
+     */
+    public ServerResource getResource()
+    {
+        return resource;
+    }
+
+
+    public void setResource( ServerResource resource )
+    {
+        this.resource = resource;
+    }
+}
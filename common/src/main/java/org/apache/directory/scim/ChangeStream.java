@@ -0,0 +1,46 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import java.util.List;
+
+
+/**
+ * The resources created or modified since a sync token, read as the stream is consumed,
+ * along with the IDs of the deleted resources and the token for asking the following changes
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface ChangeStream extends ResourceStream
+{
+    /**
+     * @return the IDs of the deleted resources
+     */
+    List<String> getDeleted();
+
+
+    /**
+     * @return the token for asking the changes made after this stream, known only
+     *         once all the resources were read
+     * @throws IllegalStateException if the stream was not read till its end
+     */
+    String getToken();
+}
@@ -0,0 +1,70 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+/**
+ * The outcome of deleting the resources matching a filter.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class DeleteResult
+{
+    private int deleted;
+
+    private int failed;
+
+
+    public void incrementDeleted()
+    {
+        deleted++;
+    }
+
+
+    public void incrementFailed()
+    {
+        failed++;
+    }
+
+
+    /**
+     * @return the number of deleted resources
+     */
+    public int getDeleted()
+    {
+        return deleted;
+    }
+
+
+    /**
+     * @return the number of matching resources that couldn't be deleted
+     */
+    public int getFailed()
+    {
+        return failed;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "DeleteResult [deleted=" + deleted + ", failed=" + failed + "]";
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import org.apache.directory.scim.exception.EscimoException;
+
+
+/**
+ * A subscription to the changes made to the resources of a type
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface EventSubscription
+{
+    /**
+     * Gives the next change, waiting at most the given time for it. A {@link ChangeEvent.Type#RESYNC}
+     * event is the last one, it is returned when the subscriber missed some changes.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the next change, null if no change happened in time or after the last event
+     */
+    ChangeEvent next( long timeout ) throws EscimoException;
+
+
+    /**
+     * Ends the subscription
+     */
+    void close();
+}
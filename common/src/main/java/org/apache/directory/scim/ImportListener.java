@@ -0,0 +1,52 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import org.apache.directory.scim.exception.EscimoException;
+
+
+/**
+ * Receives the outcome of each line of an import, the methods are called by the
+ * thread performing the import
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface ImportListener
+{
+    /**
+     * Called after the resource of the given line was created
+     * 
+     * @param line the number of the line, starting with 1
+     * @param bulkId the bulkId given to the resource in the line, null if not present
+     * @param id the ID of the created resource
+     */
+    void created( long line, String bulkId, String id );
+
+
+    /**
+     * Called when the resource of the given line could not be created
+     * 
+     * @param line the number of the line, starting with 1
+     * @param bulkId the bulkId given to the resource in the line, null if not present
+     * @param e the cause of the failure
+     */
+    void failed( long line, String bulkId, Exception e );
+}
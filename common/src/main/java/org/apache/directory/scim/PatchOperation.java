@@ -0,0 +1,300 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.scim.search.FilterNode;
+import org.apache.directory.scim.search.FilterParser;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * An operation of a PATCH request as defined in RFC 7644 section 3.5.2,
+ * e.x. <code>{"op":"remove", "path":"members[value eq \"2819c223\"]"}</code>
+ *
+ * The path is split into the attribute name, an optional value filter
+ * and an optional sub-attribute name.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PatchOperation
+{
+    /** the schema URI of the PATCH request */
+    public static final String PATCH_OP_URI = "urn:ietf:params:scim:api:messages:2.0:PatchOp";
+
+    /** the name of the array holding the operations */
+    public static final String OPERATIONS = "Operations";
+
+    public enum Type
+    {
+        ADD, REMOVE, REPLACE
+    }
+
+    private Type type;
+
+    /** the schema URI prefixing the attribute, null if not present */
+    private String schemaUri;
+
+    private String attribute;
+
+    private String subAttribute;
+
+    private FilterNode valueFilter;
+
+    private JsonElement value;
+
+
+    public PatchOperation( Type type )
+    {
+        this.type = type;
+    }
+
+
+    /**
+     * Parses all the operations present in the given PATCH request
+     *
+     * @param obj the PATCH request
+     * @return the operations in the order they are present in the request
+     * @throws IllegalArgumentException if an operation is invalid
+     */
+    public static List<PatchOperation> parseAll( JsonObject obj )
+    {
+        JsonElement el = obj.get( OPERATIONS );
+
+        if ( ( el == null ) || !el.isJsonArray() )
+        {
+            throw new IllegalArgumentException( "The PATCH request has no " + OPERATIONS + " array" );
+        }
+
+        JsonArray array = el.getAsJsonArray();
+
+        List<PatchOperation> operations = new ArrayList<PatchOperation>( array.size() );
+
+        for ( JsonElement je : array )
+        {
+            if ( !je.isJsonObject() )
+            {
+                throw new IllegalArgumentException( "Invalid PATCH operation " + je );
+            }
+
+            operations.add( parse( je.getAsJsonObject() ) );
+        }
+
+        return operations;
+    }
+
+
+    /**
+     * Parses a single operation
+     *
+     * @throws IllegalArgumentException if the operation is invalid
+     */
+    public static PatchOperation parse( JsonObject jo )
+    {
+        JsonElement opEl = jo.get( "op" );
+
+        if ( opEl == null )
+        {
+            throw new IllegalArgumentException( "The PATCH operation has no op " + jo );
+        }
+
+        String op = opEl.getAsString().trim().toLowerCase();
+
+        PatchOperation operation = null;
+
+        if ( "add".equals( op ) )
+        {
+            operation = new PatchOperation( Type.ADD );
+        }
+        else if ( "remove".equals( op ) )
+        {
+            operation = new PatchOperation( Type.REMOVE );
+        }
+        else if ( "replace".equals( op ) )
+        {
+            operation = new PatchOperation( Type.REPLACE );
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Unknown PATCH operation " + op );
+        }
+
+        JsonElement pathEl = jo.get( "path" );
+
+        if ( ( pathEl != null ) && !pathEl.isJsonNull() )
+        {
+            operation.parsePath( pathEl.getAsString() );
+        }
+
+        operation.value = jo.get( "value" );
+
+        if ( ( operation.attribute == null ) && ( operation.type == Type.REMOVE ) )
+        {
+            throw new IllegalArgumentException( "The path is required for the remove operation" );
+        }
+
+        if ( ( operation.type != Type.REMOVE ) && ( ( operation.value == null ) || operation.value.isJsonNull() ) )
+        {
+            throw new IllegalArgumentException( "The value is required for the " + op + " operation" );
+        }
+
+        if ( ( operation.attribute == null ) && !operation.value.isJsonObject() )
+        {
+            throw new IllegalArgumentException( "The value of the " + op + " operation without a path must be an object" );
+        }
+
+        return operation;
+    }
+
+
+    /**
+     * Parses the path of the form <code>[schemaUri:]attribute[.subAttribute]</code> or
+     * <code>[schemaUri:]attribute[valueFilter][.subAttribute]</code>
+     */
+    private void parsePath( String path )
+    {
+        path = path.trim();
+
+        if ( path.length() == 0 )
+        {
+            throw new IllegalArgumentException( "Empty path" );
+        }
+
+        String attrPath = path;
+        String afterFilter = null;
+
+        int filterStart = path.indexOf( '[' );
+
+        if ( filterStart >= 0 )
+        {
+            int filterEnd = path.lastIndexOf( ']' );
+
+            if ( filterEnd < filterStart )
+            {
+                throw new IllegalArgumentException( "Invalid value filter in the path " + path );
+            }
+
+            attrPath = path.substring( 0, filterStart );
+
+            String filter = path.substring( filterStart + 1, filterEnd ).trim();
+
+            if ( filter.length() == 0 )
+            {
+                throw new IllegalArgumentException( "Empty value filter in the path " + path );
+            }
+
+            valueFilter = FilterParser.parse( filter );
+
+            afterFilter = path.substring( filterEnd + 1 ).trim();
+        }
+
+        // the schema URI itself contains dots, e.x 2.0, so strip it before looking for the sub-attribute
+        int colonPos = attrPath.lastIndexOf( ':' );
+
+        if ( colonPos > 0 )
+        {
+            schemaUri = attrPath.substring( 0, colonPos );
+            attrPath = attrPath.substring( colonPos + 1 );
+        }
+
+        int dotPos = attrPath.indexOf( '.' );
+
+        if ( dotPos > 0 )
+        {
+            if ( valueFilter != null )
+            {
+                throw new IllegalArgumentException( "A value filter can only be applied on an attribute, invalid path " + path );
+            }
+
+            subAttribute = attrPath.substring( dotPos + 1 );
+            attrPath = attrPath.substring( 0, dotPos );
+        }
+
+        if ( ( afterFilter != null ) && ( afterFilter.length() > 0 ) )
+        {
+            if ( !afterFilter.startsWith( "." ) || ( afterFilter.length() == 1 ) )
+            {
+                throw new IllegalArgumentException( "Invalid sub-attribute after the value filter in the path " + path );
+            }
+
+            subAttribute = afterFilter.substring( 1 );
+        }
+
+        attribute = attrPath.trim();
+
+        if ( attribute.length() == 0 )
+        {
+            throw new IllegalArgumentException( "No attribute name is present in the path " + path );
+        }
+    }
+
+
+    public Type getType()
+    {
+        return type;
+    }
+
+
+    public String getSchemaUri()
+    {
+        return schemaUri;
+    }
+
+
+    /**
+     * @return the name of the target attribute, null if the operation has no path
+     */
+    public String getAttribute()
+    {
+        return attribute;
+    }
+
+
+    public String getSubAttribute()
+    {
+        return subAttribute;
+    }
+
+
+    public FilterNode getValueFilter()
+    {
+        return valueFilter;
+    }
+
+
+    public JsonElement getValue()
+    {
+        return value;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "PatchOperation [type=" + type + ", schemaUri=" + schemaUri + ", attribute=" + attribute
+            + ", subAttribute=" + subAttribute + ", valueFilter=" + valueFilter + ", value=" + value + "]";
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * The data of a photo attribute along with its entity tag.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class Photo
+{
+    private final byte[] data;
+
+    /** the SHA-256 digest of the data in hex, computed once */
+    private volatile String tag;
+
+
+    public Photo( byte[] data )
+    {
+        this.data = data;
+    }
+
+
+    /**
+     * @return the photo's data
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+
+    /**
+     * @return the SHA-256 digest of the data in hex, computed on the first call only
+     */
+    public String getTag()
+    {
+        String t = tag;
+
+        if ( t == null )
+        {
+            t = sha256Hex( data );
+            tag = t;
+        }
+
+        return t;
+    }
+
+
+    private static String sha256Hex( byte[] bytes )
+    {
+        byte[] digest;
+
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-256" ).digest( bytes );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // every JRE supports SHA-256
+            throw new IllegalStateException( e );
+        }
+
+        StringBuilder sb = new StringBuilder( digest.length * 2 );
+
+        for ( byte b : digest )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0x0F, 16 ) );
+            sb.append( Character.forDigit( b & 0x0F, 16 ) );
+        }
+
+        return sb.toString();
+    }
+}
@@ -48,6 +48,12 @@ public class RequestContext
     
     private HttpServletRequest httpReq;
     
+    /** the path of the resource when it differs from the path of the HTTP request, e.x for the operations of a bulk request */
+    private String resourcePath;
+    
+    /** the headers of the request when they differ from the headers of the HTTP request */
+    private Map<String, String> reqHeaders;
+    
     protected RequestContext( ResourceProvider providerService, UriInfo uriInfo, HttpServletRequest httpReq )
     {
         this.providerService = providerService;
@@ -56,6 +62,21 @@ public class RequestContext
     }
 
 
+    /**
+     * Creates a context sharing the request data of the given context, the resource
+     * is not shared
+     */
+    protected RequestContext( RequestContext parent )
+    {
+        this.providerService = parent.providerService;
+        this.uriInfo = parent.uriInfo;
+        this.httpReq = parent.httpReq;
+        this.respHeaders = parent.respHeaders;
+        this.resourcePath = parent.resourcePath;
+        this.reqHeaders = parent.reqHeaders;
+    }
+
+
     public ServerResource getCoreResource()
     {
         return resource;
@@ -88,7 +109,42 @@ public class RequestContext
     
     public String getReqHeaderValue( String name )
     {
-       return httpReq.getHeader( name );
+        if ( reqHeaders != null )
+        {
+            return reqHeaders.get( name );
+        }
+        
+        return httpReq.getHeader( name );
+    }
+    
+    
+    /**
+     * Replaces the headers of the HTTP request, the authentication of the HTTP request still applies
+     */
+    public void setReqHeaders( Map<String, String> reqHeaders )
+    {
+        this.reqHeaders = reqHeaders;
+    }
+    
+    
+    /**
+     * @return the path of the requested resource starting with a '/', e.x /Users/2819c223
+     */
+    public String getResourcePath()
+    {
+        if ( resourcePath != null )
+        {
+            return resourcePath;
+        }
+        
+        // the path doesn't contain '/' in the beginning
+        return "/" + uriInfo.getPath();
+    }
+    
+    
+    public void setResourcePath( String resourcePath )
+    {
+        this.resourcePath = resourcePath;
     }
     
     
@@ -27,11 +27,15 @@ import javax.ws.rs.core.UriInfo;
 
 import org.apache.directory.scim.exception.EscimoException;
 import org.apache.directory.scim.exception.MissingParameterException;
+import org.apache.directory.scim.exception.OperationNotAllowedException;
 import org.apache.directory.scim.exception.ResourceNotFoundException;
+import org.apache.directory.scim.exception.ServiceUnavailableException;
+import org.apache.directory.scim.exception.TokenExpiredException;
 import org.apache.directory.scim.schema.JsonSchema;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
 
 
 /**
@@ -55,7 +59,21 @@ public interface ResourceProvider
     ServerResource getResource( RequestContext ctx, String id ) throws ResourceNotFoundException;
 
 
-    InputStream getUserPhoto( String id, String atName, RequestContext ctx ) throws MissingParameterException;
+    /**
+     * Gives the current version of the resource with the given ID without reading the resource
+     *
+     * @return the version of the resource, null if the resource has no version
+     * @throws ResourceNotFoundException if the resource doesn't exist
+     */
+    String getResourceVersion( RequestContext ctx, String id ) throws ResourceNotFoundException;
+
+
+    /**
+     * Gives the value of the photo attribute of the resource with the given ID
+     *
+     * @return the photo, null if the resource or the attribute doesn't exist
+     */
+    Photo getUserPhoto( String id, String atName, RequestContext ctx ) throws MissingParameterException;
 
 
     JsonSchema getJsonSchemaById( String id );
@@ -67,18 +85,113 @@ public interface ResourceProvider
     ServerResource addResource( String jsonData, RequestContext ctx ) throws EscimoException;
 
 
+    /**
+     * Adds the resource read from the given stream of JSON data, the data is
+     * consumed while the resource is being built
+     */
+    ServerResource addResource( InputStream in, RequestContext ctx ) throws EscimoException;
+
+
+    /**
+     * Adds the resource read from the given reader, the reader can decode any
+     * encoding of the JSON data model, e.x. CBOR
+     */
+    ServerResource addResource( JsonReader reader, RequestContext ctx ) throws EscimoException;
+
+
     void deleteResource( String id, RequestContext ctx ) throws EscimoException;
 
 
+    /**
+     * Deletes all the resources matching the given filter
+     *
+     * @param filter the SCIM filter
+     * @param ctx the request context
+     * @return the numbers of deleted and failed resources
+     * @throws OperationNotAllowedException if deleting by filter is disabled
+     */
+    DeleteResult deleteResources( String filter, RequestContext ctx ) throws EscimoException;
+
+
     ServerResource putResource( String id, String jsonData, RequestContext ctx ) throws EscimoException;
 
 
+    ServerResource putResource( String id, InputStream in, RequestContext ctx ) throws EscimoException;
+
+
+    ServerResource putResource( String id, JsonReader reader, RequestContext ctx ) throws EscimoException;
+
+
     ServerResource patchResource( String id, String jsonData, RequestContext ctx ) throws EscimoException;
 
 
+    ServerResource patchResource( String id, InputStream in, RequestContext ctx ) throws EscimoException;
+
+
+    ServerResource patchResource( String id, JsonReader reader, RequestContext ctx ) throws EscimoException;
+
+
     ListResponse search( String filter, String attributes, RequestContext ctx ) throws EscimoException;
 
 
+    /**
+     * Opens a stream of all the resources of the requested type, the resources are read
+     * page by page while the stream is consumed
+     *
+     * @param checkpoint the ID of the last resource received by an interrupted export, the
+     *                   export resumes after that resource, null to start with the first resource
+     * @param attributes the attributes to be returned, null for all
+     * @param ctx the request context
+     * @return the stream of resources, the caller must close it
+     * @throws ResourceNotFoundException if the resource of the checkpoint is not present
+     */
+    ResourceStream export( String checkpoint, String attributes, RequestContext ctx ) throws EscimoException;
+
+
+    /**
+     * Creates the resources read from the given stream of newline delimited JSON, one resource per line.
+     * The type of each resource is given by its schemas, a line may carry a bulkId which the other lines
+     * can refer to as in a bulk request. The groups are created after all the other resources.
+     *
+     * @param in the stream of resources
+     * @param listener receives the outcome of each line
+     * @param ctx the request context
+     * @throws EscimoException if the stream cannot be read, the failures of single lines are reported to the listener
+     */
+    void importResources( InputStream in, ImportListener listener, RequestContext ctx ) throws EscimoException;
+
+
+    /**
+     * Gives the resources of the requested type that were created, modified or deleted since the
+     * given token. A resource may be returned again if it changed at the very moment the token was issued.
+     *
+     * @param token the token of the previous changes, null to get all the resources
+     * @param attributes the attributes to be returned, null for all
+     * @param ctx the request context
+     * @return the stream of the changes, must be closed by the caller. A failure while reading it means
+     *         the changes are incomplete and no new token is given
+     * @throws TokenExpiredException if the changes since the token are no longer known, the client
+     *                               must read all the resources again
+     */
+    ChangeStream getChanges( String token, String attributes, RequestContext ctx ) throws EscimoException;
+
+
+    /**
+     * Subscribes to the changes made to the resources of the given type from now on, or
+     * after the given event
+     *
+     * @param resourceType the name of the resource type, e.x. User
+     * @param attributes the attributes of the changed resources to be returned, null for all
+     * @param includeResource flag to return the changed resources along with their IDs
+     * @param lastEventId the ID of the last event received by the subscriber, null to get the new changes only
+     * @param ctx the request context
+     * @return the subscription, must be closed by the caller
+     * @throws ServiceUnavailableException if the maximum number of subscribers was reached or the events are not available
+     */
+    EventSubscription subscribe( String resourceType, String attributes, boolean includeResource, String lastEventId,
+        RequestContext ctx ) throws EscimoException;
+
+
     String authenticate( String userName, String password ) throws EscimoException;
 
 
@@ -0,0 +1,52 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import org.apache.directory.scim.exception.EscimoException;
+
+
+/**
+ * A stream of resources read from the provider as the stream is consumed,
+ * e.x. the resources of an export
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface ResourceStream
+{
+    /**
+     * Moves to the next resource
+     * 
+     * @return false if there are no more resources
+     */
+    boolean next() throws EscimoException;
+
+
+    /**
+     * @return the current resource
+     */
+    ServerResource getResource();
+
+
+    /**
+     * Releases the resources held by the stream, the remaining resources are not read
+     */
+    void close();
+}
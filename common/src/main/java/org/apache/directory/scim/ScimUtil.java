@@ -21,19 +21,33 @@ package org.apache.directory.scim;
 
 import static org.apache.directory.scim.schema.StatusCode.BAD_REQUEST;
 import static org.apache.directory.scim.schema.StatusCode.CONFLICT;
+import static org.apache.directory.scim.schema.StatusCode.FORBIDDEN;
+import static org.apache.directory.scim.schema.StatusCode.GONE;
 import static org.apache.directory.scim.schema.StatusCode.INTERNAL_SERVER_ERROR;
 import static org.apache.directory.scim.schema.StatusCode.NOT_FOUND;
+import static org.apache.directory.scim.schema.StatusCode.PRECONDITION_FAILED;
+import static org.apache.directory.scim.schema.StatusCode.REQUEST_ENTITY_TOO_LARGE;
+import static org.apache.directory.scim.schema.StatusCode.SERVICE_UNAVAILABLE;
 import static org.apache.directory.scim.schema.StatusCode.UNAUTHORIZED;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 
 import org.apache.directory.scim.exception.AttributeNotFoundException;
+import org.apache.directory.scim.exception.InvalidValueException;
+import org.apache.directory.scim.exception.OperationNotAllowedException;
+import org.apache.directory.scim.exception.PreconditionFailedException;
+import org.apache.directory.scim.exception.RequestTooLargeException;
+import org.apache.directory.scim.exception.TokenExpiredException;
 import org.apache.directory.scim.exception.ResourceConflictException;
 import org.apache.directory.scim.exception.ResourceNotFoundException;
+import org.apache.directory.scim.exception.ServiceUnavailableException;
 import org.apache.directory.scim.exception.UnauthorizedException;
 import org.apache.directory.scim.json.ResourceSerializer;
 import org.apache.directory.scim.schema.StatusCode;
@@ -76,6 +90,36 @@ public class ScimUtil
 
     
     public static ResponseBuilder buildError( Exception e )
+    {
+        ErrorResponse.ScimError error = buildScimError( e );
+        
+        ErrorResponse erResp = new ErrorResponse( error );
+        
+        String json = ResourceSerializer.serialize( erResp );
+        
+        // errors are always sent as JSON, whatever encoding was negotiated for the resources
+        ResponseBuilder rb = Response.status( error.getCode().getVal() ).entity( json ).type( MediaType.APPLICATION_JSON );
+        
+        return rb;
+    }
+
+    
+    /**
+     * Maps the given exception to an error with the matching status code
+     */
+    public static ScimError buildScimError( Exception e )
+    {
+        return buildScimError( e, true );
+    }
+
+
+    /**
+     * Maps the given exception to an error with the matching status code
+     *
+     * @param withStackTrace tells if the stack trace of the exception is included, the errors of
+     *                       the items of a bulk request or of an import must not carry it
+     */
+    public static ScimError buildScimError( Exception e, boolean withStackTrace )
     {
         // set the default type to server error
         StatusCode ec = INTERNAL_SERVER_ERROR;
@@ -90,6 +134,15 @@ public class ScimUtil
         {
             ec = BAD_REQUEST;
         }
+        else if ( e instanceof OperationNotAllowedException )
+        {
+            ec = FORBIDDEN;
+        }
+        else if ( e instanceof InvalidValueException )
+        {
+            ec = BAD_REQUEST;
+            scimType = ScimType.INVALID_VALUE;
+        }
         else if ( e instanceof ResourceConflictException )
         {
             ec = CONFLICT;
@@ -99,6 +152,22 @@ public class ScimUtil
         {
             ec = UNAUTHORIZED;
         }
+        else if ( e instanceof PreconditionFailedException )
+        {
+            ec = PRECONDITION_FAILED;
+        }
+        else if ( e instanceof RequestTooLargeException )
+        {
+            ec = REQUEST_ENTITY_TOO_LARGE;
+        }
+        else if ( e instanceof TokenExpiredException )
+        {
+            ec = GONE;
+        }
+        else if ( e instanceof ServiceUnavailableException )
+        {
+            ec = SERVICE_UNAVAILABLE;
+        }
         
         if ( detail == null )
         {
@@ -107,17 +176,69 @@ public class ScimUtil
         
         ErrorResponse.ScimError error = new ErrorResponse.ScimError( ec, scimType, detail );
         
-        error.setStackTrace( exceptionToStr( e ) );
+        if ( withStackTrace )
+        {
+            error.setStackTrace( exceptionToStr( e ) );
+        }
         
-        ErrorResponse erResp = new ErrorResponse( error );
+        return error;
+    }
+
+    
+    /**
+     * Parses the value of an If-Match or If-None-Match header
+     * 
+     * @return the opaque values of the entity tags without the quotes and the weak prefix,
+     *         a single "*" if the header matches any version
+     */
+    public static List<String> parseETags( String header )
+    {
+        List<String> tags = new ArrayList<String>();
         
-        String json = ResourceSerializer.serialize( erResp );
+        if ( header == null )
+        {
+            return tags;
+        }
         
-        ResponseBuilder rb = Response.status( ec.getVal() ).entity( json );
+        for ( String tag : header.split( "," ) )
+        {
+            tag = tag.trim();
+            
+            if ( tag.startsWith( "W/" ) )
+            {
+                tag = tag.substring( 2 );
+            }
+            
+            if ( ( tag.length() > 1 ) && tag.startsWith( "\"" ) && tag.endsWith( "\"" ) )
+            {
+                tag = tag.substring( 1, tag.length() - 1 );
+            }
+            
+            if ( tag.length() > 0 )
+            {
+                tags.add( tag );
+            }
+        }
         
-        return rb;
+        return tags;
     }
-
+    
+    
+    /**
+     * Tells if the given version is matched by the entity tags of an If-Match or If-None-Match header
+     */
+    public static boolean matchesVersion( String header, String version )
+    {
+        List<String> tags = parseETags( header );
+        
+        if ( tags.contains( "*" ) )
+        {
+            return true;
+        }
+        
+        return ( version != null ) && tags.contains( version );
+    }
+    
     
     public static Response sendBadRequest( String message )
     {
@@ -125,7 +246,7 @@ public class ScimUtil
         
         ErrorResponse resp = new ErrorResponse( err );
         String json = ResourceSerializer.serialize( resp );
-        ResponseBuilder rb = Response.status( err.getCode().getVal() ).entity( json );
+        ResponseBuilder rb = Response.status( err.getCode().getVal() ).entity( json ).type( MediaType.APPLICATION_JSON );
         
         return rb.build();
     }
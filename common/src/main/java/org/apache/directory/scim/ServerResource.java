@@ -35,6 +35,9 @@ public class ServerResource
     
     private String id;
     
+    /** the opaque version of the resource, changes whenever the resource is modified */
+    private String version;
+    
     public void addAttribute( String uri, AbstractAttribute at )
     {
         List<AbstractAttribute> atList = uriAtMap.get( uri );
@@ -63,6 +66,18 @@ public class ServerResource
         return id;
     }
     
+    public String getVersion()
+    {
+        return version;
+    }
+
+
+    public void setVersion( String version )
+    {
+        this.version = version;
+    }
+    
+    
     public AbstractAttribute get( String name )
     {
         for( List<AbstractAttribute> atList : uriAtMap.values() )
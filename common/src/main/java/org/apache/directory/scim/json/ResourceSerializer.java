@@ -20,10 +20,14 @@
 package org.apache.directory.scim.json;
 
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.directory.scim.AbstractAttribute;
+import org.apache.directory.scim.ChangeEvent;
+import org.apache.directory.scim.ChangeStream;
 import org.apache.directory.scim.ComplexAttribute;
 import org.apache.directory.scim.FieldExclusionStrategy;
 import org.apache.directory.scim.ListResponse;
@@ -33,6 +37,8 @@ import org.apache.directory.scim.ScimUtil;
 import org.apache.directory.scim.ServerResource;
 import org.apache.directory.scim.SimpleAttribute;
 import org.apache.directory.scim.SimpleAttributeGroup;
+import org.apache.directory.scim.StreamingWriter;
+import org.apache.directory.scim.exception.EscimoException;
 import org.apache.directory.scim.schema.ErrorResponse;
 import org.apache.directory.scim.schema.ErrorResponse.ScimError;
 
@@ -204,4 +210,258 @@ public class ResourceSerializer
         
         return json.toString();
     }
+    
+    
+    /**
+     * Writes the resource to the given stream in UTF-8 without building an intermediate
+     * JSON tree or String, the output is the same as that of {@link #serialize(ServerResource)}
+     */
+    public static void serialize( ServerResource resource, OutputStream out ) throws IOException
+    {
+        serialize( resource, new Utf8JsonWriter( out ) );
+    }
+    
+    
+    /**
+     * Writes the resource with the given writer, the encoding is that of the writer
+     */
+    public static void serialize( ServerResource resource, StreamingWriter writer ) throws IOException
+    {
+        write( writer, resource, true );
+        writer.flush();
+    }
+    
+    
+    /**
+     * Writes the resource as a single line of newline delimited JSON, the writer is not
+     * flushed so that the lines of consecutive resources are buffered together
+     */
+    public static void serializeLine( ServerResource resource, Utf8JsonWriter writer ) throws IOException
+    {
+        write( writer, resource, true );
+        writer.endLine();
+    }
+    
+    
+    /**
+     * Writes the list response to the given stream in UTF-8, the output is the same
+     * as that of {@link #serialize(ListResponse)}
+     */
+    public static void serialize( ListResponse lr, OutputStream out ) throws IOException
+    {
+        serialize( lr, new Utf8JsonWriter( out ) );
+    }
+    
+    
+    /**
+     * Writes the list response with the given writer
+     */
+    public static void serialize( ListResponse lr, StreamingWriter writer ) throws IOException
+    {
+        writer.beginObject();
+        writeListFields( lr, writer );
+        writer.endObject();
+        writer.flush();
+    }
+    
+    
+    /**
+     * Writes the IDs of the deleted resources, the changed resources and then the token for
+     * the next changes. The stream must be positioned on its first resource by the caller,
+     * its remaining resources are written as they are read.
+     */
+    public static void serialize( ChangeStream cs, StreamingWriter writer ) throws IOException, EscimoException
+    {
+        writer.beginObject();
+        
+        writer.name( "deleted" );
+        writer.beginArray();
+        
+        for( String id : cs.getDeleted() )
+        {
+            writer.value( id );
+        }
+        
+        writer.endArray();
+        
+        writer.name( "Resources" );
+        writer.beginArray();
+        
+        int count = 0;
+        
+        if( cs.getResource() != null )
+        {
+            do
+            {
+                write( writer, cs.getResource(), false );
+                count++;
+            }
+            while( cs.next() );
+        }
+        
+        writer.endArray();
+        
+        writer.name( "totalResults" ).value( count );
+        writer.name( "token" ).value( cs.getToken() );
+        writer.endObject();
+        writer.flush();
+    }
+    
+    
+    /**
+     * Writes the change event, the changed resource is nested under "resource" if present
+     */
+    public static void serialize( ChangeEvent event, StreamingWriter writer ) throws IOException
+    {
+        writer.beginObject();
+        writer.name( "type" ).value( event.getType().name().toLowerCase() );
+        writer.name( "resourceType" ).value( event.getResourceType() );
+        
+        if( event.getId() != null )
+        {
+            writer.name( "id" ).value( event.getId() );
+        }
+        
+        if( event.getResource() != null )
+        {
+            writer.name( "resource" );
+            write( writer, event.getResource(), true );
+        }
+        
+        writer.endObject();
+        writer.flush();
+    }
+    
+    
+    private static void writeListFields( ListResponse lr, StreamingWriter writer ) throws IOException
+    {
+        writer.name( "totalResults" ).value( lr.getTotalResults() );
+        
+        if( lr.getItemsPerPage() > -1 )
+        {
+            writer.name( "itemsPerPage" ).value( lr.getItemsPerPage() );
+        }
+        
+        if( lr.getStartIndex() > -1 )
+        {
+            writer.name( "startIndex" ).value( lr.getStartIndex() );
+        }
+        
+        writer.name( "Resources" );
+        writer.beginArray();
+        
+        for( ServerResource sr : lr.getResources() )
+        {
+            write( writer, sr, false );
+        }
+        
+        writer.endArray();
+    }
+    
+    
+    private static void write( StreamingWriter writer, ServerResource resource, boolean withSchemas ) throws IOException
+    {
+        Map<String, List<AbstractAttribute>> attributes = resource.getAttributes();
+        
+        writer.beginObject();
+        
+        if( withSchemas )
+        {
+            writer.name( "schemas" );
+            writer.beginArray();
+            
+            for ( String uri : attributes.keySet() )
+            {
+                writer.repeatedValue( uri );
+            }
+            
+            writer.endArray();
+        }
+        
+        for ( Map.Entry<String, List<AbstractAttribute>> e : attributes.entrySet() )
+        {
+            boolean core = ScimUtil.isCoreAttribute( e.getKey() );
+            
+            if ( !core )
+            {
+                writer.name( e.getKey() );
+                writer.beginObject();
+            }
+            
+            for ( AbstractAttribute at : e.getValue() )
+            {
+                writeAt( writer, at );
+            }
+            
+            if ( !core )
+            {
+                writer.endObject();
+            }
+        }
+        
+        writer.endObject();
+    }
+    
+    
+    private static void writeAt( StreamingWriter writer, AbstractAttribute at ) throws IOException
+    {
+        if ( at instanceof SimpleAttribute )
+        {
+            writeSimpleAt( writer, ( SimpleAttribute ) at );
+        }
+        else if ( at instanceof ComplexAttribute )
+        {
+            ComplexAttribute ct = ( ComplexAttribute ) at;
+            
+            writer.name( ct.getName() );
+            writer.beginObject();
+            
+            for ( SimpleAttribute t : ct.getAtList() )
+            {
+                writeSimpleAt( writer, t );
+            }
+            
+            writer.endObject();
+        }
+        else if ( at instanceof MultiValAttribute )
+        {
+            MultiValAttribute mv = ( MultiValAttribute ) at;
+            
+            writer.name( mv.getName() );
+            writer.beginArray();
+            
+            for ( SimpleAttributeGroup stg : mv.getAtGroupList() )
+            {
+                writer.beginObject();
+                
+                for ( SimpleAttribute t : stg.getAtList() )
+                {
+                    writeSimpleAt( writer, t );
+                }
+                
+                writer.endObject();
+            }
+            
+            writer.endArray();
+        }
+    }
+    
+    
+    private static void writeSimpleAt( StreamingWriter writer, SimpleAttribute at ) throws IOException
+    {
+        Object obj = at.getValue();
+        
+        if ( obj instanceof String )
+        {
+            writer.name( at.getName() ).value( ( String ) obj );
+        }
+        else if ( obj instanceof Number )
+        {
+            writer.name( at.getName() ).value( ( Number ) obj );
+        }
+        else if ( obj instanceof Boolean )
+        {
+            writer.name( at.getName() ).value( ( ( Boolean ) obj ).booleanValue() );
+        }
+    }
 }
@@ -0,0 +1,483 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.json;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.scim.StreamingWriter;
+
+
+/**
+ * A JSON writer producing UTF-8 bytes directly, escapes the strings the same way
+ * as Gson's JsonWriter.
+ * 
+ * The property names and schema URIs repeat in every resource, they are encoded
+ * once and written as raw bytes afterwards.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class Utf8JsonWriter implements StreamingWriter
+{
+    /** the maximum number of cached tokens, names beyond this are encoded each time */
+    private static final int MAX_CACHED_TOKENS = 4096;
+
+    /** encoded property names of the form "name": keyed by the name */
+    private static final Map<String, byte[]> NAME_TOKENS = new ConcurrentHashMap<String, byte[]>();
+
+    /** encoded string values of the form "value" keyed by the value */
+    private static final Map<String, byte[]> STRING_TOKENS = new ConcurrentHashMap<String, byte[]>();
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+    private OutputStream out;
+
+    private byte[] buf = new byte[8192];
+
+    private int pos;
+
+    /** a flag per nesting level telling if a value was already written at that level */
+    private boolean[] hasValue = new boolean[32];
+
+    private int depth;
+
+    /** set after a property name was written, the following value needs no separator */
+    private boolean afterName;
+
+
+    public Utf8JsonWriter( OutputStream out )
+    {
+        this.out = out;
+    }
+
+
+    /**
+     * @return the UTF-8 bytes of <code>"name":</code>
+     */
+    public static byte[] nameToken( String name )
+    {
+        byte[] token = NAME_TOKENS.get( name );
+
+        if ( token == null )
+        {
+            token = encode( name, true );
+            cache( NAME_TOKENS, name, token );
+        }
+
+        return token;
+    }
+
+
+    /**
+     * @return the UTF-8 bytes of <code>"value"</code>, used for the values that repeat in every
+     * resource like the schema URIs
+     */
+    public static byte[] stringToken( String value )
+    {
+        byte[] token = STRING_TOKENS.get( value );
+
+        if ( token == null )
+        {
+            token = encode( value, false );
+            cache( STRING_TOKENS, value, token );
+        }
+
+        return token;
+    }
+
+
+    private static byte[] encode( String s, boolean asName )
+    {
+        Utf8JsonWriter writer = new Utf8JsonWriter( null );
+
+        try
+        {
+            writer.writeQuoted( s );
+
+            if ( asName )
+            {
+                writer.writeByte( ':' );
+            }
+        }
+        catch ( IOException e )
+        {
+            // there is no stream, the bytes are only buffered
+            throw new IllegalStateException( e );
+        }
+
+        return writer.toBytes();
+    }
+
+
+    private static void cache( Map<String, byte[]> tokens, String key, byte[] token )
+    {
+        if ( tokens.size() < MAX_CACHED_TOKENS )
+        {
+            tokens.put( key, token );
+        }
+    }
+
+
+    public Utf8JsonWriter beginObject() throws IOException
+    {
+        return open( '{' );
+    }
+
+
+    public Utf8JsonWriter endObject() throws IOException
+    {
+        return close( '}' );
+    }
+
+
+    public Utf8JsonWriter beginArray() throws IOException
+    {
+        return open( '[' );
+    }
+
+
+    public Utf8JsonWriter endArray() throws IOException
+    {
+        return close( ']' );
+    }
+
+
+    public Utf8JsonWriter name( String name ) throws IOException
+    {
+        return rawName( nameToken( name ) );
+    }
+
+
+    /**
+     * Writes a pre-encoded property name obtained from {@link #nameToken(String)}
+     */
+    public Utf8JsonWriter rawName( byte[] token ) throws IOException
+    {
+        separate();
+        writeBytes( token );
+        afterName = true;
+
+        return this;
+    }
+
+
+    public Utf8JsonWriter value( String value ) throws IOException
+    {
+        separate();
+        writeQuoted( value );
+
+        return this;
+    }
+
+
+    /**
+     * Writes a pre-encoded value obtained from {@link #stringToken(String)}
+     */
+    public Utf8JsonWriter rawValue( byte[] token ) throws IOException
+    {
+        separate();
+        writeBytes( token );
+
+        return this;
+    }
+
+
+    public Utf8JsonWriter repeatedValue( String value ) throws IOException
+    {
+        return rawValue( stringToken( value ) );
+    }
+
+
+    public Utf8JsonWriter value( Number value ) throws IOException
+    {
+        separate();
+        writeAscii( value.toString() );
+
+        return this;
+    }
+
+
+    public Utf8JsonWriter value( long value ) throws IOException
+    {
+        separate();
+        writeAscii( Long.toString( value ) );
+
+        return this;
+    }
+
+
+    public Utf8JsonWriter value( boolean value ) throws IOException
+    {
+        separate();
+        writeBytes( value ? TRUE : FALSE );
+
+        return this;
+    }
+
+
+    /**
+     * Ends the top level value with a line feed, the next value starts a new line
+     * without a separator as required by newline delimited JSON
+     */
+    public Utf8JsonWriter endLine() throws IOException
+    {
+        if ( depth != 0 )
+        {
+            throw new IllegalStateException( "A line can only be ended after a top level value" );
+        }
+
+        writeByte( '\n' );
+        hasValue[0] = false;
+
+        return this;
+    }
+
+
+    public void flush() throws IOException
+    {
+        out.write( buf, 0, pos );
+        pos = 0;
+        out.flush();
+    }
+
+
+    private Utf8JsonWriter open( char c ) throws IOException
+    {
+        separate();
+        writeByte( c );
+
+        depth++;
+
+        if ( depth == hasValue.length )
+        {
+            boolean[] tmp = new boolean[depth * 2];
+            System.arraycopy( hasValue, 0, tmp, 0, depth );
+            hasValue = tmp;
+        }
+
+        hasValue[depth] = false;
+
+        return this;
+    }
+
+
+    private Utf8JsonWriter close( char c ) throws IOException
+    {
+        depth--;
+        writeByte( c );
+
+        return this;
+    }
+
+
+    /**
+     * Writes the comma before a value unless it is the first value of the
+     * enclosing object or array or it follows a property name
+     */
+    private void separate() throws IOException
+    {
+        if ( afterName )
+        {
+            afterName = false;
+            return;
+        }
+
+        if ( hasValue[depth] )
+        {
+            writeByte( ',' );
+        }
+        else
+        {
+            hasValue[depth] = true;
+        }
+    }
+
+
+    private void writeQuoted( String s ) throws IOException
+    {
+        writeByte( '"' );
+
+        int len = s.length();
+
+        for ( int i = 0; i < len; i++ )
+        {
+            char c = s.charAt( i );
+
+            if ( c < 0x80 )
+            {
+                if ( c < 0x20 )
+                {
+                    switch ( c )
+                    {
+                        case '\t':
+                            writeEscape( 't' );
+                            break;
+
+                        case '\b':
+                            writeEscape( 'b' );
+                            break;
+
+                        case '\n':
+                            writeEscape( 'n' );
+                            break;
+
+                        case '\r':
+                            writeEscape( 'r' );
+                            break;
+
+                        case '\f':
+                            writeEscape( 'f' );
+                            break;
+
+                        default:
+                            writeUnicodeEscape( c );
+                    }
+                }
+                else if ( ( c == '"' ) || ( c == '\\' ) )
+                {
+                    writeEscape( c );
+                }
+                else
+                {
+                    writeByte( c );
+                }
+            }
+            else if ( ( c == '\u2028' ) || ( c == '\u2029' ) )
+            {
+                writeUnicodeEscape( c );
+            }
+            else if ( c < 0x800 )
+            {
+                writeByte( 0xC0 | ( c >> 6 ) );
+                writeByte( 0x80 | ( c & 0x3F ) );
+            }
+            else if ( Character.isHighSurrogate( c ) && ( i + 1 < len ) && Character.isLowSurrogate( s.charAt( i + 1 ) ) )
+            {
+                int cp = Character.toCodePoint( c, s.charAt( ++i ) );
+                writeByte( 0xF0 | ( cp >> 18 ) );
+                writeByte( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+                writeByte( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+                writeByte( 0x80 | ( cp & 0x3F ) );
+            }
+            else if ( Character.isSurrogate( c ) )
+            {
+                // an unpaired surrogate can't be encoded, same replacement as the JDK's encoder
+                writeByte( '?' );
+            }
+            else
+            {
+                writeByte( 0xE0 | ( c >> 12 ) );
+                writeByte( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                writeByte( 0x80 | ( c & 0x3F ) );
+            }
+        }
+
+        writeByte( '"' );
+    }
+
+
+    private void writeEscape( char c ) throws IOException
+    {
+        writeByte( '\\' );
+        writeByte( c );
+    }
+
+
+    private void writeUnicodeEscape( char c ) throws IOException
+    {
+        writeByte( '\\' );
+        writeByte( 'u' );
+        writeByte( HEX[( c >> 12 ) & 0xF] );
+        writeByte( HEX[( c >> 8 ) & 0xF] );
+        writeByte( HEX[( c >> 4 ) & 0xF] );
+        writeByte( HEX[c & 0xF] );
+    }
+
+
+    private void writeAscii( String s ) throws IOException
+    {
+        int len = s.length();
+
+        for ( int i = 0; i < len; i++ )
+        {
+            writeByte( s.charAt( i ) );
+        }
+    }
+
+
+    private void writeBytes( byte[] b ) throws IOException
+    {
+        if ( b.length > buf.length - pos )
+        {
+            drain( b.length );
+        }
+
+        System.arraycopy( b, 0, buf, pos, b.length );
+        pos += b.length;
+    }
+
+
+    private void writeByte( int b ) throws IOException
+    {
+        if ( pos == buf.length )
+        {
+            drain( 1 );
+        }
+
+        buf[pos++] = ( byte ) b;
+    }
+
+
+    /**
+     * Makes room for the given number of bytes, writes the buffered bytes to the stream
+     * or grows the buffer when there is no stream
+     */
+    private void drain( int needed ) throws IOException
+    {
+        if ( out != null )
+        {
+            out.write( buf, 0, pos );
+            pos = 0;
+        }
+
+        if ( needed > buf.length - pos )
+        {
+            byte[] tmp = new byte[Math.max( buf.length * 2, pos + needed )];
+            System.arraycopy( buf, 0, tmp, 0, pos );
+            buf = tmp;
+        }
+    }
+
+
+    private byte[] toBytes()
+    {
+        byte[] b = new byte[pos];
+        System.arraycopy( buf, 0, b, 0, pos );
+
+        return b;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.util;
+
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A fixed size buffer of published elements read by any number of {@link Reader}s,
+ * each reading all the elements at its own pace.
+ *
+ * Publishing never blocks and takes no lock, the oldest element is overwritten once
+ * the buffer is full. A reader that falls behind by more than the capacity of the buffer
+ * misses elements and is marked as overrun, it is up to the reader to resynchronize.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RingBuffer<T>
+{
+    private final AtomicReferenceArray<Slot<T>> slots;
+
+    private final int mask;
+
+    /** the sequence number of the last claimed slot, the first element gets 1 */
+    private final AtomicLong cursor = new AtomicLong();
+
+    private final List<Reader> readers = new CopyOnWriteArrayList<Reader>();
+
+
+    /**
+     *
+     * @param capacity the number of elements held, rounded up to a power of two
+     */
+    public RingBuffer( int capacity )
+    {
+        if ( capacity <= 0 )
+        {
+            throw new IllegalArgumentException( "Capacity of the buffer must be greater than zero" );
+        }
+
+        int size = Integer.highestOneBit( capacity );
+
+        if ( size < capacity )
+        {
+            size <<= 1;
+        }
+
+        slots = new AtomicReferenceArray<Slot<T>>( size );
+        mask = size - 1;
+    }
+
+
+    /**
+     * Publishes the element and wakes up the waiting readers
+     *
+     * @return the sequence number of the element
+     */
+    public long publish( T value )
+    {
+        long seq = cursor.incrementAndGet();
+
+        int index = ( int ) ( seq & mask );
+
+        Slot<T> slot = new Slot<T>( seq, value );
+
+        // a concurrent publisher a whole lap ahead may have filled the slot already
+        while ( true )
+        {
+            Slot<T> current = slots.get( index );
+
+            if ( ( ( current != null ) && ( current.seq > seq ) ) || slots.compareAndSet( index, current, slot ) )
+            {
+                break;
+            }
+        }
+
+        for ( Reader r : readers )
+        {
+            Thread t = r.waiter;
+
+            if ( t != null )
+            {
+                LockSupport.unpark( t );
+            }
+        }
+
+        return seq;
+    }
+
+
+    /**
+     * @return the sequence number of the last published element, 0 if none was published
+     */
+    public long getCursor()
+    {
+        return cursor.get();
+    }
+
+
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+
+    /**
+     * Opens a reader of the elements published from now on
+     */
+    public Reader openReader()
+    {
+        return openReader( cursor.get() );
+    }
+
+
+    /**
+     * Opens a reader of the elements published after the given sequence number, the
+     * reader is overrun if those elements are no longer present
+     */
+    public Reader openReader( long lastSeq )
+    {
+        Reader r = new Reader( lastSeq + 1 );
+        readers.add( r );
+
+        return r;
+    }
+
+
+    /**
+     * @return the number of open readers
+     */
+    public int getReaderCount()
+    {
+        return readers.size();
+    }
+
+
+    /**
+     * Reads the elements of the buffer in the order they were published,
+     * a reader must be used by a single thread
+     */
+    public class Reader
+    {
+        /** the sequence number of the next element */
+        private long next;
+
+        private boolean overrun;
+
+        private volatile Thread waiter;
+
+
+        private Reader( long next )
+        {
+            this.next = next;
+        }
+
+
+        /**
+         * Gives the next element, waiting at most the given time for it to be published
+         *
+         * @param timeout the maximum time to wait in milliseconds
+         * @return the next element, null if none was published in time or if the reader is overrun
+         */
+        public T next( long timeout )
+        {
+            long deadline = System.nanoTime() + ( timeout * 1000000L );
+
+            while ( !overrun )
+            {
+                T value = poll();
+
+                if ( ( value != null ) || overrun )
+                {
+                    return value;
+                }
+
+                long remaining = deadline - System.nanoTime();
+
+                if ( ( remaining <= 0 ) || Thread.currentThread().isInterrupted() )
+                {
+                    return null;
+                }
+
+                waiter = Thread.currentThread();
+
+                try
+                {
+                    // checked again, the element may have been published before the waiter was set
+                    value = poll();
+
+                    if ( ( value != null ) || overrun )
+                    {
+                        return value;
+                    }
+
+                    LockSupport.parkNanos( this, remaining );
+                }
+                finally
+                {
+                    waiter = null;
+                }
+            }
+
+            return null;
+        }
+
+
+        private T poll()
+        {
+            long published = cursor.get();
+
+            if ( published < next )
+            {
+                if ( next > published + 1 )
+                {
+                    // the reader was opened after an element never published by this buffer
+                    overrun = true;
+                }
+
+                return null;
+            }
+
+            if ( published - next >= slots.length() )
+            {
+                overrun = true;
+                return null;
+            }
+
+            Slot<T> slot = slots.get( ( int ) ( next & mask ) );
+
+            if ( ( slot == null ) || ( slot.seq < next ) )
+            {
+                // claimed but not yet written
+                return null;
+            }
+
+            if ( slot.seq > next )
+            {
+                overrun = true;
+                return null;
+            }
+
+            next++;
+
+            return slot.value;
+        }
+
+
+        /**
+         * @return true if the reader missed some elements, no more elements are returned
+         */
+        public boolean isOverrun()
+        {
+            return overrun;
+        }
+
+
+        /**
+         * @return the sequence number of the last element returned by this reader
+         */
+        public long getLastSeq()
+        {
+            return next - 1;
+        }
+
+
+        public void close()
+        {
+            readers.remove( this );
+        }
+    }
+
+
+    private static class Slot<T>
+    {
+        private final long seq;
+
+        private final T value;
+
+
+        private Slot( long seq, T value )
+        {
+            this.seq = seq;
+            this.value = value;
+        }
+    }
+}
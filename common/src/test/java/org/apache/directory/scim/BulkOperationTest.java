@@ -0,0 +1,130 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.scim.BulkOperation.Method;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+/**
+ * Tests for parsing the operations of bulk requests.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BulkOperationTest
+{
+    private static List<BulkOperation> parseAll( String json )
+    {
+        return BulkOperation.parseAll( ( JsonObject ) new JsonParser().parse( json ) );
+    }
+
+
+    @Test
+    public void testParseAndResolveReferences()
+    {
+        List<BulkOperation> ops = parseAll( "{\"failOnErrors\":1, \"Operations\":["
+            + "{\"method\":\"POST\", \"path\":\"/Users\", \"bulkId\":\"qwerty\", \"data\":{\"userName\":\"Alice\"}},"
+            + "{\"method\":\"POST\", \"path\":\"/Groups\", \"bulkId\":\"ytrewq\", \"data\":{\"displayName\":\"Tour Guides\","
+            + "\"members\":[{\"type\":\"User\", \"value\":\"bulkId:qwerty\"}]}},"
+            + "{\"method\":\"DELETE\", \"path\":\"/Groups/bulkId:ytrewq\", \"version\":\"W/\\\"1\\\"\"}]}" );
+
+        assertEquals( 3, ops.size() );
+
+        BulkOperation user = ops.get( 0 );
+        assertEquals( Method.POST, user.getMethod() );
+        assertEquals( "/Users", user.getEndpoint() );
+        assertNull( user.getResourceId() );
+        assertTrue( user.getReferences().isEmpty() );
+
+        BulkOperation group = ops.get( 1 );
+        assertEquals( 1, group.getReferences().size() );
+        assertTrue( group.getReferences().contains( "qwerty" ) );
+
+        BulkOperation delete = ops.get( 2 );
+        assertTrue( delete.getReferences().contains( "ytrewq" ) );
+        assertEquals( "W/\"1\"", delete.getVersion() );
+
+        Map<String, String> ids = new HashMap<String, String>();
+        ids.put( "qwerty", "92b725cd" );
+        ids.put( "ytrewq", "e9e30dba" );
+
+        group.resolveReferences( ids );
+        String member = group.getData().getAsJsonArray( "members" ).get( 0 ).getAsJsonObject().get( "value" ).getAsString();
+        assertEquals( "92b725cd", member );
+
+        delete.resolveReferences( ids );
+        assertEquals( "/Groups/e9e30dba", delete.getPath() );
+        assertEquals( "e9e30dba", delete.getResourceId() );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnresolvedReference()
+    {
+        List<BulkOperation> ops = parseAll( "{\"Operations\":[{\"method\":\"PATCH\", \"path\":\"/Groups/bulkId:abc\", "
+            + "\"data\":{\"Operations\":[]}}]}" );
+
+        ops.get( 0 ).resolveReferences( new HashMap<String, String>() );
+    }
+
+
+    @Test
+    public void testResolveReferencesInData()
+    {
+        JsonObject group = ( JsonObject ) new JsonParser().parse( "{\"displayName\":\"Tour Guides\", "
+            + "\"members\":[{\"value\":\"bulkId:u1\"}, {\"value\":\"902c246b\"}]}" );
+
+        Map<String, String> ids = new HashMap<String, String>();
+        ids.put( "u1", "2819c223" );
+
+        BulkOperation.resolveReferences( group, ids );
+
+        assertEquals( "2819c223", group.getAsJsonArray( "members" ).get( 0 ).getAsJsonObject().get( "value" ).getAsString() );
+        assertEquals( "902c246b", group.getAsJsonArray( "members" ).get( 1 ).getAsJsonObject().get( "value" ).getAsString() );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testPostWithoutBulkId()
+    {
+        parseAll( "{\"Operations\":[{\"method\":\"POST\", \"path\":\"/Users\", \"data\":{}}]}" );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testDuplicateBulkId()
+    {
+        parseAll( "{\"Operations\":[{\"method\":\"POST\", \"path\":\"/Users\", \"bulkId\":\"a\", \"data\":{}},"
+            + "{\"method\":\"POST\", \"path\":\"/Users\", \"bulkId\":\"a\", \"data\":{}}]}" );
+    }
+}
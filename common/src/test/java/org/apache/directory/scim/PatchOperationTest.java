@@ -0,0 +1,130 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.directory.scim.PatchOperation.Type;
+import org.apache.directory.scim.search.Operator;
+import org.apache.directory.scim.search.TerminalNode;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+/**
+ * Tests for parsing the operations of PATCH requests.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PatchOperationTest
+{
+    private static PatchOperation parse( String json )
+    {
+        return PatchOperation.parse( ( JsonObject ) new JsonParser().parse( json ) );
+    }
+
+
+    @Test
+    public void testParseSimplePath()
+    {
+        PatchOperation op = parse( "{\"op\":\"Replace\", \"path\":\"displayName\", \"value\":\"Babs\"}" );
+
+        assertEquals( Type.REPLACE, op.getType() );
+        assertEquals( "displayName", op.getAttribute() );
+        assertNull( op.getSubAttribute() );
+        assertNull( op.getValueFilter() );
+        assertNull( op.getSchemaUri() );
+        assertEquals( "Babs", op.getValue().getAsString() );
+    }
+
+
+    @Test
+    public void testParseSubAttributeWithSchemaUri()
+    {
+        PatchOperation op = parse( "{\"op\":\"add\", "
+            + "\"path\":\"urn:ietf:params:scim:schemas:extension:enterprise:2.0:User:manager.displayName\", "
+            + "\"value\":\"John\"}" );
+
+        assertEquals( Type.ADD, op.getType() );
+        assertEquals( "urn:ietf:params:scim:schemas:extension:enterprise:2.0:User", op.getSchemaUri() );
+        assertEquals( "manager", op.getAttribute() );
+        assertEquals( "displayName", op.getSubAttribute() );
+    }
+
+
+    @Test
+    public void testParseValueFilter()
+    {
+        PatchOperation op = parse( "{\"op\":\"remove\", \"path\":\"members[value eq \\\"2819c223-7f76\\\"]\"}" );
+
+        assertEquals( Type.REMOVE, op.getType() );
+        assertEquals( "members", op.getAttribute() );
+        assertNull( op.getSubAttribute() );
+        assertNull( op.getValue() );
+
+        TerminalNode tn = ( TerminalNode ) op.getValueFilter();
+        assertEquals( Operator.EQ, tn.getOperator() );
+        assertEquals( "value", tn.getAttribute() );
+        assertEquals( "2819c223-7f76", tn.getValue() );
+
+        op = parse( "{\"op\":\"replace\", \"path\":\"emails[value eq \\\"a@x.com\\\"].value\", \"value\":\"b@x.com\"}" );
+        assertEquals( "emails", op.getAttribute() );
+        assertEquals( "value", op.getSubAttribute() );
+        assertTrue( op.getValueFilter() instanceof TerminalNode );
+    }
+
+
+    @Test
+    public void testParseAll()
+    {
+        JsonObject obj = ( JsonObject ) new JsonParser().parse( "{\"schemas\":[\"" + PatchOperation.PATCH_OP_URI
+            + "\"], \"Operations\":[{\"op\":\"add\", \"value\":{\"title\":\"Engineer\"}},"
+            + "{\"op\":\"remove\", \"path\":\"emails\"}]}" );
+
+        List<PatchOperation> ops = PatchOperation.parseAll( obj );
+
+        assertEquals( 2, ops.size() );
+        assertNull( ops.get( 0 ).getAttribute() );
+        assertTrue( ops.get( 0 ).getValue().isJsonObject() );
+        assertEquals( Type.REMOVE, ops.get( 1 ).getType() );
+        assertEquals( "emails", ops.get( 1 ).getAttribute() );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testRemoveWithoutPath()
+    {
+        parse( "{\"op\":\"remove\"}" );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnknownOperation()
+    {
+        parse( "{\"op\":\"move\", \"path\":\"title\", \"value\":\"x\"}" );
+    }
+}
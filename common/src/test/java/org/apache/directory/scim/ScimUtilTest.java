@@ -0,0 +1,78 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.scim.exception.OperationNotAllowedException;
+import org.apache.directory.scim.exception.ResourceNotFoundException;
+import org.apache.directory.scim.exception.ServiceUnavailableException;
+import org.apache.directory.scim.schema.ErrorResponse.ScimError;
+import org.apache.directory.scim.schema.StatusCode;
+import org.junit.Test;
+
+
+/**
+ * Tests for mapping the exceptions to SCIM errors.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ScimUtilTest
+{
+    @Test
+    public void testStatusCodes()
+    {
+        assertEquals( StatusCode.NOT_FOUND, ScimUtil.buildScimError( new ResourceNotFoundException( "gone" ) ).getCode() );
+        assertEquals( StatusCode.BAD_REQUEST, ScimUtil.buildScimError( new IllegalArgumentException( "bad" ) ).getCode() );
+        assertEquals( StatusCode.SERVICE_UNAVAILABLE,
+            ScimUtil.buildScimError( new ServiceUnavailableException( "busy" ) ).getCode() );
+    }
+
+
+    @Test
+    public void testOnlyNotAllowedOperationsAreForbidden()
+    {
+        ScimError error = ScimUtil.buildScimError( new OperationNotAllowedException( "disabled" ) );
+        assertEquals( StatusCode.FORBIDDEN, error.getCode() );
+        assertEquals( "disabled", error.getDescription() );
+
+        // an unexpected failure of the server, not a refusal
+        error = ScimUtil.buildScimError( new UnsupportedOperationException( "not implemented" ) );
+        assertEquals( StatusCode.INTERNAL_SERVER_ERROR, error.getCode() );
+    }
+
+
+    @Test
+    public void testStackTrace()
+    {
+        Exception e = new IllegalArgumentException( "bad" );
+
+        assertTrue( ScimUtil.buildScimError( e ).getStackTrace().contains( "testStackTrace" ) );
+
+        // the errors of the bulk and import items
+        ScimError error = ScimUtil.buildScimError( e, false );
+        assertNull( error.getStackTrace() );
+        assertEquals( StatusCode.BAD_REQUEST, error.getCode() );
+        assertEquals( "bad", error.getDescription() );
+    }
+}
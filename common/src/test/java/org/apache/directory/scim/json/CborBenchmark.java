@@ -0,0 +1,196 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.json;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.scim.ComplexAttribute;
+import org.apache.directory.scim.ListResponse;
+import org.apache.directory.scim.MultiValAttribute;
+import org.apache.directory.scim.ServerResource;
+import org.apache.directory.scim.SimpleAttribute;
+import org.apache.directory.scim.SimpleAttributeGroup;
+import org.apache.directory.scim.cbor.CborReader;
+import org.apache.directory.scim.cbor.CborWriter;
+import org.apache.directory.scim.schema.SchemaUtil;
+
+import com.google.gson.JsonParser;
+
+
+/**
+ * Compares the size and the encoding and decoding times of a ListResponse of users
+ * serialized as JSON and as CBOR. Not a test, run its main method with the test classpath:
+ *
+ * <pre>
+ * java -cp ... org.apache.directory.scim.json.CborBenchmark [users] [iterations]
+ * </pre>
+ *
+ * The times are the minimum and the median of the iterations after a warm up, in milliseconds.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CborBenchmark
+{
+    private static final String ENTERPRISE_URI = "urn:ietf:params:scim:schemas:extension:enterprise:2.0:User";
+
+
+    public static void main( String[] args ) throws Exception
+    {
+        int users = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 1000;
+        int iterations = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 200;
+
+        ListResponse lr = new ListResponse();
+
+        for ( int i = 0; i < users; i++ )
+        {
+            lr.addResource( createUser( i ) );
+        }
+
+        byte[] json = encodeJson( lr );
+        byte[] cbor = encodeCbor( lr );
+
+        System.out.println( "Java " + System.getProperty( "java.version" ) + ", " + users + " users, " + iterations
+            + " iterations" );
+        System.out.println( "size    JSON " + json.length + " bytes, CBOR " + cbor.length + " bytes ("
+            + ( ( cbor.length - json.length ) * 100 / json.length ) + "%)" );
+
+        long[] jsonEnc = new long[iterations];
+        long[] cborEnc = new long[iterations];
+        long[] jsonDec = new long[iterations];
+        long[] cborDec = new long[iterations];
+
+        // the first round warms up the JIT
+        for ( int round = 0; round < 2; round++ )
+        {
+            for ( int i = 0; i < iterations; i++ )
+            {
+                long start = System.nanoTime();
+                encodeJson( lr );
+                jsonEnc[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                encodeCbor( lr );
+                cborEnc[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                new JsonParser().parse( new InputStreamReader( new ByteArrayInputStream( json ), "UTF-8" ) );
+                jsonDec[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                new JsonParser().parse( new CborReader( new ByteArrayInputStream( cbor ) ) );
+                cborDec[i] = System.nanoTime() - start;
+            }
+        }
+
+        System.out.println( "encode  JSON " + stats( jsonEnc ) + ", CBOR " + stats( cborEnc ) );
+        System.out.println( "decode  JSON " + stats( jsonDec ) + ", CBOR " + stats( cborDec ) );
+    }
+
+
+    private static byte[] encodeJson( ListResponse lr ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResourceSerializer.serialize( lr, out );
+
+        return out.toByteArray();
+    }
+
+
+    private static byte[] encodeCbor( ListResponse lr ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter( out );
+        ResourceSerializer.serialize( lr, writer );
+        writer.flush();
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * @return the minimum and the median of the given times in milliseconds
+     */
+    private static String stats( long[] times )
+    {
+        long[] sorted = times.clone();
+        Arrays.sort( sorted );
+
+        return String.format( "min %.2f ms, median %.2f ms", sorted[0] / 1e6, sorted[sorted.length / 2] / 1e6 );
+    }
+
+
+    private static ServerResource createUser( int i )
+    {
+        String id = String.format( "2819c223-7f76-453a-919d-%012d", i );
+
+        ServerResource res = new ServerResource();
+        res.setId( id );
+
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "id", id ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "userName", "bjensen" + i ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "displayName", "Barbara Jensen " + i ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "active", Boolean.TRUE ) );
+
+        List<SimpleAttribute> name = new ArrayList<SimpleAttribute>();
+        name.add( new SimpleAttribute( "formatted", "Ms. Barbara J Jensen III" ) );
+        name.add( new SimpleAttribute( "givenName", "Barbara" ) );
+        name.add( new SimpleAttribute( "familyName", "Jensen" ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new ComplexAttribute( "name", name ) );
+
+        MultiValAttribute emails = new MultiValAttribute( "emails" );
+
+        SimpleAttributeGroup work = new SimpleAttributeGroup();
+        work.addAttribute( new SimpleAttribute( "value", "bjensen" + i + "@example.com" ) );
+        work.addAttribute( new SimpleAttribute( "type", "work" ) );
+        work.addAttribute( new SimpleAttribute( "primary", Boolean.TRUE ) );
+        emails.addAtGroup( work );
+
+        SimpleAttributeGroup home = new SimpleAttributeGroup();
+        home.addAttribute( new SimpleAttribute( "value", "babs" + i + "@jensen.org" ) );
+        home.addAttribute( new SimpleAttribute( "type", "home" ) );
+        emails.addAtGroup( home );
+
+        res.addAttribute( SchemaUtil.CORE_USER_ID, emails );
+
+        MultiValAttribute groups = new MultiValAttribute( "groups" );
+
+        for ( int g = 0; g < 3; g++ )
+        {
+            SimpleAttributeGroup group = new SimpleAttributeGroup();
+            group.addAttribute( new SimpleAttribute( "value", String.format( "e9e30dba-f08f-4109-8486-%012d", g ) ) );
+            group.addAttribute( new SimpleAttribute( "display", "group" + g ) );
+            groups.addAtGroup( group );
+        }
+
+        res.addAttribute( SchemaUtil.CORE_USER_ID, groups );
+
+        res.addAttribute( ENTERPRISE_URI, new SimpleAttribute( "employeeNumber", 701984 + i ) );
+        res.addAttribute( ENTERPRISE_URI, new SimpleAttribute( "costCenter", "4130" ) );
+        res.addAttribute( ENTERPRISE_URI, new SimpleAttribute( "department", "Tour Operations" ) );
+
+        return res;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.json;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.scim.ChangeStream;
+import org.apache.directory.scim.ComplexAttribute;
+import org.apache.directory.scim.ListResponse;
+import org.apache.directory.scim.MultiValAttribute;
+import org.apache.directory.scim.ServerResource;
+import org.apache.directory.scim.SimpleAttribute;
+import org.apache.directory.scim.SimpleAttributeGroup;
+import org.apache.directory.scim.cbor.CborReader;
+import org.apache.directory.scim.cbor.CborWriter;
+import org.apache.directory.scim.schema.SchemaUtil;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+/**
+ * Tests that the streaming serializer produces the same output as the tree based serializer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ResourceSerializerTest
+{
+    private static final String ENTERPRISE_URI = "urn:ietf:params:scim:schemas:extension:enterprise:2.0:User";
+
+
+    private static ServerResource createResource( String id )
+    {
+        ServerResource res = new ServerResource();
+        res.setId( id );
+
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "id", id ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "userName", "b\u00e4rbel \"quoted\" <tag>\n" ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "active", Boolean.TRUE ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "title", "\\\t\u0001\u2028\ud83d\ude00\u4e2d" ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new SimpleAttribute( "nickName", null ) );
+
+        List<SimpleAttribute> name = new ArrayList<SimpleAttribute>();
+        name.add( new SimpleAttribute( "givenName", "Barbara" ) );
+        name.add( new SimpleAttribute( "familyName", "Jensen" ) );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, new ComplexAttribute( "name", name ) );
+
+        MultiValAttribute emails = new MultiValAttribute( "emails" );
+        SimpleAttributeGroup work = new SimpleAttributeGroup();
+        work.addAttribute( new SimpleAttribute( "value", "bjensen@example.com" ) );
+        work.addAttribute( new SimpleAttribute( "primary", Boolean.FALSE ) );
+        emails.addAtGroup( work );
+        res.addAttribute( SchemaUtil.CORE_USER_ID, emails );
+
+        res.addAttribute( ENTERPRISE_URI, new SimpleAttribute( "employeeNumber", 701984 ) );
+        res.addAttribute( ENTERPRISE_URI, new SimpleAttribute( "costCenter", 4130.5 ) );
+
+        return res;
+    }
+
+
+    @Test
+    public void testSerializeResource() throws Exception
+    {
+        ServerResource res = createResource( "2819c223" );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResourceSerializer.serialize( res, out );
+
+        assertEquals( ResourceSerializer.serialize( res ), new String( out.toByteArray(), "UTF-8" ) );
+    }
+
+
+    @Test
+    public void testSerializeLines() throws Exception
+    {
+        ServerResource res1 = createResource( "2819c223" );
+        ServerResource res2 = createResource( "902c246b" );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8JsonWriter writer = new Utf8JsonWriter( out );
+        ResourceSerializer.serializeLine( res1, writer );
+        ResourceSerializer.serializeLine( res2, writer );
+        writer.flush();
+
+        assertEquals( ResourceSerializer.serialize( res1 ) + "\n" + ResourceSerializer.serialize( res2 ) + "\n",
+            new String( out.toByteArray(), "UTF-8" ) );
+    }
+
+
+    @Test
+    public void testSerializeListResponse() throws Exception
+    {
+        ListResponse lr = new ListResponse();
+        lr.addResource( createResource( "2819c223" ) );
+        lr.addResource( createResource( "902c246b" ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResourceSerializer.serialize( lr, out );
+
+        assertEquals( ResourceSerializer.serialize( lr ), new String( out.toByteArray(), "UTF-8" ) );
+
+        out.reset();
+        ResourceSerializer.serialize( new ListResponse(), out );
+
+        assertEquals( ResourceSerializer.serialize( new ListResponse() ), new String( out.toByteArray(), "UTF-8" ) );
+    }
+
+
+    @Test
+    public void testSerializeChanges() throws Exception
+    {
+        final List<ServerResource> resources = new ArrayList<ServerResource>();
+        resources.add( createResource( "2819c223" ) );
+        resources.add( createResource( "902c246b" ) );
+
+        ChangeStream cs = new ChangeStream()
+        {
+            private int pos = -1;
+
+
+            public boolean next()
+            {
+                pos++;
+                return pos < resources.size();
+            }
+
+
+            public ServerResource getResource()
+            {
+                return ( ( pos >= 0 ) && ( pos < resources.size() ) ) ? resources.get( pos ) : null;
+            }
+
+
+            public void close()
+            {
+            }
+
+
+            public List<String> getDeleted()
+            {
+                return Collections.singletonList( "d41d8cd9" );
+            }
+
+
+            public String getToken()
+            {
+                if ( pos < resources.size() )
+                {
+                    throw new IllegalStateException( "not read till the end" );
+                }
+
+                return "1.2_20151021103000Z";
+            }
+        };
+
+        // positioned on the first resource by the caller
+        cs.next();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResourceSerializer.serialize( cs, new Utf8JsonWriter( out ) );
+
+        JsonObject json = ( JsonObject ) new JsonParser().parse( new String( out.toByteArray(), "UTF-8" ) );
+
+        assertEquals( 2, json.get( "totalResults" ).getAsInt() );
+        assertEquals( 2, json.get( "Resources" ).getAsJsonArray().size() );
+        assertEquals( "d41d8cd9", json.get( "deleted" ).getAsJsonArray().get( 0 ).getAsString() );
+        assertEquals( "1.2_20151021103000Z", json.get( "token" ).getAsString() );
+    }
+
+
+    @Test
+    public void testCborRoundTrip() throws Exception
+    {
+        ListResponse lr = new ListResponse();
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            lr.addResource( createResource( "2819c223-" + i ) );
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResourceSerializer.serialize( lr, new CborWriter( out ) );
+
+        byte[] cbor = out.toByteArray();
+        String json = ResourceSerializer.serialize( lr );
+
+        JsonElement decoded = new JsonParser().parse( new CborReader( new ByteArrayInputStream( cbor ) ) );
+
+        assertEquals( new JsonParser().parse( json ), decoded );
+        assertTrue( cbor.length < json.getBytes( "UTF-8" ).length );
+    }
+}
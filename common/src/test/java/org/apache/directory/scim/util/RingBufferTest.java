@@ -0,0 +1,118 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.util;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for the fan out of the elements of a {@link RingBuffer} to its readers.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RingBufferTest
+{
+    @Test
+    public void testReadersGetAllElements()
+    {
+        RingBuffer<String> rb = new RingBuffer<String>( 4 );
+        rb.publish( "before" );
+
+        RingBuffer<String>.Reader r1 = rb.openReader();
+        RingBuffer<String>.Reader r2 = rb.openReader();
+
+        rb.publish( "a" );
+        rb.publish( "b" );
+
+        assertEquals( "a", r1.next( 0 ) );
+        assertEquals( "b", r1.next( 0 ) );
+        assertNull( r1.next( 10 ) );
+        assertFalse( r1.isOverrun() );
+
+        assertEquals( "a", r2.next( 0 ) );
+        assertEquals( 2, r2.getLastSeq() );
+        assertEquals( 2, rb.getReaderCount() );
+
+        r1.close();
+        r2.close();
+        assertEquals( 0, rb.getReaderCount() );
+    }
+
+
+    @Test
+    public void testSlowReaderIsOverrun()
+    {
+        RingBuffer<Integer> rb = new RingBuffer<Integer>( 3 );
+        assertEquals( 4, rb.getCapacity() );
+
+        RingBuffer<Integer>.Reader r = rb.openReader();
+
+        for ( int i = 1; i <= 5; i++ )
+        {
+            rb.publish( i );
+        }
+
+        assertNull( r.next( 0 ) );
+        assertTrue( r.isOverrun() );
+
+        // resumes after the second element, the third one is still present
+        r = rb.openReader( 2 );
+        assertEquals( Integer.valueOf( 3 ), r.next( 0 ) );
+
+        r = rb.openReader( 0 );
+        assertNull( r.next( 0 ) );
+        assertTrue( r.isOverrun() );
+    }
+
+
+    @Test
+    public void testWaitingReaderIsWokenUp() throws Exception
+    {
+        final RingBuffer<String> rb = new RingBuffer<String>( 8 );
+        RingBuffer<String>.Reader r = rb.openReader();
+
+        Thread t = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 50 );
+                }
+                catch ( InterruptedException e )
+                {
+                }
+
+                rb.publish( "x" );
+            }
+        };
+
+        t.start();
+
+        assertEquals( "x", r.next( 10000 ) );
+        t.join();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The BER encoding of the values of the controls the LDAP API has no codec for.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class Ber
+{
+    static final int SEARCH_RESULT_ENTRY_TAG = 0x64;
+
+    static final int OCTET_STRING_TAG = 0x04;
+
+    static final int SEQUENCE_TAG = 0x30;
+
+    static final int SET_TAG = 0x31;
+
+    /** or [1] SET OF Filter */
+    static final int OR_FILTER_TAG = 0xA1;
+
+    /** equalityMatch [3] AttributeValueAssertion */
+    static final int EQUALITY_FILTER_TAG = 0xA3;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+
+    private Ber()
+    {
+    }
+
+
+    /**
+     * Encodes a filter matching the entries whose given attribute holds one of the given values,
+     * an equalityMatch filter or an or filter of equalityMatch filters when there are several values
+     */
+    static byte[] encodeEqualityFilter( String atName, List<String> values )
+    {
+        if ( values.isEmpty() )
+        {
+            throw new IllegalArgumentException( "No value to assert for the attribute " + atName );
+        }
+
+        ByteArrayOutputStream filters = new ByteArrayOutputStream();
+
+        byte[] atNameBytes = encodeTlv( OCTET_STRING_TAG, atName.getBytes( UTF_8 ) );
+
+        for ( String v : values )
+        {
+            ByteArrayOutputStream ava = new ByteArrayOutputStream();
+            ava.write( atNameBytes, 0, atNameBytes.length );
+
+            byte[] valBytes = encodeTlv( OCTET_STRING_TAG, v.getBytes( UTF_8 ) );
+            ava.write( valBytes, 0, valBytes.length );
+
+            byte[] eq = encodeTlv( EQUALITY_FILTER_TAG, ava.toByteArray() );
+            filters.write( eq, 0, eq.length );
+        }
+
+        byte[] filter = filters.toByteArray();
+
+        if ( values.size() > 1 )
+        {
+            filter = encodeTlv( OR_FILTER_TAG, filter );
+        }
+
+        return filter;
+    }
+
+
+    /**
+     * Encodes the given value as a BER TLV with a definite length
+     */
+    static byte[] encodeTlv( int tag, byte[] value )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( value.length + 6 );
+        out.write( tag );
+
+        int len = value.length;
+
+        if ( len < 128 )
+        {
+            out.write( len );
+        }
+        else
+        {
+            int count = 0;
+            for ( int l = len; l > 0; l >>= 8 )
+            {
+                count++;
+            }
+
+            out.write( 0x80 | count );
+
+            for ( int i = count - 1; i >= 0; i-- )
+            {
+                out.write( ( len >> ( 8 * i ) ) & 0xFF );
+            }
+        }
+
+        out.write( value, 0, len );
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Decodes a SearchResultEntry
+     *
+     * <pre>
+     * SearchResultEntry ::= [APPLICATION 4] SEQUENCE {
+     *      objectName      LDAPDN,
+     *      attributes      PartialAttributeList }
+     *
+     * PartialAttributeList ::= SEQUENCE OF partialAttribute SEQUENCE {
+     *      type       AttributeDescription,
+     *      vals       SET OF value AttributeValue }
+     * </pre>
+     *
+     * @param attributes the map the values of the entry's attributes are added to
+     * @return the DN of the entry
+     * @throws IllegalArgumentException if the data is not a valid SearchResultEntry
+     */
+    static String decodeSearchResultEntry( byte[] data, Map<String, List<byte[]>> attributes )
+    {
+        Reader reader = new Reader( data );
+
+        int end = reader.enter( SEARCH_RESULT_ENTRY_TAG );
+
+        String dn = new String( reader.read( OCTET_STRING_TAG ), UTF_8 );
+
+        int attributesEnd = reader.enter( SEQUENCE_TAG );
+
+        while ( reader.pos < attributesEnd )
+        {
+            int attributeEnd = reader.enter( SEQUENCE_TAG );
+
+            String type = new String( reader.read( OCTET_STRING_TAG ), UTF_8 );
+
+            List<byte[]> values = attributes.get( type );
+
+            if ( values == null )
+            {
+                values = new ArrayList<byte[]>();
+                attributes.put( type, values );
+            }
+
+            int valuesEnd = reader.enter( SET_TAG );
+
+            while ( reader.pos < valuesEnd )
+            {
+                values.add( reader.read( OCTET_STRING_TAG ) );
+            }
+
+            reader.leave( valuesEnd );
+            reader.leave( attributeEnd );
+        }
+
+        reader.leave( attributesEnd );
+        reader.leave( end );
+
+        return dn;
+    }
+
+
+    /**
+     * A minimal reader of the definite length BER encoded TLVs
+     */
+    static class Reader
+    {
+        private final byte[] data;
+
+        private int pos;
+
+
+        Reader( byte[] data )
+        {
+            this.data = data;
+        }
+
+
+        /**
+         * reads the tag and length of a constructed TLV
+         *
+         * @return the position of the end of the TLV's value
+         */
+        int enter( int tag )
+        {
+            int len = readHeader( tag );
+
+            return pos + len;
+        }
+
+
+        /**
+         * moves to the end of a constructed TLV, skipping the elements that were not read
+         *
+         * @param end the position of the end of the TLV's value
+         * @throws IllegalArgumentException if the elements that were read overflow the TLV
+         */
+        void leave( int end )
+        {
+            if ( pos > end )
+            {
+                throw new IllegalArgumentException( "The TLV ending at " + end + " overflows to " + pos );
+            }
+
+            pos = end;
+        }
+
+
+        /**
+         * reads a primitive TLV
+         *
+         * @return the value
+         */
+        byte[] read( int tag )
+        {
+            int len = readHeader( tag );
+
+            byte[] val = new byte[len];
+            System.arraycopy( data, pos, val, 0, len );
+            pos += len;
+
+            return val;
+        }
+
+
+        private int readHeader( int tag )
+        {
+            int t = readByte();
+
+            if ( t != tag )
+            {
+                throw new IllegalArgumentException( "Expected the tag " + tag + " but found " + t + " at " + ( pos - 1 ) );
+            }
+
+            int len = readByte();
+
+            if ( len > 0x7F )
+            {
+                int count = len & 0x7F;
+
+                if ( count == 0 )
+                {
+                    throw new IllegalArgumentException( "Unsupported indefinite length at " + ( pos - 1 ) );
+                }
+
+                if ( count > 4 )
+                {
+                    throw new IllegalArgumentException( "Unsupported length of " + count + " bytes" );
+                }
+
+                len = 0;
+                for ( int i = 0; i < count; i++ )
+                {
+                    len = ( len << 8 ) | readByte();
+                }
+            }
+
+            // compared to the remaining bytes so that a huge length doesn't overflow
+            if ( ( len < 0 ) || ( len > data.length - pos ) )
+            {
+                throw new IllegalArgumentException( "Invalid length " + len + " at " + pos );
+            }
+
+            return len;
+        }
+
+
+        private int readByte()
+        {
+            if ( pos >= data.length )
+            {
+                throw new IllegalArgumentException( "Truncated TLV, " + data.length + " bytes" );
+            }
+
+            return data[pos++] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+
+
+/**
+ * A stream of the entries of a search result, read with the same
+ * next()/getEntry() pattern as a search cursor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface EntryStream
+{
+    /**
+     * Moves to the next entry
+     * 
+     * @return false if there are no more entries
+     */
+    boolean next() throws Exception;
+
+
+    /**
+     * @return the current entry
+     */
+    Entry getEntry();
+
+
+    /**
+     * Releases the resources of the search, the remaining entries are discarded
+     */
+    void close();
+}
@@ -0,0 +1,170 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.apache.directory.scim.ChangeEvent.Type;
+import org.apache.directory.scim.ldap.schema.ResourceSchema;
+import org.apache.directory.scim.ldap.schema.SimpleType;
+import org.apache.directory.scim.util.RingBuffer;
+
+
+/**
+ * Publishes the changes of the entries of a resource type, watched with a single
+ * persistent search, to all the subscribers of the type through a {@link RingBuffer}.
+ * The search runs with the administrator's rights and reads only the ID of the entries,
+ * each subscriber reads the changed entries again with its own connection.
+ *
+ * The ID of an event is made of the time the hub was created and the sequence number
+ * of the event, a subscriber can resume after an event as long as it is still present
+ * in the buffer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EventHub implements LdapChangeListener
+{
+    private final LdapChangeMonitor monitor;
+
+    private final RingBuffer<LdapEvent> buffer;
+
+    private final long epoch = System.currentTimeMillis();
+
+    /** set once the persistent search was established for the first time */
+    private volatile boolean established;
+
+    /** the number of open subscriptions, guarded by the provider's map of hubs */
+    int subscribers;
+
+
+    EventHub( LdapConnectionConfig config, SchemaManager ldapSchema, ResourceSchema resourceSchema, int bufferSize )
+    {
+        buffer = new RingBuffer<LdapEvent>( bufferSize );
+
+        SimpleType idType = ( SimpleType ) resourceSchema.getCoreAttribute( "id" );
+
+        monitor = new LdapChangeMonitor( config, ldapSchema, resourceSchema.getBaseDn(), resourceSchema.getFilter(),
+            idType.getMappedTo() );
+        monitor.addListener( this );
+    }
+
+
+    void start()
+    {
+        monitor.start();
+    }
+
+
+    void stop()
+    {
+        monitor.stop();
+    }
+
+
+    /**
+     * Opens a reader of the events following the given event
+     *
+     * @param lastEventId the ID of the last event received by the subscriber, null to read the new events only
+     * @return the reader, null if the given event was not published by this hub
+     */
+    RingBuffer<LdapEvent>.Reader openReader( String lastEventId )
+    {
+        if ( lastEventId == null )
+        {
+            return buffer.openReader();
+        }
+
+        int pos = lastEventId.indexOf( '-' );
+
+        try
+        {
+            if ( ( pos > 0 ) && ( Long.parseLong( lastEventId.substring( 0, pos ) ) == epoch ) )
+            {
+                return buffer.openReader( Long.parseLong( lastEventId.substring( pos + 1 ) ) );
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            // not an ID of this hub
+        }
+
+        return null;
+    }
+
+
+    String toEventId( long seq )
+    {
+        return epoch + "-" + seq;
+    }
+
+
+    public void entryAdded( Entry entry )
+    {
+        buffer.publish( new LdapEvent( Type.CREATE, entry ) );
+    }
+
+
+    public void entryModified( Entry entry )
+    {
+        buffer.publish( new LdapEvent( Type.UPDATE, entry ) );
+    }
+
+
+    public void entryDeleted( Entry entry )
+    {
+        buffer.publish( new LdapEvent( Type.DELETE, entry ) );
+    }
+
+
+    public void entryRenamed( Entry entry, String oldDn )
+    {
+        buffer.publish( new LdapEvent( Type.UPDATE, entry ) );
+    }
+
+
+    public void resync()
+    {
+        // the subscribers of the first search know nothing could have been missed
+        if ( !established )
+        {
+            established = true;
+            return;
+        }
+
+        buffer.publish( new LdapEvent( Type.RESYNC, null ) );
+    }
+
+
+    static class LdapEvent
+    {
+        final Type type;
+
+        final Entry entry;
+
+
+        private LdapEvent( Type type, Entry entry )
+        {
+            this.type = type;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+
+
+/**
+ * A listener notified by the {@link LdapChangeMonitor} about the changes
+ * made to the entries it watches.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface LdapChangeListener
+{
+    /**
+     * called when an entry was added
+     */
+    void entryAdded( Entry entry );
+
+
+    /**
+     * called when an entry was modified, the given entry holds the modified state
+     */
+    void entryModified( Entry entry );
+
+
+    /**
+     * called when an entry was deleted
+     */
+    void entryDeleted( Entry entry );
+
+
+    /**
+     * called when an entry was renamed or moved
+     *
+     * @param entry the entry with its new DN
+     * @param oldDn the DN of the entry before it was renamed
+     */
+    void entryRenamed( Entry entry, String oldDn );
+
+
+    /**
+     * called whenever the monitor (re)connects to the server, changes that happened
+     * while it was disconnected are lost so the listener must reload its state
+     */
+    void resync();
+}
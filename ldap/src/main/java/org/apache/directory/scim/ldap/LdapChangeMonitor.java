@@ -0,0 +1,297 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.message.controls.EntryChange;
+import org.apache.directory.api.ldap.model.message.controls.PersistentSearch;
+import org.apache.directory.api.ldap.model.message.controls.PersistentSearchImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Watches the entries under a base DN matching a filter using a persistent search
+ * and dispatches the changes to the registered {@link LdapChangeListener}s.
+ *
+ * A single monitor runs one persistent search on a dedicated connection regardless
+ * of the number of listeners. When the connection is lost the monitor reconnects
+ * and asks all the listeners to resync their state.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapChangeMonitor implements Runnable
+{
+    /** the OID of the persistent search control */
+    public static final String PSEARCH_OID = PersistentSearch.OID;
+
+    private static final Logger LOG = LoggerFactory.getLogger( LdapChangeMonitor.class );
+
+    private final LdapConnectionConfig config;
+
+    private final SchemaManager ldapSchema;
+
+    private final String baseDn;
+
+    private final String filter;
+
+    private final String[] attributes;
+
+    /** the types of the changes reported by the server */
+    private int changeTypes = ChangeType.ADD.getValue() | ChangeType.DELETE.getValue()
+        | ChangeType.MODIFY.getValue() | ChangeType.MODDN.getValue();
+
+    private final List<LdapChangeListener> listeners = new CopyOnWriteArrayList<LdapChangeListener>();
+
+    private volatile boolean stop;
+
+    private volatile LdapNetworkConnection connection;
+
+    private Thread thread;
+
+
+    public LdapChangeMonitor( LdapConnectionConfig config, SchemaManager ldapSchema, String baseDn, String filter,
+        String... attributes )
+    {
+        this.config = config;
+        this.ldapSchema = ldapSchema;
+        this.baseDn = baseDn;
+        this.filter = filter;
+        this.attributes = attributes;
+    }
+
+
+    /**
+     * Sets the types of the changes to be reported, must be called before starting the monitor
+     *
+     * @param changeTypes a bitmask of the {@link ChangeType} values
+     */
+    public void setChangeTypes( int changeTypes )
+    {
+        this.changeTypes = changeTypes;
+    }
+
+
+    public void addListener( LdapChangeListener listener )
+    {
+        listeners.add( listener );
+    }
+
+
+    public void removeListener( LdapChangeListener listener )
+    {
+        listeners.remove( listener );
+    }
+
+
+    public synchronized void start()
+    {
+        if ( thread != null )
+        {
+            return;
+        }
+
+        thread = new Thread( this, "escimo-change-monitor " + baseDn );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    public synchronized void stop()
+    {
+        stop = true;
+
+        closeConnection();
+
+        if ( thread != null )
+        {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+
+    public void run()
+    {
+        long backoff = 1000;
+
+        while ( !stop )
+        {
+            SearchCursor cursor = null;
+
+            try
+            {
+                connection = new LdapNetworkConnection( config );
+                connection.bind();
+                connection.setSchemaManager( ldapSchema );
+                // the persistent search never completes, wait indefinitely for the changes
+                connection.setTimeOut( 0 );
+
+                PersistentSearch psearch = new PersistentSearchImpl();
+                psearch.setChangesOnly( true );
+                psearch.setReturnECs( true );
+                psearch.setChangeTypes( changeTypes );
+
+                SearchRequest sr = new SearchRequestImpl();
+                sr.setBase( new Dn( baseDn ) );
+                sr.setFilter( filter );
+                sr.setScope( SearchScope.SUBTREE );
+                sr.addAttributes( attributes );
+                sr.addControl( psearch );
+
+                cursor = connection.search( sr );
+
+                // the search is established, anything that happened before is unknown to the listeners
+                for ( LdapChangeListener l : listeners )
+                {
+                    l.resync();
+                }
+
+                backoff = 1000;
+
+                while ( !stop && cursor.next() )
+                {
+                    Response resp = cursor.get();
+
+                    if ( resp instanceof SearchResultEntry )
+                    {
+                        dispatch( ( SearchResultEntry ) resp );
+                    }
+                }
+            }
+            catch ( Exception e )
+            {
+                if ( stop )
+                {
+                    break;
+                }
+
+                LOG.warn( "Persistent search on {} was interrupted, reconnecting in {} ms", baseDn, backoff );
+                LOG.debug( "", e );
+            }
+            finally
+            {
+                if ( cursor != null )
+                {
+                    try
+                    {
+                        cursor.close();
+                    }
+                    catch ( Exception e )
+                    {
+                        // ignore
+                    }
+                }
+
+                closeConnection();
+            }
+
+            try
+            {
+                Thread.sleep( backoff );
+            }
+            catch ( InterruptedException e )
+            {
+                // stop() interrupts the thread
+            }
+
+            backoff = Math.min( backoff * 2, 60 * 1000 );
+        }
+    }
+
+
+    private void dispatch( SearchResultEntry sre )
+    {
+        Entry entry = sre.getEntry();
+
+        EntryChange ec = ( EntryChange ) sre.getControl( EntryChange.OID );
+
+        for ( LdapChangeListener l : listeners )
+        {
+            try
+            {
+                if ( ec == null )
+                {
+                    l.entryModified( entry );
+                    continue;
+                }
+
+                switch ( ec.getChangeType() )
+                {
+                    case ADD:
+                        l.entryAdded( entry );
+                        break;
+
+                    case DELETE:
+                        l.entryDeleted( entry );
+                        break;
+
+                    case MODIFY:
+                        l.entryModified( entry );
+                        break;
+
+                    case MODDN:
+                        Dn previous = ec.getPreviousDn();
+                        l.entryRenamed( entry, ( previous == null ) ? null : previous.getName() );
+                        break;
+                }
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Listener {} failed to process the change of entry {}", l, entry.getDn() );
+                LOG.debug( "", e );
+            }
+        }
+    }
+
+
+    private void closeConnection()
+    {
+        LdapNetworkConnection conn = connection;
+        connection = null;
+
+        if ( conn != null )
+        {
+            try
+            {
+                conn.close();
+            }
+            catch ( Exception e )
+            {
+                // ignore
+            }
+        }
+    }
+}
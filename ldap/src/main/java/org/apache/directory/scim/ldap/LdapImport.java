@@ -0,0 +1,556 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.AddRequest;
+import org.apache.directory.api.ldap.model.message.AddRequestImpl;
+import org.apache.directory.api.ldap.model.message.AddResponse;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapAsyncConnection;
+import org.apache.directory.ldap.client.api.future.AddFuture;
+import org.apache.directory.scim.BulkOperation;
+import org.apache.directory.scim.ImportListener;
+import org.apache.directory.scim.SimpleAttribute;
+import org.apache.directory.scim.exception.EscimoException;
+import org.apache.directory.scim.exception.InternalException;
+import org.apache.directory.scim.exception.ResourceConflictException;
+import org.apache.directory.scim.ldap.schema.ResourceSchema;
+import org.apache.directory.scim.ldap.schema.SimpleType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+
+/**
+ * Creates the resources read from a stream of newline delimited JSON.
+ * 
+ * Each line is mapped to an entry by the thread reading the stream, the add requests are
+ * sent asynchronously over several connections in turn keeping at most a window of requests
+ * outstanding on each connection. The groups are written to a spool file and added after
+ * all the other resources, so that their members exist. A line referring to a resource of
+ * another line using <code>bulkId:</code> is added once that resource was created.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class LdapImport
+{
+    private static final Logger LOG = LoggerFactory.getLogger( LdapImport.class );
+
+    /** the number of lines sharing the DNs resolved while mapping them */
+    private static final int LINES_PER_CONTEXT = 1000;
+
+    private final LdapResourceProvider provider;
+
+    private final LdapRequestContext ctx;
+
+    private final ImportListener listener;
+
+    private final List<Lane> lanes = new ArrayList<Lane>();
+
+    private final int window;
+
+    /** the IDs of the created resources keyed by bulkId */
+    private final Map<String, String> resourceIds = new HashMap<String, String>();
+
+    private final Set<String> bulkIds = new HashSet<String>();
+
+    private int nextLane;
+
+    /** the number of outstanding add requests */
+    private int pending;
+
+    private LdapRequestContext linesCtx;
+
+    private int linesCtxUsage;
+
+
+    LdapImport( LdapResourceProvider provider, LdapRequestContext ctx, ImportListener listener,
+        List<LdapAsyncConnection> connections, int window )
+    {
+        this.provider = provider;
+        this.ctx = ctx;
+        this.listener = listener;
+        this.window = window;
+
+        for ( LdapAsyncConnection conn : connections )
+        {
+            lanes.add( new Lane( conn ) );
+        }
+    }
+
+
+    void run( InputStream in ) throws EscimoException
+    {
+        File spool = null;
+
+        long start = System.currentTimeMillis();
+        long lineNo = 0;
+
+        try
+        {
+            Writer spoolWriter = null;
+
+            try
+            {
+                BufferedReader reader = new BufferedReader( new InputStreamReader( in, "UTF-8" ) );
+
+                String line;
+
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    lineNo++;
+
+                    if ( line.trim().length() == 0 )
+                    {
+                        continue;
+                    }
+
+                    LineHeader header = readHeader( lineNo, line );
+
+                    if ( header == null )
+                    {
+                        continue;
+                    }
+
+                    if ( ( header.bulkId != null ) && !bulkIds.add( header.bulkId ) )
+                    {
+                        listener.failed( lineNo, header.bulkId, new IllegalArgumentException( "Duplicate bulkId "
+                            + header.bulkId ) );
+                        continue;
+                    }
+
+                    if ( "Group".equalsIgnoreCase( header.schema.getName() ) )
+                    {
+                        if ( spoolWriter == null )
+                        {
+                            spool = File.createTempFile( "escimo-import", ".ndjson" );
+                            spoolWriter = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( spool ), "UTF-8" ) );
+                        }
+
+                        spoolWriter.write( lineNo + " " + line + "\n" );
+                    }
+                    else
+                    {
+                        add( lineNo, line, header );
+                    }
+                }
+            }
+            finally
+            {
+                if ( spoolWriter != null )
+                {
+                    spoolWriter.close();
+                }
+            }
+
+            // the members of the groups must exist
+            flush();
+
+            if ( spool != null )
+            {
+                addSpooled( spool );
+            }
+        }
+        catch ( IOException e )
+        {
+            LOG.warn( "Failed to read the resources to be imported at line {}", lineNo, e );
+            throw new InternalException( e );
+        }
+        finally
+        {
+            flush();
+
+            if ( spool != null )
+            {
+                spool.delete();
+            }
+        }
+
+        LOG.info( "Imported {} lines in {} ms", lineNo, System.currentTimeMillis() - start );
+    }
+
+
+    private void addSpooled( File spool ) throws IOException
+    {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( spool ), "UTF-8" ) );
+
+        try
+        {
+            String line;
+
+            while ( ( line = reader.readLine() ) != null )
+            {
+                int pos = line.indexOf( ' ' );
+                long lineNo = Long.parseLong( line.substring( 0, pos ) );
+                line = line.substring( pos + 1 );
+
+                add( lineNo, line, readHeader( lineNo, line ) );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+
+    /**
+     * Reads the schemas and the bulkId of the resource without reading the other attributes
+     *
+     * @return the header, null if the line is not valid
+     */
+    private LineHeader readHeader( long lineNo, String line )
+    {
+        List<String> schemas = new ArrayList<String>();
+        String bulkId = null;
+
+        try
+        {
+            JsonReader reader = new JsonReader( new StringReader( line ) );
+            reader.beginObject();
+
+            while ( reader.hasNext() )
+            {
+                String name = reader.nextName();
+
+                if ( "schemas".equals( name ) && ( reader.peek() == JsonToken.BEGIN_ARRAY ) )
+                {
+                    reader.beginArray();
+
+                    while ( reader.hasNext() )
+                    {
+                        schemas.add( reader.nextString() );
+                    }
+
+                    reader.endArray();
+                }
+                else if ( "bulkId".equals( name ) && ( reader.peek() == JsonToken.STRING ) )
+                {
+                    bulkId = reader.nextString();
+                }
+                else
+                {
+                    reader.skipValue();
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            listener.failed( lineNo, null, new IllegalArgumentException( "Invalid JSON payload, " + e.getMessage(), e ) );
+            return null;
+        }
+
+        ResourceSchema schema = provider.getResourceSchemaByUris( schemas );
+
+        if ( schema == null )
+        {
+            listener.failed( lineNo, bulkId, new IllegalArgumentException( "No resource type is mapped to the schemas "
+                + schemas ) );
+            return null;
+        }
+
+        return new LineHeader( schema, bulkId );
+    }
+
+
+    /**
+     * Maps the resource of the line to an entry and sends the add request
+     */
+    private void add( long lineNo, String line, LineHeader header )
+    {
+        if ( header == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( line.contains( BulkOperation.BULK_ID_PREFIX ) )
+            {
+                line = resolveReferences( line );
+            }
+
+            LdapRequestContext lineCtx = nextContext();
+
+            Entry entry = provider.newEntry( new JsonReader( new StringReader( line ) ), lineCtx, header.schema );
+
+            AddRequest addReq = new AddRequestImpl();
+            addReq.setEntry( entry );
+
+            SimpleType idType = ( SimpleType ) header.schema.getCoreAttribute( "id" );
+
+            if ( provider.isPostReadSupported() )
+            {
+                addReq.addControl( PostReadControl.create( idType.getMappedTo() ) );
+            }
+
+            Lane lane = lanes.get( nextLane );
+            nextLane = ( nextLane + 1 ) % lanes.size();
+
+            if ( lane.window.size() == window )
+            {
+                await( lane.window.removeFirst() );
+            }
+
+            AddFuture future = lane.conn.addAsync( addReq );
+
+            lane.window.add( new PendingAdd( lineNo, header, entry.getDn(), lineCtx, future ) );
+            pending++;
+        }
+        catch ( JsonParseException e )
+        {
+            listener.failed( lineNo, header.bulkId, new IllegalArgumentException( "Invalid JSON payload, "
+                + e.getMessage(), e ) );
+        }
+        catch ( Exception e )
+        {
+            LOG.debug( "Failed to add the resource of line {}", lineNo, e );
+            listener.failed( lineNo, header.bulkId, e );
+        }
+    }
+
+
+    /**
+     * Replaces the bulkId references with the IDs of the created resources, waits for the
+     * outstanding requests if a referenced resource is not created yet
+     */
+    private String resolveReferences( String line )
+    {
+        JsonObject obj = new JsonParser().parse( line ).getAsJsonObject();
+
+        try
+        {
+            BulkOperation.resolveReferences( obj, resourceIds );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            if ( pending == 0 )
+            {
+                throw e;
+            }
+
+            flush();
+            BulkOperation.resolveReferences( obj, resourceIds );
+        }
+
+        return obj.toString();
+    }
+
+
+    /**
+     * Waits for all the outstanding requests
+     */
+    private void flush()
+    {
+        for ( Lane lane : lanes )
+        {
+            while ( !lane.window.isEmpty() )
+            {
+                await( lane.window.removeFirst() );
+            }
+        }
+    }
+
+
+    private void await( PendingAdd add )
+    {
+        pending--;
+
+        try
+        {
+            AddResponse resp = add.future.get();
+
+            // the response is null when the connection was closed before it arrived
+            if ( resp == null )
+            {
+                throw new InternalException( "No response was received for adding the entry " + add.dn );
+            }
+
+            LdapResult result = resp.getLdapResult();
+
+            if ( result.getResultCode() == ResultCodeEnum.ENTRY_ALREADY_EXISTS )
+            {
+                throw new ResourceConflictException( "Resource already exists, conflicting entry " + add.dn );
+            }
+
+            if ( result.getResultCode() != ResultCodeEnum.SUCCESS )
+            {
+                throw new InternalException( result.getResultCode() + " " + result.getDiagnosticMessage() );
+            }
+
+            provider.runDeferredUpdates( add.dn, null, add.ctx );
+
+            String id = getCreatedId( resp, add );
+
+            if ( add.header.bulkId != null )
+            {
+                resourceIds.put( add.header.bulkId, id );
+            }
+
+            listener.created( add.lineNo, add.header.bulkId, id );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            listener.failed( add.lineNo, add.header.bulkId, new InternalException( "The import was interrupted" ) );
+        }
+        catch ( ExecutionException e )
+        {
+            LOG.debug( "Failed to add the entry {}", add.dn, e.getCause() );
+            listener.failed( add.lineNo, add.header.bulkId, new InternalException( e.getCause() ) );
+        }
+        catch ( Exception e )
+        {
+            LOG.debug( "Failed to add the entry {}", add.dn, e );
+            listener.failed( add.lineNo, add.header.bulkId, e );
+        }
+    }
+
+
+    /**
+     * @return the ID of the added entry, read from the Post-Read control or from the entry
+     */
+    private String getCreatedId( AddResponse resp, PendingAdd add ) throws Exception
+    {
+        SimpleType idType = ( SimpleType ) add.header.schema.getCoreAttribute( "id" );
+
+        Entry entry = PostReadControl.getEntry( resp, provider.getLdapSchema() );
+
+        if ( entry == null )
+        {
+            entry = ctx.getConnection().lookup( add.dn, idType.getMappedTo() );
+
+            if ( entry == null )
+            {
+                return null;
+            }
+        }
+
+        SimpleAttribute idAttribute = provider.getValueForSimpleType( idType, entry );
+
+        return ( idAttribute == null ) ? null : ( String ) idAttribute.getValue();
+    }
+
+
+    /**
+     * @return the context for mapping the next line, the lines share the resolved DNs
+     *         in groups so that they don't accumulate over the whole import
+     */
+    private LdapRequestContext nextContext()
+    {
+        if ( ( linesCtx == null ) || ( linesCtxUsage == LINES_PER_CONTEXT ) )
+        {
+            linesCtx = ctx.newDetachedContext();
+            linesCtxUsage = 0;
+        }
+
+        linesCtxUsage++;
+
+        return linesCtx.newChildContext();
+    }
+
+
+    /**
+     * The schema and bulkId of a line
+     */
+    private static class LineHeader
+    {
+        private final ResourceSchema schema;
+
+        private final String bulkId;
+
+
+        private LineHeader( ResourceSchema schema, String bulkId )
+        {
+            this.schema = schema;
+            this.bulkId = bulkId;
+        }
+    }
+
+
+    /**
+     * A connection and its outstanding requests
+     */
+    private static class Lane
+    {
+        private final LdapAsyncConnection conn;
+
+        private final LinkedList<PendingAdd> window = new LinkedList<PendingAdd>();
+
+
+        private Lane( LdapAsyncConnection conn )
+        {
+            this.conn = conn;
+        }
+    }
+
+
+    private static class PendingAdd
+    {
+        private final long lineNo;
+
+        private final LineHeader header;
+
+        private final Dn dn;
+
+        private final LdapRequestContext ctx;
+
+        private final AddFuture future;
+
+
+        private PendingAdd( long lineNo, LineHeader header, Dn dn, LdapRequestContext ctx, AddFuture future )
+        {
+            this.lineNo = lineNo;
+            this.header = header;
+            this.dn = dn;
+            this.ctx = ctx;
+            this.future = future;
+        }
+    }
+}
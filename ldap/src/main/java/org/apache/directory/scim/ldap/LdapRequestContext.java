@@ -14,12 +14,18 @@
 
 package org.apache.directory.scim.ldap;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.UriInfo;
 
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.scim.ResourceProvider;
 import org.apache.directory.scim.RequestContext;
+import org.apache.directory.scim.ldap.cache.EntryRef;
 
 /**
  *
@@ -29,14 +35,107 @@ public class LdapRequestContext extends RequestContext
 {
     private LdapConnection connection;
     
+    /** DNs resolved while serving this request, keyed by the DN as it appeared in the entry, shared with the child contexts */
+    private Map<String, EntryRef> dnMemo = new ConcurrentHashMap<String, EntryRef>();
+    
+    /** groups of the entries of a search result fetched in bulk, keyed by the DN of the member entry */
+    private Map<String, List<EntryRef>> prefetchedGroups;
+    
+    /** updates to be applied to the written entry after the request was processed */
+    private List<DeferredUpdate> deferredUpdates;
+    
     public LdapRequestContext( ResourceProvider providerService, LdapConnection connection, UriInfo uriInfo, HttpServletRequest httpReq )
     {
         super( providerService, uriInfo, httpReq );
         this.connection = connection;
     }
 
+    
+    private LdapRequestContext( LdapRequestContext parent )
+    {
+        super( parent );
+        this.connection = parent.connection;
+        this.dnMemo = parent.dnMemo;
+        this.prefetchedGroups = parent.prefetchedGroups;
+    }
+
+    
+    /**
+     * Creates a context for processing a part of this request, e.x. a single entry of a search
+     * result, in parallel with the other parts. The child shares the connection, the resolved DNs
+     * and the prefetched groups known at this point but has its own resource.
+     */
+    public LdapRequestContext newChildContext()
+    {
+        return new LdapRequestContext( this );
+    }
+
+
+    /**
+     * Creates a child context with its own resolved DNs, for the parts of a long running
+     * request whose resolved DNs must not accumulate, e.x. the pages of an export
+     */
+    public LdapRequestContext newDetachedContext()
+    {
+        LdapRequestContext child = new LdapRequestContext( this );
+        child.dnMemo = new ConcurrentHashMap<String, EntryRef>();
+        
+        return child;
+    }
+
     public LdapConnection getConnection() 
     {
         return connection;
     }
+
+    
+    EntryRef getMemoizedRef( String dn )
+    {
+        return dnMemo.get( dn );
+    }
+    
+    void memoizeRef( String dn, EntryRef ref )
+    {
+        dnMemo.put( dn, ref );
+    }
+    
+    
+    /**
+     * @return the prefetched groups of the entry with the given DN or null if they were not prefetched
+     */
+    public List<EntryRef> getPrefetchedGroups( String dn )
+    {
+        if ( prefetchedGroups == null )
+        {
+            return null;
+        }
+        
+        return prefetchedGroups.get( dn );
+    }
+    
+    
+    public void setPrefetchedGroups( Map<String, List<EntryRef>> prefetchedGroups )
+    {
+        this.prefetchedGroups = prefetchedGroups;
+    }
+    
+    
+    /**
+     * Adds an update that will be applied in the background once the entry was added or replaced
+     */
+    public void addDeferredUpdate( DeferredUpdate update )
+    {
+        if ( deferredUpdates == null )
+        {
+            deferredUpdates = new ArrayList<DeferredUpdate>();
+        }
+        
+        deferredUpdates.add( update );
+    }
+    
+    
+    List<DeferredUpdate> getDeferredUpdates()
+    {
+        return deferredUpdates;
+    }
 }
@@ -24,24 +24,41 @@ import static org.apache.directory.api.ldap.model.constants.SchemaConstants.ALL_
 import static org.apache.directory.api.ldap.model.message.SearchScope.SUBTREE;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.UriInfo;
@@ -56,15 +73,32 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapEntryAlreadyExistsException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.entry.StringValue;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.message.AddRequest;
+import org.apache.directory.api.ldap.model.message.AddRequestImpl;
+import org.apache.directory.api.ldap.model.message.AddResponse;
+import org.apache.directory.api.ldap.model.message.DeleteRequest;
+import org.apache.directory.api.ldap.model.message.DeleteRequestImpl;
+import org.apache.directory.api.ldap.model.message.DeleteResponse;
 import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.Message;
 import org.apache.directory.api.ldap.model.message.ModifyRequest;
 import org.apache.directory.api.ldap.model.message.ModifyRequestImpl;
 import org.apache.directory.api.ldap.model.message.ModifyResponse;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.LdapSyntax;
@@ -78,26 +112,49 @@ import org.apache.directory.api.ldap.model.schema.syntaxCheckers.JavaLongSyntaxC
 import org.apache.directory.api.ldap.model.schema.syntaxCheckers.JavaShortSyntaxChecker;
 import org.apache.directory.api.util.Base64;
 import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.LdapAsyncConnection;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.ldap.client.api.LdapConnectionConfig;
 import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.ldap.client.api.SearchCursorImpl;
+import org.apache.directory.ldap.client.api.future.DeleteFuture;
+import org.apache.directory.ldap.client.api.future.SearchFuture;
 import org.apache.directory.scim.AttributeHandler;
+import org.apache.directory.scim.ChangeEvent;
+import org.apache.directory.scim.ChangeStream;
 import org.apache.directory.scim.ComplexAttribute;
+import org.apache.directory.scim.DeleteResult;
+import org.apache.directory.scim.EventSubscription;
+import org.apache.directory.scim.ImportListener;
 import org.apache.directory.scim.ListResponse;
 import org.apache.directory.scim.MultiValAttribute;
+import org.apache.directory.scim.PatchOperation;
+import org.apache.directory.scim.Photo;
 import org.apache.directory.scim.RequestContext;
 import org.apache.directory.scim.ResourceProvider;
+import org.apache.directory.scim.ResourceStream;
+import org.apache.directory.scim.ScimUtil;
 import org.apache.directory.scim.ServerResource;
 import org.apache.directory.scim.SimpleAttribute;
 import org.apache.directory.scim.SimpleAttributeGroup;
 import org.apache.directory.scim.exception.AttributeNotFoundException;
 import org.apache.directory.scim.exception.EscimoException;
 import org.apache.directory.scim.exception.InternalException;
+import org.apache.directory.scim.exception.InvalidValueException;
 import org.apache.directory.scim.exception.MissingParameterException;
+import org.apache.directory.scim.exception.OperationNotAllowedException;
+import org.apache.directory.scim.exception.PreconditionFailedException;
 import org.apache.directory.scim.exception.ResourceConflictException;
 import org.apache.directory.scim.exception.ResourceNotFoundException;
 import org.apache.directory.scim.exception.ResourceUpdateException;
+import org.apache.directory.scim.exception.ServiceUnavailableException;
+import org.apache.directory.scim.exception.TokenExpiredException;
 import org.apache.directory.scim.exception.UnauthorizedException;
+import org.apache.directory.scim.ldap.cache.BoundedCache;
+import org.apache.directory.scim.ldap.cache.EntryRef;
+import org.apache.directory.scim.ldap.cache.MembershipIndex;
+import org.apache.directory.scim.ldap.cache.TombstoneLog;
+import org.apache.directory.scim.ldap.handlers.GroupsAttributeHandler;
 import org.apache.directory.scim.ldap.handlers.LdapAttributeHandler;
 import org.apache.directory.scim.ldap.schema.ComplexType;
 import org.apache.directory.scim.ldap.schema.MultiValType;
@@ -110,14 +167,18 @@ import org.apache.directory.scim.schema.SchemaUtil;
 import org.apache.directory.scim.search.FilterNode;
 import org.apache.directory.scim.search.FilterParser;
 import org.apache.directory.scim.util.ResourceUtil;
+import org.apache.directory.scim.util.RingBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 
 /**
@@ -143,6 +204,8 @@ public class LdapResourceProvider implements ResourceProvider
 
     private static final String ENTRYDN_HEADER = "X-ENTRYDN";
 
+    private static final String IF_MATCH_HEADER = "If-Match";
+
     private final Map<String, ConnectionSession> connMap = new ConcurrentHashMap<String, ConnectionSession>();
 
     private boolean allowAuthorizedUsers = false;
@@ -154,7 +217,128 @@ public class LdapResourceProvider implements ResourceProvider
     private long sessionTimeout = 2 * 60 * 1000;
 
     private String baseDn;
-    
+
+    /**
+     * shared cache of DN to entryUUID mappings used while rendering member and group references,
+     * unused when the users connect with their own credentials
+     */
+    private BoundedCache<String, EntryRef> dnCache = new BoundedCache<String, EntryRef>( 10000, 60 * 1000 );
+
+    /** cache of the recently served photos keyed by the resource ID */
+    private BoundedCache<String, CachedPhoto> photoCache = new BoundedCache<String, CachedPhoto>( 200, 5 * 60 * 1000 );
+
+    /** photos larger than this are not cached */
+    private static final int MAX_CACHED_PHOTO_SIZE = 256 * 1024;
+
+    private boolean enableMembershipIndex = false;
+
+    /** the memory budget of the nested memberships memoized by the index */
+    private long membershipClosureCacheBytes = MembershipIndex.DEFAULT_CLOSURE_CACHE_BYTES;
+
+    /** reverse index of group memberships, null if disabled */
+    private MembershipIndex membershipIndex;
+
+    private LdapChangeMonitor groupMonitor;
+
+    /** number of searches of a batched lookup outstanding at a time on the request's connection */
+    private int lookupConcurrency = 4;
+
+    /** number of threads applying the updates deferred by the attribute handlers */
+    private int deferredThreads = 2;
+
+    /** the maximum number of deferred updates waiting for a thread */
+    private int deferredQueueSize = 1000;
+
+    private ExecutorService deferredExecutor;
+
+    /** the idle connections of the deferred updates made with the admin credentials */
+    private BlockingQueue<LdapConnection> deferredConnections;
+
+    /** number of threads mapping the entries of search results to resources */
+    private int mappingThreads = Runtime.getRuntime().availableProcessors();
+
+    /** a separate pool, the mapping tasks may wait on the lookups */
+    private ExecutorService mappingExecutor;
+
+    /** flag to search the children of the base DN of a resource type in parallel */
+    private boolean partitionedSearchEnabled = false;
+
+    /** the maximum number of connections used by the partitioned searches */
+    private int partitionConnections = 8;
+
+    /** the number of milliseconds after which the children of a base DN are fetched again */
+    private long partitionRefresh = 600000;
+
+    /** flag to return the entries partition by partition */
+    private boolean partitionOrdered = false;
+
+    /** flag to drop the entries returned by more than one partition */
+    private boolean partitionDedup = true;
+
+    private PartitionedSearch partitionedSearch;
+
+    /** the number of entries read with each page of an export */
+    private int exportPageSize = 500;
+
+    /** the number of connections the entries of an import are added with */
+    private int importConnections = 4;
+
+    /** the maximum number of add requests outstanding on each connection of an import */
+    private int importWindow = 16;
+
+    /** the IDs of the recently deleted resources reported by the sync requests */
+    private TombstoneLog tombstones = new TombstoneLog( 100000 );
+
+    /** flag to watch the deletes made by the other clients of the LDAP server */
+    private boolean monitorDeletes = false;
+
+    /** the monitors of the deletes, one per resource type */
+    private List<LdapChangeMonitor> deleteMonitors = new ArrayList<LdapChangeMonitor>();
+
+    /** the maximum number of event subscribers of all the resource types */
+    private int maxEventSubscribers = 100;
+
+    /** the number of events held for the subscribers, a subscriber falling behind by more must resync */
+    private int eventBufferSize = 4096;
+
+    private AtomicInteger eventSubscribers = new AtomicInteger();
+
+    /** the hubs publishing the changes to the subscribers keyed by the resource type, started on the first subscription */
+    private Map<String, EventHub> eventHubs = new HashMap<String, EventHub>();
+
+    /** flag to allow deleting all the resources matching a filter with a single request */
+    private boolean deleteByFilterEnabled = false;
+
+    /** the maximum number of resources a filter can match for deleting them */
+    private int deleteByFilterMaxMatches = 1000;
+
+    /** the number of delete requests sent without waiting for their responses */
+    private int deleteByFilterConcurrency = 8;
+
+    /** flag to indicate if the LDAP server supports the Permissive Modify control */
+    private boolean permissiveModifySupported;
+
+    /** flag to indicate if the LDAP server supports the Assertion control */
+    private boolean assertionSupported;
+
+    /** flag to indicate if the LDAP server supports the Post-Read control */
+    private boolean postReadSupported;
+
+    /** the operational attribute holding the version of an entry */
+    private String versionAtName = SchemaConstants.ENTRY_CSN_AT;
+
+    /** the maximum number of values present in the filter of a single search of a batched lookup */
+    private static final int LOOKUP_BATCH_SIZE = 200;
+
+    /** the number of search result entries read before their data is prefetched and they are handed over for mapping */
+    private static final int SEARCH_CHUNK_SIZE = LOOKUP_BATCH_SIZE;
+
+    /** the number of chunks of a search result mapped at once, beyond it the reading waits for the oldest one */
+    private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+
+    /** search results smaller than this are mapped by the calling thread */
+    private static final int MIN_PARALLEL_ENTRIES = 8;
+
     public LdapResourceProvider()
     {
     }
@@ -308,16 +492,238 @@ public class LdapResourceProvider implements ResourceProvider
         //TODO validate mappedTo attributes as soon as we get the LDAP schema, this 
         // catches any typo errors in LDAP attribute names mapped in the config
 
+        if ( enableMembershipIndex )
+        {
+            initMembershipIndex();
+        }
+
+        try
+        {
+            permissiveModifySupported = adminConnection.isControlSupported( LdapUtil.PERMISSIVE_MODIFY_OID );
+            assertionSupported = adminConnection.isControlSupported( LdapUtil.ASSERTION_OID );
+            postReadSupported = adminConnection.isControlSupported( PostReadControl.OID );
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to read the supported controls of the LDAP server", e );
+        }
+
+        // servers not replicating the entries may not maintain entryCSN
+        if ( ldapSchema.getAttributeType( versionAtName ) == null )
+        {
+            versionAtName = SchemaConstants.MODIFY_TIMESTAMP_AT;
+        }
+
+        // the queue is bounded, when it is full the update runs in the request's thread
+        deferredExecutor = new ThreadPoolExecutor( deferredThreads, deferredThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>( deferredQueueSize ), new ThreadFactory()
+            {
+                private AtomicInteger count = new AtomicInteger();
+
+
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "escimo-deferred-" + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy() );
+        deferredConnections = new ArrayBlockingQueue<LdapConnection>( deferredThreads );
+
+        // the queue is bounded, when it is full the entry is mapped in the request's thread
+        mappingExecutor = new ThreadPoolExecutor( mappingThreads, mappingThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>( mappingThreads * SEARCH_CHUNK_SIZE ), new ThreadFactory()
+            {
+                private AtomicInteger count = new AtomicInteger();
+
+
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "escimo-mapping-" + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            }, new RejectedExecutionHandler()
+            {
+                public void rejectedExecution( Runnable r, ThreadPoolExecutor executor )
+                {
+                    // unlike CallerRunsPolicy the task also runs after a shutdown, its result is waited for
+                    r.run();
+                }
+            } );
+
+        if ( partitionedSearchEnabled && ( config == null ) )
+        {
+            LOG.warn( "No connection configuration is present, the partitioned search is disabled" );
+        }
+        else if ( partitionedSearchEnabled )
+        {
+            partitionedSearch = new PartitionedSearch( config, ldapSchema, partitionConnections, partitionRefresh,
+                partitionOrdered, partitionDedup );
+        }
+
+        if ( monitorDeletes && ( config == null ) )
+        {
+            LOG.warn( "No connection configuration is present, the deletes are not monitored" );
+        }
+        else if ( monitorDeletes )
+        {
+            initDeleteMonitors();
+        }
+
         initialized = true;
     }
 
 
+    private void initMembershipIndex()
+    {
+        // the index is read with the admin credentials, it would reveal the groups hidden from the users
+        if ( allowAuthorizedUsers )
+        {
+            LOG.warn( "The users connect with their own credentials, the membership index is disabled" );
+            return;
+        }
+
+        if ( config == null )
+        {
+            LOG.warn( "No connection configuration is present, the membership index is disabled" );
+            return;
+        }
+
+        GroupsAttributeHandler groupsHandler = null;
+
+        ResourceSchema userSchema = getResourceSchemaByName( "User" );
+
+        if ( userSchema != null )
+        {
+            BaseType groupsType = userSchema.getCoreAttribute( "groups" );
+
+            if ( ( groupsType != null ) && ( groupsType.getHandler() instanceof GroupsAttributeHandler ) )
+            {
+                groupsHandler = ( GroupsAttributeHandler ) groupsType.getHandler();
+            }
+        }
+
+        if ( ( groupsHandler == null ) || ( groupsHandler.getMemberAtName() == null ) )
+        {
+            LOG.warn( "The groups of the users are not searched with a filter of the form (member=$entryDn), the membership index is disabled" );
+            return;
+        }
+
+        try
+        {
+            if ( !adminConnection.isControlSupported( LdapChangeMonitor.PSEARCH_OID ) )
+            {
+                LOG.warn( "LDAP server doesn't support persistent search, the membership index is disabled" );
+                return;
+            }
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to read the supported controls, the membership index is disabled", e );
+            return;
+        }
+
+        // holds the same groups the handler's search finds
+        String baseDn = groupsHandler.getSearchBase( this );
+        String memberAtName = groupsHandler.getMemberAtName();
+        String filter = "(" + memberAtName + "=*)";
+
+        membershipIndex = new MembershipIndex( adminConnection, ldapSchema, baseDn, filter, memberAtName,
+            membershipClosureCacheBytes );
+
+        groupMonitor = new LdapChangeMonitor( config, ldapSchema, baseDn, filter, SchemaConstants.ENTRY_UUID_AT,
+            memberAtName );
+        groupMonitor.addListener( new DnCacheInvalidator() );
+        // the index gets loaded by the monitor once the persistent search is established
+        groupMonitor.addListener( membershipIndex );
+        groupMonitor.start();
+    }
+
+
+    /**
+     * Starts a persistent search per resource type for recording the deletes
+     * made by the other clients of the LDAP server in the tombstone log
+     */
+    private void initDeleteMonitors()
+    {
+        try
+        {
+            if ( !adminConnection.isControlSupported( LdapChangeMonitor.PSEARCH_OID ) )
+            {
+                LOG.warn( "LDAP server doesn't support persistent search, only the deletes made through escimo are reported by the sync requests" );
+                return;
+            }
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to read the supported controls, the deletes are not monitored", e );
+            return;
+        }
+
+        for ( ResourceSchema rs : resourceSchemas )
+        {
+            SimpleType idType = ( SimpleType ) rs.getCoreAttribute( "id" );
+
+            LdapChangeMonitor monitor = new LdapChangeMonitor( config, ldapSchema, rs.getBaseDn(), rs.getFilter(),
+                idType.getMappedTo() );
+            monitor.setChangeTypes( ChangeType.DELETE.getValue() );
+            monitor.addListener( new TombstoneRecorder( rs.getName(), idType.getMappedTo() ) );
+            monitor.start();
+
+            deleteMonitors.add( monitor );
+        }
+    }
+
+
     public void stop()
     {
         LOG.info( "Closing the LDAP server connection" );
 
         stop = true;
 
+        if ( groupMonitor != null )
+        {
+            groupMonitor.stop();
+        }
+
+        for ( LdapChangeMonitor m : deleteMonitors )
+        {
+            m.stop();
+        }
+
+        synchronized ( eventHubs )
+        {
+            for ( EventHub hub : eventHubs.values() )
+            {
+                hub.stop();
+            }
+
+            eventHubs.clear();
+        }
+
+        if ( deferredExecutor != null )
+        {
+            deferredExecutor.shutdownNow();
+
+            LdapConnection conn;
+
+            while ( ( conn = deferredConnections.poll() ) != null )
+            {
+                closeQuietly( conn );
+            }
+        }
+
+        if ( mappingExecutor != null )
+        {
+            mappingExecutor.shutdownNow();
+        }
+
+        if ( partitionedSearch != null )
+        {
+            partitionedSearch.stop();
+        }
+
         if ( adminConnection != null )
         {
             try
@@ -385,6 +791,53 @@ public class LdapResourceProvider implements ResourceProvider
 
         baseDn = prop.getProperty( "escimo.ldap.server.users.baseDn", "" );
         
+        int dnCacheSize = Integer.parseInt( prop.getProperty( "escimo.ldap.cache.dn.maxSize", "10000" ) );
+        long dnCacheTtl = Long.parseLong( prop.getProperty( "escimo.ldap.cache.dn.ttl", "60" ) ) * 1000;
+        dnCache = new BoundedCache<String, EntryRef>( dnCacheSize, dnCacheTtl );
+
+        int photoCacheSize = Integer.parseInt( prop.getProperty( "escimo.ldap.cache.photo.maxSize", "200" ) );
+        long photoCacheTtl = Long.parseLong( prop.getProperty( "escimo.ldap.cache.photo.ttl", "300" ) ) * 1000;
+        photoCache = new BoundedCache<String, CachedPhoto>( photoCacheSize, photoCacheTtl );
+
+        enableMembershipIndex = Boolean.parseBoolean( prop.getProperty( "escimo.ldap.membership.index", "false" ) );
+        membershipClosureCacheBytes = Long.parseLong( prop.getProperty( "escimo.ldap.membership.closureCache.maxMb",
+            "64" ) ) * 1024 * 1024;
+
+        lookupConcurrency = Integer.parseInt( prop.getProperty( "escimo.ldap.lookup.concurrency", "4" ) );
+
+        deferredThreads = Integer.parseInt( prop.getProperty( "escimo.ldap.deferred.threads", "2" ) );
+        deferredQueueSize = Integer.parseInt( prop.getProperty( "escimo.ldap.deferred.queueSize", "1000" ) );
+
+        String mappingVal = prop.getProperty( "escimo.ldap.search.mappingThreads" );
+
+        if ( ( mappingVal != null ) && ( mappingVal.trim().length() > 0 ) )
+        {
+            mappingThreads = Integer.parseInt( mappingVal.trim() );
+        }
+
+        partitionedSearchEnabled = Boolean.parseBoolean( prop.getProperty( "escimo.ldap.search.partitioned", "false" ) );
+        partitionConnections = Integer.parseInt( prop.getProperty( "escimo.ldap.search.partition.connections", "8" ) );
+        partitionRefresh = Long.parseLong( prop.getProperty( "escimo.ldap.search.partition.refresh", "600" ) ) * 1000;
+        partitionOrdered = Boolean.parseBoolean( prop.getProperty( "escimo.ldap.search.partition.ordered", "false" ) );
+        partitionDedup = Boolean.parseBoolean( prop.getProperty( "escimo.ldap.search.partition.dedup", "true" ) );
+
+        int tombstonesSize = Integer.parseInt( prop.getProperty( "escimo.ldap.sync.tombstones.maxSize", "100000" ) );
+        tombstones = new TombstoneLog( tombstonesSize );
+
+        monitorDeletes = Boolean.parseBoolean( prop.getProperty( "escimo.ldap.sync.monitorDeletes", "false" ) );
+
+        maxEventSubscribers = Integer.parseInt( prop.getProperty( "escimo.ldap.events.maxSubscribers", "100" ) );
+        eventBufferSize = Integer.parseInt( prop.getProperty( "escimo.ldap.events.bufferSize", "4096" ) );
+
+        exportPageSize = Integer.parseInt( prop.getProperty( "escimo.ldap.export.pageSize", "500" ) );
+
+        importConnections = Integer.parseInt( prop.getProperty( "escimo.ldap.import.connections", "4" ) );
+        importWindow = Integer.parseInt( prop.getProperty( "escimo.ldap.import.window", "16" ) );
+
+        deleteByFilterEnabled = Boolean.parseBoolean( prop.getProperty( "escimo.ldap.deleteByFilter.enabled", "false" ) );
+        deleteByFilterMaxMatches = Integer.parseInt( prop.getProperty( "escimo.ldap.deleteByFilter.maxMatches", "1000" ) );
+        deleteByFilterConcurrency = Integer.parseInt( prop.getProperty( "escimo.ldap.deleteByFilter.concurrency", "8" ) );
+
         config = new LdapConnectionConfig();
         config.setLdapHost( host );
         config.setLdapPort( port );
@@ -591,29 +1044,16 @@ public class LdapResourceProvider implements ResourceProvider
             String[] requested = getRequestedAttributes( attributes, scimSchema );
             sr.addAttributes( requested );
             
-            LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
-            
-            SearchCursor cursor = conn.search( sr );
-            
             ListResponse lr = new ListResponse();
             
-            while ( cursor.next() )
-            {
-                Entry entry = cursor.getEntry();
-                
-                ServerResource res = new ServerResource();
-                
-                ctx.setCoreResource( res );
-                
-                _loadCoreResource( ctx, entry, scimSchema );
-                
-                lr.addResource( res );
-            }
-            
-            cursor.close();
+            mapEntries( openStream( sr, requested, ctx ), scimSchema, ( LdapRequestContext ) ctx, lr );
             
             return lr;
         }
+        catch( EscimoException e )
+        {
+            throw e;
+        }
         catch( Exception e )
         {
             throw new InternalException( e );
@@ -621,375 +1061,2014 @@ public class LdapResourceProvider implements ResourceProvider
     }
 
 
-    private String[] getRequestedAttributes( String attributes, ResourceSchema scimSchema )
+    /**
+     * Starts the given subtree search, partitioned if enabled
+     */
+    private EntryStream openStream( SearchRequest sr, String[] requested, RequestContext ctx ) throws Exception
     {
-        List<String> ldapAtNames = new ArrayList<String>();
-        ldapAtNames.add( SchemaConstants.ENTRY_UUID_AT );
+        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+        
+        // the pooled connections are bound as the admin user, the searches of
+        // the authenticated users run on their own connection
+        if ( ( partitionedSearch != null ) && ( conn == adminConnection ) )
+        {
+            return partitionedSearch.search( sr.getBase(), sr.getFilter(), requested );
+        }
+        
+        return new CursorStream( conn.search( sr ) );
+    }
 
-        if ( Strings.isNotEmpty( attributes ) )
+
+    /**
+     * Maps all the entries of the stream to resources and adds them to the list response
+     * in the order of the entries, the stream is closed
+     */
+    private void mapEntries( EntryStream stream, ResourceSchema scimSchema, LdapRequestContext ctx, ListResponse lr )
+        throws Exception
+    {
+        // the mapping of the entries read so far runs while the next ones are read,
+        // the tasks are kept in the order of the entries
+        List<FutureTask<ServerResource>> tasks = new ArrayList<FutureTask<ServerResource>>();
+
+        // the number of tasks whose resource was added to the list response
+        int drained = 0;
+
+        List<Entry> chunk = new ArrayList<Entry>( SEARCH_CHUNK_SIZE );
+
+        try
         {
-            String[] names = attributes.split( "," );
-            for ( String n : names )
+            try
             {
-                List<AttributeType> atList = getLdapTypes( n, scimSchema );
-                if ( atList != null )
+                while ( stream.next() )
                 {
-                    for ( AttributeType at : atList )
+                    chunk.add( stream.getEntry() );
+
+                    if ( chunk.size() == SEARCH_CHUNK_SIZE )
                     {
-                        ldapAtNames.add( at.getName() );
+                        // the oldest chunks are awaited so that the entries read ahead of the mapping stay bounded
+                        int awaited = tasks.size() - ( ( MAX_CHUNKS_IN_FLIGHT - 1 ) * SEARCH_CHUNK_SIZE );
+                        drained = drain( tasks, drained, awaited, lr );
+
+                        mapChunk( chunk, scimSchema, ctx, tasks, true );
+                        chunk = new ArrayList<Entry>( SEARCH_CHUNK_SIZE );
                     }
                 }
             }
+            finally
+            {
+                stream.close();
+            }
 
-            return ldapAtNames.toArray( new String[1] );
-        }
-
-        return ALL_ATTRIBUTES_ARRAY;
-    }
-
-
-    public ServerResource getResource( RequestContext ctx, String id ) throws ResourceNotFoundException
-    {
-        ResourceSchema resourceSchema = getResourceSchema( ctx );
-        Entry entry = fetchEntryById( id, resourceSchema, ctx );
+            boolean parallel = !tasks.isEmpty() || ( chunk.size() >= MIN_PARALLEL_ENTRIES );
+            mapChunk( chunk, scimSchema, ctx, tasks, parallel );
 
-        if ( entry == null )
-        {
-            throw new ResourceNotFoundException( "No UserResource resource found with the ID " + id );
+            drain( tasks, drained, tasks.size(), lr );
         }
-
-        try
+        catch ( ExecutionException e )
         {
-            ServerResource resource = new ServerResource();
+            cancel( tasks );
 
-            ctx.setCoreResource( resource );
-
-            _loadCoreResource( ctx, entry, resourceSchema );
+            if ( e.getCause() instanceof EscimoException )
+            {
+                throw ( EscimoException ) e.getCause();
+            }
 
-            return resource;
+            throw new InternalException( e.getCause() );
         }
         catch ( Exception e )
         {
-            throw new ResourceNotFoundException( e );
+            cancel( tasks );
+            throw e;
         }
     }
 
 
-    // TODO can userName be changed for a user?? likewise displayName for a Group
-    public ServerResource putResource( String resourceId, String jsonData, RequestContext ctx ) throws EscimoException
+    /**
+     * Waits for the mapping tasks from the given position upto the given end and adds their resources
+     * to the list response
+     *
+     * @return the position of the first task not drained
+     */
+    private static int drain( List<FutureTask<ServerResource>> tasks, int from, int to, ListResponse lr )
+        throws InterruptedException, ExecutionException
     {
-        ResourceSchema resourceSchema = getResourceSchema( ctx );
-        
-        JsonParser parser = new JsonParser();
-        JsonObject obj = ( JsonObject ) parser.parse( jsonData );
+        int pos = from;
 
-        Entry entry = new DefaultEntry( ldapSchema );
+        while ( pos < to )
+        {
+            lr.addResource( tasks.get( pos ).get() );
+            pos++;
+        }
 
-        _resourceToEntry( entry, obj, ctx, resourceSchema );
+        return pos;
+    }
 
-        Entry existingEntry = fetchEntryById( resourceId, resourceSchema, ctx );
 
-        // save a reference to the existing password attribute
-        Attribute existingPwdAt = existingEntry.get( SchemaConstants.USER_PASSWORD_AT );
-        Attribute newPwdAt = entry.get( SchemaConstants.USER_PASSWORD_AT );
+    public ChangeStream getChanges( String token, String attributes, RequestContext ctx ) throws EscimoException
+    {
+        ResourceSchema scimSchema = getResourceSchema( ctx );
 
-        Attribute newUserNameAt = null;
-        Attribute existingUserNameAt = null;
+        SyncToken since = ( token == null ) ? null : SyncToken.parse( token );
 
-        try
+        // taken before searching, a delete made during the search is reported again by the next call
+        SyncToken next = new SyncToken( tombstones.mark(), ( since == null ) ? null : since.getTimestamp() );
+
+        List<String> deleted = Collections.emptyList();
+
+        if ( since != null )
         {
-            if ( existingPwdAt != null )
-            {
-                existingEntry.remove( existingPwdAt );
-            }
-            
-            if ( newPwdAt != null )
+            deleted = tombstones.getDeletedSince( since.getMark(), scimSchema.getName() );
+
+            if ( deleted == null )
             {
-                entry.remove( newPwdAt );
+                throw new TokenExpiredException( "The changes since the token are no longer known, all the resources must be read again" );
             }
-            
-            SimpleType st = resourceSchema.getRdnType();
-            
-            if ( st != null )
+        }
+
+        try
+        {
+            ExprNode filter = org.apache.directory.api.ldap.model.filter.FilterParser.parse( scimSchema.getFilter() );
+
+            if ( ( since != null ) && ( since.getTimestamp() != null ) )
             {
-                existingUserNameAt = existingEntry.get( st.getMappedTo() );
-                
-                if ( existingUserNameAt != null )
-                {
-                    existingEntry.remove( existingUserNameAt );
-                }
-                
-                newUserNameAt = entry.get( st.getMappedTo() );
-                
-                if ( newUserNameAt != null )
-                {
-                    entry.remove( newUserNameAt );
-                }
+                OrNode changed = new OrNode();
+                changed.addNode( new GreaterEqNode<String>( ldapSchema.getAttributeType( SchemaConstants.MODIFY_TIMESTAMP_AT ),
+                    new StringValue( since.getTimestamp() ) ) );
+                changed.addNode( new GreaterEqNode<String>( ldapSchema.getAttributeType( SchemaConstants.CREATE_TIMESTAMP_AT ),
+                    new StringValue( since.getTimestamp() ) ) );
+
+                filter = new AndNode( filter, changed );
             }
+
+            LOG.debug( "Searching the changes with the filter {}", filter );
+
+            List<String> requested = new ArrayList<String>( Arrays.asList( getRequestedAttributes( attributes, scimSchema ) ) );
+            requested.add( SchemaConstants.MODIFY_TIMESTAMP_AT );
+            requested.add( SchemaConstants.CREATE_TIMESTAMP_AT );
+
+            return new PagedChanges( scimSchema, ( LdapRequestContext ) ctx, new Dn( scimSchema.getBaseDn() ), filter,
+                requested.toArray( new String[requested.size()] ), deleted, next );
         }
-        catch( LdapException e )
+        catch( Exception e )
         {
             throw new InternalException( e );
         }
+    }
 
-        ModifyRequest modReq = new ModifyRequestImpl();
-        modReq.setName( existingEntry.getDn() );
 
-        Iterator<Attribute> itr = existingEntry.iterator();
-        while ( itr.hasNext() )
+    public EventSubscription subscribe( String resourceType, String attributes, boolean includeResource,
+        String lastEventId, RequestContext ctx ) throws EscimoException
+    {
+        ResourceSchema resourceSchema = getResourceSchemaByName( resourceType );
+
+        if ( resourceSchema == null )
+        {
+            throw new IllegalArgumentException( "Unknown resource type " + resourceType );
+        }
+
+        if ( eventSubscribers.incrementAndGet() > maxEventSubscribers )
         {
-            Attribute ldapAt = itr.next();
+            eventSubscribers.decrementAndGet();
+            throw new ServiceUnavailableException( "The maximum number of " + maxEventSubscribers
+                + " event subscribers was reached" );
+        }
 
-            AttributeType type = ldapAt.getAttributeType();
+        EventHub hub = null;
 
-            if ( !type.isUserModifiable() )
-            {
-                continue;
-            }
+        try
+        {
+            hub = acquireEventHub( resourceSchema );
 
-            if ( entry.containsAttribute( type ) )
-            {
-                ldapAt = entry.get( type );
-                entry.removeAttributes( type );
-                modReq.replace( ldapAt );
-            }
-            else
+            RingBuffer<EventHub.LdapEvent>.Reader reader = hub.openReader( lastEventId );
+
+            // the events following the given one are unknown
+            boolean lost = ( reader == null );
+
+            if ( lost )
             {
-                modReq.remove( ldapAt );
+                reader = hub.openReader( null );
             }
-        }
 
-        // iterate over the remaining attributes of new entry and add them to modlist as 'add' modifications
+            String[] requested = getRequestedAttributes( attributes, resourceSchema );
 
-        for ( Attribute newAt : entry )
+            return new LdapEventSubscription( hub, reader, lost, resourceSchema, requested, includeResource,
+                ( ( LdapRequestContext ) ctx ).newDetachedContext() );
+        }
+        catch ( RuntimeException e )
+        {
+            releaseEventHub( resourceSchema, hub );
+            eventSubscribers.decrementAndGet();
+            throw e;
+        }
+        catch ( EscimoException e )
         {
-            modReq.add( newAt );
+            releaseEventHub( resourceSchema, hub );
+            eventSubscribers.decrementAndGet();
+            throw e;
         }
+    }
 
-        if ( newPwdAt != null )
+
+    /**
+     * Gives the hub of the given resource type for a new subscriber, the hub is created
+     * and its persistent search started if it doesn't exist
+     */
+    private EventHub acquireEventHub( ResourceSchema resourceSchema ) throws EscimoException
+    {
+        synchronized ( eventHubs )
         {
-            if ( existingPwdAt != null )
+            EventHub hub = eventHubs.get( resourceSchema.getName() );
+
+            if ( hub != null )
             {
-                modReq.replace( newPwdAt );
+                hub.subscribers++;
+                return hub;
             }
-            else
+
+            if ( stop )
             {
-                modReq.add( newPwdAt );
+                throw new ServiceUnavailableException( "The provider is stopped, the events are not available" );
             }
-        }
 
-        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+            if ( config == null )
+            {
+                throw new ServiceUnavailableException( "No connection configuration is present, the events are not available" );
+            }
 
-        try
-        {
-            ModifyResponse modResp = conn.modify( modReq );
-            
-            if ( modResp.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+            try
+            {
+                if ( !adminConnection.isControlSupported( LdapChangeMonitor.PSEARCH_OID ) )
+                {
+                    throw new ServiceUnavailableException( "LDAP server doesn't support persistent search, the events are not available" );
+                }
+            }
+            catch ( LdapException e )
             {
-                throw new ResourceUpdateException( "Failed to replace the resource " + modResp.getLdapResult().getDiagnosticMessage() );
+                throw new InternalException( e );
             }
+
+            hub = new EventHub( config, ldapSchema, resourceSchema, eventBufferSize );
+            hub.start();
+            hub.subscribers++;
+
+            eventHubs.put( resourceSchema.getName(), hub );
+
+            return hub;
         }
-        catch( LdapException e )
+    }
+
+
+    /**
+     * Releases the hub of a subscriber, the persistent search of the hub is stopped
+     * once its last subscriber is gone. A subscriber reconnecting later resyncs.
+     */
+    private void releaseEventHub( ResourceSchema resourceSchema, EventHub hub )
+    {
+        if ( hub == null )
         {
-            throw new InternalException( e );
+            return;
         }
 
-        try
+        synchronized ( eventHubs )
         {
-            if ( newUserNameAt != null )
+            hub.subscribers--;
+
+            if ( ( hub.subscribers == 0 ) && ( eventHubs.get( resourceSchema.getName() ) == hub ) )
             {
-                if ( !existingUserNameAt.contains( newUserNameAt.getString() ) )
-                {
-                    // a modDN needs to be performed
-                    conn.rename( existingEntry.getDn().getName(),
-                        newUserNameAt.getUpId() + "=" + newUserNameAt.getString(), true );
-                }
+                eventHubs.remove( resourceSchema.getName() );
+                hub.stop();
             }
         }
-        catch( LdapException e )
-        {
-            LOG.warn( "Failed to rename the resource {}", resourceId, e );
-            throw new ResourceUpdateException( "Failed to rename the resource " + resourceId, e );
-        }
-        
-        entry = fetchEntryById( resourceId, resourceSchema, ctx );
+    }
 
-        ServerResource resource = new ServerResource();
 
-        ctx.setCoreResource( resource );
+    /**
+     * Reads the events of a hub and maps the changed entries to resources for a single subscriber
+     */
+    class LdapEventSubscription implements EventSubscription
+    {
+        private final EventHub hub;
 
-        _loadCoreResource( ctx, entry, resourceSchema );
+        private final RingBuffer<EventHub.LdapEvent>.Reader reader;
 
-        return resource;
-    }
+        private final ResourceSchema resourceSchema;
 
+        private final String idAtName;
 
-    public ServerResource patchResource( String resourceId, String jsonData, RequestContext ctx ) throws EscimoException
-    {
-        ResourceSchema resourceSchema = getResourceSchema( ctx );
-        JsonParser parser = new JsonParser();
-        JsonObject obj = ( JsonObject ) parser.parse( jsonData );
+        /** the LDAP attributes read for the resource of an event */
+        private final String[] attributes;
 
-        Entry existingEntry = fetchEntryById( resourceId, resourceSchema, ctx );
+        /** the attribute read to check the visibility of the entry of an event */
+        private final String[] idOnly;
 
-        if ( existingEntry == null )
+        private final boolean includeResource;
+
+        private final LdapRequestContext ctx;
+
+        /** set when the subscriber missed some events */
+        private boolean lost;
+
+        private boolean ended;
+
+        private boolean closed;
+
+
+        LdapEventSubscription( EventHub hub, RingBuffer<EventHub.LdapEvent>.Reader reader, boolean lost,
+            ResourceSchema resourceSchema, String[] requested, boolean includeResource, LdapRequestContext ctx )
         {
-            throw new ResourceNotFoundException( "No resource found with the id " + resourceId );
+            this.hub = hub;
+            this.reader = reader;
+            this.lost = lost;
+            this.resourceSchema = resourceSchema;
+            this.attributes = requested;
+            this.includeResource = includeResource;
+            this.ctx = ctx;
+
+            idAtName = ( ( SimpleType ) resourceSchema.getCoreAttribute( "id" ) ).getMappedTo();
+            idOnly = new String[] { idAtName };
         }
 
-        ModifyRequest modReq = new ModifyRequestImpl();
-        modReq.setName( existingEntry.getDn() );
 
-        JsonObject metaObj = ( JsonObject ) obj.get( "meta" );
-        if ( metaObj != null )
+        public ChangeEvent next( long timeout ) throws EscimoException
         {
-            JsonArray metaAtNames = ( JsonArray ) metaObj.get( "attributes" );
-            if ( metaAtNames != null )
+            if ( ended )
             {
-                for ( JsonElement e : metaAtNames )
+                return null;
+            }
+
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+
+            while ( true )
+            {
+                EventHub.LdapEvent le = null;
+
+                if ( !lost )
                 {
-                    String name = e.getAsString();
-                    BaseType bt = resourceSchema.getAttribute( name );
+                    le = reader.next( remaining );
 
-                    if ( bt == null )
-                    {
-                        throw new AttributeNotFoundException( "No definition found for the attribute " + name );
-                    }
+                    lost = reader.isOverrun() || ( ( le != null ) && ( le.type == ChangeEvent.Type.RESYNC ) );
+                }
 
-                    if ( bt.isReadOnly() )
-                    {
-                        continue;
-                    }
-                    
-                    AttributeHandler handler = bt.getHandler();
-                    if ( handler != null )
-                    {
-                        try
-                        {
-                            handler.deleteAttribute( bt, existingEntry, ctx, modReq );
-                        }
-                        catch( Exception ex )
-                        {
-                            throw new InternalException( ex );
-                        }
-                        continue;
-                    }
+                if ( lost )
+                {
+                    ended = true;
+                    return new ChangeEvent( ChangeEvent.Type.RESYNC, null, resourceSchema.getName() );
+                }
 
-                    LdapUtil.deleteAttribute( bt, existingEntry, modReq );
+                if ( le == null )
+                {
+                    return null;
+                }
+
+                ChangeEvent event = toEvent( le );
+
+                if ( event != null )
+                {
+                    return event;
+                }
+
+                remaining = deadline - System.currentTimeMillis();
+
+                if ( remaining <= 0 )
+                {
+                    return null;
                 }
             }
         }
 
-        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
 
-        try
+        /**
+         * Maps an event of the hub, the entry is read again with the subscriber's connection
+         *
+         * @return the event, null if the subscriber can't see the entry
+         */
+        private ChangeEvent toEvent( EventHub.LdapEvent le ) throws EscimoException
         {
-            LdapUtil.patchAttributes( existingEntry, obj, ctx, resourceSchema, modReq );
+            Attribute idAt = le.entry.get( idAtName );
 
-            ModifyResponse modResp = conn.modify( modReq );
-
-            LdapResult result = modResp.getLdapResult();
-            if ( result.getResultCode() != ResultCodeEnum.SUCCESS )
+            if ( idAt == null )
             {
-                LOG.debug( "Failed to patch the resource with ID {}, LDAP error result {}", resourceId, result );
-                throw new ResourceUpdateException( "Failed to patch the resource with ID " + resourceId );
+                LOG.debug( "Skipping the event of the entry {} without an ID", le.entry.getDn() );
+                return null;
             }
 
-            // send attributes if requested
-            if ( ctx.getParamAttributes() != null )
+            ChangeEvent event = new ChangeEvent( le.type, hub.toEventId( reader.getLastSeq() ), resourceSchema.getName() );
+
+            try
             {
-                Entry entry = fetchEntryById( resourceId, resourceSchema, ctx );
+                String id = idAt.getString();
+                event.setId( id );
 
-                ServerResource resource = new ServerResource();
+                if ( le.type == ChangeEvent.Type.DELETE )
+                {
+                    return event;
+                }
 
-                ctx.setCoreResource( resource );
+                // the hub reads the entries as the administrator, the subscriber only
+                // hears about the entries it can read itself
+                Entry entry = fetchEntryById( id, resourceSchema, ctx, includeResource ? attributes : idOnly );
 
-                _loadCoreResource( ctx, entry, resourceSchema );
+                if ( entry == null )
+                {
+                    LOG.debug( "Skipping the event of the entry {} not visible to the subscriber", id );
+                    return null;
+                }
 
-                return resource;
+                if ( includeResource )
+                {
+                    ServerResource resource = new ServerResource();
+
+                    LdapRequestContext entryCtx = ctx.newChildContext();
+                    entryCtx.setCoreResource( resource );
+
+                    _loadCoreResource( entryCtx, entry, resourceSchema );
+
+                    event.setResource( resource );
+                }
+            }
+            catch ( EscimoException e )
+            {
+                throw e;
+            }
+            catch ( Exception e )
+            {
+                throw new InternalException( e );
             }
 
-            return null;
+            return event;
         }
-        catch ( Exception e )
+
+
+        public void close()
         {
-            LOG.warn( "Failed to patch the resource with ID {}", resourceId, e );
-            throw new ResourceUpdateException( "Failed to patch the resource with ID " + resourceId, e );
+            if ( closed )
+            {
+                return;
+            }
+
+            closed = true;
+
+            reader.close();
+            releaseEventHub( resourceSchema, hub );
+            eventSubscribers.decrementAndGet();
         }
     }
 
 
-    public InputStream getUserPhoto( String id, String atName, RequestContext ctx ) throws MissingParameterException
+    public ResourceStream export( String checkpoint, String attributes, RequestContext ctx ) throws EscimoException
     {
-        if ( Strings.isEmpty( id ) )
-        {
-            throw new MissingParameterException( "parameter 'id' cannot be null or empty" );
-        }
+        ResourceSchema scimSchema = getResourceSchema( ctx );
 
-        if ( Strings.isEmpty( atName ) )
+        try
         {
-            throw new MissingParameterException( "parameter 'atName' cannot be null or empty" );
-        }
+            ExprNode filter = org.apache.directory.api.ldap.model.filter.FilterParser.parse( scimSchema.getFilter() );
 
-        ResourceSchema resourceSchema = getResourceSchema( ctx );
-        Entry entry = fetchEntryById( id, resourceSchema, ctx );
+            PagedExport export = new PagedExport( scimSchema, ( LdapRequestContext ) ctx, new Dn( scimSchema.getBaseDn() ),
+                filter, getRequestedAttributes( attributes, scimSchema ), checkpoint );
 
-        if ( entry == null )
-        {
-            return null;
+            return export;
         }
-
-        Attribute phtoAt = entry.get( atName );
-
-        if ( phtoAt == null )
+        catch( Exception e )
         {
-            return null;
+            throw new InternalException( e );
         }
-
-        ByteArrayInputStream bin = new ByteArrayInputStream( phtoAt.get().getBytes() );
-
-        return bin;
     }
 
 
-    private void addAttributes( Entry entry, JsonObject obj, RequestContext ctx, ResourceSchema resourceSchema )
-        throws EscimoException
-    {
+    /**
+     * The resources of an export, read with a paged search. The entries of a page are mapped in
+     * the mapping pool while the next page is read, at most two pages are held in memory.
+     */
+    private class PagedExport implements ResourceStream
+    {
+        private final ResourceSchema scimSchema;
+
+        private final LdapRequestContext ctx;
+
+        private final Dn baseDn;
+
+        private final ExprNode filter;
+
+        private final String[] attributes;
+
+        /** the ID of the resource after which the export resumes, null once it was found */
+        private String checkpoint;
+
+        private byte[] cookie;
+
+        private boolean lastPage;
+
+        private List<FutureTask<ServerResource>> tasks = Collections.emptyList();
+
+        /** the mapping tasks of the page read ahead */
+        private List<FutureTask<ServerResource>> nextTasks;
+
+        private int pos;
+
+        private ServerResource current;
+
+
+        private PagedExport( ResourceSchema scimSchema, LdapRequestContext ctx, Dn baseDn, ExprNode filter,
+            String[] attributes, String checkpoint )
+        {
+            this.scimSchema = scimSchema;
+            this.ctx = ctx;
+            this.baseDn = baseDn;
+            this.filter = filter;
+            this.attributes = attributes;
+            this.checkpoint = checkpoint;
+        }
+
+
+        public boolean next() throws EscimoException
+        {
+            try
+            {
+                while ( pos == tasks.size() )
+                {
+                    if ( nextTasks == null )
+                    {
+                        if ( lastPage )
+                        {
+                            current = null;
+                            return false;
+                        }
+
+                        nextTasks = readPage();
+                    }
+
+                    tasks = nextTasks;
+                    nextTasks = null;
+                    pos = 0;
+
+                    // the entries of this page get mapped while the next one is read
+                    if ( !lastPage )
+                    {
+                        nextTasks = readPage();
+                    }
+                }
+
+                current = tasks.get( pos ).get();
+                tasks.set( pos, null );
+                pos++;
+
+                return true;
+            }
+            catch ( ExecutionException e )
+            {
+                close();
+
+                if ( e.getCause() instanceof EscimoException )
+                {
+                    throw ( EscimoException ) e.getCause();
+                }
+
+                throw new InternalException( e.getCause() );
+            }
+            catch ( EscimoException e )
+            {
+                close();
+                throw e;
+            }
+            catch ( Exception e )
+            {
+                close();
+                throw new InternalException( e );
+            }
+        }
+
+
+        public ServerResource getResource()
+        {
+            return current;
+        }
+
+
+        public void close()
+        {
+            lastPage = true;
+            cancelRemaining( tasks );
+            cancelRemaining( nextTasks );
+            tasks = Collections.emptyList();
+            nextTasks = null;
+            pos = 0;
+        }
+
+
+        private void cancelRemaining( List<FutureTask<ServerResource>> list )
+        {
+            if ( list == null )
+            {
+                return;
+            }
+
+            for ( FutureTask<ServerResource> t : list )
+            {
+                if ( t != null )
+                {
+                    t.cancel( false );
+                }
+            }
+        }
+
+
+        /**
+         * Reads the next page of entries and schedules their mapping
+         */
+        private List<FutureTask<ServerResource>> readPage() throws Exception
+        {
+            PagedResults paged = new PagedResultsImpl();
+            paged.setSize( exportPageSize );
+            paged.setCookie( cookie );
+
+            SearchRequest sr = new SearchRequestImpl();
+            sr.setBase( baseDn );
+            sr.setFilter( filter );
+            sr.setScope( SearchScope.SUBTREE );
+            sr.addAttributes( attributes );
+            sr.addControl( paged );
+
+            List<Entry> entries = new ArrayList<Entry>();
+
+            SearchCursor cursor = ctx.getConnection().search( sr );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    if ( !cursor.isEntry() )
+                    {
+                        continue;
+                    }
+
+                    Entry entry = cursor.getEntry();
+
+                    if ( checkpoint == null )
+                    {
+                        entryRead( entry );
+                        entries.add( entry );
+                    }
+                    else if ( isCheckpoint( entry ) )
+                    {
+                        // the export resumes with the next entry
+                        checkpoint = null;
+                    }
+                }
+
+                cookie = null;
+
+                SearchResultDone done = cursor.getSearchResultDone();
+
+                if ( done != null )
+                {
+                    LdapResult result = done.getLdapResult();
+
+                    // a page cut short by a size or time limit would silently drop entries
+                    if ( result.getResultCode() != ResultCodeEnum.SUCCESS )
+                    {
+                        throw new InternalException( "The search of the resources ended with " + result.getResultCode()
+                            + " " + result.getDiagnosticMessage() );
+                    }
+
+                    PagedResults resp = ( PagedResults ) done.getControl( PagedResults.OID );
+
+                    if ( ( resp != null ) && ( resp.getCookie() != null ) && ( resp.getCookie().length > 0 ) )
+                    {
+                        cookie = resp.getCookie();
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            lastPage = ( cookie == null );
+
+            if ( lastPage && ( checkpoint != null ) )
+            {
+                throw new ResourceNotFoundException( "No resource with the checkpoint ID " + checkpoint
+                    + " was found, the export cannot be resumed" );
+            }
+
+            List<FutureTask<ServerResource>> pageTasks = new ArrayList<FutureTask<ServerResource>>( entries.size() );
+
+            // each page has its own resolved DNs, they are released with the page
+            mapChunk( entries, scimSchema, ctx.newDetachedContext(), pageTasks, entries.size() >= MIN_PARALLEL_ENTRIES );
+
+            return pageTasks;
+        }
+
+
+        /**
+         * Called for each entry of a page that is going to be returned
+         */
+        protected void entryRead( Entry entry ) throws Exception
+        {
+        }
+
+
+        private boolean isCheckpoint( Entry entry ) throws Exception
+        {
+            SimpleType idType = ( SimpleType ) scimSchema.getCoreAttribute( "id" );
+            SimpleAttribute idAttribute = getValueForSimpleType( idType, entry, ctx );
+
+            return ( idAttribute != null ) && checkpoint.equals( idAttribute.getValue() );
+        }
+    }
+
+
+    /**
+     * The resources changed since a sync token, read with a paged search. The token moves forward
+     * to the latest creation or modification time of the returned entries, it is only given
+     * once all the pages were read successfully.
+     */
+    private class PagedChanges extends PagedExport implements ChangeStream
+    {
+        private final List<String> deleted;
+
+        private final SyncToken next;
+
+        /** set once all the pages were read and their resources returned */
+        private boolean complete;
+
+        /** set when the stream was closed before it was complete, also on failures */
+        private boolean aborted;
+
+
+        private PagedChanges( ResourceSchema scimSchema, LdapRequestContext ctx, Dn baseDn, ExprNode filter,
+            String[] attributes, List<String> deleted, SyncToken next )
+        {
+            super( scimSchema, ctx, baseDn, filter, attributes, null );
+            this.deleted = deleted;
+            this.next = next;
+        }
+
+
+        @Override
+        public boolean next() throws EscimoException
+        {
+            if ( complete || aborted )
+            {
+                return false;
+            }
+
+            boolean more = super.next();
+
+            // a failure leaves the stream incomplete, no token is given
+            complete = !more;
+
+            return more;
+        }
+
+
+        @Override
+        protected void entryRead( Entry entry ) throws Exception
+        {
+            Attribute modified = entry.get( SchemaConstants.MODIFY_TIMESTAMP_AT );
+
+            if ( modified != null )
+            {
+                next.advance( modified.getString() );
+            }
+
+            Attribute created = entry.get( SchemaConstants.CREATE_TIMESTAMP_AT );
+
+            if ( created != null )
+            {
+                next.advance( created.getString() );
+            }
+        }
+
+
+        @Override
+        public void close()
+        {
+            if ( !complete )
+            {
+                aborted = true;
+            }
+
+            super.close();
+        }
+
+
+        public List<String> getDeleted()
+        {
+            return deleted;
+        }
+
+
+        public String getToken()
+        {
+            if ( !complete )
+            {
+                throw new IllegalStateException( "The token is only known once all the changes were read" );
+            }
+
+            return next.toString();
+        }
+    }
+
+
+    /**
+     * The entries read from the cursor of a single search
+     */
+    private static class CursorStream implements EntryStream
+    {
+        private final SearchCursor cursor;
+
+
+        private CursorStream( SearchCursor cursor )
+        {
+            this.cursor = cursor;
+        }
+
+
+        public boolean next() throws Exception
+        {
+            while ( cursor.next() )
+            {
+                if ( cursor.isEntry() )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+
+        public Entry getEntry()
+        {
+            return cursor.getEntry();
+        }
+
+
+        public void close()
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.debug( "Failed to close the search cursor", e );
+            }
+        }
+    }
+
+
+    /**
+     * Prefetches the data of the given entries and schedules their mapping to resources.
+     * Each entry is mapped with its own child context, the prefetched data is shared by the
+     * entries of the chunk.
+     * 
+     * @param parallel true to map the entries in the mapping pool, false to map them right away
+     */
+    private void mapChunk( List<Entry> chunk, final ResourceSchema scimSchema, LdapRequestContext ctx,
+        List<FutureTask<ServerResource>> tasks, boolean parallel ) throws Exception
+    {
+        if ( chunk.isEmpty() )
+        {
+            return;
+        }
+        
+        LdapRequestContext chunkCtx = ctx.newChildContext();
+        
+        prefetch( chunk, scimSchema, chunkCtx );
+        
+        for ( final Entry entry : chunk )
+        {
+            final LdapRequestContext entryCtx = chunkCtx.newChildContext();
+            
+            FutureTask<ServerResource> task = new FutureTask<ServerResource>( new Callable<ServerResource>()
+            {
+                public ServerResource call() throws Exception
+                {
+                    ServerResource res = new ServerResource();
+                    entryCtx.setCoreResource( res );
+                    _loadCoreResource( entryCtx, entry, scimSchema );
+                    
+                    return res;
+                }
+            } );
+            
+            tasks.add( task );
+            
+            if ( parallel )
+            {
+                mappingExecutor.execute( task );
+            }
+            else
+            {
+                task.run();
+            }
+        }
+    }
+    
+    
+    private static void cancel( List<FutureTask<ServerResource>> tasks )
+    {
+        for ( FutureTask<ServerResource> t : tasks )
+        {
+            t.cancel( false );
+        }
+    }
+
+
+    /**
+     * Lets the handlers of the resource's attributes fetch the data of all the entries at once
+     */
+    private void prefetch( List<Entry> entries, ResourceSchema scimSchema, RequestContext ctx ) throws Exception
+    {
+        if ( entries.size() < 2 )
+        {
+            return;
+        }
+        
+        List<BaseType> types = new ArrayList<BaseType>( scimSchema.getCoreTypes() );
+        types.addAll( scimSchema.getExtendedTypes() );
+        
+        for ( BaseType bt : types )
+        {
+            if ( bt.isShow() && ( bt.getHandler() instanceof LdapAttributeHandler ) )
+            {
+                ( ( LdapAttributeHandler ) bt.getHandler() ).prefetch( bt, entries, ctx );
+            }
+        }
+    }
+
+
+    /**
+     * Gives the LDAP attribute types the writable attributes of the given resource are mapped to
+     */
+    private Set<AttributeType> getMappedTypes( ResourceSchema resourceSchema )
+    {
+        Set<AttributeType> types = new HashSet<AttributeType>();
+
+        List<BaseType> scimTypes = new ArrayList<BaseType>( resourceSchema.getCoreTypes() );
+        scimTypes.addAll( resourceSchema.getExtendedTypes() );
+
+        for ( BaseType bt : scimTypes )
+        {
+            if ( bt.isReadOnly() )
+            {
+                continue;
+            }
+
+            List<AttributeType> atList = getLdapTypes( bt.getName(), resourceSchema );
+
+            if ( atList == null )
+            {
+                continue;
+            }
+
+            for ( AttributeType at : atList )
+            {
+                if ( at != null )
+                {
+                    types.add( at );
+                }
+            }
+        }
+
+        return types;
+    }
+
+
+    private String[] getRequestedAttributes( String attributes, ResourceSchema scimSchema )
+    {
+        List<String> ldapAtNames = new ArrayList<String>();
+        ldapAtNames.add( SchemaConstants.ENTRY_UUID_AT );
+        ldapAtNames.add( versionAtName );
+
+        if ( Strings.isNotEmpty( attributes ) )
+        {
+            String[] names = attributes.split( "," );
+            for ( String n : names )
+            {
+                List<AttributeType> atList = getLdapTypes( n, scimSchema );
+                if ( atList != null )
+                {
+                    for ( AttributeType at : atList )
+                    {
+                        ldapAtNames.add( at.getName() );
+                    }
+                }
+            }
+
+            return ldapAtNames.toArray( new String[1] );
+        }
+
+        return ALL_ATTRIBUTES_ARRAY;
+    }
+
+
+    public ServerResource getResource( RequestContext ctx, String id ) throws ResourceNotFoundException
+    {
+        ResourceSchema resourceSchema = getResourceSchema( ctx );
+        Entry entry = fetchEntryById( id, resourceSchema, ctx );
+
+        if ( entry == null )
+        {
+            throw new ResourceNotFoundException( "No UserResource resource found with the ID " + id );
+        }
+
+        try
+        {
+            ServerResource resource = new ServerResource();
+
+            ctx.setCoreResource( resource );
+
+            _loadCoreResource( ctx, entry, resourceSchema );
+
+            return resource;
+        }
+        catch ( Exception e )
+        {
+            throw new ResourceNotFoundException( e );
+        }
+    }
+
+
+    public String getResourceVersion( RequestContext ctx, String id ) throws ResourceNotFoundException
+    {
+        ResourceSchema resourceSchema = getResourceSchema( ctx );
+        Entry entry = fetchEntryById( id, resourceSchema, ctx, versionAtName );
+
+        if ( entry == null )
+        {
+            throw new ResourceNotFoundException( "No resource found with the ID " + id );
+        }
+
+        return getVersion( entry );
+    }
+
+
+    /**
+     * Gives the version of the given entry, the value of entryCSN or modifyTimestamp
+     * whichever is maintained by the server
+     *
+     * @return the version, null if the entry doesn't hold the version attribute
+     */
+    public String getVersion( Entry entry )
+    {
+        Attribute at = entry.get( versionAtName );
+
+        if ( at == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return at.getString();
+        }
+        catch ( LdapException e )
+        {
+            LOG.debug( "Invalid value of the version attribute {}", versionAtName, e );
+            return null;
+        }
+    }
+
+
+    /**
+     * Checks the If-Match header of the request against the current version of the given entry
+     * and adds an Assertion control to the request so that the server rejects the operation
+     * if the entry was modified after it was read.
+     *
+     * @throws PreconditionFailedException if the entry's version doesn't match
+     */
+    private void checkIfMatch( Entry existingEntry, String resourceId, RequestContext ctx, Message req )
+        throws PreconditionFailedException
+    {
+        String ifMatch = ctx.getReqHeaderValue( IF_MATCH_HEADER );
+
+        if ( ifMatch == null )
+        {
+            return;
+        }
+
+        List<String> versions = ScimUtil.parseETags( ifMatch );
+
+        // the existence of the resource was already verified
+        if ( versions.contains( "*" ) )
+        {
+            return;
+        }
+
+        if ( !versions.contains( getVersion( existingEntry ) ) )
+        {
+            throw new PreconditionFailedException( "The resource with ID " + resourceId
+                + " was modified, its current version doesn't match the requested versions" );
+        }
+
+        if ( assertionSupported && !versions.isEmpty() )
+        {
+            req.addControl( LdapUtil.createAssertionControl( versionAtName, versions ) );
+        }
+    }
+
+
+    /**
+     * @throws PreconditionFailedException if the server rejected the request because of a failed assertion
+     */
+    private void checkAssertionResult( LdapResult result, String resourceId ) throws PreconditionFailedException
+    {
+        if ( result.getResultCode().getValue() == LdapUtil.ASSERTION_FAILED )
+        {
+            throw new PreconditionFailedException( "The resource with ID " + resourceId
+                + " was modified after it was read" );
+        }
+    }
+
+
+    // TODO can userName be changed for a user?? likewise displayName for a Group
+    public ServerResource putResource( String resourceId, String jsonData, RequestContext ctx ) throws EscimoException
+    {
+        return putResource( resourceId, new JsonReader( new StringReader( jsonData ) ), ctx );
+    }
+
+
+    public ServerResource putResource( String resourceId, InputStream in, RequestContext ctx ) throws EscimoException
+    {
+        return putResource( resourceId, newJsonReader( in ), ctx );
+    }
+
+
+    public ServerResource putResource( String resourceId, JsonReader reader, RequestContext ctx ) throws EscimoException
+    {
+        ResourceSchema resourceSchema = getResourceSchema( ctx );
+        
+        Entry entry = new DefaultEntry( ldapSchema );
+
+        _resourceToEntry( entry, reader, ctx, resourceSchema );
+
+        // only the attributes that can be replaced are compared, the others are left untouched
+        Set<AttributeType> types = getMappedTypes( resourceSchema );
+
+        for ( Attribute newAt : entry )
+        {
+            types.add( newAt.getAttributeType() );
+        }
+
+        types.remove( ldapSchema.getAttributeType( SchemaConstants.OBJECT_CLASS_AT ) );
+
+        Set<String> fetchAtNames = new HashSet<String>();
+
+        for ( AttributeType type : types )
+        {
+            fetchAtNames.add( type.getName() );
+        }
+
+        SimpleType idType = ( SimpleType ) resourceSchema.getCoreAttribute( "id" );
+        fetchAtNames.add( idType.getMappedTo() );
+        fetchAtNames.add( SchemaConstants.OBJECT_CLASS_AT );
+        fetchAtNames.add( SchemaConstants.USER_PASSWORD_AT );
+        fetchAtNames.add( versionAtName );
+
+        Entry existingEntry = fetchEntryById( resourceId, resourceSchema, ctx,
+            fetchAtNames.toArray( new String[fetchAtNames.size()] ) );
+
+        if ( existingEntry == null )
+        {
+            throw new ResourceNotFoundException( "No resource found with the id " + resourceId );
+        }
+
+        // save a reference to the existing password attribute
+        Attribute existingPwdAt = existingEntry.get( SchemaConstants.USER_PASSWORD_AT );
+        Attribute newPwdAt = entry.get( SchemaConstants.USER_PASSWORD_AT );
+
+        Attribute newUserNameAt = null;
+        Attribute existingUserNameAt = null;
+
+        try
+        {
+            if ( existingPwdAt != null )
+            {
+                existingEntry.remove( existingPwdAt );
+            }
+            
+            if ( newPwdAt != null )
+            {
+                entry.remove( newPwdAt );
+            }
+            
+            SimpleType st = resourceSchema.getRdnType();
+            
+            if ( st != null )
+            {
+                existingUserNameAt = existingEntry.get( st.getMappedTo() );
+                
+                if ( existingUserNameAt != null )
+                {
+                    existingEntry.remove( existingUserNameAt );
+                }
+                
+                newUserNameAt = entry.get( st.getMappedTo() );
+                
+                if ( newUserNameAt != null )
+                {
+                    entry.remove( newUserNameAt );
+                }
+            }
+        }
+        catch( LdapException e )
+        {
+            throw new InternalException( e );
+        }
+
+        ModifyRequest modReq = new ModifyRequestImpl();
+        modReq.setName( existingEntry.getDn() );
+
+        checkIfMatch( existingEntry, resourceId, ctx, modReq );
+
+        boolean rename = false;
+
+        try
+        {
+            rename = ( newUserNameAt != null ) && !existingUserNameAt.contains( newUserNameAt.getString() );
+        }
+        catch( LdapException e )
+        {
+            throw new InternalException( e );
+        }
+
+        // the entry read after a rename must be read with its new DN
+        if ( !rename )
+        {
+            requestPostRead( modReq, ctx, resourceSchema );
+        }
+
+        // the password and the RDN attribute were removed from both the entries, they are handled separately
+        try
+        {
+            for ( AttributeType type : types )
+            {
+                if ( !type.isUserModifiable() )
+                {
+                    continue;
+                }
+
+                LdapUtil.diffAttribute( existingEntry.get( type ), entry.get( type ), modReq );
+            }
+        }
+        catch( LdapException e )
+        {
+            throw new InternalException( e );
+        }
+
+        if ( newPwdAt != null )
+        {
+            if ( existingPwdAt != null )
+            {
+                modReq.replace( newPwdAt );
+            }
+            else
+            {
+                modReq.add( newPwdAt );
+            }
+        }
+
+        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+
+        ModifyResponse modResp = null;
+
+        try
+        {
+            // nothing is sent when the resource is identical to the existing one
+            if ( !modReq.getModifications().isEmpty() )
+            {
+                modResp = conn.modify( modReq );
+
+                checkAssertionResult( modResp.getLdapResult(), resourceId );
+
+                if ( modResp.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+                {
+                    throw new ResourceUpdateException( "Failed to replace the resource " + modResp.getLdapResult().getDiagnosticMessage() );
+                }
+
+                // invalidated once the entry is updated, a concurrent read would cache the old photo again
+                photoCache.invalidate( resourceId );
+            }
+            else
+            {
+                LOG.debug( "No changes found in the resource {}, skipping the modify operation", resourceId );
+            }
+        }
+        catch( LdapException e )
+        {
+            throw new InternalException( e );
+        }
+
+        try
+        {
+            if ( rename )
+            {
+                // a modDN needs to be performed
+                conn.rename( existingEntry.getDn().getName(),
+                    newUserNameAt.getUpId() + "=" + newUserNameAt.getString(), true );
+                dnCache.invalidate( existingEntry.getDn().getNormName() );
+            }
+        }
+        catch( LdapException e )
+        {
+            LOG.warn( "Failed to rename the resource {}", resourceId, e );
+            throw new ResourceUpdateException( "Failed to rename the resource " + resourceId, e );
+        }
+        
+        entry = getUpdatedEntry( modResp, resourceId, resourceSchema, ctx );
+
+        if ( entry != null )
+        {
+            runDeferredUpdates( entry.getDn(), resourceId, ctx );
+        }
+
+        ServerResource resource = new ServerResource();
+
+        ctx.setCoreResource( resource );
+
+        _loadCoreResource( ctx, entry, resourceSchema );
+
+        return resource;
+    }
+
+
+    /**
+     * Hands over the updates deferred by the attribute handlers to the background threads.
+     * The updates of the requests made with the admin credentials run on pooled connections,
+     * the ones of the authenticated users on the connection of their session.
+     *
+     * @param resourceId the ID of the resource whose cached photo is invalidated after each update,
+     *                   null for a new resource
+     */
+    void runDeferredUpdates( final Dn dn, final String resourceId, RequestContext ctx )
+    {
+        List<DeferredUpdate> updates = ( ( LdapRequestContext ) ctx ).getDeferredUpdates();
+
+        if ( updates == null )
+        {
+            return;
+        }
+
+        LdapConnection reqConn = ( ( LdapRequestContext ) ctx ).getConnection();
+
+        final boolean pooled = ( reqConn == adminConnection ) && ( config != null );
+        final LdapConnection sessionConn = pooled ? null : reqConn;
+
+        for ( final DeferredUpdate du : updates )
+        {
+            deferredExecutor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    LdapConnection conn = sessionConn;
+                    boolean broken = false;
+
+                    try
+                    {
+                        if ( pooled )
+                        {
+                            conn = borrowDeferredConnection();
+                        }
+
+                        du.execute( dn, conn );
+                    }
+                    catch ( Exception e )
+                    {
+                        LOG.warn( "Failed to apply the deferred update to the entry {}", dn, e );
+                        broken = true;
+                    }
+                    finally
+                    {
+                        if ( pooled && ( conn != null ) )
+                        {
+                            releaseDeferredConnection( conn, broken );
+                        }
+
+                        if ( resourceId != null )
+                        {
+                            photoCache.invalidate( resourceId );
+                        }
+                    }
+                }
+            } );
+        }
+    }
+
+
+    private LdapConnection borrowDeferredConnection() throws LdapException
+    {
+        LdapConnection conn = deferredConnections.poll();
+
+        if ( ( conn != null ) && conn.isConnected() )
+        {
+            return conn;
+        }
+
+        if ( conn != null )
+        {
+            closeQuietly( conn );
+        }
+
+        LdapNetworkConnection newConn = new LdapNetworkConnection( config );
+
+        try
+        {
+            newConn.bind();
+        }
+        catch ( LdapException e )
+        {
+            closeQuietly( newConn );
+            throw e;
+        }
+
+        newConn.setSchemaManager( ldapSchema );
+
+        return newConn;
+    }
+
+
+    /**
+     * @param broken true if the update failed, the connection is then not reused
+     */
+    private void releaseDeferredConnection( LdapConnection conn, boolean broken )
+    {
+        if ( broken || stop || !deferredConnections.offer( conn ) )
+        {
+            closeQuietly( conn );
+        }
+    }
+
+
+    private static void closeQuietly( LdapConnection conn )
+    {
+        try
+        {
+            conn.close();
+        }
+        catch ( Exception e )
+        {
+            LOG.debug( "Failed to close a connection", e );
+        }
+    }
+
+
+    public ServerResource patchResource( String resourceId, String jsonData, RequestContext ctx ) throws EscimoException
+    {
+        return patchResource( resourceId, new JsonReader( new StringReader( jsonData ) ), ctx );
+    }
+
+
+    public ServerResource patchResource( String resourceId, InputStream in, RequestContext ctx ) throws EscimoException
+    {
+        return patchResource( resourceId, newJsonReader( in ), ctx );
+    }
+
+
+    public ServerResource patchResource( String resourceId, JsonReader reader, RequestContext ctx ) throws EscimoException
+    {
+        ResourceSchema resourceSchema = getResourceSchema( ctx );
+
+        // unlike POST and PUT the body is not streamed into the entry: the attributes to fetch are
+        // known only after all the operations are read and the operations are applied to the
+        // existing entry, so the whole body is held as a JSON tree, values of the members included.
+        // Only the intermediate String copy of the payload is avoided.
+        JsonObject obj = parseObject( reader );
+
+        ModifyRequest modReq = new ModifyRequestImpl();
+
+        // the standard format of RFC 7644 or the older format with meta.attributes
+        List<PatchOperation> operations = null;
+
+        if ( obj.has( PatchOperation.OPERATIONS ) )
+        {
+            operations = PatchOperation.parseAll( obj );
+        }
+
+        // objectClass is always needed for finding the member attribute of a group
+        SimpleType idType = ( SimpleType ) resourceSchema.getCoreAttribute( "id" );
+
+        Set<String> fetchAtNames = new HashSet<String>();
+        fetchAtNames.add( SchemaConstants.OBJECT_CLASS_AT );
+        fetchAtNames.add( idType.getMappedTo() );
+        fetchAtNames.add( versionAtName );
+
+        if ( permissiveModifySupported )
+        {
+            // the server ignores adding existing values and deleting missing values, so there is no need
+            // to compare with the existing values and the potentially huge member attributes are not fetched
+            modReq.addControl( new OpaqueControl( LdapUtil.PERMISSIVE_MODIFY_OID ) );
+        }
+        else
+        {
+            // only the attributes touched by the request are needed for comparing with the existing values
+            for ( String name : getPatchedAttributeNames( obj, operations ) )
+            {
+                List<AttributeType> types = getLdapTypes( name, resourceSchema );
+
+                if ( types == null )
+                {
+                    continue;
+                }
+
+                for ( AttributeType type : types )
+                {
+                    if ( type != null )
+                    {
+                        fetchAtNames.add( type.getName() );
+                    }
+                }
+            }
+        }
+
+        Entry existingEntry = fetchEntryById( resourceId, resourceSchema, ctx,
+            fetchAtNames.toArray( new String[fetchAtNames.size()] ) );
+
+        if ( existingEntry == null )
+        {
+            throw new ResourceNotFoundException( "No resource found with the id " + resourceId );
+        }
+
+        modReq.setName( existingEntry.getDn() );
+
+        checkIfMatch( existingEntry, resourceId, ctx, modReq );
+
+        JsonObject metaObj = ( JsonObject ) obj.get( "meta" );
+        if ( metaObj != null )
+        {
+            JsonArray metaAtNames = ( JsonArray ) metaObj.get( "attributes" );
+            if ( metaAtNames != null )
+            {
+                for ( JsonElement e : metaAtNames )
+                {
+                    String name = e.getAsString();
+                    BaseType bt = resourceSchema.getAttribute( name );
+
+                    if ( bt == null )
+                    {
+                        throw new AttributeNotFoundException( "No definition found for the attribute " + name );
+                    }
+
+                    if ( bt.isReadOnly() )
+                    {
+                        continue;
+                    }
+                    
+                    AttributeHandler handler = bt.getHandler();
+                    if ( handler != null )
+                    {
+                        try
+                        {
+                            handler.deleteAttribute( bt, existingEntry, ctx, modReq );
+                        }
+                        catch( Exception ex )
+                        {
+                            throw new InternalException( ex );
+                        }
+                        continue;
+                    }
+
+                    LdapUtil.deleteAttribute( bt, existingEntry, modReq );
+                }
+            }
+        }
+
+        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+
+        // send attributes if requested
+        boolean sendResource = ( ctx.getParamAttributes() != null );
+
+        if ( sendResource )
+        {
+            requestPostRead( modReq, ctx, resourceSchema );
+        }
+
+        try
+        {
+            if ( operations != null )
+            {
+                // all the operations are applied in a single modify operation
+                for ( PatchOperation op : operations )
+                {
+                    LdapUtil.applyPatchOperation( op, existingEntry, ctx, resourceSchema, modReq );
+                }
+            }
+            else
+            {
+                LdapUtil.patchAttributes( existingEntry, obj, ctx, resourceSchema, modReq );
+            }
+
+            ModifyResponse modResp = null;
+
+            if ( !modReq.getModifications().isEmpty() )
+            {
+                modResp = conn.modify( modReq );
+
+                LdapResult result = modResp.getLdapResult();
+                checkAssertionResult( result, resourceId );
+
+                if ( result.getResultCode() != ResultCodeEnum.SUCCESS )
+                {
+                    LOG.debug( "Failed to patch the resource with ID {}, LDAP error result {}", resourceId, result );
+                    throw new ResourceUpdateException( "Failed to patch the resource with ID " + resourceId );
+                }
+
+                photoCache.invalidate( resourceId );
+            }
+
+            if ( sendResource )
+            {
+                Entry entry = getUpdatedEntry( modResp, resourceId, resourceSchema, ctx );
+
+                ServerResource resource = new ServerResource();
+
+                ctx.setCoreResource( resource );
+
+                _loadCoreResource( ctx, entry, resourceSchema );
+
+                return resource;
+            }
+
+            return null;
+        }
+        catch ( EscimoException e )
+        {
+            throw e;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // an invalid path or value in the request
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to patch the resource with ID {}", resourceId, e );
+            throw new ResourceUpdateException( "Failed to patch the resource with ID " + resourceId, e );
+        }
+    }
+
+
+    /**
+     * Gives the names of the SCIM attributes modified by the given PATCH request
+     */
+    private Set<String> getPatchedAttributeNames( JsonObject obj, List<PatchOperation> operations )
+    {
+        Set<String> names = new HashSet<String>();
+
+        if ( operations != null )
+        {
+            for ( PatchOperation op : operations )
+            {
+                if ( op.getAttribute() == null )
+                {
+                    for ( java.util.Map.Entry<String, JsonElement> e : LdapUtil.flattenAttributes(
+                        op.getValue().getAsJsonObject() ).entrySet() )
+                    {
+                        names.add( e.getKey() );
+                    }
+                }
+                else if ( op.getSubAttribute() != null )
+                {
+                    names.add( op.getAttribute() + "." + op.getSubAttribute() );
+                }
+                else
+                {
+                    names.add( op.getAttribute() );
+                }
+            }
+
+            return names;
+        }
+
+        for ( java.util.Map.Entry<String, JsonElement> e : obj.entrySet() )
+        {
+            names.add( e.getKey() );
+        }
+
+        JsonObject metaObj = ( JsonObject ) obj.get( "meta" );
+
+        if ( ( metaObj != null ) && ( metaObj.get( "attributes" ) != null ) )
+        {
+            for ( JsonElement e : metaObj.get( "attributes" ).getAsJsonArray() )
+            {
+                names.add( e.getAsString() );
+            }
+        }
+
+        return names;
+    }
+
+
+    public Photo getUserPhoto( String id, String atName, RequestContext ctx ) throws MissingParameterException
+    {
+        if ( Strings.isEmpty( id ) )
+        {
+            throw new MissingParameterException( "parameter 'id' cannot be null or empty" );
+        }
+
+        if ( Strings.isEmpty( atName ) )
+        {
+            throw new MissingParameterException( "parameter 'atName' cannot be null or empty" );
+        }
+
+        // the cache is bypassed when each user connects with their own credentials,
+        // a cached photo might not be readable by the user
+        CachedPhoto cached = allowAuthorizedUsers ? null : photoCache.get( id );
+
+        if ( ( cached != null ) && cached.atName.equalsIgnoreCase( atName ) )
+        {
+            return cached.photo;
+        }
+
+        ResourceSchema resourceSchema = getResourceSchema( ctx );
+        Entry entry = fetchEntryById( id, resourceSchema, ctx, atName );
+
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        Attribute phtoAt = entry.get( atName );
+
+        if ( phtoAt == null )
+        {
+            return null;
+        }
+
+        // the entity tag is computed once for a cached photo
+        Photo photo = new Photo( phtoAt.get().getBytes() );
+
+        if ( !allowAuthorizedUsers && ( photo.getData().length <= MAX_CACHED_PHOTO_SIZE ) )
+        {
+            photoCache.put( id, new CachedPhoto( atName, photo ) );
+        }
+
+        return photo;
+    }
+
+
+    public ServerResource addResource( String json, RequestContext ctx ) throws EscimoException
+    {
+        return addResource( new JsonReader( new StringReader( json ) ), ctx );
+    }
+
+
+    public ServerResource addResource( InputStream in, RequestContext ctx ) throws EscimoException
+    {
+        return addResource( newJsonReader( in ), ctx );
+    }
+
+
+    public ServerResource addResource( JsonReader reader, RequestContext ctx ) throws EscimoException
+    {
+        String userName = null;
+
+        try
+        {
+            ResourceSchema resourceSchema = getResourceSchema( ctx );
+
+            Entry entry = newEntry( reader, ctx, resourceSchema );
+
+            Attribute rdnAt = entry.get( resourceSchema.getRdnType().getMappedTo() );
+
+            if ( rdnAt != null )
+            {
+                userName = rdnAt.getString();
+            }
+
+            LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+
+            AddRequest addReq = new AddRequestImpl();
+            addReq.setEntry( entry );
+
+            if ( postReadSupported )
+            {
+                addReq.addControl( PostReadControl.create( SchemaConstants.ALL_ATTRIBUTES_ARRAY ) );
+            }
+
+            AddResponse addResp = conn.add( addReq );
+
+            LdapResult result = addResp.getLdapResult();
+
+            if ( result.getResultCode() == ResultCodeEnum.ENTRY_ALREADY_EXISTS )
+            {
+                throw new LdapEntryAlreadyExistsException( result.getDiagnosticMessage() );
+            }
+
+            if ( result.getResultCode() != ResultCodeEnum.SUCCESS )
+            {
+                throw new LdapException( result.getDiagnosticMessage() );
+            }
+
+            runDeferredUpdates( entry.getDn(), null, ctx );
+
+            Entry addedEntry = PostReadControl.getEntry( addResp, ldapSchema );
+
+            if ( addedEntry == null )
+            {
+                addedEntry = conn.lookup( entry.getDn(), SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+            }
+
+            entry = addedEntry;
+
+            ServerResource addedUser = new ServerResource();
+
+            ctx.setCoreResource( addedUser );
+
+            _loadCoreResource( ctx, entry, resourceSchema );
+
+            return addedUser;
+
+        }
+        catch ( LdapEntryAlreadyExistsException e )
+        {
+            String message = "Resource already exists, conflicting attribute userName : " + userName;
+            throw new ResourceConflictException( message );
+        }
+        catch ( EscimoException e )
+        {
+            throw e;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to create User resource", e );
+            throw new InternalException( e );
+        }
+    }
+
+
+    /**
+     * Builds the entry of a new resource read from the given stream. The DN is taken from
+     * the entryDn header if present, otherwise the entry is placed under the base DN of the
+     * resource type.
+     */
+    Entry newEntry( JsonReader reader, RequestContext ctx, ResourceSchema resourceSchema ) throws Exception
+    {
+        Entry entry = new DefaultEntry( ldapSchema );
+
+        SimpleType st = resourceSchema.getRdnType();
+        String userIdName = st.getMappedTo();
+
+        _resourceToEntry( entry, reader, ctx, resourceSchema );
+
+        String dn = ctx.getReqHeaderValue( ENTRYDN_HEADER );
+
+        if ( Strings.isEmpty( dn ) )
+        {
+            Attribute rdnAt = entry.get( userIdName );
+
+            if ( rdnAt == null )
+            {
+                throw new InvalidValueException( "The attribute " + st.getName() + " is missing" );
+            }
+
+            dn = userIdName + "=" + rdnAt.getString() + "," + resourceSchema.getBaseDn();
+        }
+
+        entry.setDn( dn );
+
+        return entry;
+    }
+
+
+    public void importResources( InputStream in, ImportListener listener, RequestContext ctx ) throws EscimoException
+    {
+        LdapRequestContext ldapCtx = ( LdapRequestContext ) ctx;
+
+        // the requests of the authenticated users are sent on their own connection
+        boolean pooled = ( ldapCtx.getConnection() == adminConnection ) && ( config != null );
+
+        List<LdapAsyncConnection> connections = new ArrayList<LdapAsyncConnection>();
+
         try
         {
-            for ( java.util.Map.Entry<String, JsonElement> e : obj.entrySet() )
+            if ( pooled )
             {
-                String name = e.getKey();
-                
-                if ( name.startsWith( "urn:scim:schemas:" ) )
-                {
-                    continue;
-                }
-                
-                BaseType bt = resourceSchema.getAttribute( name );
-                
-                if ( bt == null )
+                for ( int i = 0; i < importConnections; i++ )
                 {
-                    LOG.debug( "Unknown attribute name {} is present in the JSON payload that has no corresponding mapping in the escimo-ldap-mapping.xml file", name );
-                    continue;
+                    LdapNetworkConnection conn = new LdapNetworkConnection( config );
+                    connections.add( conn );
+                    conn.bind();
+                    conn.setSchemaManager( ldapSchema );
                 }
-                
-                if ( bt.isReadOnly() )
+            }
+            else if ( ldapCtx.getConnection() instanceof LdapAsyncConnection )
+            {
+                connections.add( ( LdapAsyncConnection ) ldapCtx.getConnection() );
+            }
+            else
+            {
+                throw new InternalException( "The connection doesn't support sending the requests asynchronously" );
+            }
+
+            new LdapImport( this, ldapCtx, listener, connections, importWindow ).run( in );
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to open the connections of the import", e );
+            throw new InternalException( e );
+        }
+        finally
+        {
+            if ( pooled )
+            {
+                for ( LdapAsyncConnection conn : connections )
                 {
-                    continue;
+                    try
+                    {
+                        conn.close();
+                    }
+                    catch ( Exception e )
+                    {
+                        LOG.debug( "Failed to close a connection of the import", e );
+                    }
                 }
-                
-                AttributeHandler handler = bt.getHandler();
-                
-                if ( handler != null )
+            }
+        }
+    }
+
+
+    /**
+     * Writes the attributes of the resource into the entry while they are read from the stream,
+     * the payload is never held in memory as a whole
+     */
+    private void _resourceToEntry( Entry entry, JsonReader reader, RequestContext ctx, ResourceSchema resourceSchema )
+        throws EscimoException
+    {
+
+        // add the objectClasses first so a handler will get a chance to
+        // inspect what attributes can the entry hold
+        // e.x it is useful for handling Groups, where the handler can
+        // find if the attribute name is 'member' or 'uniqueMember'
+        try
+        {
+            for ( String oc : resourceSchema.getObjectClasses() )
+            {
+                entry.add( SchemaConstants.OBJECT_CLASS, oc );
+            }
+        }
+        catch( LdapException e )
+        {
+            throw new InternalException( e );
+        }
+
+        List<String> uris = resourceSchema.getSchemaIds();
+
+        try
+        {
+            reader.beginObject();
+
+            while ( reader.hasNext() )
+            {
+                String name = reader.nextName();
+
+                // the attributes of the extensions are nested under their schema URIs
+                if ( uris.contains( name ) && ( reader.peek() == JsonToken.BEGIN_OBJECT ) )
                 {
-                    handler.write( bt, e.getValue(), entry, ctx );
+                    reader.beginObject();
+
+                    while ( reader.hasNext() )
+                    {
+                        addAttribute( entry, reader.nextName(), reader, ctx, resourceSchema );
+                    }
+
+                    reader.endObject();
                 }
                 else
                 {
-                    LdapUtil.scimToLdapAttribute( bt, e.getValue(), entry, ctx );
+                    addAttribute( entry, name, reader, ctx, resourceSchema );
                 }
             }
+
+            reader.endObject();
+        }
+        catch( EscimoException e )
+        {
+            throw e;
+        }
+        catch( IOException e )
+        {
+            throw new IllegalArgumentException( "Invalid JSON payload, " + e.getMessage(), e );
+        }
+        catch( JsonParseException e )
+        {
+            throw new IllegalArgumentException( "Invalid JSON payload, " + e.getMessage(), e );
+        }
+        catch( IllegalStateException e )
+        {
+            // thrown by the reader when a value is not of the expected type
+            throw new IllegalArgumentException( "Invalid JSON payload, " + e.getMessage(), e );
+        }
+        catch( IllegalArgumentException e )
+        {
+            throw e;
         }
         catch( Exception e )
         {
@@ -998,128 +3077,319 @@ public class LdapResourceProvider implements ResourceProvider
     }
 
 
-    public ServerResource addResource( String json, RequestContext ctx ) throws EscimoException
+    /**
+     * Reads the value of the given attribute from the stream and writes it into the entry
+     */
+    private void addAttribute( Entry entry, String name, JsonReader reader, RequestContext ctx,
+        ResourceSchema resourceSchema ) throws Exception
     {
-        String userName = null;
+        if ( name.startsWith( "urn:scim:schemas:" ) )
+        {
+            reader.skipValue();
+            return;
+        }
+
+        BaseType bt = resourceSchema.getAttribute( name );
+
+        if ( bt == null )
+        {
+            LOG.debug( "Unknown attribute name {} is present in the JSON payload that has no corresponding mapping in the escimo-ldap-mapping.xml file", name );
+            reader.skipValue();
+            return;
+        }
+
+        if ( bt.isReadOnly() )
+        {
+            reader.skipValue();
+            return;
+        }
+
+        AttributeHandler handler = bt.getHandler();
+
+        if ( handler instanceof LdapAttributeHandler )
+        {
+            ( ( LdapAttributeHandler ) handler ).write( bt, reader, entry, ctx );
+        }
+        else if ( handler != null )
+        {
+            handler.write( bt, new JsonParser().parse( reader ), entry, ctx );
+        }
+        else
+        {
+            LdapUtil.scimToLdapAttribute( bt, new JsonParser().parse( reader ), entry, ctx );
+        }
+    }
+
 
+    private JsonReader newJsonReader( InputStream in )
+    {
         try
         {
-            JsonParser parser = new JsonParser();
-            JsonObject obj = ( JsonObject ) parser.parse( json );
+            return new JsonReader( new InputStreamReader( in, "UTF-8" ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            // UTF-8 is always supported
+            throw new IllegalStateException( e );
+        }
+    }
 
-            Entry entry = new DefaultEntry( ldapSchema );
 
-            ResourceSchema resourceSchema = getResourceSchema( ctx );
-            SimpleType st = resourceSchema.getRdnType();
-            String userIdName = st.getMappedTo();
+    private JsonObject parseObject( JsonReader reader )
+    {
+        JsonElement el = null;
+
+        try
+        {
+            el = new JsonParser().parse( reader );
+        }
+        catch ( JsonParseException e )
+        {
+            throw new IllegalArgumentException( "Invalid JSON payload, " + e.getMessage(), e );
+        }
+
+        if ( !el.isJsonObject() )
+        {
+            throw new IllegalArgumentException( "The JSON payload is not an object" );
+        }
+
+        return el.getAsJsonObject();
+    }
+
+
+    public void deleteResource( String id, RequestContext ctx ) throws EscimoException
+    {
+        ResourceSchema resourceSchema = getResourceSchema( ctx );
+        Entry entry = fetchEntryById( id, resourceSchema, ctx );
+        if( entry == null )
+        {
+            LOG.debug( "No resource found with the id {}", id );
+            throw new ResourceNotFoundException( "Resource with id " + id + " not found" );
+        }
+        
+        DeleteRequest delReq = new DeleteRequestImpl();
+        delReq.setName( entry.getDn() );
+
+        checkIfMatch( entry, id, ctx, delReq );
 
-            String dn = ctx.getReqHeaderValue( ENTRYDN_HEADER );
+        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+        try
+        {
+            LdapResult result = conn.delete( delReq ).getLdapResult();
+
+            checkAssertionResult( result, id );
 
-            if ( Strings.isEmpty( dn ) )
+            if ( result.getResultCode() == ResultCodeEnum.NO_SUCH_OBJECT )
             {
-                dn = null;
+                throw new LdapNoSuchObjectException( result.getDiagnosticMessage() );
             }
 
-            if ( dn == null )
+            if ( result.getResultCode() != ResultCodeEnum.SUCCESS )
             {
-                userName = obj.get( st.getName() ).getAsString();
-
-                dn = userIdName + "=" + userName + "," + resourceSchema.getBaseDn();
+                throw new LdapException( result.getDiagnosticMessage() );
             }
 
-            _resourceToEntry( entry, obj, ctx, resourceSchema );
+            dnCache.invalidate( entry.getDn().getNormName() );
+            photoCache.invalidate( id );
+            tombstones.add( resourceSchema.getName(), id );
+        }
+        catch( LdapNoSuchObjectException e )
+        {
+            LOG.debug( "No resource found with the id {}", id );
+            throw new ResourceNotFoundException( "Resource with id " + id + " not found" );
+        }
+        catch( LdapException e )
+        {
+            LOG.warn( "Failed to delete the resource with id {}", id );
+            throw new InternalException( e );
+        }
+    }
+
 
-            entry.setDn( dn );
+    public DeleteResult deleteResources( String scimFilter, RequestContext ctx ) throws EscimoException
+    {
+        if ( !deleteByFilterEnabled )
+        {
+            throw new OperationNotAllowedException( "Deleting resources using a filter is not enabled" );
+        }
 
-            LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+        FilterNode filter = FilterParser.parse( scimFilter );
 
-            conn.add( entry );
+        if ( filter == null )
+        {
+            throw new IllegalArgumentException( "A filter is required for deleting resources" );
+        }
 
-            entry = conn.lookup( entry.getDn(), SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+        ResourceSchema scimSchema = getResourceSchema( ctx );
 
-            ServerResource addedUser = new ServerResource();
+        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
 
-            ctx.setCoreResource( addedUser );
+        List<Dn> dns = new ArrayList<Dn>();
+        List<String> ids = new ArrayList<String>();
 
-            _loadCoreResource( ctx, entry, resourceSchema );
+        SimpleType idType = ( SimpleType ) scimSchema.getCoreAttribute( "id" );
 
-            return addedUser;
+        try
+        {
+            ExprNode ldapFilter = LdapUtil._scimToLdapFilter( filter, scimSchema, ldapSchema, this );
+
+            if ( ldapFilter == null )
+            {
+                throw new IllegalArgumentException( "The filter " + scimFilter + " cannot be applied on the resources" );
+            }
+
+            // only the entries of the requested resource type are deleted
+            ExprNode resourceFilter = org.apache.directory.api.ldap.model.filter.FilterParser.parse( scimSchema.getFilter() );
+
+            LOG.debug( "Deleting the entries matching the LDAP filter {}", ldapFilter );
 
+            SearchRequest sr = new SearchRequestImpl();
+            sr.setBase( new Dn( scimSchema.getBaseDn() ) );
+            sr.setFilter( new AndNode( ldapFilter, resourceFilter ) );
+            sr.setScope( SearchScope.SUBTREE );
+            // the IDs are read for recording the deletes in the tombstone log
+            sr.addAttributes( idType.getMappedTo() );
+
+            SearchCursor cursor = conn.search( sr );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    Entry entry = cursor.getEntry();
+                    Attribute idAt = entry.get( idType.getMappedTo() );
+
+                    dns.add( entry.getDn() );
+                    ids.add( ( idAt == null ) ? null : idAt.getString() );
+
+                    if ( dns.size() > deleteByFilterMaxMatches )
+                    {
+                        throw new IllegalArgumentException( "The filter " + scimFilter + " matches more than "
+                            + deleteByFilterMaxMatches + " resources" );
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
         }
-        catch ( LdapEntryAlreadyExistsException e )
+        catch ( IllegalArgumentException e )
         {
-            String message = "Resource already exists, conflicting attribute userName : " + userName;
-            throw new ResourceConflictException( message );
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new InternalException( e );
+        }
+
+        DeleteResult result = deleteEntries( dns, ids, scimSchema.getName(), conn );
+
+        LOG.debug( "Deleted the resources matching the filter {} {}", scimFilter, result );
+
+        return result;
+    }
+
+
+    /**
+     * Deletes the given entries keeping at most deleteByFilterConcurrency requests
+     * outstanding on the connection
+     */
+    private DeleteResult deleteEntries( List<Dn> dns, List<String> ids, String resourceType, LdapConnection conn )
+    {
+        DeleteResult result = new DeleteResult();
+
+        LinkedList<DeleteFuture> window = new LinkedList<DeleteFuture>();
+        LinkedList<Integer> windowPos = new LinkedList<Integer>();
+
+        for ( int i = 0; i < dns.size(); i++ )
+        {
+            Dn dn = dns.get( i );
+
+            DeleteRequest delReq = new DeleteRequestImpl();
+            delReq.setName( dn );
+
+            if ( !( conn instanceof LdapAsyncConnection ) )
+            {
+                try
+                {
+                    checkDeleted( conn.delete( delReq ), dn, ids.get( i ), resourceType, result );
+                }
+                catch ( LdapException e )
+                {
+                    LOG.debug( "Failed to delete the entry {}", dn, e );
+                    result.incrementFailed();
+                }
+
+                continue;
+            }
+
+            if ( window.size() == deleteByFilterConcurrency )
+            {
+                awaitDelete( window.removeFirst(), windowPos.removeFirst(), dns, ids, resourceType, result );
+            }
+
+            try
+            {
+                window.add( ( ( LdapAsyncConnection ) conn ).deleteAsync( delReq ) );
+                windowPos.add( i );
+            }
+            catch ( LdapException e )
+            {
+                LOG.debug( "Failed to send the delete request of the entry {}", dn, e );
+                result.incrementFailed();
+            }
         }
-        catch ( Exception e )
+
+        while ( !window.isEmpty() )
         {
-            LOG.warn( "Failed to create User resource", e );
-            throw new InternalException( e );
+            awaitDelete( window.removeFirst(), windowPos.removeFirst(), dns, ids, resourceType, result );
         }
+
+        return result;
     }
 
 
-    private void _resourceToEntry( Entry entry, JsonObject obj, RequestContext ctx, ResourceSchema resourceSchema )
-        throws EscimoException
+    private void awaitDelete( DeleteFuture future, int pos, List<Dn> dns, List<String> ids, String resourceType,
+        DeleteResult result )
     {
+        Dn dn = dns.get( pos );
 
-        // add the objectClasses first so a handler will get a chance to
-        // inspect what attributes can the entry hold
-        // e.x it is useful for handling Groups, where the handler can
-        // find if the attribute name is 'member' or 'uniqueMember'
         try
         {
-            for ( String oc : resourceSchema.getObjectClasses() )
-            {
-                entry.add( SchemaConstants.OBJECT_CLASS, oc );
-            }
+            checkDeleted( future.get(), dn, ids.get( pos ), resourceType, result );
         }
-        catch( LdapException e )
+        catch ( InterruptedException e )
         {
-            throw new InternalException( e );
+            Thread.currentThread().interrupt();
+            result.incrementFailed();
         }
-
-        // process the core attributes first
-        addAttributes( entry, obj, ctx, resourceSchema );
-
-        List<String> uris = resourceSchema.getSchemaIds();
-
-        for ( String u : uris )
+        catch ( ExecutionException e )
         {
-            JsonObject userAtObj = ( JsonObject ) obj.get( u );
-            if ( userAtObj != null )
-            {
-                addAttributes( entry, userAtObj, ctx, resourceSchema );
-            }
+            LOG.debug( "Failed to delete the entry {}", dn, e );
+            result.incrementFailed();
         }
-
     }
 
 
-    public void deleteResource( String id, RequestContext ctx ) throws EscimoException
+    private void checkDeleted( DeleteResponse resp, Dn dn, String id, String resourceType, DeleteResult result )
     {
-        ResourceSchema resourceSchema = getResourceSchema( ctx );
-        Entry entry = fetchEntryById( id, resourceSchema, ctx );
-        if( entry == null )
-        {
-            LOG.debug( "No resource found with the id {}", id );
-            throw new ResourceNotFoundException( "Resource with id " + id + " not found" );
-        }
-        
-        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
-        try
-        {
-            conn.delete( entry.getDn() );
-        }
-        catch( LdapNoSuchObjectException e )
+        // the response is null when the connection was closed before it arrived
+        if ( ( resp != null ) && ( resp.getLdapResult().getResultCode() == ResultCodeEnum.SUCCESS ) )
         {
-            LOG.debug( "No resource found with the id {}", id );
-            throw new ResourceNotFoundException( "Resource with id " + id + " not found" );
+            dnCache.invalidate( dn.getNormName() );
+            result.incrementDeleted();
+
+            if ( id != null )
+            {
+                photoCache.invalidate( id );
+                tombstones.add( resourceType, id );
+            }
         }
-        catch( LdapException e )
+        else
         {
-            LOG.warn( "Failed to delete the resource with id {}", id );
-            throw new InternalException( e );
+            LOG.debug( "Failed to delete the entry {} {}", dn, ( resp == null ) ? null : resp.getLdapResult() );
+            result.incrementFailed();
         }
     }
 
@@ -1141,6 +3411,7 @@ public class LdapResourceProvider implements ResourceProvider
             resource.addAttribute( idType.getUri(), idAttribute );
             
             resource.setId( ( String ) idAttribute.getValue() );
+            resource.setVersion( getVersion( entry ) );
             
             _loadAttributes( ctx, entry, resourceSchema.getCoreTypes(), idType );
             _loadAttributes( ctx, entry, resourceSchema.getExtendedTypes(), idType );
@@ -1274,129 +3545,459 @@ public class LdapResourceProvider implements ResourceProvider
             SimpleAttributeGroup sg = new SimpleAttributeGroup();
             sg.addAttribute( new SimpleAttribute( valType.getName(), scimVal ) );
 
-            for ( SimpleType type : types )
+            for ( SimpleType type : types )
+            {
+                SimpleAttribute st = getValueForSimpleType( type, entry );
+
+                if ( st != null )
+                {
+                    sg.addAttribute( st );
+                }
+            }
+
+            lst.add( sg );
+        }
+
+        if ( lst.isEmpty() )
+        {
+            return null;
+        }
+
+        return lst;
+    }
+
+
+    public SimpleAttribute getValueForSimpleType( SimpleType st, Entry entry, RequestContext ctx ) throws Exception
+    {
+        AttributeHandler handler = st.getHandler();
+        if ( handler != null )
+        {
+            handler.read( st, entry, ctx );
+            return null;
+        }
+        else
+        {
+            return getValueForSimpleType( st, entry );
+        }
+    }
+
+
+    public SimpleAttribute getValueForSimpleType( SimpleType st, Entry entry )
+    {
+        String name = st.getName();
+        Attribute at = entry.get( st.getMappedTo() );
+        if ( at != null )
+        {
+            LOG.debug( "processing attribute {}", name );
+            Object value = getScimValFrom( at );
+            return new SimpleAttribute( name, value );
+        }
+
+        return null;
+    }
+
+
+    private Object getScimValFrom( Attribute at )
+    {
+        return getScimValFrom( at.get() );
+    }
+
+
+    private Object getScimValFrom( Value<?> ldapValue )
+    {
+        if ( !ldapValue.isHumanReadable() )
+        {
+            return new String( Base64.encode( ldapValue.getBytes() ) );
+        }
+
+        LdapSyntax syntax = ldapValue.getAttributeType().getSyntax();
+        if ( syntax != null )
+        {
+            SyntaxChecker sc = syntax.getSyntaxChecker();
+            if ( sc instanceof IntegerSyntaxChecker ||
+                sc instanceof JavaByteSyntaxChecker ||
+                sc instanceof JavaIntegerSyntaxChecker ||
+                sc instanceof JavaLongSyntaxChecker ||
+                sc instanceof JavaShortSyntaxChecker )
+            {
+                return Long.parseLong( ldapValue.getString() );
+            }
+            else if ( sc instanceof GeneralizedTimeSyntaxChecker )
+            {
+                return ResourceUtil.toScimDate( ldapValue.getString() );
+            }
+        }
+
+        return ldapValue.getString();
+    }
+
+
+    public List<SimpleAttribute> getValuesInto( SimpleTypeGroup stg, Entry entry )
+    {
+        List<SimpleAttribute> lstAts = new ArrayList<SimpleAttribute>();
+
+        for ( SimpleType st : stg.getSubTypes() )
+        {
+            SimpleAttribute at = getValueForSimpleType( st, entry );
+            if ( at != null )
+            {
+                lstAts.add( at );
+            }
+
+        }
+
+        return lstAts;
+    }
+
+
+    public Entry fetchEntryByDn( String dn, RequestContext ctx )
+    {
+        try
+        {
+            LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+
+            return conn.lookup( dn, ALL_ATTRIBUTES_ARRAY );
+        }
+        catch ( LdapException e )
+        {
+            LOG.debug( "Couldn't find the entry with dn {}", dn, e );
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Resolves the given DN to a reference holding the entryUUID and the RDN value of the entry.
+     * The DN is looked up in the request's memo first, then in the shared DN cache and only
+     * when both miss the entry is read from the LDAP server. The shared cache is not used when
+     * the users connect with their own credentials.
+     *
+     * @param dn the DN of the entry
+     * @param ctx the request context
+     * @return the reference to the entry or null if no entry exists with the given DN or
+     *         if its entryUUID is not readable
+     */
+    public EntryRef resolveDnRef( String dn, RequestContext ctx )
+    {
+        LdapRequestContext ldapCtx = ( LdapRequestContext ) ctx;
+
+        EntryRef ref = ldapCtx.getMemoizedRef( dn );
+
+        if ( ref != null )
+        {
+            return ref;
+        }
+
+        try
+        {
+            Dn entryDn = new Dn( ldapSchema, dn );
+
+            String normDn = entryDn.getNormName();
+
+            if ( !allowAuthorizedUsers )
+            {
+                ref = dnCache.get( normDn );
+            }
+
+            if ( ref == null )
+            {
+                Entry entry = ldapCtx.getConnection().lookup( entryDn, SchemaConstants.ENTRY_UUID_AT );
+
+                if ( entry == null )
+                {
+                    LOG.debug( "Couldn't find the entry with dn {}", dn );
+                    return null;
+                }
+
+                ref = EntryRef.fromEntry( entry );
+
+                if ( ref == null )
+                {
+                    LOG.debug( "The entryUUID of the entry with dn {} is not readable, the entry is skipped", dn );
+                    return null;
+                }
+
+                if ( !allowAuthorizedUsers )
+                {
+                    dnCache.put( normDn, ref );
+                }
+            }
+
+            ldapCtx.memoizeRef( dn, ref );
+        }
+        catch ( LdapException e )
+        {
+            LOG.debug( "Couldn't resolve the entry with dn {}", dn, e );
+        }
+
+        return ref;
+    }
+
+
+    /**
+     * Caches the reference of the given entry, to be used when the caller has already
+     * read the entryUUID of an entry as part of a different search
+     *
+     * @return the reference, null if the entryUUID of the entry was not read
+     */
+    public EntryRef cacheDnRef( Entry entry, RequestContext ctx ) throws LdapException
+    {
+        EntryRef ref = EntryRef.fromEntry( entry );
+
+        if ( ref == null )
+        {
+            LOG.debug( "The entryUUID of the entry with dn {} is not readable, the entry is skipped", entry.getDn() );
+            return null;
+        }
+
+        if ( !allowAuthorizedUsers )
+        {
+            dnCache.put( entry.getDn().getNormName(), ref );
+        }
+
+        ( ( LdapRequestContext ) ctx ).memoizeRef( entry.getDn().getName(), ref );
+
+        return ref;
+    }
+
+
+    /**
+     * @return the reverse index of group memberships, null if the index is disabled or if the users
+     *         connect with their own credentials
+     */
+    public MembershipIndex getMembershipIndex()
+    {
+        if ( allowAuthorizedUsers )
+        {
+            return null;
+        }
+
+        return membershipIndex;
+    }
+
+
+    /**
+     * Resolves the given resource IDs to the DNs of their entries in bulk. The IDs are split into chunks
+     * and each chunk is looked up with a single search of the form (|(entryUUID=id1)(entryUUID=id2)...).
+     * The searches of the chunks are sent asynchronously on the request's connection, keeping at most
+     * lookupConcurrency of them outstanding, no other thread or connection is involved.
+     *
+     * @param ids the IDs of the resources
+     * @param resourceSchema the schema of the resource type the IDs belong to
+     * @param ctx the request context
+     * @return map of the ID to the DN of the entry, IDs that couldn't be resolved are absent in the map
+     * @throws EscimoException
+     */
+    public Map<String, String> resolveIdsToDns( Collection<String> ids, ResourceSchema resourceSchema,
+        RequestContext ctx ) throws EscimoException
+    {
+        Map<String, String> dns = new HashMap<String, String>();
+
+        if ( ids.isEmpty() )
+        {
+            return dns;
+        }
+
+        SimpleType idType = ( SimpleType ) resourceSchema.getCoreAttribute( "id" );
+        AttributeType idAt = ldapSchema.getAttributeType( idType.getMappedTo() );
+
+        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+
+        List<String> idList = new ArrayList<String>( new LinkedHashSet<String>( ids ) );
+
+        // the resolved IDs in lowercase, the values returned by the server need not be in the same case
+        Map<String, String> resolved = new HashMap<String, String>();
+
+        LinkedList<SearchFuture> window = new LinkedList<SearchFuture>();
+
+        try
+        {
+            Dn base = new Dn( resourceSchema.getBaseDn() );
+
+            ExprNode typeFilter = org.apache.directory.api.ldap.model.filter.FilterParser.parse( resourceSchema
+                .getFilter() );
+
+            boolean async = ( conn instanceof LdapAsyncConnection ) && ( idList.size() > LOOKUP_BATCH_SIZE );
+
+            for ( int i = 0; i < idList.size(); i += LOOKUP_BATCH_SIZE )
             {
-                SimpleAttribute st = getValueForSimpleType( type, entry );
+                List<String> chunk = idList.subList( i, Math.min( i + LOOKUP_BATCH_SIZE, idList.size() ) );
 
-                if ( st != null )
+                OrNode orNode = new OrNode();
+
+                for ( String id : chunk )
                 {
-                    sg.addAttribute( st );
+                    orNode.addNode( new EqualityNode<String>( idAt, new StringValue( id ) ) );
                 }
-            }
 
-            lst.add( sg );
-        }
+                AndNode filter = new AndNode();
+                filter.addNode( typeFilter );
+                filter.addNode( orNode );
 
-        if ( lst.isEmpty() )
-        {
-            return null;
-        }
+                SearchRequest sr = newIdSearch( base, filter, idAt );
 
-        return lst;
-    }
+                if ( !async )
+                {
+                    resolved.putAll( readIds( conn.search( sr ), idAt ) );
+                    continue;
+                }
 
+                if ( window.size() == lookupConcurrency )
+                {
+                    resolved.putAll( readIds( newSearchCursor( window.removeFirst() ), idAt ) );
+                }
 
-    public SimpleAttribute getValueForSimpleType( SimpleType st, Entry entry, RequestContext ctx ) throws Exception
-    {
-        AttributeHandler handler = st.getHandler();
-        if ( handler != null )
+                window.add( ( ( LdapAsyncConnection ) conn ).searchAsync( sr ) );
+            }
+
+            while ( !window.isEmpty() )
+            {
+                resolved.putAll( readIds( newSearchCursor( window.removeFirst() ), idAt ) );
+            }
+        }
+        catch ( Exception e )
         {
-            handler.read( st, entry, ctx );
-            return null;
+            // abandons the searches still outstanding
+            for ( SearchFuture f : window )
+            {
+                f.cancel( true );
+            }
+
+            LOG.warn( "Failed to resolve the IDs of {} resources", resourceSchema.getName(), e );
+            throw new InternalException( e );
         }
-        else
+
+        for ( String id : idList )
         {
-            return getValueForSimpleType( st, entry );
+            String dn = resolved.get( Strings.toLowerCase( id ) );
+
+            if ( dn != null )
+            {
+                dns.put( id, dn );
+            }
         }
+
+        return dns;
     }
 
 
-    public SimpleAttribute getValueForSimpleType( SimpleType st, Entry entry )
+    private SearchRequest newIdSearch( Dn base, ExprNode filter, AttributeType idAt )
     {
-        String name = st.getName();
-        Attribute at = entry.get( st.getMappedTo() );
-        if ( at != null )
-        {
-            LOG.debug( "processing attribute {}", name );
-            Object value = getScimValFrom( at );
-            return new SimpleAttribute( name, value );
-        }
+        SearchRequest sr = new SearchRequestImpl();
+        sr.setBase( base );
+        sr.setFilter( filter );
+        sr.setScope( SearchScope.SUBTREE );
+        sr.addAttributes( idAt.getName() );
 
-        return null;
+        return sr;
     }
 
 
-    private Object getScimValFrom( Attribute at )
+    /**
+     * Wraps the future of an asynchronous search in a cursor, waiting for each response as long as
+     * the connection does
+     */
+    private SearchCursor newSearchCursor( SearchFuture future )
     {
-        return getScimValFrom( at.get() );
+        long timeout = ( config != null ) ? config.getTimeout() : LdapConnectionConfig.DEFAULT_TIMEOUT;
+
+        return new SearchCursorImpl( future, timeout, TimeUnit.MILLISECONDS );
     }
 
 
-    private Object getScimValFrom( Value<?> ldapValue )
+    /**
+     * Reads the IDs of the entries returned by the cursor, the cursor is closed
+     *
+     * @return map of the ID in lowercase to the DN of the entry
+     */
+    private Map<String, String> readIds( SearchCursor cursor, AttributeType idAt ) throws Exception
     {
-        if ( !ldapValue.isHumanReadable() )
-        {
-            return new String( Base64.encode( ldapValue.getBytes() ) );
-        }
+        Map<String, String> dns = new HashMap<String, String>();
 
-        LdapSyntax syntax = ldapValue.getAttributeType().getSyntax();
-        if ( syntax != null )
+        try
         {
-            SyntaxChecker sc = syntax.getSyntaxChecker();
-            if ( sc instanceof IntegerSyntaxChecker ||
-                sc instanceof JavaByteSyntaxChecker ||
-                sc instanceof JavaIntegerSyntaxChecker ||
-                sc instanceof JavaLongSyntaxChecker ||
-                sc instanceof JavaShortSyntaxChecker )
-            {
-                return Long.parseLong( ldapValue.getString() );
-            }
-            else if ( sc instanceof GeneralizedTimeSyntaxChecker )
+            while ( cursor.next() )
             {
-                return ResourceUtil.toScimDate( ldapValue.getString() );
+                if ( !cursor.isEntry() )
+                {
+                    continue;
+                }
+
+                Entry entry = cursor.getEntry();
+
+                Attribute at = entry.get( idAt );
+
+                if ( at != null )
+                {
+                    dns.put( Strings.toLowerCase( at.getString() ), entry.getDn().getName() );
+                }
             }
         }
+        finally
+        {
+            cursor.close();
+        }
 
-        return ldapValue.getString();
+        return dns;
     }
 
 
-    public List<SimpleAttribute> getValuesInto( SimpleTypeGroup stg, Entry entry )
+    public Entry fetchEntryById( String id, ResourceSchema resourceSchema, RequestContext ctx )
     {
-        List<SimpleAttribute> lstAts = new ArrayList<SimpleAttribute>();
+        return fetchEntryById( id, resourceSchema, ctx, getRequestedAttributes( ctx, resourceSchema ) );
+    }
 
-        for ( SimpleType st : stg.getSubTypes() )
-        {
-            SimpleAttribute at = getValueForSimpleType( st, entry );
-            if ( at != null )
-            {
-                lstAts.add( at );
-            }
 
+    private String[] getRequestedAttributes( RequestContext ctx, ResourceSchema resourceSchema )
+    {
+        if ( ctx == null )
+        {
+            return ALL_ATTRIBUTES_ARRAY;
         }
 
-        return lstAts;
+        return getRequestedAttributes( ctx.getParamAttributes(), resourceSchema );
     }
 
 
-    public Entry fetchEntryByDn( String dn, RequestContext ctx )
+    /**
+     * Asks the server to send the entry with the requested attributes in the response of the update
+     */
+    private void requestPostRead( Message req, RequestContext ctx, ResourceSchema resourceSchema )
     {
-        try
+        if ( postReadSupported )
         {
-            LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+            req.addControl( PostReadControl.create( getRequestedAttributes( ctx, resourceSchema ) ) );
+        }
+    }
 
-            return conn.lookup( dn, ALL_ATTRIBUTES_ARRAY );
+
+    /**
+     * Gives the entry sent by the server in the response of the update, reads the entry again
+     * if the server didn't send it
+     */
+    private Entry getUpdatedEntry( Message resp, String id, ResourceSchema resourceSchema, RequestContext ctx )
+    {
+        Entry entry = null;
+
+        if ( resp != null )
+        {
+            entry = PostReadControl.getEntry( resp, ldapSchema );
         }
-        catch ( LdapException e )
+
+        if ( entry == null )
         {
-            LOG.debug( "Couldn't find the entry with dn {}", dn, e );
+            entry = fetchEntryById( id, resourceSchema, ctx );
         }
 
-        return null;
+        return entry;
     }
 
 
-    public Entry fetchEntryById( String id, ResourceSchema resourceSchema, RequestContext ctx )
+    /**
+     * Fetches the entry of the resource with the given ID, reading only the given attributes
+     */
+    public Entry fetchEntryById( String id, ResourceSchema resourceSchema, RequestContext ctx, String... attributes )
     {
         EntryCursor cursor = null;
 
@@ -1407,13 +4008,6 @@ public class LdapResourceProvider implements ResourceProvider
 
         Entry entry = null;
 
-        String[] attributes = ALL_ATTRIBUTES_ARRAY;
-
-        if ( ctx != null )
-        {
-            attributes = getRequestedAttributes( ctx.getParamAttributes(), resourceSchema );
-        }
-
         LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
 
         try
@@ -1431,7 +4025,10 @@ public class LdapResourceProvider implements ResourceProvider
         }
         finally
         {
-            cursor.close();
+            if ( cursor != null )
+            {
+                cursor.close();
+            }
         }
 
         return entry;
@@ -1493,6 +4090,135 @@ public class LdapResourceProvider implements ResourceProvider
         this.allowAuthorizedUsers = allowAuthorizedUsers;
     }
 
+    /**
+     * Records the deletes reported by a change monitor in the tombstone log
+     */
+    class TombstoneRecorder implements LdapChangeListener
+    {
+        private final String resourceType;
+
+        private final String idAtName;
+
+
+        TombstoneRecorder( String resourceType, String idAtName )
+        {
+            this.resourceType = resourceType;
+            this.idAtName = idAtName;
+        }
+
+
+        public void entryAdded( Entry entry )
+        {
+        }
+
+
+        public void entryModified( Entry entry )
+        {
+        }
+
+
+        public void entryDeleted( Entry entry )
+        {
+            Attribute idAt = entry.get( idAtName );
+
+            if ( idAt == null )
+            {
+                LOG.debug( "The deleted entry {} has no {} attribute", entry.getDn(), idAtName );
+                return;
+            }
+
+            try
+            {
+                String id = idAt.getString();
+                photoCache.invalidate( id );
+                tombstones.add( resourceType, id );
+            }
+            catch ( LdapException e )
+            {
+                LOG.debug( "Failed to read the ID of the deleted entry {}", entry.getDn(), e );
+            }
+        }
+
+
+        public void entryRenamed( Entry entry, String oldDn )
+        {
+        }
+
+
+        public void resync()
+        {
+            // the deletes made while the monitor was disconnected are unknown
+            tombstones.reset();
+        }
+    }
+
+
+    /**
+     * Removes the stale DN references of the groups that were deleted or renamed
+     * by other clients of the LDAP server.
+     */
+    class DnCacheInvalidator implements LdapChangeListener
+    {
+        public void entryAdded( Entry entry )
+        {
+        }
+
+
+        public void entryModified( Entry entry )
+        {
+        }
+
+
+        public void entryDeleted( Entry entry )
+        {
+            invalidate( entry.getDn().getName() );
+        }
+
+
+        public void entryRenamed( Entry entry, String oldDn )
+        {
+            invalidate( oldDn );
+        }
+
+
+        public void resync()
+        {
+            dnCache.clear();
+        }
+
+
+        private void invalidate( String dn )
+        {
+            if ( dn == null )
+            {
+                return;
+            }
+
+            try
+            {
+                dnCache.invalidate( new Dn( ldapSchema, dn ).getNormName() );
+            }
+            catch ( LdapException e )
+            {
+                LOG.debug( "Failed to normalize the DN {}", dn, e );
+            }
+        }
+    }
+
+    private static class CachedPhoto
+    {
+        private final String atName;
+
+        private final Photo photo;
+
+
+        private CachedPhoto( String atName, Photo photo )
+        {
+            this.atName = atName;
+            this.photo = photo;
+        }
+    }
+
     class ConnectionSession
     {
         private String userDn;
@@ -1519,8 +4245,7 @@ public class LdapResourceProvider implements ResourceProvider
 
     public ResourceSchema getResourceSchema( RequestContext ctx )
     {
-        // the path doesn't contain '/' in the beginning
-        String base = "/" + ctx.getUriInfo().getPath();
+        String base = ctx.getResourcePath();
 
         for ( ResourceSchema rs : resourceSchemas )
         {
@@ -1534,6 +4259,43 @@ public class LdapResourceProvider implements ResourceProvider
     }
 
 
+    /**
+     * @return the resource schema whose core schema is among the given schema URIs, null if there is none
+     */
+    ResourceSchema getResourceSchemaByUris( Collection<String> uris )
+    {
+        for ( ResourceSchema rs : resourceSchemas )
+        {
+            if ( uris.contains( rs.getSchemaIds().get( 0 ) ) )
+            {
+                return rs;
+            }
+        }
+
+        return null;
+    }
+
+
+    boolean isPostReadSupported()
+    {
+        return postReadSupported;
+    }
+
+
+    public ResourceSchema getResourceSchemaByName( String name )
+    {
+        for ( ResourceSchema rs : resourceSchemas )
+        {
+            if ( rs.getName().equalsIgnoreCase( name ) )
+            {
+                return rs;
+            }
+        }
+
+        return null;
+    }
+
+
     public List<String> getResourceUris()
     {
         List<String> uris = new ArrayList<String>();
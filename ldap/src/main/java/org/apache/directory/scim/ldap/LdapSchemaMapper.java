@@ -36,6 +36,7 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.scim.AttributeHandler;
 import org.apache.directory.scim.SchemaMapper;
+import org.apache.directory.scim.ldap.handlers.LdapAttributeHandler;
 import org.apache.directory.scim.ldap.schema.ComplexType;
 import org.apache.directory.scim.ldap.schema.MultiValType;
 import org.apache.directory.scim.ldap.schema.ResourceSchema;
@@ -444,19 +445,6 @@ public class LdapSchemaMapper implements SchemaMapper
             try
             {
                 handler = (AttributeHandler ) Class.forName( handlerClass ).newInstance();
-                
-                if(args != null)
-                {
-                    for( Element e : args )
-                    {
-                        String name = e.attributeValue( "name" );
-                        String value = e.attributeValue( "value" );
-                        
-                        Field f = handler.getClass().getDeclaredField( name );
-                        f.setAccessible( true );
-                        f.set( handler, value );
-                    }
-                }
             }
             catch( Exception e )
             {
@@ -464,6 +452,52 @@ public class LdapSchemaMapper implements SchemaMapper
             }
         }
 
+        if( handler == null )
+        {
+            return null;
+        }
+        
+        // a referred handler instance is shared by all the attributes referring it,
+        // an attribute with its own arguments gets a new instance of the handler
+        boolean hasArgs = ( args != null ) && !args.isEmpty();
+        
+        if( hasArgs && Strings.isEmpty( handlerClass ) )
+        {
+            try
+            {
+                handler = handler.getClass().newInstance();
+            }
+            catch( Exception e )
+            {
+                throw new RuntimeException( "Failed to create handler for the attribute " + elmAttribute.asXML() , e );
+            }
+        }
+        
+        try
+        {
+            if( hasArgs )
+            {
+                for( Element e : args )
+                {
+                    String name = e.attributeValue( "name" );
+                    String value = e.attributeValue( "value" );
+                    
+                    Field f = handler.getClass().getDeclaredField( name );
+                    f.setAccessible( true );
+                    f.set( handler, value );
+                }
+            }
+        }
+        catch( Exception e )
+        {
+            throw new RuntimeException( "Failed to set the arguments of the handler for the attribute " + elmAttribute.asXML() , e );
+        }
+
+        if( handler instanceof LdapAttributeHandler )
+        {
+            ( ( LdapAttributeHandler ) handler ).init();
+        }
+
         return handler;
     }
 
@@ -20,12 +20,14 @@
 package org.apache.directory.scim.ldap;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.StringValue;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
@@ -36,6 +38,7 @@ import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.filter.SubstringNode;
 import org.apache.directory.api.ldap.model.message.ModifyRequest;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.SyntaxChecker;
@@ -43,7 +46,9 @@ import org.apache.directory.api.ldap.model.schema.syntaxCheckers.GeneralizedTime
 import org.apache.directory.api.util.Base64;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.scim.AttributeHandler;
+import org.apache.directory.scim.PatchOperation;
 import org.apache.directory.scim.RequestContext;
+import org.apache.directory.scim.ldap.handlers.LdapAttributeHandler;
 import org.apache.directory.scim.ldap.schema.ComplexType;
 import org.apache.directory.scim.ldap.schema.MultiValType;
 import org.apache.directory.scim.ldap.schema.ResourceSchema;
@@ -52,6 +57,7 @@ import org.apache.directory.scim.ldap.schema.SimpleTypeGroup;
 import org.apache.directory.scim.schema.BaseType;
 import org.apache.directory.scim.search.BranchNode;
 import org.apache.directory.scim.search.FilterNode;
+import org.apache.directory.scim.search.Operator;
 import org.apache.directory.scim.search.TerminalNode;
 import org.apache.directory.scim.util.ResourceUtil;
 import org.slf4j.Logger;
@@ -69,6 +75,15 @@ import com.google.gson.JsonObject;
 public class LdapUtil
 {
     private static final Logger LOG = LoggerFactory.getLogger( LdapUtil.class );
+
+    /** OID of the Permissive Modify control, the server ignores adding existing values and deleting missing values */
+    public static final String PERMISSIVE_MODIFY_OID = "1.2.840.113556.1.4.1413";
+
+    /** OID of the Assertion control, the server performs the operation only if the entry matches the filter */
+    public static final String ASSERTION_OID = "1.3.6.1.1.12";
+
+    /** the result code sent by the server when the assertion failed */
+    public static final int ASSERTION_FAILED = 122;
     
     public static void scimToLdapAttribute( BaseType bt, JsonElement el, Entry entry, RequestContext ctx ) throws LdapException
     {
@@ -223,6 +238,426 @@ public class LdapUtil
     }
 
     
+    /**
+     * Adds the modifications of the given RFC 7644 PATCH operation to the modify request.
+     * 
+     * Value filters are supported on the value sub-attribute, the only sub-attribute of the
+     * multi-valued attributes that can be matched without reading all their values, e.x
+     * <code>members[value eq "x" or value eq "y"]</code>
+     */
+    public static void applyPatchOperation( PatchOperation op, Entry existingEntry, RequestContext ctx, ResourceSchema resourceSchema, ModifyRequest modReq ) throws Exception
+    {
+        if( op.getAttribute() == null )
+        {
+            // the value holds the attributes and their values
+            JsonObject values = flattenAttributes( op.getValue().getAsJsonObject() );
+            
+            if( op.getType() == PatchOperation.Type.ADD )
+            {
+                patchAttributes( existingEntry, values, ctx, resourceSchema, modReq );
+            }
+            else
+            {
+                for( java.util.Map.Entry<String, JsonElement> e : values.entrySet() )
+                {
+                    BaseType bt = getWritableType( e.getKey(), resourceSchema );
+                    
+                    if( bt != null )
+                    {
+                        replaceAttribute( bt, e.getValue(), existingEntry, ctx, modReq );
+                    }
+                }
+            }
+            
+            return;
+        }
+        
+        BaseType bt = getWritableType( op.getAttribute(), resourceSchema );
+        
+        if( bt == null )
+        {
+            return;
+        }
+        
+        SimpleType subType = null;
+        
+        if( op.getSubAttribute() != null )
+        {
+            SimpleTypeGroup stg = getAtGroup( bt );
+            
+            if( stg != null )
+            {
+                subType = stg.getType( op.getSubAttribute() );
+            }
+            
+            if( subType == null )
+            {
+                throw new IllegalArgumentException( "Unknown sub-attribute " + op.getSubAttribute() + " of the attribute " + op.getAttribute() );
+            }
+        }
+        
+        List<String> filterValues = null;
+        
+        if( op.getValueFilter() != null )
+        {
+            if( !( bt instanceof MultiValType ) )
+            {
+                throw new IllegalArgumentException( "Value filters can only be applied on multi-valued attributes, invalid path for " + op.getAttribute() );
+            }
+            
+            filterValues = new ArrayList<String>();
+            collectFilterValues( op.getValueFilter(), filterValues );
+        }
+        
+        AttributeHandler handler = bt.getHandler();
+        
+        switch( op.getType() )
+        {
+            case ADD:
+                if( filterValues != null )
+                {
+                    throw new IllegalArgumentException( "The add operation doesn't support value filters" );
+                }
+                
+                if( subType != null )
+                {
+                    if( bt instanceof ComplexType )
+                    {
+                        // a single-valued sub-attribute gets replaced
+                        replaceValues( subType, Collections.singletonList( op.getValue() ), ctx, modReq );
+                    }
+                    else
+                    {
+                        JsonObject element = new JsonObject();
+                        element.add( subType.getName(), op.getValue() );
+                        patchAttribute( bt, toArray( element ), existingEntry, ctx, modReq );
+                    }
+                }
+                else if( ( bt instanceof SimpleType ) || ( bt instanceof ComplexType ) )
+                {
+                    // adding a value to a single-valued attribute replaces the existing value
+                    replaceAttribute( bt, op.getValue(), existingEntry, ctx, modReq );
+                }
+                else
+                {
+                    patchAttribute( bt, toArray( op.getValue() ), existingEntry, ctx, modReq );
+                }
+                
+                break;
+                
+            case REMOVE:
+                if( filterValues != null )
+                {
+                    removeValues( bt, filterValues, existingEntry, ctx, modReq );
+                }
+                else if( subType != null )
+                {
+                    deleteAttribute( subType, existingEntry, modReq );
+                }
+                else if( handler != null )
+                {
+                    handler.deleteAttribute( bt, existingEntry, ctx, modReq );
+                }
+                else
+                {
+                    deleteAttribute( bt, existingEntry, modReq );
+                }
+                
+                break;
+                
+            case REPLACE:
+                if( filterValues != null )
+                {
+                    JsonElement newValue = op.getValue();
+                    
+                    if( subType != null )
+                    {
+                        JsonObject element = new JsonObject();
+                        element.add( subType.getName(), newValue );
+                        newValue = element;
+                    }
+                    
+                    removeValues( bt, filterValues, existingEntry, ctx, modReq );
+                    patchAttribute( bt, toArray( newValue ), existingEntry, ctx, modReq );
+                }
+                else if( subType != null )
+                {
+                    replaceValues( subType, Collections.singletonList( op.getValue() ), ctx, modReq );
+                }
+                else
+                {
+                    replaceAttribute( bt, op.getValue(), existingEntry, ctx, modReq );
+                }
+                
+                break;
+        }
+    }
+    
+    
+    /**
+     * Replaces all the values of the LDAP attributes the given SCIM attribute is mapped to.
+     * The sub-attributes of a complex attribute that are not present in the value are left unchanged.
+     */
+    public static void replaceLdapAttribute( BaseType bt, JsonElement el, RequestContext ctx, ModifyRequest modReq ) throws LdapException
+    {
+        if( bt.isReadOnly() )
+        {
+            return;
+        }
+        
+        if( bt instanceof SimpleType )
+        {
+            replaceValues( ( SimpleType ) bt, Collections.singletonList( el ), ctx, modReq );
+        }
+        else if( bt instanceof ComplexType )
+        {
+            JsonObject jo = el.getAsJsonObject();
+            
+            for( SimpleType st : ( ( ComplexType ) bt ).getAtGroup().getSubTypes() )
+            {
+                JsonElement subEl = jo.get( st.getName() );
+                
+                if( subEl != null )
+                {
+                    replaceValues( st, Collections.singletonList( subEl ), ctx, modReq );
+                }
+            }
+        }
+        else if( bt instanceof MultiValType )
+        {
+            SimpleTypeGroup stg = ( ( MultiValType ) bt ).getAtGroup();
+            
+            if( stg == null )
+            {
+                return;
+            }
+            
+            JsonArray array = toArray( el );
+            
+            for( SimpleType st : stg.getSubTypes() )
+            {
+                List<JsonElement> values = new ArrayList<JsonElement>();
+                
+                for( JsonElement je : array )
+                {
+                    if( je.isJsonPrimitive() )
+                    {
+                        if( st == stg.getValueType() )
+                        {
+                            values.add( je );
+                        }
+                    }
+                    else if( je.getAsJsonObject().has( st.getName() ) )
+                    {
+                        values.add( je.getAsJsonObject().get( st.getName() ) );
+                    }
+                }
+                
+                // all the values get replaced, an empty list removes the attribute
+                replaceValues( st, values, ctx, modReq );
+            }
+        }
+    }
+    
+    
+    private static void replaceValues( SimpleType st, List<JsonElement> values, RequestContext ctx, ModifyRequest modReq ) throws LdapException
+    {
+        if( st.isReadOnly() || Strings.isEmpty( st.getMappedTo() ) )
+        {
+            return;
+        }
+        
+        SchemaManager ldapSchema = ( ( LdapResourceProvider ) ctx.getProviderService() ).getLdapSchema();
+        
+        AttributeType ldapType = ldapSchema.getAttributeType( st.getMappedTo() );
+        
+        Attribute ldapAt = new DefaultAttribute( ldapType );
+        
+        for( JsonElement el : values )
+        {
+            if( el.isJsonNull() )
+            {
+                continue;
+            }
+            
+            if( !ldapType.getSyntax().isHumanReadable() )
+            {
+                ldapAt.add( Base64.decode( el.getAsString().toCharArray() ) );
+            }
+            else
+            {
+                ldapAt.add( el.getAsString() );
+            }
+        }
+        
+        modReq.replace( ldapAt );
+    }
+    
+    
+    private static void replaceAttribute( BaseType bt, JsonElement el, Entry existingEntry, RequestContext ctx, ModifyRequest modReq ) throws Exception
+    {
+        AttributeHandler handler = bt.getHandler();
+        
+        if( handler instanceof LdapAttributeHandler )
+        {
+            ( ( LdapAttributeHandler ) handler ).replace( bt, el, existingEntry, ctx, modReq );
+        }
+        else
+        {
+            replaceLdapAttribute( bt, el, ctx, modReq );
+        }
+    }
+    
+    
+    private static void patchAttribute( BaseType bt, JsonElement el, Entry existingEntry, RequestContext ctx, ModifyRequest modReq ) throws Exception
+    {
+        AttributeHandler handler = bt.getHandler();
+        
+        if( handler != null )
+        {
+            handler.patch( bt, el, existingEntry, ctx, modReq );
+        }
+        else
+        {
+            patchLdapAttribute( bt, el, existingEntry, ctx, modReq );
+        }
+    }
+    
+    
+    /**
+     * Removes the given values of a multi-valued attribute using the delete marker of the
+     * legacy PATCH format understood by the handlers
+     */
+    private static void removeValues( BaseType bt, List<String> values, Entry existingEntry, RequestContext ctx, ModifyRequest modReq ) throws Exception
+    {
+        JsonArray array = new JsonArray();
+        
+        for( String v : values )
+        {
+            JsonObject element = new JsonObject();
+            element.addProperty( "value", v );
+            element.addProperty( "operation", "delete" );
+            array.add( element );
+        }
+        
+        patchAttribute( bt, array, existingEntry, ctx, modReq );
+    }
+    
+    
+    private static void collectFilterValues( FilterNode node, List<String> values )
+    {
+        if( node instanceof TerminalNode )
+        {
+            TerminalNode tn = ( TerminalNode ) node;
+            
+            if( ( tn.getOperator() != Operator.EQ ) || !"value".equals( tn.getAttribute() ) )
+            {
+                throw new IllegalArgumentException( "Unsupported value filter " + tn + ", only 'value eq' filters joined with 'or' are supported" );
+            }
+            
+            values.add( tn.getValue() );
+        }
+        else if( ( node instanceof BranchNode ) && ( node.getOperator() == Operator.OR ) )
+        {
+            BranchNode bn = ( BranchNode ) node;
+            collectFilterValues( bn.getLeftNode(), values );
+            
+            if( bn.getRightNode() != null )
+            {
+                collectFilterValues( bn.getRightNode(), values );
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Unsupported value filter " + node + ", only 'value eq' filters joined with 'or' are supported" );
+        }
+    }
+    
+    
+    /**
+     * @return the type of the attribute with the given name, null if the attribute is read-only
+     * @throws IllegalArgumentException if the attribute is unknown
+     */
+    private static BaseType getWritableType( String name, ResourceSchema resourceSchema )
+    {
+        BaseType bt = resourceSchema.getAttribute( name );
+        
+        if( bt == null )
+        {
+            throw new IllegalArgumentException( "Unknown attribute name "  + name + " is present in the PATCH request that has no corresponding mapping in the escimo-ldap-mapping.xml file" );
+        }
+        
+        if( bt.isReadOnly() )
+        {
+            return null;
+        }
+        
+        return bt;
+    }
+    
+    
+    private static SimpleTypeGroup getAtGroup( BaseType bt )
+    {
+        if( bt instanceof ComplexType )
+        {
+            return ( ( ComplexType ) bt ).getAtGroup();
+        }
+        else if( bt instanceof MultiValType )
+        {
+            return ( ( MultiValType ) bt ).getAtGroup();
+        }
+        
+        return null;
+    }
+    
+    
+    private static JsonArray toArray( JsonElement el )
+    {
+        if( el.isJsonArray() )
+        {
+            return el.getAsJsonArray();
+        }
+        
+        JsonArray array = new JsonArray();
+        array.add( el );
+        
+        return array;
+    }
+    
+    
+    /**
+     * Moves the attributes nested under the schema URIs of the extensions to the top level
+     */
+    public static JsonObject flattenAttributes( JsonObject obj )
+    {
+        JsonObject flat = new JsonObject();
+        
+        for( java.util.Map.Entry<String, JsonElement> e : obj.entrySet() )
+        {
+            String name = e.getKey();
+            
+            if( "schemas".equals( name ) )
+            {
+                continue;
+            }
+            
+            if( name.startsWith( "urn:" ) && e.getValue().isJsonObject() )
+            {
+                for( java.util.Map.Entry<String, JsonElement> ext : e.getValue().getAsJsonObject().entrySet() )
+                {
+                    flat.add( ext.getKey(), ext.getValue() );
+                }
+            }
+            else
+            {
+                flat.add( name, e.getValue() );
+            }
+        }
+        
+        return flat;
+    }
+    
+    
     public static void patchLdapAttribute( BaseType bt, JsonElement el, Entry entry, RequestContext ctx, ModifyRequest modReq ) throws LdapException
     {
         if( bt.isReadOnly() )
@@ -338,7 +773,7 @@ public class LdapUtil
             {
                 modReq.remove( ldapAtName, value );
             }
-            else if( !entry.contains( ldapType, value ) )
+            else if( isPermissive( modReq ) || !entry.contains( ldapType, value ) )
             {
                 modReq.add( ldapAtName, value );
             }
@@ -351,7 +786,7 @@ public class LdapUtil
             {
                 modReq.remove( ldapAtName, value );
             }
-            else if( !entry.contains( ldapType, value ) )
+            else if( isPermissive( modReq ) || !entry.contains( ldapType, value ) )
             {
                 modReq.add( ldapAtName, value );
             }
@@ -405,11 +840,7 @@ public class LdapUtil
                 
                 if( !Strings.isEmpty( name ) )
                 {
-                    Attribute ldapAt = existingEntry.get( name );
-                    if( ldapAt != null )
-                    {
-                        modReq.remove( ldapAt );
-                    }
+                    removeAttribute( name, existingEntry, modReq );
                 }
             }
 
@@ -422,12 +853,109 @@ public class LdapUtil
         
         if( !Strings.isEmpty( name ) )
         {
-            Attribute ldapAt = existingEntry.get( name );
-            if( ldapAt != null )
+            removeAttribute( name, existingEntry, modReq );
+        }
+    }
+    
+    
+    private static void removeAttribute( String name, Entry existingEntry, ModifyRequest modReq )
+    {
+        if( isPermissive( modReq ) )
+        {
+            // the existing entry wasn't fetched with all the attributes, remove all the values
+            // without knowing them, the server ignores it if the attribute is not present
+            modReq.remove( new DefaultAttribute( name ) );
+            return;
+        }
+        
+        Attribute ldapAt = existingEntry.get( name );
+        if( ldapAt != null )
+        {
+            modReq.remove( ldapAt );
+        }
+    }
+    
+    
+    /**
+     * @return true if the given modify request carries the Permissive Modify control
+     */
+    public static boolean isPermissive( ModifyRequest modReq )
+    {
+        return modReq.hasControl( PERMISSIVE_MODIFY_OID );
+    }
+    
+    
+    /**
+     * Adds the modifications needed for turning the existing attribute into the new attribute.
+     * The values are compared using the equality matching rule of the attribute type, nothing
+     * is added if both hold the same values. Only the changed values are sent when they are fewer
+     * than the new values, otherwise all the values are replaced.
+     * 
+     * @param existingAt the attribute present in the entry, can be null
+     * @param newAt the attribute with the new values, can be null
+     * @param modReq the modify request
+     */
+    public static void diffAttribute( Attribute existingAt, Attribute newAt, ModifyRequest modReq ) throws LdapException
+    {
+        if( existingAt == null )
+        {
+            if( newAt != null )
+            {
+                modReq.add( newAt );
+            }
+            
+            return;
+        }
+        
+        if( newAt == null )
+        {
+            modReq.remove( existingAt );
+            return;
+        }
+        
+        Attribute toAdd = new DefaultAttribute( newAt.getAttributeType() );
+        
+        for( Value<?> v : newAt )
+        {
+            if( !existingAt.contains( v ) )
             {
-                modReq.remove( ldapAt );
+                toAdd.add( v );
             }
         }
+        
+        Attribute toRemove = new DefaultAttribute( existingAt.getAttributeType() );
+        
+        for( Value<?> v : existingAt )
+        {
+            if( !newAt.contains( v ) )
+            {
+                toRemove.add( v );
+            }
+        }
+        
+        int changes = toAdd.size() + toRemove.size();
+        
+        if( changes == 0 )
+        {
+            return;
+        }
+        
+        if( changes < newAt.size() )
+        {
+            if( toRemove.size() > 0 )
+            {
+                modReq.remove( toRemove );
+            }
+            
+            if( toAdd.size() > 0 )
+            {
+                modReq.add( toAdd );
+            }
+        }
+        else
+        {
+            modReq.replace( newAt );
+        }
     }
     
     
@@ -542,4 +1070,71 @@ public class LdapUtil
         return ldapFilter;
     }
 
+
+    /**
+     * Escapes the given value as per RFC 4515 so that it can be placed in a filter string
+     */
+    public static void escapeFilterValue( String value, StringBuilder sb )
+    {
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+
+            switch ( c )
+            {
+                case '*':
+                    sb.append( "\\2a" );
+                    break;
+
+                case '(':
+                    sb.append( "\\28" );
+                    break;
+
+                case ')':
+                    sb.append( "\\29" );
+                    break;
+
+                case '\\':
+                    sb.append( "\\5c" );
+                    break;
+
+                case '\0':
+                    sb.append( "\\00" );
+                    break;
+
+                default:
+                    sb.append( c );
+            }
+        }
+    }
+
+
+    /**
+     * Escapes all the bytes of the given binary value so that it can be placed in a filter string
+     */
+    public static void escapeFilterValue( byte[] value, StringBuilder sb )
+    {
+        for ( byte b : value )
+        {
+            sb.append( '\\' );
+            sb.append( Character.forDigit( ( b >> 4 ) & 0x0F, 16 ) );
+            sb.append( Character.forDigit( b & 0x0F, 16 ) );
+        }
+    }
+
+
+    /**
+     * Creates an Assertion control asserting that the given attribute of the entry holds
+     * one of the given values.
+     * 
+     * The control's value is the BER encoded filter, an equalityMatch filter or an or filter
+     * of equalityMatch filters when there are several values.
+     */
+    public static OpaqueControl createAssertionControl( String atName, List<String> values )
+    {
+        OpaqueControl control = new OpaqueControl( ASSERTION_OID, true );
+        control.setEncodedValue( Ber.encodeEqualityFilter( atName, values ) );
+
+        return control;
+    }
 }
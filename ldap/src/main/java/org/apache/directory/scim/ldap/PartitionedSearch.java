@@ -0,0 +1,597 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs a subtree search as concurrent searches, one per immediate child of the base DN,
+ * on a pool of connections and merges their results into a single stream.
+ * 
+ * The children of a base DN are learnt with a one level search and refreshed once they
+ * are older than the refresh interval. The base entry itself is searched with the base
+ * scope, so the partitions together cover the whole subtree.
+ * 
+ * The entries are streamed as they arrive unless ordering is enabled, in which case the
+ * entries of a partition are returned together and the partitions in the order of their DNs.
+ * With deduplication enabled an entry returned by more than one partition, e.x. through a
+ * moved entry, is returned once.
+ *
+ * A bounded number of entries is buffered per partition, or per search when unordered,
+ * a partition waits for the reader of the stream once its buffer is full. As the partitions
+ * of a search are started in their order, the partition being read is always running.
+ *
+ * The pooled connections are bound with the provider's credentials, the partitioned
+ * search must not be used for the requests of the authenticated users.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionedSearch
+{
+    private static final Logger LOG = LoggerFactory.getLogger( PartitionedSearch.class );
+
+    /** the maximum number of entries buffered per queue of a stream */
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /** marks the end of the entries of a partition */
+    private static final Object END = new Object();
+
+    private final LdapConnectionConfig config;
+
+    private final SchemaManager ldapSchema;
+
+    private final long refreshInterval;
+
+    private final boolean ordered;
+
+    private final boolean dedup;
+
+    /** limits the number of connections in use */
+    private final Semaphore permits;
+
+    private final BlockingQueue<LdapConnection> idle = new LinkedBlockingQueue<LdapConnection>();
+
+    private final ExecutorService executor;
+
+    /** the children of the base DNs keyed by the normalized base DN */
+    private final Map<String, Partitions> partitionMap = new ConcurrentHashMap<String, Partitions>();
+
+
+    /**
+     * @param config the configuration of the pooled connections
+     * @param ldapSchema the schema of the LDAP server
+     * @param poolSize the maximum number of concurrent searches
+     * @param refreshInterval the number of milliseconds after which the children of a base DN are fetched again
+     * @param ordered true to return the entries partition by partition
+     * @param dedup true to drop the entries already returned by another partition
+     */
+    public PartitionedSearch( LdapConnectionConfig config, SchemaManager ldapSchema, int poolSize,
+        long refreshInterval, boolean ordered, boolean dedup )
+    {
+        this.config = config;
+        this.ldapSchema = ldapSchema;
+        this.refreshInterval = refreshInterval;
+        this.ordered = ordered;
+        this.dedup = dedup;
+
+        permits = new Semaphore( poolSize );
+
+        executor = Executors.newFixedThreadPool( poolSize, new ThreadFactory()
+        {
+            private AtomicInteger count = new AtomicInteger();
+
+
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "escimo-partition-" + count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+
+    /**
+     * Starts searching all the partitions of the given base DN
+     * 
+     * @param baseDn the base DN of the subtree
+     * @param filter the filter of the search
+     * @param attributes the attributes to be returned
+     * @return the stream of the merged results
+     */
+    public EntryStream search( Dn baseDn, ExprNode filter, String[] attributes ) throws Exception
+    {
+        List<Dn> children = getPartitions( baseDn );
+
+        // the base entry first, then the subtrees of the children
+        List<Dn> bases = new ArrayList<Dn>( children.size() + 1 );
+        bases.add( baseDn );
+        bases.addAll( children );
+
+        MergedStream stream = new MergedStream( bases.size() );
+
+        for ( int i = 0; i < bases.size(); i++ )
+        {
+            SearchRequest sr = new SearchRequestImpl();
+            sr.setBase( bases.get( i ) );
+            sr.setFilter( filter );
+            sr.setScope( ( i == 0 ) ? SearchScope.OBJECT : SearchScope.SUBTREE );
+            sr.addAttributes( attributes );
+
+            stream.futures.add( executor.submit( new PartitionTask( baseDn, sr, stream, i ) ) );
+        }
+
+        return stream;
+    }
+
+
+    public void stop()
+    {
+        executor.shutdownNow();
+
+        LdapConnection conn;
+
+        while ( ( conn = idle.poll() ) != null )
+        {
+            close( conn );
+        }
+    }
+
+
+    /**
+     * @return the immediate children of the given DN ordered by their normalized DNs
+     */
+    List<Dn> getPartitions( Dn baseDn ) throws Exception
+    {
+        String key = baseDn.getNormName();
+
+        Partitions p = partitionMap.get( key );
+
+        if ( ( p != null ) && ( ( System.currentTimeMillis() - p.loadedAt ) < refreshInterval ) )
+        {
+            return p.children;
+        }
+
+        List<Dn> children = new ArrayList<Dn>();
+
+        LdapConnection conn = borrow();
+        boolean broken = true;
+
+        try
+        {
+            SearchRequest sr = new SearchRequestImpl();
+            sr.setBase( baseDn );
+            sr.setFilter( new PresenceNode( SchemaConstants.OBJECT_CLASS_AT ) );
+            sr.setScope( SearchScope.ONELEVEL );
+            sr.addAttributes( SchemaConstants.NO_ATTRIBUTE );
+
+            SearchCursor cursor = conn.search( sr );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    if ( cursor.isEntry() )
+                    {
+                        children.add( cursor.getEntry().getDn() );
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            broken = false;
+        }
+        finally
+        {
+            release( conn, broken );
+        }
+
+        Collections.sort( children, new Comparator<Dn>()
+        {
+            public int compare( Dn dn1, Dn dn2 )
+            {
+                return dn1.getNormName().compareTo( dn2.getNormName() );
+            }
+        } );
+
+        LOG.debug( "Found {} partitions under {}", children.size(), baseDn );
+
+        partitionMap.put( key, new Partitions( children ) );
+
+        return children;
+    }
+
+
+    /**
+     * Forgets the partitions of the given base DN, they are fetched again by the next search
+     */
+    void invalidate( Dn baseDn )
+    {
+        partitionMap.remove( baseDn.getNormName() );
+    }
+
+
+    private LdapConnection borrow() throws Exception
+    {
+        permits.acquire();
+
+        try
+        {
+            LdapConnection conn = idle.poll();
+
+            if ( ( conn != null ) && conn.isConnected() )
+            {
+                return conn;
+            }
+
+            if ( conn != null )
+            {
+                close( conn );
+            }
+
+            LdapNetworkConnection newConn = new LdapNetworkConnection( config );
+            newConn.bind();
+            newConn.setSchemaManager( ldapSchema );
+
+            return newConn;
+        }
+        catch ( Exception e )
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * @param broken true if the connection failed and must not be reused
+     */
+    private void release( LdapConnection conn, boolean broken )
+    {
+        if ( broken )
+        {
+            close( conn );
+        }
+        else
+        {
+            idle.offer( conn );
+        }
+
+        permits.release();
+    }
+
+
+    private static void close( LdapConnection conn )
+    {
+        try
+        {
+            conn.close();
+        }
+        catch ( Exception e )
+        {
+            LOG.debug( "Failed to close a pooled connection", e );
+        }
+    }
+
+
+    /**
+     * The children of a base DN and the time they were fetched
+     */
+    private static class Partitions
+    {
+        private final List<Dn> children;
+
+        private final long loadedAt = System.currentTimeMillis();
+
+
+        private Partitions( List<Dn> children )
+        {
+            this.children = Collections.unmodifiableList( children );
+        }
+    }
+
+
+    /**
+     * Searches a single partition and feeds its entries to the merged stream
+     */
+    private class PartitionTask implements Runnable
+    {
+        private final Dn baseDn;
+
+        private final SearchRequest sr;
+
+        private final MergedStream stream;
+
+        private final int index;
+
+
+        private PartitionTask( Dn baseDn, SearchRequest sr, MergedStream stream, int index )
+        {
+            this.baseDn = baseDn;
+            this.sr = sr;
+            this.stream = stream;
+            this.index = index;
+        }
+
+
+        public void run()
+        {
+            Object result = END;
+
+            LdapConnection conn = null;
+            boolean broken = true;
+
+            try
+            {
+                if ( stream.closed )
+                {
+                    return;
+                }
+
+                conn = borrow();
+
+                SearchCursor cursor = conn.search( sr );
+
+                try
+                {
+                    while ( !stream.closed && cursor.next() )
+                    {
+                        if ( cursor.isEntry() )
+                        {
+                            stream.add( index, cursor.getEntry() );
+                        }
+                    }
+
+                    SearchResultDone done = cursor.getSearchResultDone();
+
+                    if ( ( done != null ) && !stream.closed )
+                    {
+                        ResultCodeEnum code = done.getLdapResult().getResultCode();
+
+                        if ( code == ResultCodeEnum.NO_SUCH_OBJECT )
+                        {
+                            throw new LdapNoSuchObjectException( done.getLdapResult().getDiagnosticMessage() );
+                        }
+                        else if ( code != ResultCodeEnum.SUCCESS )
+                        {
+                            // e.x. a size or time limit, the partition is incomplete
+                            throw new LdapException( "The search of the partition " + sr.getBase() + " failed with "
+                                + code + " : " + done.getLdapResult().getDiagnosticMessage() );
+                        }
+                    }
+                }
+                finally
+                {
+                    cursor.close();
+                }
+
+                broken = false;
+            }
+            catch ( LdapNoSuchObjectException e )
+            {
+                // the child was removed since the partitions were fetched
+                LOG.debug( "The partition {} doesn't exist anymore", sr.getBase() );
+                invalidate( baseDn );
+                broken = false;
+            }
+            catch ( Exception e )
+            {
+                if ( !stream.closed )
+                {
+                    LOG.warn( "Failed to search the partition {}", sr.getBase(), e );
+                }
+
+                result = e;
+            }
+            finally
+            {
+                if ( conn != null )
+                {
+                    release( conn, broken );
+                }
+
+                stream.end( index, result );
+            }
+        }
+    }
+
+
+    /**
+     * The stream merging the entries of all the partitions of a search
+     */
+    private class MergedStream implements EntryStream
+    {
+        /** a queue per partition if ordered, a single queue otherwise */
+        private final List<BlockingQueue<Object>> queues;
+
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        /** the entryUUIDs of the entries returned so far */
+        private final Set<String> seen;
+
+        /** the number of partitions not finished yet */
+        private int remaining;
+
+        /** the partition being read, if ordered */
+        private int current;
+
+        private Entry entry;
+
+        private volatile boolean closed;
+
+
+        private MergedStream( int partitions )
+        {
+            remaining = partitions;
+
+            int count = ordered ? partitions : 1;
+
+            queues = new ArrayList<BlockingQueue<Object>>( count );
+
+            for ( int i = 0; i < count; i++ )
+            {
+                queues.add( new ArrayBlockingQueue<Object>( QUEUE_CAPACITY ) );
+            }
+
+            seen = dedup ? Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() ) : null;
+        }
+
+
+        private void add( int partition, Entry e ) throws InterruptedException
+        {
+            if ( seen != null )
+            {
+                Attribute uuid = e.get( SchemaConstants.ENTRY_UUID_AT );
+                String key = ( uuid != null ) ? uuid.get().getString() : e.getDn().getNormName();
+
+                if ( !seen.add( key ) )
+                {
+                    return;
+                }
+            }
+
+            put( queues.get( ordered ? partition : 0 ), e );
+        }
+
+
+        private void end( int partition, Object result )
+        {
+            try
+            {
+                put( queues.get( ordered ? partition : 0 ), result );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        /**
+         * Waits for room in the queue, gives up once the stream is closed
+         */
+        private void put( BlockingQueue<Object> queue, Object o ) throws InterruptedException
+        {
+            while ( !closed )
+            {
+                if ( queue.offer( o, 100, TimeUnit.MILLISECONDS ) )
+                {
+                    return;
+                }
+            }
+        }
+
+
+        public boolean next() throws Exception
+        {
+            while ( remaining > 0 )
+            {
+                Object o = queues.get( current ).take();
+
+                if ( o instanceof Entry )
+                {
+                    entry = ( Entry ) o;
+                    return true;
+                }
+
+                remaining--;
+
+                if ( ordered )
+                {
+                    current++;
+                }
+
+                if ( o instanceof Exception )
+                {
+                    close();
+                    throw ( Exception ) o;
+                }
+            }
+
+            entry = null;
+
+            return false;
+        }
+
+
+        public Entry getEntry()
+        {
+            return entry;
+        }
+
+
+        public void close()
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            closed = true;
+
+            for ( Future<?> f : futures )
+            {
+                f.cancel( false );
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.codec.api.CodecControl;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.Message;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Support for the Post-Read control (RFC 4527), with this control the server returns
+ * the target entry as it is after the update in the response of the update operation.
+ *
+ * The LDAP API has no codec for this control, the request value is encoded and the
+ * response value is decoded here.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PostReadControl
+{
+    private static final Logger LOG = LoggerFactory.getLogger( PostReadControl.class );
+
+    /** OID of the Post-Read control */
+    public static final String OID = "1.3.6.1.1.13.2";
+
+
+    private PostReadControl()
+    {
+    }
+
+
+    /**
+     * Creates a Post-Read control requesting the given attributes of the updated entry
+     */
+    public static OpaqueControl create( String... attributes )
+    {
+        // AttributeSelection ::= SEQUENCE OF selector LDAPString
+        ByteArrayOutputStream selectors = new ByteArrayOutputStream();
+
+        for ( String at : attributes )
+        {
+            byte[] selector = Ber.encodeTlv( Ber.OCTET_STRING_TAG, Strings.getBytesUtf8( at ) );
+            selectors.write( selector, 0, selector.length );
+        }
+
+        byte[] value = Ber.encodeTlv( Ber.SEQUENCE_TAG, selectors.toByteArray() );
+
+        // not critical, the update must not fail if the server can't read the entry,
+        // the caller reads it again instead
+        OpaqueControl control = new OpaqueControl( OID, false );
+        control.setEncodedValue( value );
+
+        return control;
+    }
+
+
+    /**
+     * Gives the entry returned in the Post-Read control of the given response
+     *
+     * @return the entry, null if the response doesn't have the control or if its value can't be decoded
+     */
+    public static Entry getEntry( Message response, SchemaManager schemaManager )
+    {
+        Object control = response.getControl( OID );
+
+        byte[] value = null;
+
+        if ( control instanceof CodecControl )
+        {
+            value = ( ( CodecControl<?> ) control ).getValue();
+        }
+        else if ( control instanceof OpaqueControl )
+        {
+            value = ( ( OpaqueControl ) control ).getEncodedValue();
+        }
+
+        if ( value == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return decodeEntry( value, schemaManager );
+        }
+        catch ( Exception e )
+        {
+            LOG.debug( "Failed to decode the entry of the Post-Read control", e );
+            return null;
+        }
+    }
+
+
+    private static Entry decodeEntry( byte[] data, SchemaManager schemaManager ) throws Exception
+    {
+        Map<String, List<byte[]>> attributes = new LinkedHashMap<String, List<byte[]>>();
+
+        String dn = Ber.decodeSearchResultEntry( data, attributes );
+
+        Entry entry = new DefaultEntry( schemaManager, dn );
+
+        for ( Map.Entry<String, List<byte[]>> e : attributes.entrySet() )
+        {
+            String type = e.getKey();
+
+            boolean binary = isBinary( type, schemaManager );
+
+            for ( byte[] val : e.getValue() )
+            {
+                if ( binary )
+                {
+                    entry.add( type, val );
+                }
+                else
+                {
+                    entry.add( type, Strings.utf8ToString( val ) );
+                }
+            }
+        }
+
+        return entry;
+    }
+
+
+    private static boolean isBinary( String type, SchemaManager schemaManager )
+    {
+        int pos = type.indexOf( ';' );
+
+        if ( pos > 0 )
+        {
+            type = type.substring( 0, pos );
+        }
+
+        AttributeType at = schemaManager.getAttributeType( type );
+
+        return ( at != null ) && ( at.getSyntax() != null ) && !at.getSyntax().isHumanReadable();
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import java.text.ParseException;
+
+import org.apache.directory.api.util.GeneralizedTime;
+
+
+/**
+ * The token of the changes returned by a sync request, of the form <code>mark_timestamp</code>.
+ *
+ * The mark is the position in the tombstone log of the deletes, the timestamp is the latest
+ * creation or modification time of the returned entries in generalized time format, empty
+ * if no entry was seen yet.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class SyncToken
+{
+    private final String mark;
+
+    private String timestamp;
+
+    private long millis;
+
+
+    /**
+     *
+     * @param mark the mark of the tombstone log
+     * @param timestamp the timestamp to start with, null if none
+     * @throws IllegalArgumentException if the timestamp is invalid
+     */
+    SyncToken( String mark, String timestamp )
+    {
+        this.mark = mark;
+
+        if ( timestamp != null )
+        {
+            this.millis = toMillis( timestamp );
+            this.timestamp = timestamp;
+        }
+    }
+
+
+    /**
+     * @throws IllegalArgumentException if the token is invalid
+     */
+    static SyncToken parse( String token )
+    {
+        int pos = token.indexOf( '_' );
+
+        if ( pos <= 0 )
+        {
+            throw new IllegalArgumentException( "Invalid token " + token );
+        }
+
+        String timestamp = token.substring( pos + 1 );
+
+        try
+        {
+            return new SyncToken( token.substring( 0, pos ), ( timestamp.length() == 0 ) ? null : timestamp );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new IllegalArgumentException( "Invalid token " + token );
+        }
+    }
+
+
+    /**
+     * Moves the timestamp forward if the given one is later, invalid timestamps are ignored
+     *
+     * @return true if the timestamp was moved
+     */
+    boolean advance( String other )
+    {
+        if ( other == null )
+        {
+            return false;
+        }
+
+        long otherMillis;
+
+        try
+        {
+            otherMillis = toMillis( other );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return false;
+        }
+
+        if ( ( timestamp == null ) || ( otherMillis > millis ) )
+        {
+            timestamp = other;
+            millis = otherMillis;
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    String getMark()
+    {
+        return mark;
+    }
+
+
+    /**
+     * @return the timestamp in generalized time format, null if there is none
+     */
+    String getTimestamp()
+    {
+        return timestamp;
+    }
+
+
+    private static long toMillis( String generalizedTime )
+    {
+        try
+        {
+            return new GeneralizedTime( generalizedTime ).getCalendar().getTimeInMillis();
+        }
+        catch ( ParseException e )
+        {
+            throw new IllegalArgumentException( "Invalid timestamp " + generalizedTime );
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return mark + "_" + ( ( timestamp == null ) ? "" : timestamp );
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A size bounded, thread safe cache whose elements expire after a fixed time-to-live.
+ *
+ * When the cache is full the expired elements are purged first, if that is not
+ * sufficient a tenth of the remaining elements are evicted in no particular order.
+ *
+ * The cache can also be bounded by the total weight of its elements, e.x. their size
+ * in bytes, computed by a {@link Weigher}. An element heavier than the whole budget
+ * is not cached at all.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BoundedCache<K, V>
+{
+    private final Map<K, CacheElement<V>> map;
+
+    private final int maxSize;
+
+    private final long ttl;
+
+    private final long maxWeight;
+
+    private final Weigher<V> weigher;
+
+    /** the total weight of the elements present in the map */
+    private final AtomicLong weight = new AtomicLong();
+
+
+    /**
+     * Computes the weight of the elements of a cache
+     */
+    public interface Weigher<V>
+    {
+        /**
+         * @return the weight of the value, must not change while the value is cached
+         */
+        long weigh( V value );
+    }
+
+
+    /**
+     *
+     * @param maxSize the maximum number of elements held in the cache
+     * @param ttl the time-to-live of each element in milliseconds, a value <= 0 disables expiry
+     */
+    public BoundedCache( int maxSize, long ttl )
+    {
+        this( maxSize, ttl, Long.MAX_VALUE, null );
+    }
+
+
+    /**
+     *
+     * @param maxSize the maximum number of elements held in the cache
+     * @param ttl the time-to-live of each element in milliseconds, a value <= 0 disables expiry
+     * @param maxWeight the maximum total weight of the elements held in the cache
+     * @param weigher the weigher of the elements, null if the elements have no weight
+     */
+    public BoundedCache( int maxSize, long ttl, long maxWeight, Weigher<V> weigher )
+    {
+        if ( maxSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Maximum size of the cache must be greater than zero" );
+        }
+
+        if ( maxWeight <= 0 )
+        {
+            throw new IllegalArgumentException( "Maximum weight of the cache must be greater than zero" );
+        }
+
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.map = new ConcurrentHashMap<K, CacheElement<V>>( Math.min( maxSize, 1024 ) );
+    }
+
+
+    public V get( K key )
+    {
+        CacheElement<V> ce = map.get( key );
+
+        if ( ce == null )
+        {
+            return null;
+        }
+
+        if ( ce.isExpired( System.currentTimeMillis() ) )
+        {
+            if ( map.remove( key, ce ) )
+            {
+                weight.addAndGet( -ce.weight );
+            }
+
+            return null;
+        }
+
+        return ce.value;
+    }
+
+
+    public void put( K key, V value )
+    {
+        if ( ( key == null ) || ( value == null ) )
+        {
+            return;
+        }
+
+        long w = 0;
+
+        if ( weigher != null )
+        {
+            w = weigher.weigh( value );
+
+            if ( w > maxWeight )
+            {
+                invalidate( key );
+                return;
+            }
+        }
+
+        if ( ( map.size() >= maxSize ) || ( ( weight.get() + w ) > maxWeight ) )
+        {
+            evict( w );
+        }
+
+        long expiresAt = Long.MAX_VALUE;
+
+        if ( ttl > 0 )
+        {
+            expiresAt = System.currentTimeMillis() + ttl;
+        }
+
+        weight.addAndGet( w );
+
+        CacheElement<V> old = map.put( key, new CacheElement<V>( value, expiresAt, w ) );
+
+        if ( old != null )
+        {
+            weight.addAndGet( -old.weight );
+        }
+    }
+
+
+    public void invalidate( K key )
+    {
+        if ( key != null )
+        {
+            CacheElement<V> old = map.remove( key );
+
+            if ( old != null )
+            {
+                weight.addAndGet( -old.weight );
+            }
+        }
+    }
+
+
+    public void clear()
+    {
+        for ( K key : map.keySet() )
+        {
+            invalidate( key );
+        }
+    }
+
+
+    public int size()
+    {
+        return map.size();
+    }
+
+
+    /**
+     * @return the total weight of the cached elements
+     */
+    public long weight()
+    {
+        return weight.get();
+    }
+
+
+    /**
+     * Gives a weakly consistent view of the keys, for finding the elements to be invalidated
+     */
+    public Set<K> keys()
+    {
+        return map.keySet();
+    }
+
+
+    /**
+     * Makes room for an element of the given weight
+     */
+    private void evict( long w )
+    {
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<K, CacheElement<V>>> itr = map.entrySet().iterator();
+
+        while ( itr.hasNext() )
+        {
+            Map.Entry<K, CacheElement<V>> e = itr.next();
+
+            if ( e.getValue().isExpired( now ) )
+            {
+                remove( e );
+            }
+        }
+
+        if ( ( map.size() < maxSize ) && ( ( weight.get() + w ) <= maxWeight ) )
+        {
+            return;
+        }
+
+        // still full, drop a tenth of the elements to amortize the cost of the scan
+        int target = maxSize - Math.max( 1, maxSize / 10 );
+        long targetWeight = maxWeight - Math.max( w, maxWeight / 10 );
+
+        itr = map.entrySet().iterator();
+
+        while ( ( ( map.size() > target ) || ( weight.get() > targetWeight ) ) && itr.hasNext() )
+        {
+            remove( itr.next() );
+        }
+    }
+
+
+    /**
+     * Removes the element of the given entry unless it was replaced meanwhile
+     */
+    private void remove( Map.Entry<K, CacheElement<V>> e )
+    {
+        CacheElement<V> ce = e.getValue();
+
+        if ( map.remove( e.getKey(), ce ) )
+        {
+            weight.addAndGet( -ce.weight );
+        }
+    }
+
+    private static class CacheElement<V>
+    {
+        private final V value;
+
+        private final long expiresAt;
+
+        private final long weight;
+
+
+        private CacheElement( V value, long expiresAt, long weight )
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+
+
+        private boolean isExpired( long now )
+        {
+            return now >= expiresAt;
+        }
+    }
+}
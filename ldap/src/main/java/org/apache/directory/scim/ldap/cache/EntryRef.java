@@ -0,0 +1,107 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+
+/**
+ * A lightweight reference to an LDAP entry, holding just enough data
+ * to render a member or group reference of a resource.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryRef
+{
+    private final String dn;
+
+    private final String id;
+
+    private final String display;
+
+
+    public EntryRef( String dn, String id, String display )
+    {
+        this.dn = dn;
+        this.id = id;
+        this.display = display;
+    }
+
+
+    /**
+     * Creates the reference of the given entry, read with its entryUUID attribute
+     *
+     * @return the reference, null if the entry has no entryUUID (e.x. it is not readable by the user)
+     */
+    public static EntryRef fromEntry( Entry entry ) throws LdapException
+    {
+        Attribute uuidAt = entry.get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( uuidAt == null )
+        {
+            return null;
+        }
+
+        Dn dn = entry.getDn();
+
+        String display = dn.getRdn().getValue().getString();
+
+        return new EntryRef( dn.getName(), uuidAt.getString(), display );
+    }
+
+
+    /**
+     * @return the DN of the entry
+     */
+    public String getDn()
+    {
+        return dn;
+    }
+
+
+    /**
+     * @return the value of the entryUUID attribute
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+
+    /**
+     * @return the value of the RDN of the entry
+     */
+    public String getDisplay()
+    {
+        return display;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "EntryRef [dn=" + dn + ", id=" + id + ", display=" + display + "]";
+    }
+}
@@ -0,0 +1,1176 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.scim.ldap.LdapChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An in-memory reverse index of group membership, maps the DN of a member to
+ * the groups it belongs to.
+ *
+ * Every DN known to the index, be it of a group or of a member, is assigned a dense
+ * integer id. Memberships are held as sorted int arrays indexed by these ids, so the
+ * normalized DN strings are stored only once. The id of a DN that is neither a group
+ * nor a member of any group anymore is freed and reused for the next new DN.
+ *
+ * The index is loaded with a single paged scan of the groups and is kept current by
+ * registering it with a {@link org.apache.directory.scim.ldap.LdapChangeMonitor}
+ * watching the same groups. Only the values of the given member attribute are indexed,
+ * the index answers the same as a search of the groups by that attribute under the base DN.
+ * A reload builds a new index without blocking the readers, the index is reported as not
+ * ready until the new one replaces the old one. Only the groups present under the base DN
+ * are indexed.
+ *
+ * Transitive memberships of nested groups are computed on demand and memoized as sorted
+ * int arrays of ids. The closure of an id is the union of the closures of its adjacent ids,
+ * so the closures of the nested groups are memoized and reused as well. A closure that
+ * reaches the end of the nesting before the depth bound is memoized for all the depths
+ * at least as deep as the nesting.
+ * A memoized closure is dropped when a group it depends on is modified, or to keep the
+ * memoized closures within their memory budget.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MembershipIndex implements LdapChangeListener
+{
+    private static final Logger LOG = LoggerFactory.getLogger( MembershipIndex.class );
+
+    private static final int[] EMPTY = new int[0];
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final LdapConnection connection;
+
+    private final SchemaManager ldapSchema;
+
+    private final String baseDn;
+
+    private final String filter;
+
+    /** the attribute holding the DNs of the members of a group */
+    private final String memberAtName;
+
+    /** the normalized base DN, null if it could not be normalized */
+    private final String normBaseDn;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** the memberships, replaced as a whole by a reload */
+    private Memberships current = new Memberships();
+
+    /** memoized transitive closures upwards, i.e. all the groups of an id, keyed by closureKey() */
+    private final BoundedCache<Long, Closure> groupClosures;
+
+    /** memoized transitive closures downwards, i.e. all the members of a group */
+    private final BoundedCache<Long, Closure> memberClosures;
+
+    /** the default memory budget of the memoized closures in bytes */
+    public static final long DEFAULT_CLOSURE_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /** approximates the memory held by a closure */
+    private static final BoundedCache.Weigher<Closure> CLOSURE_WEIGHER = new BoundedCache.Weigher<Closure>()
+    {
+        public long weigh( Closure closure )
+        {
+            // the ids plus the objects, the cache entry and the key
+            return ( closure.ids.length * 4L ) + 112;
+        }
+    };
+
+    /** the maximum depth of nesting that will be traversed */
+    public static final int MAX_DEPTH = 255;
+
+    private volatile boolean ready;
+
+
+    /**
+     *
+     * @param connection the connection used for loading the groups
+     * @param ldapSchema the LDAP schema used for normalizing DNs
+     * @param baseDn the base DN of the groups
+     * @param filter the filter matching the group entries
+     * @param memberAtName the attribute holding the DNs of the members
+     */
+    public MembershipIndex( LdapConnection connection, SchemaManager ldapSchema, String baseDn, String filter,
+        String memberAtName )
+    {
+        this( connection, ldapSchema, baseDn, filter, memberAtName, DEFAULT_CLOSURE_CACHE_BYTES );
+    }
+
+
+    /**
+     *
+     * @param connection the connection used for loading the groups
+     * @param ldapSchema the LDAP schema used for normalizing DNs
+     * @param baseDn the base DN of the groups
+     * @param filter the filter matching the group entries
+     * @param memberAtName the attribute holding the DNs of the members
+     * @param closureCacheBytes the memory budget of the memoized closures, shared equally by both directions
+     */
+    public MembershipIndex( LdapConnection connection, SchemaManager ldapSchema, String baseDn, String filter,
+        String memberAtName, long closureCacheBytes )
+    {
+        this.connection = connection;
+        this.ldapSchema = ldapSchema;
+        this.baseDn = baseDn;
+        this.filter = filter;
+        this.memberAtName = memberAtName;
+
+        normBaseDn = normalize( baseDn );
+
+        long budget = Math.max( 1, closureCacheBytes / 2 );
+        groupClosures = new BoundedCache<Long, Closure>( Integer.MAX_VALUE, 0, budget, CLOSURE_WEIGHER );
+        memberClosures = new BoundedCache<Long, Closure>( Integer.MAX_VALUE, 0, budget, CLOSURE_WEIGHER );
+    }
+
+
+    /**
+     * Loads all the groups using a paged search, replacing the current contents of the index.
+     */
+    public void load() throws LdapException
+    {
+        LOG.info( "Loading group membership index from {}", baseDn );
+
+        long start = System.currentTimeMillis();
+
+        // the readers fall back to searching the groups while the index is rebuilt
+        ready = false;
+
+        Memberships loaded = new Memberships();
+
+        byte[] cookie = null;
+
+        do
+        {
+            PagedResults paged = new PagedResultsImpl();
+            paged.setSize( PAGE_SIZE );
+            paged.setCookie( cookie );
+
+            SearchRequest sr = new SearchRequestImpl();
+            sr.setBase( new Dn( baseDn ) );
+            sr.setFilter( filter );
+            sr.setScope( SearchScope.SUBTREE );
+            sr.addAttributes( SchemaConstants.ENTRY_UUID_AT, memberAtName );
+            sr.addControl( paged );
+
+            SearchCursor cursor = connection.search( sr );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    if ( cursor.isEntry() )
+                    {
+                        loaded.putGroup( cursor.getEntry() );
+                    }
+                }
+
+                cookie = null;
+
+                SearchResultDone done = cursor.getSearchResultDone();
+
+                if ( done != null )
+                {
+                    PagedResults resp = ( PagedResults ) done.getControl( PagedResults.OID );
+
+                    if ( ( resp != null ) && ( resp.getCookie() != null ) && ( resp.getCookie().length > 0 ) )
+                    {
+                        cookie = resp.getCookie();
+                    }
+                }
+            }
+            catch ( LdapException e )
+            {
+                throw e;
+            }
+            catch ( Exception e )
+            {
+                throw new LdapException( e );
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        while ( cookie != null );
+
+        lock.writeLock().lock();
+
+        try
+        {
+            current = loaded;
+            groupClosures.clear();
+            memberClosures.clear();
+            ready = true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        LOG.info( "Loaded {} DNs into the group membership index in {} ms", loaded.dnIds.size(),
+            ( System.currentTimeMillis() - start ) );
+    }
+
+
+    /**
+     * @return true if the index was loaded and is usable
+     */
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+
+    /**
+     * Tells if the index holds the memberships found by searching the groups under the given base DN
+     * by the given member attribute
+     */
+    public boolean covers( String baseDn, String memberAtName )
+    {
+        if ( !this.memberAtName.equalsIgnoreCase( memberAtName ) )
+        {
+            return false;
+        }
+
+        String normDn = normalize( baseDn );
+
+        return ( normDn != null ) && normDn.equals( normBaseDn );
+    }
+
+
+    /**
+     * @return the attribute holding the DNs of the members of a group
+     */
+    public String getMemberAtName()
+    {
+        return memberAtName;
+    }
+
+
+    /**
+     * @return the number of DNs holding an id, for the tests
+     */
+    int getDnCount()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return current.dnIds.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return the number of ids ever assigned, freed ones included, for the tests
+     */
+    int getIdCount()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return current.nextId;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gives the groups the member with the given DN directly belongs to.
+     *
+     * @param memberDn the DN of the member
+     * @return list of groups, empty if the member doesn't belong to any group
+     */
+    public List<EntryRef> getGroups( String memberDn )
+    {
+        String normDn = normalize( memberDn );
+
+        if ( normDn == null )
+        {
+            return Collections.emptyList();
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            Memberships m = current;
+
+            Integer id = m.dnIds.get( normDn );
+
+            if ( id == null )
+            {
+                return Collections.emptyList();
+            }
+
+            int[] groupIds = m.memberOf[id];
+
+            if ( ( groupIds == null ) || ( groupIds.length == 0 ) )
+            {
+                return Collections.emptyList();
+            }
+
+            List<EntryRef> lst = new ArrayList<EntryRef>( groupIds.length );
+
+            for ( int g : groupIds )
+            {
+                EntryRef ref = m.groups[g];
+
+                if ( ref != null )
+                {
+                    lst.add( ref );
+                }
+            }
+
+            return lst;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gives all the groups the member with the given DN belongs to, directly or through nested groups.
+     *
+     * @param memberDn the DN of the member
+     * @param maxDepth the maximum levels of nesting to traverse, 1 gives only the direct groups
+     * @return list of groups, empty if the member doesn't belong to any group
+     */
+    public List<EntryRef> getAllGroups( String memberDn, int maxDepth )
+    {
+        String normDn = normalize( memberDn );
+
+        if ( normDn == null )
+        {
+            return Collections.emptyList();
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            Memberships m = current;
+
+            Integer id = m.dnIds.get( normDn );
+
+            if ( id == null )
+            {
+                return Collections.emptyList();
+            }
+
+            int[] closure = getClosure( id, maxDepth, m.memberOf, groupClosures ).ids;
+
+            List<EntryRef> lst = new ArrayList<EntryRef>( closure.length );
+
+            for ( int g : closure )
+            {
+                EntryRef ref = m.groups[g];
+
+                if ( ref != null )
+                {
+                    lst.add( ref );
+                }
+            }
+
+            return lst;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gives the DNs of all the members of the group with the given DN, including the members
+     * of the nested groups.
+     *
+     * @param groupDn the DN of the group
+     * @param maxDepth the maximum levels of nesting to traverse, 1 gives only the direct members
+     * @return list of normalized DNs of the members, null if the group is not known to the index
+     */
+    public List<String> getAllMembers( String groupDn, int maxDepth )
+    {
+        String normDn = normalize( groupDn );
+
+        if ( normDn == null )
+        {
+            return null;
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            Memberships m = current;
+
+            Integer id = m.dnIds.get( normDn );
+
+            if ( ( id == null ) || ( m.groups[id] == null ) )
+            {
+                return null;
+            }
+
+            int[] closure = getClosure( id, maxDepth, m.members, memberClosures ).ids;
+
+            List<String> lst = new ArrayList<String>( closure.length );
+
+            for ( int i : closure )
+            {
+                lst.add( m.dns[i] );
+            }
+
+            return lst;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Computes the ids reachable from the given id following the edges upto the given depth,
+     * the start id itself is never part of the closure even if it is reachable through a cycle.
+     * Must be called while holding the read lock.
+     */
+    private Closure getClosure( int start, int maxDepth, int[][] edges, BoundedCache<Long, Closure> memo )
+    {
+        maxDepth = Math.max( 1, Math.min( maxDepth, MAX_DEPTH ) );
+
+        // holds the closures used by this computation, they may be evicted from the memo meanwhile
+        Map<Long, Closure> computed = new HashMap<Long, Closure>();
+
+        return getClosure( start, maxDepth, edges, memo, computed );
+    }
+
+
+    /**
+     * Computes the closure of the given id as the union of its adjacent ids and their closures
+     * one level less deep. A complete closure is memoized under the depth 0, it serves any depth
+     * not lower than its height.
+     */
+    private Closure getClosure( int id, int depth, int[][] edges, BoundedCache<Long, Closure> memo,
+        Map<Long, Closure> computed )
+    {
+        Closure closure = lookupClosure( closureKey( id, 0 ), memo, computed );
+
+        if ( ( closure != null ) && ( closure.height <= depth ) )
+        {
+            return closure;
+        }
+
+        closure = lookupClosure( closureKey( id, depth ), memo, computed );
+
+        if ( closure != null )
+        {
+            return closure;
+        }
+
+        int[] adjacent = edges[id];
+
+        if ( ( adjacent == null ) || ( adjacent.length == 0 ) )
+        {
+            closure = new Closure( EMPTY, 0 );
+        }
+        else
+        {
+            int[] reached = new int[adjacent.length * 2];
+            int count = 0;
+            boolean complete = true;
+            int height = 1;
+
+            for ( int n : adjacent )
+            {
+                int[] sub = EMPTY;
+
+                if ( depth > 1 )
+                {
+                    Closure subClosure = getClosure( n, depth - 1, edges, memo, computed );
+                    sub = subClosure.ids;
+                    complete &= subClosure.isComplete();
+                    height = Math.max( height, subClosure.height + 1 );
+                }
+                else if ( ( edges[n] != null ) && ( edges[n].length > 0 ) )
+                {
+                    // the traversal stops before reaching the ids adjacent to n
+                    complete = false;
+                }
+
+                if ( count + sub.length + 1 > reached.length )
+                {
+                    reached = Arrays.copyOf( reached, Math.max( reached.length * 2, count + sub.length + 1 ) );
+                }
+
+                reached[count++] = n;
+                System.arraycopy( sub, 0, reached, count, sub.length );
+                count += sub.length;
+            }
+
+            closure = new Closure( distinct( reached, count, id ), complete ? height : -1 );
+        }
+
+        Long key = closureKey( id, closure.isComplete() ? 0 : depth );
+
+        computed.put( key, closure );
+        memo.put( key, closure );
+
+        return closure;
+    }
+
+
+    private static Closure lookupClosure( Long key, BoundedCache<Long, Closure> memo, Map<Long, Closure> computed )
+    {
+        Closure closure = computed.get( key );
+
+        if ( closure == null )
+        {
+            closure = memo.get( key );
+
+            if ( closure != null )
+            {
+                computed.put( key, closure );
+            }
+        }
+
+        return closure;
+    }
+
+
+    /**
+     * sorts the first count values of the array and removes the duplicates and the excluded value
+     */
+    private int[] distinct( int[] values, int count, int excluded )
+    {
+        Arrays.sort( values, 0, count );
+
+        int size = 0;
+
+        for ( int i = 0; i < count; i++ )
+        {
+            int v = values[i];
+
+            if ( v == excluded )
+            {
+                LOG.debug( "Detected a membership cycle involving {}", current.dns[excluded] );
+                continue;
+            }
+
+            if ( ( size == 0 ) || ( values[size - 1] != v ) )
+            {
+                values[size++] = v;
+            }
+        }
+
+        return Arrays.copyOf( values, size );
+    }
+
+
+    /**
+     * Drops the memoized closures that might have changed due to a change in the members of the given group.
+     * Must be called while holding the write lock.
+     */
+    private void invalidateClosures( int groupId, int[] oldMembers, int[] newMembers )
+    {
+        if ( ( groupClosures.size() == 0 ) && ( memberClosures.size() == 0 ) )
+        {
+            return;
+        }
+
+        int[] changed = symmetricDifference( oldMembers, newMembers );
+
+        // the groups containing this group, and the group itself, reach different members now
+        for ( Long key : memberClosures.keys() )
+        {
+            Closure closure = memberClosures.get( key );
+
+            if ( ( closureId( key ) == groupId )
+                || ( ( closure != null ) && ( Arrays.binarySearch( closure.ids, groupId ) >= 0 ) ) )
+            {
+                memberClosures.invalidate( key );
+            }
+        }
+
+        if ( changed.length == 0 )
+        {
+            return;
+        }
+
+        // the members that joined or left, and whatever is nested under them, belong to different groups now
+        for ( Long key : groupClosures.keys() )
+        {
+            int id = closureId( key );
+            Closure closure = groupClosures.get( key );
+
+            for ( int m : changed )
+            {
+                if ( ( id == m ) || ( ( closure != null ) && ( Arrays.binarySearch( closure.ids, m ) >= 0 ) ) )
+                {
+                    groupClosures.invalidate( key );
+                    break;
+                }
+            }
+        }
+    }
+
+
+    private static Long closureKey( int id, int depth )
+    {
+        return ( ( ( long ) id ) << 8 ) | depth;
+    }
+
+
+    private static int closureId( Long key )
+    {
+        return ( int ) ( key >>> 8 );
+    }
+
+
+    /**
+     * computes the values present in only one of the given sorted arrays
+     */
+    private static int[] symmetricDifference( int[] a, int[] b )
+    {
+        if ( a == null )
+        {
+            a = EMPTY;
+        }
+
+        if ( b == null )
+        {
+            b = EMPTY;
+        }
+
+        int[] diff = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while ( ( i < a.length ) && ( j < b.length ) )
+        {
+            if ( a[i] == b[j] )
+            {
+                i++;
+                j++;
+            }
+            else if ( a[i] < b[j] )
+            {
+                diff[count++] = a[i++];
+            }
+            else
+            {
+                diff[count++] = b[j++];
+            }
+        }
+
+        while ( i < a.length )
+        {
+            diff[count++] = a[i++];
+        }
+
+        while ( j < b.length )
+        {
+            diff[count++] = b[j++];
+        }
+
+        return Arrays.copyOf( diff, count );
+    }
+
+
+    public void entryAdded( Entry entry )
+    {
+        putGroup( entry );
+    }
+
+
+    public void entryModified( Entry entry )
+    {
+        putGroup( entry );
+    }
+
+
+    public void entryDeleted( Entry entry )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            current.removeGroup( normalize( entry.getDn().getName() ) );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void entryRenamed( Entry entry, String oldDn )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            if ( oldDn != null )
+            {
+                current.removeGroup( normalize( oldDn ) );
+            }
+
+            current.putGroup( entry );
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to update the membership index after renaming {}", entry.getDn() );
+            LOG.debug( "", e );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void resync()
+    {
+        try
+        {
+            load();
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to reload the group membership index", e );
+        }
+    }
+
+
+    private void putGroup( Entry entry )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            current.putGroup( entry );
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to update the membership index with the entry {}", entry.getDn() );
+            LOG.debug( "", e );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    private String normalize( String dn )
+    {
+        try
+        {
+            return new Dn( ldapSchema, dn ).getNormName();
+        }
+        catch ( LdapException e )
+        {
+            LOG.debug( "Ignoring the invalid DN {}", dn );
+            return null;
+        }
+    }
+
+
+    /**
+     * Tells if the entry with the given normalized DN is under the base DN of the groups
+     */
+    private boolean isInScope( String normDn )
+    {
+        if ( ( normBaseDn == null ) || ( normBaseDn.length() == 0 ) )
+        {
+            return true;
+        }
+
+        return normDn.equals( normBaseDn ) || normDn.endsWith( "," + normBaseDn );
+    }
+
+
+    /**
+     * The memberships of all the groups. The instance being read is only modified while
+     * holding the write lock, a new instance is loaded without any lock before it replaces
+     * the current one.
+     */
+    private class Memberships
+    {
+        /** normalized DN to the id */
+        private final Map<String, Integer> dnIds = new HashMap<String, Integer>();
+
+        /** the normalized DN of each id, null if the id is free */
+        private String[] dns = new String[1024];
+
+        /** the reference to the group, null if the id is not of a group */
+        private EntryRef[] groups = new EntryRef[1024];
+
+        /** the ids of the groups containing the id */
+        private int[][] memberOf = new int[1024][];
+
+        /** the ids of the members of a group */
+        private int[][] members = new int[1024][];
+
+        private int nextId = 0;
+
+        /** the ids freed for reuse */
+        private int[] freeIds = new int[16];
+
+        private int freeCount = 0;
+
+
+        private void putGroup( Entry entry ) throws LdapException
+        {
+            Dn dn = entry.getDn();
+
+            String normDn = normalize( dn.getName() );
+
+            if ( normDn == null )
+            {
+                return;
+            }
+
+            if ( !isInScope( normDn ) )
+            {
+                // e.x. moved out of the base DN
+                removeGroup( normDn );
+                return;
+            }
+
+            int groupId = getOrCreateId( normDn );
+
+            Attribute uuidAt = entry.get( SchemaConstants.ENTRY_UUID_AT );
+
+            if ( uuidAt != null )
+            {
+                groups[groupId] = new EntryRef( dn.getName(), uuidAt.getString(), dn.getRdn().getValue().getString() );
+            }
+
+            int[] oldMembers = members[groupId];
+
+            if ( oldMembers != null )
+            {
+                for ( int m : oldMembers )
+                {
+                    memberOf[m] = remove( memberOf[m], groupId );
+                }
+            }
+
+            int[] newMembers = collectMemberIds( entry );
+
+            members[groupId] = newMembers;
+
+            if ( this == current )
+            {
+                invalidateClosures( groupId, oldMembers, newMembers );
+            }
+
+            for ( int m : newMembers )
+            {
+                memberOf[m] = add( memberOf[m], groupId );
+            }
+
+            if ( oldMembers != null )
+            {
+                for ( int m : oldMembers )
+                {
+                    releaseIfUnused( m );
+                }
+            }
+        }
+
+
+        private void removeGroup( String normDn )
+        {
+            if ( normDn == null )
+            {
+                return;
+            }
+
+            Integer id = dnIds.get( normDn );
+
+            if ( id == null )
+            {
+                return;
+            }
+
+            int groupId = id;
+
+            int[] oldMembers = members[groupId];
+
+            if ( oldMembers != null )
+            {
+                for ( int m : oldMembers )
+                {
+                    memberOf[m] = remove( memberOf[m], groupId );
+                }
+            }
+
+            members[groupId] = null;
+            groups[groupId] = null;
+
+            if ( this == current )
+            {
+                invalidateClosures( groupId, oldMembers, null );
+            }
+
+            if ( oldMembers != null )
+            {
+                for ( int m : oldMembers )
+                {
+                    releaseIfUnused( m );
+                }
+            }
+
+            // the id stays assigned to the DN if the group is also a member of other groups
+            releaseIfUnused( groupId );
+        }
+
+
+        private int[] collectMemberIds( Entry entry ) throws LdapException
+        {
+            Attribute memberAt = entry.get( memberAtName );
+
+            if ( memberAt == null )
+            {
+                return EMPTY;
+            }
+
+            int[] ids = new int[memberAt.size()];
+            int count = 0;
+
+            Iterator<Value<?>> itr = memberAt.iterator();
+
+            while ( itr.hasNext() )
+            {
+                String normDn = normalize( itr.next().getString() );
+
+                if ( normDn != null )
+                {
+                    ids[count++] = getOrCreateId( normDn );
+                }
+            }
+
+            ids = Arrays.copyOf( ids, count );
+            Arrays.sort( ids );
+
+            return ids;
+        }
+
+
+        private int getOrCreateId( String normDn )
+        {
+            Integer id = dnIds.get( normDn );
+
+            if ( id != null )
+            {
+                return id;
+            }
+
+            int newId;
+
+            if ( freeCount > 0 )
+            {
+                newId = freeIds[--freeCount];
+            }
+            else
+            {
+                newId = nextId++;
+
+                if ( newId == dns.length )
+                {
+                    int len = dns.length * 2;
+                    dns = Arrays.copyOf( dns, len );
+                    groups = Arrays.copyOf( groups, len );
+                    memberOf = Arrays.copyOf( memberOf, len );
+                    members = Arrays.copyOf( members, len );
+                }
+            }
+
+            dns[newId] = normDn;
+            dnIds.put( normDn, newId );
+
+            return newId;
+        }
+
+
+        /**
+         * Frees the id if it is neither a group nor a member of any group. The memoized closures
+         * holding the id were dropped when its last membership was removed, the ones computed
+         * for the id itself are dropped here.
+         */
+        private void releaseIfUnused( int id )
+        {
+            if ( ( dns[id] == null ) || ( groups[id] != null ) || ( members[id] != null ) )
+            {
+                return;
+            }
+
+            if ( ( memberOf[id] != null ) && ( memberOf[id].length > 0 ) )
+            {
+                return;
+            }
+
+            dnIds.remove( dns[id] );
+            dns[id] = null;
+            memberOf[id] = null;
+
+            if ( this == current )
+            {
+                for ( int depth = 0; depth <= MAX_DEPTH; depth++ )
+                {
+                    groupClosures.invalidate( closureKey( id, depth ) );
+                    memberClosures.invalidate( closureKey( id, depth ) );
+                }
+            }
+
+            if ( freeCount == freeIds.length )
+            {
+                freeIds = Arrays.copyOf( freeIds, freeCount * 2 );
+            }
+
+            freeIds[freeCount++] = id;
+        }
+    }
+
+
+    /**
+     * The sorted ids reached from an id
+     */
+    private static class Closure
+    {
+        private final int[] ids;
+
+        /** the levels of nesting traversed to reach all the ids, -1 if the depth bound stopped the traversal */
+        private final int height;
+
+
+        private Closure( int[] ids, int height )
+        {
+            this.ids = ids;
+            this.height = height;
+        }
+
+
+        private boolean isComplete()
+        {
+            return height >= 0;
+        }
+    }
+
+
+    /**
+     * inserts the value into the sorted array if it is not present
+     */
+    private static int[] add( int[] arr, int val )
+    {
+        if ( arr == null )
+        {
+            return new int[]
+                { val };
+        }
+
+        int pos = Arrays.binarySearch( arr, val );
+
+        if ( pos >= 0 )
+        {
+            return arr;
+        }
+
+        pos = -( pos + 1 );
+
+        int[] tmp = new int[arr.length + 1];
+        System.arraycopy( arr, 0, tmp, 0, pos );
+        tmp[pos] = val;
+        System.arraycopy( arr, pos, tmp, pos + 1, arr.length - pos );
+
+        return tmp;
+    }
+
+
+    /**
+     * removes the value from the sorted array
+     */
+    private static int[] remove( int[] arr, int val )
+    {
+        if ( arr == null )
+        {
+            return null;
+        }
+
+        int pos = Arrays.binarySearch( arr, val );
+
+        if ( pos < 0 )
+        {
+            return arr;
+        }
+
+        if ( arr.length == 1 )
+        {
+            return EMPTY;
+        }
+
+        int[] tmp = new int[arr.length - 1];
+        System.arraycopy( arr, 0, tmp, 0, pos );
+        System.arraycopy( arr, pos + 1, tmp, pos, arr.length - pos - 1 );
+
+        return tmp;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * A size bounded log of the IDs of the deleted resources.
+ *
+ * A position in the log is marked as <code>epoch.sequence</code>, the epoch changes
+ * whenever the log is reset and the deletes made since a mark are no longer known.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class TombstoneLog
+{
+    private final int maxSize;
+
+    private final LinkedList<Tombstone> log = new LinkedList<Tombstone>();
+
+    private long epoch = System.currentTimeMillis();
+
+    /** the sequence number of the last recorded delete */
+    private long lastSeq;
+
+    /** the sequence number of the oldest delete still present in the log */
+    private long oldestSeq = 1;
+
+
+    /**
+     *
+     * @param maxSize the maximum number of deletes held in the log
+     */
+    public TombstoneLog( int maxSize )
+    {
+        if ( maxSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Maximum size of the log must be greater than zero" );
+        }
+
+        this.maxSize = maxSize;
+    }
+
+
+    public synchronized void add( String resourceType, String id )
+    {
+        lastSeq++;
+
+        log.add( new Tombstone( lastSeq, resourceType, id ) );
+
+        if ( log.size() > maxSize )
+        {
+            log.removeFirst();
+            oldestSeq = log.getFirst().seq;
+        }
+    }
+
+
+    /**
+     * Forgets all the deletes, the marks taken so far are no longer valid
+     */
+    public synchronized void reset()
+    {
+        log.clear();
+        epoch++;
+        oldestSeq = lastSeq + 1;
+    }
+
+
+    /**
+     * @return the mark of the current position of the log
+     */
+    public synchronized String mark()
+    {
+        return epoch + "." + lastSeq;
+    }
+
+
+    /**
+     * Gives the IDs of the resources of the given type deleted after the given mark
+     *
+     * @param mark the mark of a position in the log
+     * @param resourceType the name of the resource type
+     * @return the IDs in the order they were deleted, null if the deletes made since the mark are not known
+     * @throws IllegalArgumentException if the mark is invalid
+     */
+    public synchronized List<String> getDeletedSince( String mark, String resourceType )
+    {
+        int pos = mark.indexOf( '.' );
+
+        if ( pos < 0 )
+        {
+            throw new IllegalArgumentException( "Invalid mark " + mark );
+        }
+
+        long markEpoch;
+        long markSeq;
+
+        try
+        {
+            markEpoch = Long.parseLong( mark.substring( 0, pos ) );
+            markSeq = Long.parseLong( mark.substring( pos + 1 ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IllegalArgumentException( "Invalid mark " + mark );
+        }
+
+        // the deletes following the mark were dropped, or the mark was not taken from this log
+        if ( ( markEpoch != epoch ) || ( markSeq + 1 < oldestSeq ) || ( markSeq > lastSeq ) )
+        {
+            return null;
+        }
+
+        // the same delete may have been recorded by the provider and by a change monitor
+        Set<String> ids = new LinkedHashSet<String>();
+
+        Iterator<Tombstone> itr = log.descendingIterator();
+
+        List<Tombstone> found = new ArrayList<Tombstone>();
+
+        while ( itr.hasNext() )
+        {
+            Tombstone t = itr.next();
+
+            if ( t.seq <= markSeq )
+            {
+                break;
+            }
+
+            if ( t.resourceType.equals( resourceType ) )
+            {
+                found.add( t );
+            }
+        }
+
+        for ( int i = found.size() - 1; i >= 0; i-- )
+        {
+            ids.add( found.get( i ).id );
+        }
+
+        return new ArrayList<String>( ids );
+    }
+
+
+    private static class Tombstone
+    {
+        private final long seq;
+
+        private final String resourceType;
+
+        private final String id;
+
+
+        private Tombstone( long seq, String resourceType, String id )
+        {
+            this.seq = seq;
+            this.resourceType = resourceType;
+            this.id = id;
+        }
+    }
+}
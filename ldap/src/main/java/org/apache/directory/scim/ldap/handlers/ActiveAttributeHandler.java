@@ -26,6 +26,7 @@ import org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstan
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.ModifyRequest;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.scim.RequestContext;
@@ -109,4 +110,11 @@ public class ActiveAttributeHandler extends LdapAttributeHandler
     {
     }
 
+
+    @Override
+    public void replace( BaseType atType, JsonElement jsonData, Entry existingEntry, RequestContext ctx,
+        ModifyRequest modReq ) throws Exception
+    {
+    }
+
 }
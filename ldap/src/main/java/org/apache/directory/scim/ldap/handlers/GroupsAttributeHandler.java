@@ -22,22 +22,25 @@ package org.apache.directory.scim.ldap.handlers;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.EntryCursor;
 import org.apache.directory.api.ldap.model.entry.Attribute;
-import org.apache.directory.api.ldap.model.entry.BinaryValue;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.StringValue;
 import org.apache.directory.api.ldap.model.entry.Value;
-import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.FilterParser;
-import org.apache.directory.api.ldap.model.filter.FilterVisitor;
-import org.apache.directory.api.ldap.model.filter.SimpleNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
@@ -48,7 +51,9 @@ import org.apache.directory.scim.SimpleAttribute;
 import org.apache.directory.scim.SimpleAttributeGroup;
 import org.apache.directory.scim.ldap.LdapRequestContext;
 import org.apache.directory.scim.ldap.LdapResourceProvider;
-import org.apache.directory.scim.ldap.schema.MultiValType;
+import org.apache.directory.scim.ldap.LdapUtil;
+import org.apache.directory.scim.ldap.cache.EntryRef;
+import org.apache.directory.scim.ldap.cache.MembershipIndex;
 import org.apache.directory.scim.ldap.schema.ResourceSchema;
 import org.apache.directory.scim.schema.BaseType;
 import org.slf4j.Logger;
@@ -62,12 +67,101 @@ import org.slf4j.LoggerFactory;
  */
 public class GroupsAttributeHandler extends LdapAttributeHandler
 {
+    /** the base DN of the group searches, defaults to the base DN of the Group resource type */
     private String baseDn;
     
     private String filter;
     
+    /** set to true for including the groups reached through nested groups */
+    private String nested;
+    
+    /** the maximum levels of nested groups to traverse */
+    private String maxDepth;
+    
+    private boolean expandNested;
+    
+    private int nestingDepth;
+    
+    /** the literal parts of the filter surrounding the $attribute tokens */
+    private String[] filterParts;
+    
+    /** the names of the attributes referred by the $attribute tokens of the filter */
+    private String[] filterTokens;
+    
+    /** the member attribute of the groups, set only if the filter is of the form (member=$entryDn) */
+    private String memberAtName;
+    
+    /** the maximum number of members queried in a single search while prefetching the groups */
+    private static final int BATCH_SIZE = 100;
+    
+    private static final Pattern TOKEN_PATTERN = Pattern.compile( "\\$([a-zA-Z][a-zA-Z0-9\\-;]*)" );
+    
     private static final Logger LOG = LoggerFactory.getLogger( GroupsAttributeHandler.class );
 
+
+    /**
+     * Parses the filter once and splits it around the $attribute tokens so that the filter of
+     * each user can be built without parsing it again
+     */
+    @Override
+    public void init()
+    {
+        expandNested = Boolean.parseBoolean( nested );
+        nestingDepth = parseDepth( maxDepth );
+
+        filterParts = null;
+        filterTokens = null;
+        memberAtName = null;
+
+        if ( Strings.isEmpty( filter ) )
+        {
+            return;
+        }
+
+        ExprNode root = null;
+
+        try
+        {
+            root = FilterParser.parse( filter );
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalArgumentException( "Invalid filter " + filter + " configured for the groups attribute", e );
+        }
+
+        List<String> parts = new ArrayList<String>();
+        List<String> tokens = new ArrayList<String>();
+
+        Matcher m = TOKEN_PATTERN.matcher( filter );
+        int pos = 0;
+
+        while ( m.find() )
+        {
+            parts.add( filter.substring( pos, m.start() ) );
+            tokens.add( m.group( 1 ) );
+            pos = m.end();
+        }
+
+        parts.add( filter.substring( pos ) );
+
+        filterParts = parts.toArray( new String[parts.size()] );
+        filterTokens = tokens.toArray( new String[tokens.size()] );
+
+        if ( root instanceof EqualityNode )
+        {
+            EqualityNode<?> node = ( EqualityNode<?> ) root;
+            String atName = node.getAttribute();
+            String value = node.getValue().getString();
+
+            if ( ( SchemaConstants.MEMBER_AT.equalsIgnoreCase( atName )
+                || SchemaConstants.UNIQUE_MEMBER_AT.equalsIgnoreCase( atName ) )
+                && ( "$" + SchemaConstants.ENTRY_DN_AT ).equalsIgnoreCase( value ) )
+            {
+                memberAtName = atName;
+            }
+        }
+    }
+
     
     @Override
     public List<AttributeType> getLdapAtTypes( BaseType bt, String remainingScimAttributePath, ResourceSchema schema,
@@ -82,6 +176,115 @@ public class GroupsAttributeHandler extends LdapAttributeHandler
         return atList;
     }
 
+
+    /**
+     * Fetches the groups of all the given entries using a few searches of the form
+     * (|(member=dn1)(member=dn2)...) instead of one search per entry.
+     * This is only possible when the configured filter matches the groups by their member attribute.
+     */
+    @Override
+    public void prefetch( BaseType bt, List<Entry> entries, RequestContext ctx ) throws Exception
+    {
+        if ( memberAtName == null )
+        {
+            return;
+        }
+
+        LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
+
+        if ( getIndex( provider ) != null )
+        {
+            return;
+        }
+
+        SchemaManager ldapSchema = provider.getLdapSchema();
+
+        // keyed by the DN of the entry as it will be seen by read()
+        Map<String, List<EntryRef>> groupsByMember = new HashMap<String, List<EntryRef>>();
+
+        // the same lists keyed by the normalized DN, for matching the member values of the groups
+        Map<String, List<EntryRef>> groupsByNormDn = new HashMap<String, List<EntryRef>>();
+
+        List<String> memberDns = new ArrayList<String>();
+
+        for ( Entry e : entries )
+        {
+            // groups will be read from the entry itself
+            if ( e.containsAttribute( SchemaConstants.MEMBER_AT ) )
+            {
+                continue;
+            }
+
+            String dn = e.getDn().getName();
+            List<EntryRef> lst = new ArrayList<EntryRef>();
+
+            groupsByMember.put( dn, lst );
+            groupsByNormDn.put( new Dn( ldapSchema, dn ).getNormName(), lst );
+            memberDns.add( dn );
+        }
+
+        if ( memberDns.isEmpty() )
+        {
+            return;
+        }
+
+        LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
+
+        AttributeType memberAt = ldapSchema.getAttributeType( memberAtName );
+
+        for ( int i = 0; i < memberDns.size(); i += BATCH_SIZE )
+        {
+            List<String> chunk = memberDns.subList( i, Math.min( i + BATCH_SIZE, memberDns.size() ) );
+
+            OrNode orNode = new OrNode();
+
+            for ( String dn : chunk )
+            {
+                orNode.addNode( new EqualityNode<String>( memberAt, new StringValue( dn ) ) );
+            }
+
+            EntryCursor cursor = conn.search( getSearchBase( provider ), orNode.toString(), SearchScope.SUBTREE,
+                SchemaConstants.ENTRY_UUID_AT, SchemaConstants.CN_AT, memberAtName );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    Entry group = cursor.get();
+
+                    EntryRef ref = provider.cacheDnRef( group, ctx );
+
+                    Attribute groupMembers = group.get( memberAt );
+
+                    if ( ( ref == null ) || ( groupMembers == null ) )
+                    {
+                        continue;
+                    }
+
+                    Iterator<Value<?>> itr = groupMembers.iterator();
+
+                    while ( itr.hasNext() )
+                    {
+                        String normDn = new Dn( ldapSchema, itr.next().getString() ).getNormName();
+
+                        List<EntryRef> lst = groupsByNormDn.get( normDn );
+
+                        if ( lst != null )
+                        {
+                            lst.add( ref );
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+
+        ( ( LdapRequestContext ) ctx ).setPrefetchedGroups( groupsByMember );
+    }
+
     
     @Override
     public void read( BaseType bt, Object srcResource, RequestContext ctx ) throws Exception
@@ -94,54 +297,61 @@ public class GroupsAttributeHandler extends LdapAttributeHandler
 
         Entry userEntry = ( Entry ) srcResource;
 
-        List<Entry> members = null;
+        List<EntryRef> groups = null;
+
+        MembershipIndex index = getIndex( ( LdapResourceProvider ) ctx.getProviderService() );
+
+        if ( expandNested && ( index == null ) )
+        {
+            LOG.debug( "Membership index is not available, only the direct groups of {} will be read", userEntry.getDn() );
+        }
 
         Attribute memberAt = userEntry.get( SchemaConstants.MEMBER_AT );
-        if ( memberAt != null )
+        if ( expandNested && ( index != null ) )
+        {
+            groups = index.getAllGroups( userEntry.getDn().getName(), nestingDepth );
+        }
+        else if ( memberAt != null )
+        {
+            groups = getGroupRefs( memberAt, ctx );
+        }
+        else if ( index != null )
         {
-            members = getMemberEntries( memberAt, ctx);
+            groups = index.getGroups( userEntry.getDn().getName() );
         }
         else
-        // query members based on the filter and base DN
         {
-            MultiValType mvt = ( MultiValType ) bt;
-            members = getMemberEntriesUsingFilter( filter, baseDn, userEntry, ctx );
+            groups = ( ( LdapRequestContext ) ctx ).getPrefetchedGroups( userEntry.getDn().getName() );
+
+            // query members based on the filter and base DN
+            if ( groups == null )
+            {
+                groups = getGroupRefsUsingFilter( userEntry, ctx );
+            }
         }
 
-        if ( ( members != null ) && ( !members.isEmpty() ) )
+        if ( ( groups != null ) && ( !groups.isEmpty() ) )
         {
             MultiValAttribute mv = new MultiValAttribute( bt.getName() );
 
-            for ( Entry memberEntry : members )
-            {
-
-                try
-                {
-                    List<SimpleAttribute> lst = new ArrayList<SimpleAttribute>();
+            String locationBase = ctx.getUriInfo().getBaseUri().toString() + "Groups/";
 
-                    SimpleAttribute id = new SimpleAttribute( "id", memberEntry.get( SchemaConstants.ENTRY_UUID_AT )
-                        .getString() );
-                    lst.add( id );
+            for ( EntryRef group : groups )
+            {
+                List<SimpleAttribute> lst = new ArrayList<SimpleAttribute>();
 
-                    String locationVal = ctx.getUriInfo().getBaseUri().toString();
-                    locationVal = locationVal + "Groups/" + id.getValue();
+                SimpleAttribute id = new SimpleAttribute( "id", group.getId() );
+                lst.add( id );
 
-                    SimpleAttribute ref = new SimpleAttribute( "$ref", locationVal );
-                    lst.add( ref );
+                SimpleAttribute ref = new SimpleAttribute( "$ref", locationBase + group.getId() );
+                lst.add( ref );
 
-                    SimpleAttribute display = new SimpleAttribute( "display", memberEntry.getDn().getRdn().getValue()
-                        .getString() );
-                    lst.add( display );
+                SimpleAttribute display = new SimpleAttribute( "display", group.getDisplay() );
+                lst.add( display );
 
-                    SimpleAttributeGroup sg = new SimpleAttributeGroup( lst );
+                SimpleAttributeGroup sg = new SimpleAttributeGroup( lst );
 
-                    mv.addAtGroup( sg );
-                }
-                catch ( LdapException ex )
-                {
-                    LOG.warn( "Failed to get attributes from entry {}", memberEntry.getDn() );
-                    throw ex;
-                }
+                mv.addAtGroup( sg );
             }
 
             ctx.getCoreResource().addAttribute( bt.getUri(), mv );
@@ -149,64 +359,62 @@ public class GroupsAttributeHandler extends LdapAttributeHandler
     }
 
 
-    private List<Entry> getMemberEntries( Attribute memberAt, RequestContext ctx )
+    private List<EntryRef> getGroupRefs( Attribute memberAt, RequestContext ctx )
     {
         LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
         
-        List<Entry> members = new ArrayList<Entry>();
+        List<EntryRef> groups = new ArrayList<EntryRef>();
 
         Iterator<Value<?>> itr = memberAt.iterator();
         while ( itr.hasNext() )
         {
             Value<?> dn = itr.next();
-            Entry entry = provider.fetchEntryByDn( dn.getString(), ctx );
-            if ( entry != null )
+            EntryRef ref = provider.resolveDnRef( dn.getString(), ctx );
+            if ( ref != null )
             {
-                members.add( entry );
+                groups.add( ref );
             }
         }
 
-        return members;
+        return groups;
     }
 
 
-    private List<Entry> getMemberEntriesUsingFilter( String filter, String baseDn, Entry userEntry,
-        RequestContext ctx ) throws Exception
+    private List<EntryRef> getGroupRefsUsingFilter( Entry userEntry, RequestContext ctx ) throws Exception
     {
-        if ( Strings.isEmpty( baseDn ) )
-        {
-            baseDn = ""; // RootDSE
-        }
-
-        if ( Strings.isEmpty( filter ) )
+        if ( filterParts == null )
         {
             return Collections.EMPTY_LIST;
         }
 
-        List<Entry> lst = new ArrayList<Entry>();
+        List<EntryRef> lst = new ArrayList<EntryRef>();
+
+        LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
+
+        String userFilter = buildFilter( userEntry );
 
         try
         {
             LdapConnection conn = ( ( LdapRequestContext ) ctx ).getConnection();
             
-            ExprNode rootNode = FilterParser.parse( filter );
-
-            FilterTokenVisitor tv = new FilterTokenVisitor( userEntry );
-            tv.visit( rootNode );
-
-            EntryCursor cursor = conn.search( baseDn, rootNode.toString(), SearchScope.SUBTREE,
-                SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+            // the display value is taken from the RDN, so only the entryUUID is needed
+            EntryCursor cursor = conn.search( getSearchBase( provider ), userFilter, SearchScope.SUBTREE,
+                SchemaConstants.ENTRY_UUID_AT );
             while ( cursor.next() )
             {
                 Entry mvEntry = cursor.get();
-                lst.add( mvEntry );
+                EntryRef ref = provider.cacheDnRef( mvEntry, ctx );
+                if ( ref != null )
+                {
+                    lst.add( ref );
+                }
             }
 
             cursor.close();
         }
         catch ( Exception e )
         {
-            LOG.warn( "Failed to get the groups using the filter {} and base DN {}", filter, baseDn );
+            LOG.warn( "Failed to get the groups using the filter {} and base DN {}", userFilter, baseDn );
             LOG.warn( "", e );
             throw e;
         }
@@ -214,93 +422,122 @@ public class GroupsAttributeHandler extends LdapAttributeHandler
         return lst;
     }
 
-    class FilterTokenVisitor implements FilterVisitor
-    {
-        private Entry entry;
 
+    /**
+     * Builds the filter for the given entry by replacing the $attribute tokens with
+     * the values of the entry's attributes
+     */
+    private String buildFilter( Entry entry )
+    {
+        StringBuilder sb = new StringBuilder( filter.length() + 64 );
 
-        FilterTokenVisitor( Entry entry )
+        for ( int i = 0; i < filterTokens.length; i++ )
         {
-            this.entry = entry;
+            sb.append( filterParts[i] );
+
+            String token = filterTokens[i];
+
+            Attribute at = entry.get( token );
+
+            if ( at != null )
+            {
+                Value<?> val = at.get();
+
+                if ( val.isHumanReadable() )
+                {
+                    LdapUtil.escapeFilterValue( val.getString(), sb );
+                }
+                else
+                {
+                    LdapUtil.escapeFilterValue( val.getBytes(), sb );
+                }
+            }
+            else if ( SchemaConstants.ENTRY_DN_AT.equalsIgnoreCase( token ) )
+            {
+                LdapUtil.escapeFilterValue( entry.getDn().getName(), sb );
+            }
+            else
+            {
+                // leave the token as is, the same way the filter would have been sent without substitution
+                sb.append( '$' ).append( token );
+            }
         }
 
+        sb.append( filterParts[filterTokens.length] );
+
+        return sb.toString();
+    }
+
 
-        public boolean canVisit( ExprNode node )
+    /**
+     * @return the membership index if it is loaded and holds the groups this handler searches, null otherwise
+     */
+    private MembershipIndex getIndex( LdapResourceProvider provider )
+    {
+        MembershipIndex index = provider.getMembershipIndex();
+
+        if ( ( index == null ) || !index.isReady() || ( memberAtName == null ) )
         {
-            return node instanceof ExprNode;
+            return null;
         }
 
-
-        public List<ExprNode> getOrder( BranchNode node, List<ExprNode> children )
+        if ( !index.covers( getSearchBase( provider ), memberAtName ) )
         {
-            return children;
+            return null;
         }
 
+        return index;
+    }
+
 
-        public boolean isPrefix()
+    /**
+     * @return the base DN of the group searches
+     */
+    public String getSearchBase( LdapResourceProvider provider )
+    {
+        if ( !Strings.isEmpty( baseDn ) )
         {
-            return false;
+            return baseDn;
         }
 
+        ResourceSchema groupSchema = provider.getResourceSchemaByName( "Group" );
 
-        public Object visit( ExprNode node )
+        if ( groupSchema != null )
         {
-            if ( node instanceof BranchNode )
-            {
-                BranchNode bnode = ( BranchNode ) node;
+            return groupSchema.getBaseDn();
+        }
 
-                // --------------------------------------------------------------------
-                // we want to check each child leaf node to see if it must be expanded
-                // children that are branch nodes are recursively visited
-                // --------------------------------------------------------------------
+        return ""; // RootDSE
+    }
 
-                final List<ExprNode> children = bnode.getChildren();
 
-                for ( ExprNode child : children )
-                {
-                    visit( child );
-                }
-            }
-            else
-            {
-                if ( node instanceof SimpleNode )
-                {
-                    SimpleNode sn = ( SimpleNode ) node;
-                    String val = sn.getValue().getString();
-                    if ( val.startsWith( "$" ) )
-                    {
-                        Attribute at = entry.get( val.substring( 1 ) );
-                        if ( at != null )
-                        {
-                            try
-                            {
-                                Value<?> newVal = null;
-                                if ( !at.isHumanReadable() )
-                                {
-                                    newVal = new BinaryValue( at.getAttributeType(), at.getBytes() );
-                                }
-                                else
-                                {
-                                    newVal = new org.apache.directory.api.ldap.model.entry.StringValue(
-                                        at.getAttributeType(), at.getString() );
-                                }
-
-                                sn.setValue( newVal );
-                            }
-                            catch ( LdapException e )
-                            {
-                                LOG.warn( "Failed to set the value for the attribute {} in the filter", at );
-                                throw new RuntimeException( e );
-                            }
-                        }
-                    }
-                }
-            }
+    static int parseDepth( String maxDepth )
+    {
+        if ( Strings.isEmpty( maxDepth ) )
+        {
+            return MembershipIndex.MAX_DEPTH;
+        }
 
-            return null;
+        int depth = Integer.parseInt( maxDepth.trim() );
+
+        if ( depth <= 0 )
+        {
+            throw new IllegalArgumentException( "maxDepth must be greater than zero" );
         }
+
+        return Math.min( depth, MembershipIndex.MAX_DEPTH );
     }
 
+
+    /**
+     * @return the member attribute of the groups if the filter is of the form (member=$entryDn), null otherwise
+     */
+    public String getMemberAtName()
+    {
+        return memberAtName;
+    }
+
+
     public String getBaseDn()
     {
         return baseDn;
@@ -322,5 +559,6 @@ public class GroupsAttributeHandler extends LdapAttributeHandler
     public void setFilter( String filter )
     {
         this.filter = filter;
+        init();
     }
 }
@@ -36,6 +36,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 /**
  * TODO LdapAttributeHandler.
@@ -47,6 +49,28 @@ public abstract class LdapAttributeHandler extends AttributeHandler
 
     private static final Logger LOG = LoggerFactory.getLogger( LdapAttributeHandler.class );
     
+    /**
+     * Called once after the handler arguments present in the mapping configuration were set.
+     * Handlers can override this to prepare the state that doesn't change per request.
+     */
+    public void init()
+    {
+    }
+    
+    
+    /**
+     * Called with all the entries of a search result before any of them are read, gives the
+     * handler a chance to fetch the data required for all the entries at once.
+     * The fetched data can be stored in the request context and used while reading each entry.
+     *
+     * @param bt the attribute type associated with this handler
+     * @param entries the entries that will be read
+     * @param ctx the request context
+     */
+    public void prefetch( BaseType bt, List<Entry> entries, RequestContext ctx ) throws Exception
+    {
+    }
+    
     protected void checkHandler( BaseType bt, String name, LdapAttributeHandler selfRef )
     {
         if ( !bt.getName().equals( name ) )
@@ -64,6 +88,21 @@ public abstract class LdapAttributeHandler extends AttributeHandler
         LdapUtil.scimToLdapAttribute( atType, jsonData, ( Entry ) targetEntry, ctx );
     }
 
+    /**
+     * Writes the value of the attribute present at the current position of the reader into the entry,
+     * used while the request body is being read. Handlers dealing with large values can override this
+     * to consume the value in parts instead of parsing it completely.
+     *
+     * @param atType the attribute type associated with this handler
+     * @param reader the reader positioned at the value of the attribute
+     * @param targetEntry the entry being built
+     * @param ctx the request context
+     */
+    public void write( BaseType atType, JsonReader reader, Entry targetEntry, RequestContext ctx ) throws Exception
+    {
+        write( atType, new JsonParser().parse( reader ), targetEntry, ctx );
+    }
+
     @Override
     public void patch( BaseType atType, JsonElement jsonData, Object entry, RequestContext ctx, Object patchCtx ) throws Exception
     {
@@ -75,6 +114,22 @@ public abstract class LdapAttributeHandler extends AttributeHandler
     {
         LdapUtil.deleteAttribute( atType, (Entry) targetEntry, ( ModifyRequest ) patchCtx );
     }
+
+    
+    /**
+     * Replaces all the values of the attribute with the given values, used by the replace
+     * operation of a PATCH request.
+     *
+     * @param atType the attribute type associated with this handler
+     * @param jsonData the new values
+     * @param existingEntry the entry being patched, holds only the attributes touched by the PATCH request
+     * @param ctx the request context
+     * @param modReq the modify request
+     */
+    public void replace( BaseType atType, JsonElement jsonData, Entry existingEntry, RequestContext ctx, ModifyRequest modReq ) throws Exception
+    {
+        LdapUtil.replaceLdapAttribute( atType, jsonData, ctx, modReq );
+    }
     
     
     public List<AttributeType> getLdapAtTypes( BaseType bt, String remainingScimAttributePath, ResourceSchema schema, SchemaManager ldapSchema )
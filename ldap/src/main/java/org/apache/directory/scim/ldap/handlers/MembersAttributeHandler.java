@@ -22,8 +22,13 @@ package org.apache.directory.scim.ldap.handlers;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.EntryCursor;
@@ -48,8 +53,13 @@ import org.apache.directory.scim.MultiValAttribute;
 import org.apache.directory.scim.RequestContext;
 import org.apache.directory.scim.SimpleAttribute;
 import org.apache.directory.scim.SimpleAttributeGroup;
+import org.apache.directory.scim.exception.EscimoException;
+import org.apache.directory.scim.exception.InvalidValueException;
 import org.apache.directory.scim.ldap.LdapRequestContext;
 import org.apache.directory.scim.ldap.LdapResourceProvider;
+import org.apache.directory.scim.ldap.LdapUtil;
+import org.apache.directory.scim.ldap.cache.EntryRef;
+import org.apache.directory.scim.ldap.cache.MembershipIndex;
 import org.apache.directory.scim.ldap.schema.ResourceSchema;
 import org.apache.directory.scim.schema.BaseType;
 import org.slf4j.Logger;
@@ -58,6 +68,9 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 
 /**
@@ -67,10 +80,30 @@ import com.google.gson.JsonObject;
  */
 public class MembersAttributeHandler extends LdapAttributeHandler
 {
+    /** set to true for including the members of the nested groups */
+    private String nested;
+    
+    /** the maximum levels of nested groups to traverse */
+    private String maxDepth;
+    
+    private boolean expandNested;
+    
+    private int nestingDepth;
 
     private static final Logger LOG = LoggerFactory.getLogger( MembersAttributeHandler.class );
 
+    /** the number of members whose DNs are resolved together while reading a request */
+    private static final int WRITE_BATCH_SIZE = 1000;
+
 
+    @Override
+    public void init()
+    {
+        expandNested = Boolean.parseBoolean( nested );
+        nestingDepth = GroupsAttributeHandler.parseDepth( maxDepth );
+    }
+
+    
     @Override
     public List<AttributeType> getLdapAtTypes( BaseType bt, String remainingScimAttributePath, ResourceSchema schema,
         SchemaManager ldapSchema )
@@ -97,19 +130,51 @@ public class MembersAttributeHandler extends LdapAttributeHandler
             memberAt = groupEntry.get( SchemaConstants.MEMBER_AT );
         }
 
+        if ( expandNested )
+        {
+            MembershipIndex index = ( ( LdapResourceProvider ) ctx.getProviderService() ).getMembershipIndex();
+
+            // the index only knows the members held in its member attribute
+            if ( ( index != null ) && index.isReady()
+                && ( ( memberAt == null ) || index.getMemberAtName().equalsIgnoreCase( memberAt.getUpId() ) ) )
+            {
+                List<String> memberDns = index.getAllMembers( groupEntry.getDn().getName(), nestingDepth );
+
+                if ( memberDns != null )
+                {
+                    readMembers( bt, memberDns.iterator(), ctx );
+                    return;
+                }
+            }
+
+            LOG.debug( "Membership index is not available, only the direct members of {} will be read", groupEntry.getDn() );
+        }
+
         if ( memberAt == null )
         {
             LOG.debug( "Neither member or uniqueMember attribute is present in the entry {}", groupEntry.getDn() );
             return;
         }
 
-        List<SimpleAttributeGroup> lstAtGroup = new ArrayList<SimpleAttributeGroup>();
+        List<String> memberDns = new ArrayList<String>( memberAt.size() );
 
         Iterator<Value<?>> itr = memberAt.iterator();
         while ( itr.hasNext() )
         {
-            Value<?> val = itr.next();
-            SimpleAttributeGroup sg = getMemberDetails( val.getString(), ctx );
+            memberDns.add( itr.next().getString() );
+        }
+
+        readMembers( bt, memberDns.iterator(), ctx );
+    }
+
+
+    private void readMembers( BaseType bt, Iterator<String> memberDns, RequestContext ctx ) throws Exception
+    {
+        List<SimpleAttributeGroup> lstAtGroup = new ArrayList<SimpleAttributeGroup>();
+
+        while ( memberDns.hasNext() )
+        {
+            SimpleAttributeGroup sg = getMemberDetails( memberDns.next(), ctx );
             if ( sg != null )
             {
                 lstAtGroup.add( sg );
@@ -131,37 +196,88 @@ public class MembersAttributeHandler extends LdapAttributeHandler
         
         LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
 
-        SchemaManager ldapSchema = provider.getLdapSchema();
         Entry entry = ( Entry ) targetEntry;
         
-        AttributeType memberType = getMemberType( ldapSchema, entry );
+        AttributeType memberType = getMemberType( provider.getLdapSchema(), entry );
 
-        JsonArray members = ( JsonArray ) jsonData;
+        addMembers( ( JsonArray ) jsonData, entry, memberType, ctx );
+    }
+
+
+    /**
+     * Reads the members from the stream and resolves their DNs in batches, so the
+     * members of a large group are never present in memory as a whole JSON array
+     */
+    @Override
+    public void write( BaseType atType, JsonReader reader, Entry targetEntry, RequestContext ctx ) throws Exception
+    {
+        checkHandler( atType, "members", this );
         
-        for( JsonElement je : members )
+        if( reader.peek() != JsonToken.BEGIN_ARRAY )
         {
-            JsonObject jo = ( JsonObject ) je;
-            
-            String dn = getMemberDn( jo, ctx );
+            throw new InvalidValueException( "The members attribute must be an array" );
+        }
+        
+        LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
+
+        AttributeType memberType = getMemberType( provider.getLdapSchema(), targetEntry );
+        
+        JsonParser parser = new JsonParser();
+        
+        JsonArray batch = new JsonArray();
+        
+        reader.beginArray();
+        
+        while( reader.hasNext() )
+        {
+            JsonElement je = parser.parse( reader );
             
-            if( dn == null )
+            if( !je.isJsonObject() )
             {
-                continue;
+                throw new InvalidValueException( "Invalid member " + je );
             }
             
-            Attribute ldapAt = entry.get( memberType );
+            batch.add( je );
             
-            if( ldapAt == null )
+            if( batch.size() == WRITE_BATCH_SIZE )
             {
-                ldapAt = new DefaultAttribute( memberType );
-                ldapAt.add( dn );
-                entry.add( ldapAt );
-            }
-            else
-            {
-                ldapAt.add( dn );
+                addMembers( batch, targetEntry, memberType, ctx );
+                batch = new JsonArray();
             }
         }
+        
+        reader.endArray();
+        
+        if( batch.size() > 0 )
+        {
+            addMembers( batch, targetEntry, memberType, ctx );
+        }
+    }
+    
+    
+    private void addMembers( JsonArray members, Entry entry, AttributeType memberType, RequestContext ctx ) throws Exception
+    {
+        if( members.size() == 0 )
+        {
+            return;
+        }
+        
+        Map<String, String> memberDns = getMemberDns( members, ctx, false );
+        
+        Attribute ldapAt = entry.get( memberType );
+        
+        if( ldapAt == null )
+        {
+            ldapAt = new DefaultAttribute( memberType );
+            entry.add( ldapAt );
+        }
+        
+        for( JsonElement je : members )
+        {
+            JsonObject jo = ( JsonObject ) je;
+            
+            ldapAt.add( memberDns.get( jo.get( "value" ).getAsString() ) );
+        }
     }
 
     
@@ -183,33 +299,23 @@ public class MembersAttributeHandler extends LdapAttributeHandler
         
         JsonArray members = ( JsonArray ) jsonData;
         
+        Map<String, String> memberDns = getMemberDns( members, ctx, true );
+        
         for( JsonElement je : members )
         {
             JsonObject jo = ( JsonObject ) je;
             
-            String dn = getMemberDn( jo, ctx );
-            
-            if( dn == null )
-            {
-                continue;
-            }
+            String dn = memberDns.get( jo.get( "value" ).getAsString() );
         
-            boolean delete = false;
-            
-            JsonElement atOperation = jo.get( "operation" );
-            if( atOperation != null )
+            if( isDelete( jo ) )
             {
-                if( atOperation.getAsString().equalsIgnoreCase( "delete" ) )
+                // a member whose resource doesn't exist anymore is not in the group either
+                if( dn != null )
                 {
-                    delete = true;
+                    modReq.remove( memberType.getName(), dn );
                 }
             }
-
-            if( delete )
-            {
-                modReq.remove( memberType.getName(), dn );
-            }
-            else if ( !entry.contains( memberType, dn ) )
+            else if ( LdapUtil.isPermissive( modReq ) || !entry.contains( memberType, dn ) )
             {
                 modReq.add( memberType.getName(), dn );
             }
@@ -217,6 +323,38 @@ public class MembersAttributeHandler extends LdapAttributeHandler
     }
 
     
+    @Override
+    public void replace( BaseType atType, JsonElement jsonData, Entry existingEntry, RequestContext ctx,
+        ModifyRequest modReq ) throws Exception
+    {
+        checkHandler( atType, "members", this );
+
+        LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
+
+        AttributeType memberType = getMemberType( provider.getLdapSchema(), existingEntry );
+
+        JsonArray members = jsonData.isJsonArray() ? jsonData.getAsJsonArray() : new JsonArray();
+
+        Map<String, String> memberDns = getMemberDns( members, ctx, false );
+
+        Attribute memberAt = new DefaultAttribute( memberType );
+
+        for ( String dn : memberDns.values() )
+        {
+            memberAt.add( dn );
+        }
+
+        if ( memberAt.size() == 0 )
+        {
+            // groupOfNames and groupOfUniqueNames OC need atleast one member attribute
+            memberAt.add( "uid=dummyUser,ou=system" );
+        }
+
+        // the existing members are not needed, all of them get replaced
+        modReq.replace( memberAt );
+    }
+
+
     @Override
     public void deleteAttribute( BaseType atType, Object targetEntry, RequestContext ctx, Object patchCtx )
         throws Exception
@@ -233,30 +371,146 @@ public class MembersAttributeHandler extends LdapAttributeHandler
         
         ModifyRequest modReq = ( ModifyRequest ) patchCtx;
         
-        modReq.remove( entry.get( memberType ) );
+        if ( LdapUtil.isPermissive( modReq ) )
+        {
+            // the members were not fetched
+            modReq.remove( new DefaultAttribute( memberType ) );
+        }
+        else
+        {
+            modReq.remove( entry.get( memberType ) );
+        }
+        
         // add a dummy member, cause groupOfNames and groupOfUniqueNames OC need atleast one member attribute
         modReq.add( memberType.getName(), "uid=dummyUser,ou=system" );
     }
 
 
-    private String getMemberDn( JsonObject jo, RequestContext ctx )
+    /**
+     * Resolves the IDs of all the given members to their DNs in one batched pass, grouped by
+     * the resource type each member refers to.
+     *
+     * @param ignoreDeleted true to leave out the members marked for deletion that couldn't be resolved
+     * @return map of member ID to DN
+     * @throws InvalidValueException if any of the other IDs couldn't be resolved
+     */
+    private Map<String, String> getMemberDns( JsonArray members, RequestContext ctx, boolean ignoreDeleted )
+        throws EscimoException
     {
         LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
         
-        String resId = jo.get( "value" ).getAsString();
-        String resRef = jo.get( "$ref" ).getAsString();
+        Map<String, List<String>> idsByType = new LinkedHashMap<String, List<String>>();
         
-        ResourceSchema resSchema = provider.getResourceSchema( ctx );
+        Set<String> deletedIds = new HashSet<String>();
         
-        Entry resEntry = provider.fetchEntryById( resId, resSchema, ctx );
+        for( JsonElement je : members )
+        {
+            JsonObject jo = ( JsonObject ) je;
+            
+            JsonElement value = jo.get( "value" );
+            
+            if( value == null )
+            {
+                throw new InvalidValueException( "The value of the member is missing in " + jo );
+            }
+            
+            String type = getReferencedType( jo );
+            
+            List<String> ids = idsByType.get( type );
+            
+            if( ids == null )
+            {
+                ids = new ArrayList<String>();
+                idsByType.put( type, ids );
+            }
+            
+            ids.add( value.getAsString() );
+            
+            if( ignoreDeleted && isDelete( jo ) )
+            {
+                deletedIds.add( value.getAsString() );
+            }
+        }
+        
+        Map<String, String> memberDns = new HashMap<String, String>();
         
-        if( resEntry == null )
+        List<String> unresolved = new ArrayList<String>();
+        
+        for( Map.Entry<String, List<String>> e : idsByType.entrySet() )
         {
-            LOG.debug( "No resource found with the member ID {} with reference {}", resId, resRef );
-            return null;
+            ResourceSchema resSchema = provider.getResourceSchemaByName( e.getKey() );
+            
+            if( resSchema == null )
+            {
+                throw new InvalidValueException( "Invalid member type " + e.getKey() );
+            }
+            
+            Map<String, String> dns = provider.resolveIdsToDns( e.getValue(), resSchema, ctx );
+            
+            for( String id : e.getValue() )
+            {
+                String dn = dns.get( id );
+                
+                if( dn == null )
+                {
+                    if( deletedIds.contains( id ) )
+                    {
+                        LOG.debug( "Ignoring the deletion of the member {}, no resource found with the ID", id );
+                    }
+                    else
+                    {
+                        unresolved.add( id );
+                    }
+                }
+                else
+                {
+                    memberDns.put( id, dn );
+                }
+            }
+        }
+        
+        if( !unresolved.isEmpty() )
+        {
+            LOG.debug( "No resources found with the member IDs {}", unresolved );
+            throw new InvalidValueException( "No resources found with the member IDs " + unresolved );
+        }
+        
+        return memberDns;
+    }
+    
+    
+    /**
+     * Tells if the member is marked for deletion with the 'operation' sub-attribute
+     */
+    private static boolean isDelete( JsonObject jo )
+    {
+        JsonElement atOperation = jo.get( "operation" );
+        
+        return ( atOperation != null ) && atOperation.getAsString().equalsIgnoreCase( "delete" );
+    }
+    
+    
+    /**
+     * Finds the type of the resource a member refers to, using the 'type' or '$ref'
+     * sub-attributes, defaults to User
+     */
+    private String getReferencedType( JsonObject jo )
+    {
+        JsonElement type = jo.get( "type" );
+        
+        if( type != null )
+        {
+            return type.getAsString();
         }
         
-        return resEntry.getDn().getName();
+        JsonElement ref = jo.get( "$ref" );
+        
+        if( ( ref != null ) && ref.getAsString().contains( "/Groups/" ) )
+        {
+            return "Group";
+        }
+        
+        return "User";
     }
 
     
@@ -282,42 +536,28 @@ public class MembersAttributeHandler extends LdapAttributeHandler
     {
         LdapResourceProvider provider = ( LdapResourceProvider ) ctx.getProviderService();
         
-        Entry memberEntry = provider.fetchEntryByDn( dn, ctx );
+        EntryRef member = provider.resolveDnRef( dn, ctx );
 
-        if ( memberEntry == null )
+        if ( member == null )
         {
             return null;
         }
 
-        SimpleAttributeGroup sg = null;
-        
-        try
-        {
-            List<SimpleAttribute> lst = new ArrayList<SimpleAttribute>();
-
-            SimpleAttribute id = new SimpleAttribute( "value", memberEntry.get( SchemaConstants.ENTRY_UUID_AT )
-                .getString() );
-            lst.add( id );
+        List<SimpleAttribute> lst = new ArrayList<SimpleAttribute>();
 
-            String locationVal = ctx.getUriInfo().getBaseUri().toString();
-            locationVal = locationVal + "Users/" + id.getValue();
+        SimpleAttribute id = new SimpleAttribute( "value", member.getId() );
+        lst.add( id );
 
-            SimpleAttribute ref = new SimpleAttribute( "$ref", locationVal );
-            lst.add( ref );
+        String locationVal = ctx.getUriInfo().getBaseUri().toString();
+        locationVal = locationVal + "Users/" + id.getValue();
 
-            SimpleAttribute display = new SimpleAttribute( "display", memberEntry.getDn().getRdn().getValue()
-                .getString() );
-            lst.add( display );
+        SimpleAttribute ref = new SimpleAttribute( "$ref", locationVal );
+        lst.add( ref );
 
-            sg = new SimpleAttributeGroup( lst );
-        }
-        catch ( LdapException ex )
-        {
-            LOG.warn( "Failed to get attributes from entry {}", memberEntry.getDn() );
-            throw ex;
-        }
+        SimpleAttribute display = new SimpleAttribute( "display", member.getDisplay() );
+        lst.add( display );
 
-        return sg;
+        return new SimpleAttributeGroup( lst );
     }
 
 
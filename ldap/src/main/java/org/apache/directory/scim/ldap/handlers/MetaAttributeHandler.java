@@ -107,6 +107,13 @@ public class MetaAttributeHandler extends LdapAttributeHandler
             location.setValue( locationVal );
             atList.add( location );
             
+            if( resource.getVersion() != null )
+            {
+                // a weak tag, the representation differs based on the requested attributes
+                SimpleAttribute version = new SimpleAttribute( "version", "W/\"" + resource.getVersion() + "\"" );
+                atList.add( version );
+            }
+            
             ComplexAttribute ct = new ComplexAttribute( bt.getName(), atList );
             resource.addAttribute( bt.getUri(), ct );
         }
@@ -24,17 +24,39 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.scim.MultiValAttribute;
 import org.apache.directory.scim.RequestContext;
 import org.apache.directory.scim.ServerResource;
 import org.apache.directory.scim.SimpleAttribute;
 import org.apache.directory.scim.SimpleAttributeGroup;
+import org.apache.directory.scim.exception.InvalidValueException;
+import org.apache.directory.scim.ldap.DeferredUpdate;
+import org.apache.directory.scim.ldap.LdapRequestContext;
+import org.apache.directory.scim.ldap.cache.BoundedCache;
 import org.apache.directory.scim.ldap.schema.MultiValType;
 import org.apache.directory.scim.ldap.schema.SimpleType;
 import org.apache.directory.scim.ldap.schema.SimpleTypeGroup;
@@ -54,10 +76,94 @@ import com.google.gson.JsonObject;
  */
 public class PhotosAttributeHandler extends LdapAttributeHandler
 {
+    /** connect timeout in milliseconds */
+    private String connectTimeout;
+
+    /** read timeout in milliseconds */
+    private String readTimeout;
+
+    /** the maximum size of a photo in bytes */
+    private String maxSize;
+
+    /** the number of threads fetching the photos */
+    private String threads;
+
+    /** the number of photos held in the cache */
+    private String cacheSize;
+
+    /** the maximum total size in bytes of the photos held in the cache */
+    private String cacheMaxBytes;
+
+    /** set to true for fetching the photos after the entry was written */
+    private String deferred;
+
+    private int connectTimeoutVal;
+
+    private int readTimeoutVal;
+
+    private int maxSizeVal;
+
+    private boolean deferredMode;
+
+    private ThreadPoolExecutor executor;
+
+    /** the digest of the content last fetched from a URL */
+    private BoundedCache<String, String> urlDigests;
+
+    /** the photos keyed by the digest of their content, a photo shared by many URLs is stored once */
+    private BoundedCache<String, byte[]> photoCache;
+
+    /** the fetches in progress keyed by the URL, concurrent requests for the same URL wait on the same fetch */
+    private final ConcurrentHashMap<String, Future<byte[]>> inFlight = new ConcurrentHashMap<String, Future<byte[]>>();
 
     private static final Logger LOG = LoggerFactory.getLogger( PhotosAttributeHandler.class );
 
 
+    @Override
+    public synchronized void init()
+    {
+        connectTimeoutVal = parseInt( connectTimeout, 5000 );
+        readTimeoutVal = parseInt( readTimeout, 10000 );
+        maxSizeVal = parseInt( maxSize, 1024 * 1024 );
+        deferredMode = Boolean.parseBoolean( deferred );
+
+        int cacheSizeVal = parseInt( cacheSize, 256 );
+        int cacheMaxBytesVal = parseInt( cacheMaxBytes, 32 * 1024 * 1024 );
+        urlDigests = new BoundedCache<String, String>( cacheSizeVal, 60 * 60 * 1000 );
+        photoCache = new BoundedCache<String, byte[]>( cacheSizeVal, 60 * 60 * 1000, cacheMaxBytesVal,
+            new BoundedCache.Weigher<byte[]>()
+            {
+                public long weigh( byte[] photo )
+                {
+                    return photo.length;
+                }
+            } );
+
+        int threadCount = parseInt( threads, 4 );
+
+        if ( executor != null )
+        {
+            executor.shutdown();
+        }
+
+        // the queue is bounded, when it is full the fetch runs in the caller's thread
+        executor = new ThreadPoolExecutor( threadCount, threadCount, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>( 100 ), new ThreadFactory()
+            {
+                private AtomicInteger count = new AtomicInteger();
+
+
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "escimo-photo-fetcher-" + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy() );
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+
     @Override
     public void read( BaseType bt, Object srcResource, RequestContext ctx ) throws Exception
     {
@@ -138,31 +244,84 @@ public class PhotosAttributeHandler extends LdapAttributeHandler
         
         Entry entry = ( Entry ) targetEntry;
         
-        Attribute ldapAt = entry.get( st.getMappedTo() );
+        final List<String> urls = new ArrayList<String>();
         
-        // fetch the URL and insert the photo
         for( JsonElement je : photos )
         {
-            String url = null;
-            
             // for the cases where multivalued attribute comes as an array of primitives
             // e.x "photos":['http://example.com/p1', 'http://example.com/p2']
             if( je.isJsonPrimitive() )
             {
-                url = je.getAsString();
+                urls.add( je.getAsString() );
             }
             else
             {
                 JsonObject jo = ( JsonObject ) je;
-                url = jo.get( "value" ).getAsString();
+                urls.add( jo.get( "value" ).getAsString() );
             }
+        }
+        
+        // start fetching all the photos in parallel
+        final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>( urls.size() );
+        
+        for( String url : urls )
+        {
+            futures.add( submitFetch( url ) );
+        }
+        
+        final String ldapAtName = st.getMappedTo();
+        
+        if( deferredMode )
+        {
+            ( ( LdapRequestContext ) ctx ).addDeferredUpdate( new DeferredUpdate()
+            {
+                public void execute( Dn dn, LdapConnection connection ) throws Exception
+                {
+                    List<byte[]> values = new ArrayList<byte[]>();
+                    
+                    for( int i = 0; i < futures.size(); i++ )
+                    {
+                        try
+                        {
+                            values.add( waitFor( futures.get( i ) ) );
+                        }
+                        catch( Exception e )
+                        {
+                            LOG.warn( "Failed to fetch the photo of the entry {} from {}", dn, urls.get( i ) );
+                            LOG.debug( "", e );
+                        }
+                    }
+                    
+                    if( !values.isEmpty() )
+                    {
+                        connection.modify( dn, new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                            ldapAtName, values.toArray( new byte[values.size()][] ) ) );
+                    }
+                }
+            } );
             
-            byte[] data = fetchPhoto( url );
+            return;
+        }
+        
+        Attribute ldapAt = entry.get( ldapAtName );
+        
+        for( int i = 0; i < futures.size(); i++ )
+        {
+            byte[] data = null;
             
+            try
+            {
+                data = waitFor( futures.get( i ) );
+            }
+            catch( Exception e )
+            {
+                LOG.debug( "Failed to fetch the photo from {}", urls.get( i ), e );
+                throw new InvalidValueException( "Failed to fetch the photo from " + urls.get( i ), e );
+            }
             
             if( ldapAt == null )
             {
-                ldapAt = new DefaultAttribute( st.getMappedTo(), data );
+                ldapAt = new DefaultAttribute( ldapAtName, data );
                 entry.add( ldapAt );
             }
             else
@@ -172,26 +331,130 @@ public class PhotosAttributeHandler extends LdapAttributeHandler
         }
     }
 
+
+    /**
+     * Waits for a fetch, the fetch may be shared with other requests and is left running
+     * when the wait times out, it ends by itself with its own timeouts
+     */
+    private byte[] waitFor( Future<byte[]> future ) throws Exception
+    {
+        // the read timeout applies to each read, allow a few of them
+        return future.get( connectTimeoutVal + ( 3L * readTimeoutVal ), TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Gives the photo present at the given URL, the photo is taken from the cache if the
+     * URL was fetched before, otherwise it is fetched in the background
+     */
+    private Future<byte[]> submitFetch( final String url )
+    {
+        String digest = urlDigests.get( url );
+        
+        if( digest != null )
+        {
+            byte[] data = photoCache.get( digest );
+            
+            if( data != null )
+            {
+                return new CompletedFuture( data );
+            }
+        }
+        
+        FutureTask<byte[]> task = new FutureTask<byte[]>( new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                try
+                {
+                    return fetchAndCache( url );
+                }
+                finally
+                {
+                    inFlight.remove( url );
+                }
+            }
+        } );
+        
+        Future<byte[]> existing = inFlight.putIfAbsent( url, task );
+        
+        if( existing != null )
+        {
+            return existing;
+        }
+        
+        executor.execute( task );
+        
+        return task;
+    }
+    
+    
+    private byte[] fetchAndCache( String url ) throws Exception
+    {
+        byte[] data = fetchPhoto( url );
+        
+        MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+        String digest = toHex( md.digest( data ) );
+        
+        byte[] cached = photoCache.get( digest );
+        
+        if( cached != null )
+        {
+            // same content was fetched from a different URL
+            data = cached;
+        }
+        else
+        {
+            photoCache.put( digest, data );
+        }
+        
+        urlDigests.put( url, digest );
+        
+        return data;
+    }
+
     
     private byte[] fetchPhoto( String url ) throws IOException
     {
         InputStream in = null;
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ByteArrayOutputStream bout = null;
 
         try
         {
-            in = new URL( url ).openStream();
-            byte[] buf = new byte[1024];
+            URLConnection conn = new URL( url ).openConnection();
+            conn.setConnectTimeout( connectTimeoutVal );
+            conn.setReadTimeout( readTimeoutVal );
+            
+            int length = conn.getContentLength();
+            
+            if( length > maxSizeVal )
+            {
+                throw new IOException( "Size of the photo at " + url + " exceeds the maximum allowed size " + maxSizeVal );
+            }
+            
+            in = conn.getInputStream();
+            
+            bout = new ByteArrayOutputStream( ( length > 0 ) ? length : 8192 );
+            
+            byte[] buf = new byte[8192];
+            int total = 0;
             
             while( true )
             {
                 int read = in.read( buf );
                 
-                if( read <= 0 )
+                if( read < 0 )
                 {
                     break;
                 }
                 
+                total += read;
+                
+                if( total > maxSizeVal )
+                {
+                    throw new IOException( "Size of the photo at " + url + " exceeds the maximum allowed size " + maxSizeVal );
+                }
+                
                 bout.write( buf, 0, read );
             }
             
@@ -203,8 +466,76 @@ public class PhotosAttributeHandler extends LdapAttributeHandler
             {
                 in.close();
             }
+        }
+    }
+    
+    
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        
+        for( byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0x0F, 16 ) );
+            sb.append( Character.forDigit( b & 0x0F, 16 ) );
+        }
+        
+        return sb.toString();
+    }
+    
+    
+    private static int parseInt( String value, int defaultValue )
+    {
+        if( Strings.isEmpty( value ) )
+        {
+            return defaultValue;
+        }
+        
+        return Integer.parseInt( value.trim() );
+    }
+    
+    
+    /**
+     * A future holding an already available photo
+     */
+    private static class CompletedFuture implements Future<byte[]>
+    {
+        private byte[] data;
+
+
+        CompletedFuture( byte[] data )
+        {
+            this.data = data;
+        }
 
-            bout.close();
+
+        public boolean cancel( boolean mayInterruptIfRunning )
+        {
+            return false;
+        }
+
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+
+        public boolean isDone()
+        {
+            return true;
+        }
+
+
+        public byte[] get()
+        {
+            return data;
+        }
+
+
+        public byte[] get( long timeout, TimeUnit unit )
+        {
+            return data;
         }
     }
 }
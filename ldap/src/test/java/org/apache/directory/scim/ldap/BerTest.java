@@ -0,0 +1,258 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for the BER encoding of the control values.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BerTest
+{
+    @Test
+    public void testEncodeShortLength()
+    {
+        assertArrayEquals( bytes( 0x04, 0x00 ), Ber.encodeTlv( 0x04, new byte[0] ) );
+        assertArrayEquals( bytes( 0x04, 0x02, 'c', 'n' ), Ber.encodeTlv( 0x04, bytes( 'c', 'n' ) ) );
+
+        byte[] tlv = Ber.encodeTlv( 0x04, new byte[127] );
+        assertEquals( 129, tlv.length );
+        assertEquals( 0x7F, tlv[1] );
+    }
+
+
+    @Test
+    public void testEncodeLongLength()
+    {
+        byte[] tlv = Ber.encodeTlv( 0x04, new byte[128] );
+        assertEquals( 131, tlv.length );
+        assertArrayEquals( bytes( 0x04, 0x81, 0x80 ), Arrays.copyOf( tlv, 3 ) );
+
+        tlv = Ber.encodeTlv( 0x30, new byte[255] );
+        assertArrayEquals( bytes( 0x30, 0x81, 0xFF ), Arrays.copyOf( tlv, 3 ) );
+
+        tlv = Ber.encodeTlv( 0x30, new byte[256] );
+        assertEquals( 260, tlv.length );
+        assertArrayEquals( bytes( 0x30, 0x82, 0x01, 0x00 ), Arrays.copyOf( tlv, 4 ) );
+
+        tlv = Ber.encodeTlv( 0x30, new byte[65536] );
+        assertEquals( 65541, tlv.length );
+        assertArrayEquals( bytes( 0x30, 0x83, 0x01, 0x00, 0x00 ), Arrays.copyOf( tlv, 5 ) );
+    }
+
+
+    @Test
+    public void testEncodeEqualityFilter()
+    {
+        // (cn=a)
+        assertArrayEquals( bytes( 0xA3, 0x07, 0x04, 0x02, 'c', 'n', 0x04, 0x01, 'a' ),
+            Ber.encodeEqualityFilter( "cn", Collections.singletonList( "a" ) ) );
+
+        // (cn=)
+        assertArrayEquals( bytes( 0xA3, 0x06, 0x04, 0x02, 'c', 'n', 0x04, 0x00 ),
+            Ber.encodeEqualityFilter( "cn", Collections.singletonList( "" ) ) );
+
+        // (cn=\C3\A9), the value is UTF-8 encoded
+        assertArrayEquals( bytes( 0xA3, 0x08, 0x04, 0x02, 'c', 'n', 0x04, 0x02, 0xC3, 0xA9 ),
+            Ber.encodeEqualityFilter( "cn", Collections.singletonList( "\u00e9" ) ) );
+    }
+
+
+    @Test
+    public void testEncodeMultiValuedFilter()
+    {
+        // (|(cn=a)(cn=b))
+        assertArrayEquals( bytes( 0xA1, 0x12,
+            0xA3, 0x07, 0x04, 0x02, 'c', 'n', 0x04, 0x01, 'a',
+            0xA3, 0x07, 0x04, 0x02, 'c', 'n', 0x04, 0x01, 'b' ),
+            Ber.encodeEqualityFilter( "cn", Arrays.asList( "a", "b" ) ) );
+    }
+
+
+    @Test
+    public void testEncodeFilterWithLongValue()
+    {
+        char[] value = new char[200];
+        Arrays.fill( value, 'x' );
+
+        byte[] filter = Ber.encodeEqualityFilter( "cn", Collections.singletonList( new String( value ) ) );
+
+        // 4 bytes for the type, 3 + 200 for the value
+        assertEquals( 210, filter.length );
+        assertArrayEquals( bytes( 0xA3, 0x81, 0xCF, 0x04, 0x02, 'c', 'n', 0x04, 0x81, 0xC8, 'x' ),
+            Arrays.copyOf( filter, 11 ) );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testEncodeFilterWithoutValue()
+    {
+        Ber.encodeEqualityFilter( "cn", Collections.<String> emptyList() );
+    }
+
+
+    @Test
+    public void testDecodeSearchResultEntry()
+    {
+        byte[] data = bytes( 0x64, 0x2A,
+            0x04, 0x07, 'c', 'n', '=', 'j', 'o', 'h', 'n',
+            0x30, 0x1F,
+            0x30, 0x12, 0x04, 0x04, 'm', 'a', 'i', 'l', 0x31, 0x0A, 0x04, 0x03, 'a', '@', 'b', 0x04, 0x03, 'c', '@', 'd',
+            0x30, 0x09, 0x04, 0x05, 't', 'i', 't', 'l', 'e', 0x31, 0x00 );
+
+        Map<String, List<byte[]>> attributes = new LinkedHashMap<String, List<byte[]>>();
+
+        assertEquals( "cn=john", Ber.decodeSearchResultEntry( data, attributes ) );
+        assertEquals( Arrays.asList( "mail", "title" ), Arrays.asList( attributes.keySet().toArray() ) );
+
+        List<byte[]> mails = attributes.get( "mail" );
+        assertEquals( 2, mails.size() );
+        assertArrayEquals( bytes( 'a', '@', 'b' ), mails.get( 0 ) );
+        assertArrayEquals( bytes( 'c', '@', 'd' ), mails.get( 1 ) );
+
+        assertTrue( attributes.get( "title" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testDecodeEmptyValue()
+    {
+        byte[] data = bytes( 0x64, 0x0F,
+            0x04, 0x00,
+            0x30, 0x0B,
+            0x30, 0x09, 0x04, 0x03, 's', 'e', 'e', 0x31, 0x02, 0x04, 0x00 );
+
+        Map<String, List<byte[]>> attributes = new LinkedHashMap<String, List<byte[]>>();
+
+        assertEquals( "", Ber.decodeSearchResultEntry( data, attributes ) );
+        assertEquals( 1, attributes.get( "see" ).size() );
+        assertEquals( 0, attributes.get( "see" ).get( 0 ).length );
+    }
+
+
+    @Test
+    public void testDecodeLongLengths()
+    {
+        byte[] photo = new byte[300];
+        Arrays.fill( photo, ( byte ) 0xFF );
+
+        byte[] values = Ber.encodeTlv( Ber.SET_TAG, Ber.encodeTlv( Ber.OCTET_STRING_TAG, photo ) );
+        byte[] attribute = Ber.encodeTlv( Ber.SEQUENCE_TAG,
+            concat( Ber.encodeTlv( Ber.OCTET_STRING_TAG, bytes( 'j', 'p', 'e', 'g', 'P', 'h', 'o', 't', 'o' ) ), values ) );
+        byte[] data = Ber.encodeTlv( Ber.SEARCH_RESULT_ENTRY_TAG,
+            concat( Ber.encodeTlv( Ber.OCTET_STRING_TAG, bytes( 'c', 'n', '=', 'x' ) ),
+                Ber.encodeTlv( Ber.SEQUENCE_TAG, attribute ) ) );
+
+        // the values are longer than 255 bytes, their lengths are on 2 bytes
+        assertArrayEquals( bytes( 0x64, 0x82, 0x01, 0x4D ), Arrays.copyOf( data, 4 ) );
+
+        Map<String, List<byte[]>> attributes = new LinkedHashMap<String, List<byte[]>>();
+
+        assertEquals( "cn=x", Ber.decodeSearchResultEntry( data, attributes ) );
+        assertArrayEquals( photo, attributes.get( "jpegPhoto" ).get( 0 ) );
+    }
+
+
+    @Test
+    public void testDecodeMalformed()
+    {
+        byte[] valid = bytes( 0x64, 0x0F,
+            0x04, 0x00,
+            0x30, 0x0B,
+            0x30, 0x09, 0x04, 0x03, 's', 'e', 'e', 0x31, 0x02, 0x04, 0x00 );
+
+        // every truncation of a valid entry
+        for ( int i = 0; i < valid.length; i++ )
+        {
+            assertMalformed( Arrays.copyOf( valid, i ) );
+        }
+
+        // wrong tag
+        assertMalformed( bytes( 0x65, 0x02, 0x04, 0x00 ) );
+
+        // length beyond the data
+        assertMalformed( bytes( 0x64, 0x7F, 0x04, 0x00 ) );
+        assertMalformed( bytes( 0x64, 0x84, 0x7F, 0xFF, 0xFF, 0xFF, 0x04, 0x00 ) );
+
+        // negative length
+        assertMalformed( bytes( 0x64, 0x84, 0xFF, 0xFF, 0xFF, 0xFF, 0x04, 0x00 ) );
+
+        // indefinite and too long lengths
+        assertMalformed( bytes( 0x64, 0x80, 0x04, 0x00, 0x30, 0x00, 0x00, 0x00 ) );
+        assertMalformed( bytes( 0x64, 0x85, 0x00, 0x00, 0x00, 0x00, 0x04 ) );
+
+        // a value overflowing its set
+        assertMalformed( bytes( 0x64, 0x0F,
+            0x04, 0x00,
+            0x30, 0x0B,
+            0x30, 0x09, 0x04, 0x03, 's', 'e', 'e', 0x31, 0x01, 0x04, 0x00 ) );
+    }
+
+
+    private static void assertMalformed( byte[] data )
+    {
+        try
+        {
+            Ber.decodeSearchResultEntry( data, new LinkedHashMap<String, List<byte[]>>() );
+            fail( "Decoded the malformed entry " + Arrays.toString( data ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+
+    private static byte[] concat( byte[] a, byte[] b )
+    {
+        byte[] c = Arrays.copyOf( a, a.length + b.length );
+        System.arraycopy( b, 0, c, a.length, b.length );
+
+        return c;
+    }
+
+
+    static byte[] bytes( int... values )
+    {
+        byte[] b = new byte[values.length];
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            b[i] = ( byte ) values[i];
+        }
+
+        return b;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for parsing the sync tokens and moving them forward.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SyncTokenTest
+{
+    @Test
+    public void testParse()
+    {
+        SyncToken token = SyncToken.parse( "1445412356802.17_20151021103000Z" );
+
+        assertEquals( "1445412356802.17", token.getMark() );
+        assertEquals( "20151021103000Z", token.getTimestamp() );
+        assertEquals( "1445412356802.17_20151021103000Z", token.toString() );
+
+        token = SyncToken.parse( "1445412356802.0_" );
+        assertNull( token.getTimestamp() );
+        assertEquals( "1445412356802.0_", token.toString() );
+    }
+
+
+    @Test
+    public void testAdvance()
+    {
+        SyncToken token = new SyncToken( "1.0", null );
+
+        assertTrue( token.advance( "20151021103000Z" ) );
+        assertEquals( "20151021103000Z", token.getTimestamp() );
+
+        // older and equal timestamps leave the token unchanged
+        assertFalse( token.advance( "20151021102959Z" ) );
+        assertFalse( token.advance( "20151021103000Z" ) );
+        assertFalse( token.advance( null ) );
+        assertFalse( token.advance( "yesterday" ) );
+        assertEquals( "1.0_20151021103000Z", token.toString() );
+
+        // compared by time, not as strings
+        assertTrue( token.advance( "20151021103000.5Z" ) );
+        assertEquals( "20151021103000.5Z", token.getTimestamp() );
+    }
+
+
+    @Test
+    public void testAdvanceFromTokenTimestamp()
+    {
+        SyncToken since = SyncToken.parse( "1.0_20151021103000Z" );
+        SyncToken next = new SyncToken( "1.4", since.getTimestamp() );
+
+        // no entry changed since, the next changes are still read from the same time
+        assertEquals( "1.4_20151021103000Z", next.toString() );
+
+        assertTrue( next.advance( "20151022080000Z" ) );
+        assertEquals( "1.4_20151022080000Z", next.toString() );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testMissingMark()
+    {
+        SyncToken.parse( "_20151021103000Z" );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidTimestamp()
+    {
+        SyncToken.parse( "1.0_yesterday" );
+    }
+}
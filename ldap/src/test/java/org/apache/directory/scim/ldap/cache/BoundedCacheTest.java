@@ -0,0 +1,125 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for the size and weight bounds of the {@link BoundedCache}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BoundedCacheTest
+{
+    private static final BoundedCache.Weigher<byte[]> LENGTH = new BoundedCache.Weigher<byte[]>()
+    {
+        public long weigh( byte[] value )
+        {
+            return value.length;
+        }
+    };
+
+
+    @Test
+    public void testMaxSize()
+    {
+        BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>( 10, 0 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            cache.put( i, "v" + i );
+            assertTrue( cache.size() <= 10 );
+        }
+
+        // the last element is always present
+        assertEquals( "v99", cache.get( 99 ) );
+    }
+
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<String, String>( 10, 20 );
+        cache.put( "a", "b" );
+        assertEquals( "b", cache.get( "a" ) );
+
+        Thread.sleep( 40 );
+
+        assertNull( cache.get( "a" ) );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testMaxWeight()
+    {
+        BoundedCache<Integer, byte[]> cache = new BoundedCache<Integer, byte[]>( 1000, 0, 1000, LENGTH );
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            cache.put( i, new byte[100] );
+            assertTrue( cache.weight() <= 1000 );
+            assertNotNull( cache.get( i ) );
+        }
+
+        assertTrue( cache.size() <= 10 );
+    }
+
+
+    @Test
+    public void testTooHeavy()
+    {
+        BoundedCache<String, byte[]> cache = new BoundedCache<String, byte[]>( 10, 0, 1000, LENGTH );
+        cache.put( "a", new byte[10] );
+
+        // replacing a value with one too heavy to be cached drops the stale value
+        cache.put( "a", new byte[1001] );
+
+        assertNull( cache.get( "a" ) );
+        assertEquals( 0, cache.weight() );
+    }
+
+
+    @Test
+    public void testWeightAccounting()
+    {
+        BoundedCache<String, byte[]> cache = new BoundedCache<String, byte[]>( 10, 0, 1000, LENGTH );
+        cache.put( "a", new byte[10] );
+        cache.put( "b", new byte[20] );
+        assertEquals( 30, cache.weight() );
+
+        cache.put( "a", new byte[5] );
+        assertEquals( 25, cache.weight() );
+
+        cache.invalidate( "b" );
+        assertEquals( 5, cache.weight() );
+
+        cache.clear();
+        assertEquals( 0, cache.weight() );
+        assertEquals( 0, cache.size() );
+    }
+}
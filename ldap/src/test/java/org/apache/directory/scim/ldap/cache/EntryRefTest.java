@@ -0,0 +1,61 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.junit.Test;
+
+
+/**
+ * Tests for creating the references of the entries.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryRefTest
+{
+    @Test
+    public void testFromEntry() throws Exception
+    {
+        Entry entry = new DefaultEntry( "uid=jdoe,ou=people,dc=example,dc=com",
+            "uid: jdoe",
+            "entryUUID: 1b4f0f2e-9b36-4c4b-8b5e-4b3c2a1d0e9f" );
+
+        EntryRef ref = EntryRef.fromEntry( entry );
+
+        assertEquals( "uid=jdoe,ou=people,dc=example,dc=com", ref.getDn() );
+        assertEquals( "1b4f0f2e-9b36-4c4b-8b5e-4b3c2a1d0e9f", ref.getId() );
+        assertEquals( "jdoe", ref.getDisplay() );
+    }
+
+
+    @Test
+    public void testFromEntryWithoutEntryUuid() throws Exception
+    {
+        // e.x. the entryUUID is not readable by the user
+        Entry entry = new DefaultEntry( "cn=admins,ou=groups,dc=example,dc=com", "cn: admins" );
+
+        assertNull( EntryRef.fromEntry( entry ) );
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for loading the {@link MembershipIndex} and keeping it current.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MembershipIndexTest
+{
+    private static final String BASE_DN = "ou=groups,dc=example,dc=com";
+
+    /** the groups returned by the searches of the fake connection */
+    private final List<Entry> groups = new ArrayList<Entry>();
+
+    private MembershipIndex index;
+
+
+    @Before
+    public void init() throws Exception
+    {
+        LdapConnection connection = ( LdapConnection ) Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class<?>[]
+                { LdapConnection.class }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    if ( "search".equals( method.getName() ) )
+                    {
+                        return cursor( new ArrayList<Entry>( groups ).iterator() );
+                    }
+
+                    throw new UnsupportedOperationException( method.getName() );
+                }
+            } );
+
+        index = new MembershipIndex( connection, null, BASE_DN, "(member=*)", "member" );
+    }
+
+
+    @Test
+    public void testLoad() throws Exception
+    {
+        assertFalse( index.isReady() );
+
+        groups.add( group( "admins", "uid=u1", "uid=u2" ) );
+        groups.add( group( "staff", "uid=u2", "cn=admins" ) );
+
+        index.load();
+
+        assertTrue( index.isReady() );
+        assertEquals( ids( "admins" ), ids( index.getGroups( userDn( "uid=u1" ) ) ) );
+        assertEquals( ids( "admins", "staff" ), ids( index.getGroups( userDn( "uid=u2" ) ) ) );
+        assertEquals( ids(), ids( index.getGroups( userDn( "uid=unknown" ) ) ) );
+
+        // u1 is in staff through admins
+        assertEquals( ids( "admins", "staff" ), ids( index.getAllGroups( userDn( "uid=u1" ), 2 ) ) );
+        assertEquals( dns( "uid=u1", "uid=u2", "cn=admins" ), new TreeSet<String>( index.getAllMembers(
+            groupDn( "cn=staff" ), 2 ) ) );
+
+        // not a group
+        assertNull( index.getAllMembers( userDn( "uid=u1" ), 2 ) );
+
+        // 2 groups and 2 users
+        assertEquals( 4, index.getDnCount() );
+    }
+
+
+    @Test
+    public void testAddAndRemoveMembers() throws Exception
+    {
+        groups.add( group( "admins", "uid=u1", "uid=u2" ) );
+        index.load();
+
+        index.entryModified( group( "admins", "uid=u2", "uid=u3" ) );
+
+        assertEquals( ids(), ids( index.getGroups( userDn( "uid=u1" ) ) ) );
+        assertEquals( ids( "admins" ), ids( index.getGroups( userDn( "uid=u2" ) ) ) );
+        assertEquals( ids( "admins" ), ids( index.getGroups( userDn( "uid=u3" ) ) ) );
+
+        index.entryAdded( group( "staff", "uid=u1" ) );
+        assertEquals( ids( "staff" ), ids( index.getGroups( userDn( "uid=u1" ) ) ) );
+
+        index.entryDeleted( group( "admins" ) );
+        assertEquals( ids(), ids( index.getGroups( userDn( "uid=u2" ) ) ) );
+        assertNull( index.getAllMembers( groupDn( "cn=admins" ), 1 ) );
+
+        // staff and u1 are left
+        assertEquals( 2, index.getDnCount() );
+    }
+
+
+    @Test
+    public void testRename() throws Exception
+    {
+        groups.add( group( "admins", "uid=u1" ) );
+        index.load();
+
+        Entry renamed = new DefaultEntry( "cn=root," + BASE_DN, "member: " + userDn( "uid=u1" ), "entryUUID: admins" );
+        index.entryRenamed( renamed, groupDn( "cn=admins" ) );
+
+        List<EntryRef> refs = index.getGroups( userDn( "uid=u1" ) );
+        assertEquals( 1, refs.size() );
+        assertEquals( "root", refs.get( 0 ).getDisplay() );
+
+        // moved out of the base DN
+        Entry moved = new DefaultEntry( "cn=root,dc=example,dc=com", "member: " + userDn( "uid=u1" ),
+            "entryUUID: admins" );
+        index.entryRenamed( moved, "cn=root," + BASE_DN );
+
+        assertEquals( ids(), ids( index.getGroups( userDn( "uid=u1" ) ) ) );
+        assertEquals( 0, index.getDnCount() );
+    }
+
+
+    @Test
+    public void testIdReuse() throws Exception
+    {
+        groups.add( group( "admins", "uid=u1", "uid=u2" ) );
+        index.load();
+
+        assertEquals( 3, index.getIdCount() );
+
+        // u3 and u4 join before u1 and u2 leave and free their ids
+        index.entryModified( group( "admins", "uid=u3", "uid=u4" ) );
+
+        assertEquals( 3, index.getDnCount() );
+        assertEquals( 5, index.getIdCount() );
+
+        // from now on the new members reuse the ids freed by the previous ones
+        for ( int i = 0; i < 100; i++ )
+        {
+            index.entryModified( group( "admins", "uid=a" + i, "uid=b" + i ) );
+        }
+
+        assertEquals( 3, index.getDnCount() );
+        assertEquals( 5, index.getIdCount() );
+        assertEquals( ids( "admins" ), ids( index.getGroups( userDn( "uid=b99" ) ) ) );
+        assertEquals( ids(), ids( index.getGroups( userDn( "uid=b98" ) ) ) );
+    }
+
+
+    @Test
+    public void testResync() throws Exception
+    {
+        groups.add( group( "admins", "uid=u1" ) );
+        index.load();
+
+        // changes missed while the monitor was disconnected
+        groups.clear();
+        groups.add( group( "staff", "uid=u1", "uid=u2" ) );
+
+        index.resync();
+
+        assertTrue( index.isReady() );
+        assertEquals( ids( "staff" ), ids( index.getGroups( userDn( "uid=u1" ) ) ) );
+        assertEquals( ids( "staff" ), ids( index.getGroups( userDn( "uid=u2" ) ) ) );
+        assertNull( index.getAllMembers( groupDn( "cn=admins" ), 1 ) );
+        assertEquals( 3, index.getDnCount() );
+    }
+
+
+    @Test
+    public void testCycle() throws Exception
+    {
+        groups.add( group( "a", "uid=u1", "cn=b" ) );
+        groups.add( group( "b", "uid=u2", "cn=c" ) );
+        groups.add( group( "c", "uid=u3", "cn=a" ) );
+        index.load();
+
+        // a group is never one of its own members or groups
+        assertEquals( dns( "uid=u1", "uid=u2", "uid=u3", "cn=b", "cn=c" ), new TreeSet<String>( index.getAllMembers(
+            groupDn( "cn=a" ), MembershipIndex.MAX_DEPTH ) ) );
+        assertEquals( ids( "b", "c" ), ids( index.getAllGroups( groupDn( "cn=a" ), MembershipIndex.MAX_DEPTH ) ) );
+        assertEquals( ids( "a", "b", "c" ), ids( index.getAllGroups( userDn( "uid=u1" ), MembershipIndex.MAX_DEPTH ) ) );
+    }
+
+
+    @Test
+    public void testDepthBound() throws Exception
+    {
+        groups.add( group( "a", "cn=b" ) );
+        groups.add( group( "b", "cn=c" ) );
+        groups.add( group( "c", "uid=u1" ) );
+        index.load();
+
+        assertEquals( ids( "c" ), ids( index.getAllGroups( userDn( "uid=u1" ), 1 ) ) );
+        assertEquals( ids( "b", "c" ), ids( index.getAllGroups( userDn( "uid=u1" ), 2 ) ) );
+        assertEquals( ids( "a", "b", "c" ), ids( index.getAllGroups( userDn( "uid=u1" ), 3 ) ) );
+
+        // the closures memoized for the deepest traversal are not served for a shallower one
+        assertEquals( ids( "a", "b", "c" ), ids( index.getAllGroups( userDn( "uid=u1" ), 10 ) ) );
+        assertEquals( ids( "b", "c" ), ids( index.getAllGroups( userDn( "uid=u1" ), 2 ) ) );
+
+        assertEquals( dns( "cn=b" ), new TreeSet<String>( index.getAllMembers( groupDn( "cn=a" ), 1 ) ) );
+        assertEquals( dns( "cn=b", "cn=c", "uid=u1" ), new TreeSet<String>( index.getAllMembers( groupDn( "cn=a" ),
+            10 ) ) );
+        assertEquals( dns( "cn=b", "cn=c" ), new TreeSet<String>( index.getAllMembers( groupDn( "cn=a" ), 2 ) ) );
+    }
+
+
+    @Test
+    public void testClosureInvalidation() throws Exception
+    {
+        groups.add( group( "a", "cn=b" ) );
+        groups.add( group( "b", "uid=u1" ) );
+        index.load();
+
+        assertEquals( ids( "a", "b" ), ids( index.getAllGroups( userDn( "uid=u1" ), 10 ) ) );
+        assertEquals( dns( "cn=b", "uid=u1" ), new TreeSet<String>( index.getAllMembers( groupDn( "cn=a" ), 10 ) ) );
+
+        // a nested group gains a member and another group
+        index.entryModified( group( "b", "uid=u1", "uid=u2", "cn=c" ) );
+        index.entryAdded( group( "c", "uid=u3" ) );
+
+        assertEquals( dns( "cn=b", "cn=c", "uid=u1", "uid=u2", "uid=u3" ), new TreeSet<String>( index.getAllMembers(
+            groupDn( "cn=a" ), 10 ) ) );
+        assertEquals( ids( "a", "b", "c" ), ids( index.getAllGroups( userDn( "uid=u3" ), 10 ) ) );
+
+        // the group nesting is cut
+        index.entryModified( group( "a" ) );
+
+        assertEquals( ids( "b" ), ids( index.getAllGroups( userDn( "uid=u1" ), 10 ) ) );
+        assertEquals( ids( "b", "c" ), ids( index.getAllGroups( userDn( "uid=u3" ), 10 ) ) );
+        assertEquals( dns(), new TreeSet<String>( index.getAllMembers( groupDn( "cn=a" ), 10 ) ) );
+    }
+
+
+    @Test
+    public void testCovers()
+    {
+        assertTrue( index.covers( BASE_DN, "member" ) );
+        assertTrue( index.covers( BASE_DN, "MEMBER" ) );
+        assertFalse( index.covers( BASE_DN, "uniqueMember" ) );
+        assertFalse( index.covers( "dc=example,dc=com", "member" ) );
+    }
+
+
+    /**
+     * creates a group whose entryUUID is its name
+     */
+    private static Entry group( String name, String... members ) throws Exception
+    {
+        List<Object> lines = new ArrayList<Object>();
+        lines.add( "entryUUID: " + name );
+
+        for ( String m : members )
+        {
+            lines.add( "member: " + ( m.startsWith( "cn=" ) ? groupDn( m ) : userDn( m ) ) );
+        }
+
+        return new DefaultEntry( groupDn( "cn=" + name ), lines.toArray() );
+    }
+
+
+    private static String groupDn( String rdn )
+    {
+        return rdn + "," + BASE_DN;
+    }
+
+
+    private static String userDn( String rdn )
+    {
+        return rdn + ",ou=people,dc=example,dc=com";
+    }
+
+
+    private static Set<String> ids( String... ids )
+    {
+        return new TreeSet<String>( Arrays.asList( ids ) );
+    }
+
+
+    private static Set<String> ids( Collection<EntryRef> refs )
+    {
+        Set<String> ids = new TreeSet<String>();
+
+        for ( EntryRef ref : refs )
+        {
+            ids.add( ref.getId() );
+        }
+
+        return ids;
+    }
+
+
+    private static Set<String> dns( String... rdns ) throws Exception
+    {
+        Set<String> dns = new TreeSet<String>();
+
+        for ( String rdn : rdns )
+        {
+            dns.add( new Dn( rdn.startsWith( "cn=" ) ? groupDn( rdn ) : userDn( rdn ) ).getNormName() );
+        }
+
+        return dns;
+    }
+
+
+    private static SearchCursor cursor( final Iterator<Entry> entries )
+    {
+        return ( SearchCursor ) Proxy.newProxyInstance( MembershipIndexTest.class.getClassLoader(), new Class<?>[]
+            { SearchCursor.class }, new InvocationHandler()
+            {
+                private Entry current;
+
+
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    String name = method.getName();
+
+                    if ( "next".equals( name ) )
+                    {
+                        current = entries.hasNext() ? entries.next() : null;
+                        return current != null;
+                    }
+
+                    if ( "isEntry".equals( name ) )
+                    {
+                        return true;
+                    }
+
+                    if ( "getEntry".equals( name ) )
+                    {
+                        return current;
+                    }
+
+                    // close() and the search result done without a paged results control
+                    return null;
+                }
+            } );
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.ldap.cache;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for reading the deletes recorded after a mark of the {@link TombstoneLog}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class TombstoneLogTest
+{
+    @Test
+    public void testDeletedSinceMark()
+    {
+        TombstoneLog log = new TombstoneLog( 10 );
+        log.add( "User", "before" );
+
+        String mark = log.mark();
+
+        log.add( "User", "a" );
+        log.add( "Group", "g" );
+        log.add( "User", "b" );
+        // recorded again by a change monitor
+        log.add( "User", "a" );
+
+        assertEquals( Arrays.asList( "a", "b" ), log.getDeletedSince( mark, "User" ) );
+        assertEquals( Arrays.asList( "g" ), log.getDeletedSince( mark, "Group" ) );
+        assertTrue( log.getDeletedSince( log.mark(), "User" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testTruncatedLog()
+    {
+        TombstoneLog log = new TombstoneLog( 2 );
+
+        String mark = log.mark();
+
+        log.add( "User", "a" );
+        log.add( "User", "b" );
+        assertEquals( Arrays.asList( "a", "b" ), log.getDeletedSince( mark, "User" ) );
+
+        // "a" is dropped, the deletes since the mark are no longer complete
+        log.add( "User", "c" );
+        assertNull( log.getDeletedSince( mark, "User" ) );
+    }
+
+
+    @Test
+    public void testResetExpiresMarks()
+    {
+        TombstoneLog log = new TombstoneLog( 10 );
+
+        String mark = log.mark();
+        log.reset();
+
+        assertNull( log.getDeletedSince( mark, "User" ) );
+
+        mark = log.mark();
+        log.add( "User", "a" );
+        assertEquals( Arrays.asList( "a" ), log.getDeletedSince( mark, "User" ) );
+    }
+
+
+    @Test
+    public void testMarkOfAnotherLog()
+    {
+        TombstoneLog log = new TombstoneLog( 10 );
+        String mark = log.mark();
+
+        assertNull( log.getDeletedSince( mark + "5", "User" ) );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidMark()
+    {
+        new TombstoneLog( 10 ).getDeletedSince( "x.y", "User" );
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim;
+
+
+import java.io.IOException;
+
+
+/**
+ * A writer streaming the SCIM data model, i.e. JSON's objects, arrays and values,
+ * in a specific encoding. The names and values are written in the same order as
+ * a JSON document.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface StreamingWriter
+{
+    StreamingWriter beginObject() throws IOException;
+
+
+    StreamingWriter endObject() throws IOException;
+
+
+    StreamingWriter beginArray() throws IOException;
+
+
+    StreamingWriter endArray() throws IOException;
+
+
+    /**
+     * Writes a property name, implementations may cache the encoded names
+     */
+    StreamingWriter name( String name ) throws IOException;
+
+
+    StreamingWriter value( String value ) throws IOException;
+
+
+    /**
+     * Writes a string value that repeats across resources, e.x. a schema URI,
+     * implementations may cache its encoding
+     */
+    StreamingWriter repeatedValue( String value ) throws IOException;
+
+
+    StreamingWriter value( Number value ) throws IOException;
+
+
+    StreamingWriter value( long value ) throws IOException;
+
+
+    StreamingWriter value( boolean value ) throws IOException;
+
+
+    /**
+     * Writes out the buffered data and flushes the underlying stream
+     */
+    void flush() throws IOException;
+}
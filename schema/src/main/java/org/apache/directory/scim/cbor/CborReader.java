@@ -0,0 +1,783 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.cbor;
+
+
+import static org.apache.directory.scim.cbor.CborWriter.BREAK;
+import static org.apache.directory.scim.cbor.CborWriter.FALSE;
+import static org.apache.directory.scim.cbor.CborWriter.FLOAT16;
+import static org.apache.directory.scim.cbor.CborWriter.FLOAT32;
+import static org.apache.directory.scim.cbor.CborWriter.FLOAT64;
+import static org.apache.directory.scim.cbor.CborWriter.INDEFINITE;
+import static org.apache.directory.scim.cbor.CborWriter.MAJOR_ARRAY;
+import static org.apache.directory.scim.cbor.CborWriter.MAJOR_MAP;
+import static org.apache.directory.scim.cbor.CborWriter.MAJOR_NEGATIVE;
+import static org.apache.directory.scim.cbor.CborWriter.MAJOR_SIMPLE;
+import static org.apache.directory.scim.cbor.CborWriter.MAJOR_TAG;
+import static org.apache.directory.scim.cbor.CborWriter.MAJOR_TEXT;
+import static org.apache.directory.scim.cbor.CborWriter.MAJOR_UNSIGNED;
+import static org.apache.directory.scim.cbor.CborWriter.NULL;
+import static org.apache.directory.scim.cbor.CborWriter.TRUE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigInteger;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+
+/**
+ * A JsonReader decoding CBOR (RFC 7049) data, lets the code consuming JSON
+ * streams read the CBOR encoding of the same data model without building a tree.
+ * 
+ * Maps must have text string keys, byte strings and undefined are not supported.
+ * Tags are ignored, bignums are rejected as they are byte strings.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CborReader extends JsonReader
+{
+    /** the parent class requires a reader, it is never used */
+    private static final Reader UNREADABLE_READER = new Reader()
+    {
+        @Override
+        public int read( char[] buffer, int offset, int count ) throws IOException
+        {
+            throw new AssertionError();
+        }
+
+
+        @Override
+        public void close() throws IOException
+        {
+            throw new AssertionError();
+        }
+    };
+
+    /** the length of a string beyond which the bytes are read progressively */
+    private static final int MAX_PREALLOCATED = 64 * 1024;
+
+    private InputStream in;
+
+    private byte[] buf = new byte[8192];
+
+    private int pos;
+
+    private int limit;
+
+    /** true for a map and false for an array, per nesting level */
+    private boolean[] maps = new boolean[32];
+
+    /** the number of items left in a container, -1 for an indefinite length */
+    private long[] remaining = new long[32];
+
+    /** tells if the next item of a map is a key */
+    private boolean[] expectName = new boolean[32];
+
+    private int depth;
+
+    /** set once the top level value was read */
+    private boolean finished;
+
+    private JsonToken peeked;
+
+    /** the initial byte of the peeked item */
+    private int head;
+
+
+    public CborReader( InputStream in )
+    {
+        super( UNREADABLE_READER );
+        this.in = in;
+    }
+
+
+    @Override
+    public JsonToken peek() throws IOException
+    {
+        if ( peeked != null )
+        {
+            return peeked;
+        }
+
+        if ( depth == 0 )
+        {
+            if ( finished )
+            {
+                peeked = JsonToken.END_DOCUMENT;
+                return peeked;
+            }
+
+            head = readByte();
+        }
+        else
+        {
+            int top = depth - 1;
+
+            if ( remaining[top] == 0 )
+            {
+                peeked = maps[top] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+                return peeked;
+            }
+
+            head = readByte();
+
+            if ( head == BREAK )
+            {
+                if ( remaining[top] != -1 )
+                {
+                    throw new MalformedJsonException( "Unexpected break in a container of definite length" );
+                }
+
+                if ( maps[top] && !expectName[top] )
+                {
+                    throw new MalformedJsonException( "A map key has no value" );
+                }
+
+                peeked = maps[top] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+                return peeked;
+            }
+        }
+
+        // tags carry no meaning for the SCIM data model
+        while ( ( head >>> 5 ) == MAJOR_TAG )
+        {
+            readArgument( head );
+            head = readByte();
+        }
+
+        int major = head >>> 5;
+
+        if ( ( depth > 0 ) && maps[depth - 1] && expectName[depth - 1] )
+        {
+            if ( major != MAJOR_TEXT )
+            {
+                throw new MalformedJsonException( "The map keys must be text strings" );
+            }
+
+            peeked = JsonToken.NAME;
+            return peeked;
+        }
+
+        switch ( major )
+        {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                peeked = JsonToken.NUMBER;
+                break;
+
+            case MAJOR_TEXT:
+                peeked = JsonToken.STRING;
+                break;
+
+            case MAJOR_ARRAY:
+                peeked = JsonToken.BEGIN_ARRAY;
+                break;
+
+            case MAJOR_MAP:
+                peeked = JsonToken.BEGIN_OBJECT;
+                break;
+
+            case MAJOR_SIMPLE:
+                if ( ( head == TRUE ) || ( head == FALSE ) )
+                {
+                    peeked = JsonToken.BOOLEAN;
+                }
+                else if ( head == NULL )
+                {
+                    peeked = JsonToken.NULL;
+                }
+                else if ( ( head == FLOAT16 ) || ( head == FLOAT32 ) || ( head == FLOAT64 ) )
+                {
+                    peeked = JsonToken.NUMBER;
+                }
+                else
+                {
+                    throw new MalformedJsonException( "Unsupported simple value " + ( head & 0x1F ) );
+                }
+                break;
+
+            default:
+                throw new MalformedJsonException( "Unsupported CBOR major type " + major );
+        }
+
+        return peeked;
+    }
+
+
+    @Override
+    public boolean hasNext() throws IOException
+    {
+        JsonToken token = peek();
+
+        return ( token != JsonToken.END_OBJECT ) && ( token != JsonToken.END_ARRAY )
+            && ( token != JsonToken.END_DOCUMENT );
+    }
+
+
+    @Override
+    public void beginObject() throws IOException
+    {
+        expect( JsonToken.BEGIN_OBJECT );
+        push( true, readArgument( head ) );
+    }
+
+
+    @Override
+    public void endObject() throws IOException
+    {
+        expect( JsonToken.END_OBJECT );
+        pop();
+    }
+
+
+    @Override
+    public void beginArray() throws IOException
+    {
+        expect( JsonToken.BEGIN_ARRAY );
+        push( false, readArgument( head ) );
+    }
+
+
+    @Override
+    public void endArray() throws IOException
+    {
+        expect( JsonToken.END_ARRAY );
+        pop();
+    }
+
+
+    @Override
+    public String nextName() throws IOException
+    {
+        expect( JsonToken.NAME );
+
+        String name = readText( head );
+        expectName[depth - 1] = false;
+
+        return name;
+    }
+
+
+    @Override
+    public String nextString() throws IOException
+    {
+        JsonToken token = peek();
+
+        String s;
+
+        if ( token == JsonToken.STRING )
+        {
+            peeked = null;
+            s = readText( head );
+        }
+        else if ( token == JsonToken.NUMBER )
+        {
+            s = readNumber().toString();
+        }
+        else
+        {
+            throw new IllegalStateException( "Expected a string but was " + token );
+        }
+
+        consumed();
+
+        return s;
+    }
+
+
+    @Override
+    public boolean nextBoolean() throws IOException
+    {
+        expect( JsonToken.BOOLEAN );
+        consumed();
+
+        return ( head == TRUE );
+    }
+
+
+    @Override
+    public void nextNull() throws IOException
+    {
+        expect( JsonToken.NULL );
+        consumed();
+    }
+
+
+    @Override
+    public double nextDouble() throws IOException
+    {
+        JsonToken token = peek();
+
+        if ( token == JsonToken.STRING )
+        {
+            return Double.parseDouble( nextString() );
+        }
+
+        if ( token != JsonToken.NUMBER )
+        {
+            throw new IllegalStateException( "Expected a double but was " + token );
+        }
+
+        double d = readNumber().doubleValue();
+        consumed();
+
+        return d;
+    }
+
+
+    @Override
+    public long nextLong() throws IOException
+    {
+        JsonToken token = peek();
+
+        if ( token == JsonToken.STRING )
+        {
+            return Long.parseLong( nextString() );
+        }
+
+        if ( token != JsonToken.NUMBER )
+        {
+            throw new IllegalStateException( "Expected a long but was " + token );
+        }
+
+        Number n = readNumber();
+        consumed();
+
+        if ( n instanceof Long )
+        {
+            return n.longValue();
+        }
+
+        if ( n instanceof Double )
+        {
+            double d = n.doubleValue();
+            long l = ( long ) d;
+
+            if ( l == d )
+            {
+                return l;
+            }
+        }
+
+        throw new NumberFormatException( "Expected a long but was " + n );
+    }
+
+
+    @Override
+    public int nextInt() throws IOException
+    {
+        long l = nextLong();
+
+        if ( ( l < Integer.MIN_VALUE ) || ( l > Integer.MAX_VALUE ) )
+        {
+            throw new NumberFormatException( "Expected an int but was " + l );
+        }
+
+        return ( int ) l;
+    }
+
+
+    @Override
+    public void skipValue() throws IOException
+    {
+        int count = 0;
+
+        do
+        {
+            switch ( peek() )
+            {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    count++;
+                    break;
+
+                case BEGIN_OBJECT:
+                    beginObject();
+                    count++;
+                    break;
+
+                case END_ARRAY:
+                    endArray();
+                    count--;
+                    break;
+
+                case END_OBJECT:
+                    endObject();
+                    count--;
+                    break;
+
+                case NAME:
+                    nextName();
+                    break;
+
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+
+                case NULL:
+                    nextNull();
+                    break;
+
+                case END_DOCUMENT:
+                    return;
+
+                default:
+                    nextString();
+                    break;
+            }
+        }
+        while ( count > 0 );
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        peeked = null;
+        depth = 0;
+        in.close();
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName();
+    }
+
+
+    private void expect( JsonToken expected ) throws IOException
+    {
+        JsonToken token = peek();
+
+        if ( token != expected )
+        {
+            throw new IllegalStateException( "Expected " + expected + " but was " + token );
+        }
+
+        peeked = null;
+    }
+
+
+    private void push( boolean map, long length )
+    {
+        if ( depth == maps.length )
+        {
+            boolean[] newMaps = new boolean[depth * 2];
+            System.arraycopy( maps, 0, newMaps, 0, depth );
+            maps = newMaps;
+
+            long[] newRemaining = new long[depth * 2];
+            System.arraycopy( remaining, 0, newRemaining, 0, depth );
+            remaining = newRemaining;
+
+            boolean[] newExpectName = new boolean[depth * 2];
+            System.arraycopy( expectName, 0, newExpectName, 0, depth );
+            expectName = newExpectName;
+        }
+
+        maps[depth] = map;
+        remaining[depth] = length;
+        expectName[depth] = map;
+        depth++;
+    }
+
+
+    private void pop()
+    {
+        depth--;
+        consumed();
+    }
+
+
+    /**
+     * Accounts a value read at the current nesting level
+     */
+    private void consumed()
+    {
+        if ( depth == 0 )
+        {
+            finished = true;
+            return;
+        }
+
+        int top = depth - 1;
+
+        if ( maps[top] )
+        {
+            expectName[top] = true;
+        }
+
+        if ( remaining[top] > 0 )
+        {
+            remaining[top]--;
+        }
+    }
+
+
+    private Number readNumber() throws IOException
+    {
+        peeked = null;
+
+        int major = head >>> 5;
+
+        if ( major == MAJOR_SIMPLE )
+        {
+            if ( head == FLOAT16 )
+            {
+                return Double.valueOf( halfToDouble( ( readByte() << 8 ) | readByte() ) );
+            }
+            else if ( head == FLOAT32 )
+            {
+                return Double.valueOf( Float.intBitsToFloat( ( int ) readUnsigned( 4 ) ) );
+            }
+
+            return Double.valueOf( Double.longBitsToDouble( readUnsigned( 8 ) ) );
+        }
+
+        // the 8 bytes argument of an integer can be 2^64-1, readArgument() doesn't return it
+        long arg = ( ( head & 0x1F ) == 27 ) ? readUnsigned( 8 ) : readArgument( head );
+
+        if ( arg < 0 )
+        {
+            // beyond the range of a long
+            BigInteger bi = new BigInteger( 1, toBytes( arg ) );
+
+            return ( major == MAJOR_UNSIGNED ) ? bi : bi.add( BigInteger.ONE ).negate();
+        }
+
+        return Long.valueOf( ( major == MAJOR_UNSIGNED ) ? arg : -1 - arg );
+    }
+
+
+    private String readText( int head ) throws IOException
+    {
+        long length = readArgument( head );
+
+        if ( length == -1 )
+        {
+            // chunks of definite length text strings
+            StringBuilder sb = new StringBuilder();
+
+            while ( true )
+            {
+                int chunkHead = readByte();
+
+                if ( chunkHead == BREAK )
+                {
+                    break;
+                }
+
+                if ( ( ( chunkHead >>> 5 ) != MAJOR_TEXT ) || ( ( chunkHead & 0x1F ) == INDEFINITE ) )
+                {
+                    throw new MalformedJsonException( "Invalid chunk of an indefinite length text string" );
+                }
+
+                sb.append( readText( chunkHead ) );
+            }
+
+            return sb.toString();
+        }
+
+        if ( ( length < 0 ) || ( length > Integer.MAX_VALUE ) )
+        {
+            throw new MalformedJsonException( "Text string too long" );
+        }
+
+        int len = ( int ) length;
+
+        byte[] data;
+
+        if ( len <= MAX_PREALLOCATED )
+        {
+            data = new byte[len];
+            readFully( data, len );
+        }
+        else
+        {
+            // don't trust the announced length before the data is there
+            ByteArrayOutputStream bout = new ByteArrayOutputStream( MAX_PREALLOCATED );
+            byte[] chunk = new byte[MAX_PREALLOCATED];
+
+            while ( len > 0 )
+            {
+                int n = Math.min( len, chunk.length );
+                readFully( chunk, n );
+                bout.write( chunk, 0, n );
+                len -= n;
+            }
+
+            data = bout.toByteArray();
+        }
+
+        return new String( data, "UTF-8" );
+    }
+
+
+    /**
+     * @return the argument of the given initial byte, -1 for an indefinite length
+     */
+    private long readArgument( int head ) throws IOException
+    {
+        int info = head & 0x1F;
+
+        if ( info < 24 )
+        {
+            return info;
+        }
+
+        switch ( info )
+        {
+            case 24:
+                return readUnsigned( 1 );
+
+            case 25:
+                return readUnsigned( 2 );
+
+            case 26:
+                return readUnsigned( 4 );
+
+            case 27:
+                long l = readUnsigned( 8 );
+
+                if ( l == -1 )
+                {
+                    // not to be confused with an indefinite length
+                    throw new MalformedJsonException( "Unsupported length 2^64-1" );
+                }
+
+                return l;
+
+            case INDEFINITE:
+                int major = head >>> 5;
+
+                if ( ( major == MAJOR_UNSIGNED ) || ( major == MAJOR_NEGATIVE ) || ( major == MAJOR_TAG ) )
+                {
+                    throw new MalformedJsonException( "Invalid indefinite length" );
+                }
+
+                return -1;
+
+            default:
+                throw new MalformedJsonException( "Reserved additional information " + info );
+        }
+    }
+
+
+    private long readUnsigned( int size ) throws IOException
+    {
+        long l = 0;
+
+        for ( int i = 0; i < size; i++ )
+        {
+            l = ( l << 8 ) | readByte();
+        }
+
+        return l;
+    }
+
+
+    private int readByte() throws IOException
+    {
+        if ( pos == limit )
+        {
+            fill();
+        }
+
+        return buf[pos++] & 0xFF;
+    }
+
+
+    private void readFully( byte[] data, int len ) throws IOException
+    {
+        int off = 0;
+
+        while ( off < len )
+        {
+            if ( pos == limit )
+            {
+                fill();
+            }
+
+            int n = Math.min( len - off, limit - pos );
+            System.arraycopy( buf, pos, data, off, n );
+            pos += n;
+            off += n;
+        }
+    }
+
+
+    private void fill() throws IOException
+    {
+        int n = in.read( buf, 0, buf.length );
+
+        if ( n <= 0 )
+        {
+            throw new EOFException( "End of the CBOR input" );
+        }
+
+        pos = 0;
+        limit = n;
+    }
+
+
+    private static byte[] toBytes( long l )
+    {
+        byte[] b = new byte[8];
+
+        for ( int i = 7; i >= 0; i-- )
+        {
+            b[i] = ( byte ) l;
+            l >>>= 8;
+        }
+
+        return b;
+    }
+
+
+    private static double halfToDouble( int half )
+    {
+        int exp = ( half >> 10 ) & 0x1F;
+        int mant = half & 0x3FF;
+
+        double val;
+
+        if ( exp == 0 )
+        {
+            val = mant * Math.pow( 2, -24 );
+        }
+        else if ( exp != 31 )
+        {
+            val = ( mant + 1024 ) * Math.pow( 2, exp - 25 );
+        }
+        else
+        {
+            val = ( mant == 0 ) ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+
+        return ( ( half & 0x8000 ) != 0 ) ? -val : val;
+    }
+}
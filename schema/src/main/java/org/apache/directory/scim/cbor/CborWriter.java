@@ -0,0 +1,503 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.cbor;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.scim.StreamingWriter;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+
+/**
+ * Writes the SCIM data model in CBOR (RFC 7049). Objects and arrays are written
+ * with indefinite lengths so that they can be streamed, integers take the
+ * smallest encoding and the other numbers are written as doubles.
+ * 
+ * The property names and schema URIs are encoded once and cached.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CborWriter implements StreamingWriter
+{
+    /** the media type of CBOR data */
+    public static final String MEDIA_TYPE = "application/cbor";
+
+    static final int MAJOR_UNSIGNED = 0;
+
+    static final int MAJOR_NEGATIVE = 1;
+
+    static final int MAJOR_BYTES = 2;
+
+    static final int MAJOR_TEXT = 3;
+
+    static final int MAJOR_ARRAY = 4;
+
+    static final int MAJOR_MAP = 5;
+
+    static final int MAJOR_TAG = 6;
+
+    static final int MAJOR_SIMPLE = 7;
+
+    /** the additional information marking an indefinite length */
+    static final int INDEFINITE = 31;
+
+    static final int FALSE = 0xF4;
+
+    static final int TRUE = 0xF5;
+
+    static final int NULL = 0xF6;
+
+    static final int FLOAT16 = 0xF9;
+
+    static final int FLOAT32 = 0xFA;
+
+    static final int FLOAT64 = 0xFB;
+
+    static final int BREAK = 0xFF;
+
+    /** the maximum number of cached strings, strings beyond this are encoded each time */
+    private static final int MAX_CACHED_TOKENS = 4096;
+
+    /** encoded text strings keyed by the string */
+    private static final Map<String, byte[]> TOKENS = new ConcurrentHashMap<String, byte[]>();
+
+    private OutputStream out;
+
+    private byte[] buf = new byte[8192];
+
+    private int pos;
+
+
+    public CborWriter( OutputStream out )
+    {
+        this.out = out;
+    }
+
+
+    /**
+     * @return the encoded text string, header included
+     */
+    public static byte[] textToken( String s )
+    {
+        byte[] token = TOKENS.get( s );
+
+        if ( token == null )
+        {
+            CborWriter writer = new CborWriter( null );
+
+            try
+            {
+                writer.writeText( s );
+            }
+            catch ( IOException e )
+            {
+                // there is no stream, the bytes are only buffered
+                throw new IllegalStateException( e );
+            }
+
+            token = new byte[writer.pos];
+            System.arraycopy( writer.buf, 0, token, 0, writer.pos );
+
+            if ( TOKENS.size() < MAX_CACHED_TOKENS )
+            {
+                TOKENS.put( s, token );
+            }
+        }
+
+        return token;
+    }
+
+
+    public CborWriter beginObject() throws IOException
+    {
+        writeByte( ( MAJOR_MAP << 5 ) | INDEFINITE );
+
+        return this;
+    }
+
+
+    public CborWriter endObject() throws IOException
+    {
+        writeByte( BREAK );
+
+        return this;
+    }
+
+
+    public CborWriter beginArray() throws IOException
+    {
+        writeByte( ( MAJOR_ARRAY << 5 ) | INDEFINITE );
+
+        return this;
+    }
+
+
+    public CborWriter endArray() throws IOException
+    {
+        writeByte( BREAK );
+
+        return this;
+    }
+
+
+    public CborWriter name( String name ) throws IOException
+    {
+        writeBytes( textToken( name ) );
+
+        return this;
+    }
+
+
+    public CborWriter value( String value ) throws IOException
+    {
+        if ( value == null )
+        {
+            return nullValue();
+        }
+
+        writeText( value );
+
+        return this;
+    }
+
+
+    public CborWriter repeatedValue( String value ) throws IOException
+    {
+        if ( value == null )
+        {
+            return nullValue();
+        }
+
+        writeBytes( textToken( value ) );
+
+        return this;
+    }
+
+
+    public CborWriter value( Number value ) throws IOException
+    {
+        if ( value == null )
+        {
+            return nullValue();
+        }
+
+        if ( ( value instanceof Integer ) || ( value instanceof Long ) || ( value instanceof Short )
+            || ( value instanceof Byte ) )
+        {
+            return value( value.longValue() );
+        }
+
+        if ( ( value instanceof Double ) || ( value instanceof Float ) )
+        {
+            return writeDouble( value.doubleValue() );
+        }
+
+        // BigInteger, BigDecimal or a lazily parsed number, use an integer if it fits
+        try
+        {
+            BigInteger bi = new BigDecimal( value.toString() ).toBigIntegerExact();
+
+            if ( bi.bitLength() < 64 )
+            {
+                return value( bi.longValue() );
+            }
+        }
+        catch ( ArithmeticException e )
+        {
+            // has a fraction
+        }
+        catch ( NumberFormatException e )
+        {
+            // NaN or Infinity
+        }
+
+        return writeDouble( value.doubleValue() );
+    }
+
+
+    public CborWriter value( long value ) throws IOException
+    {
+        if ( value >= 0 )
+        {
+            writeHead( MAJOR_UNSIGNED, value );
+        }
+        else
+        {
+            writeHead( MAJOR_NEGATIVE, -1 - value );
+        }
+
+        return this;
+    }
+
+
+    public CborWriter value( boolean value ) throws IOException
+    {
+        writeByte( value ? TRUE : FALSE );
+
+        return this;
+    }
+
+
+    public CborWriter nullValue() throws IOException
+    {
+        writeByte( NULL );
+
+        return this;
+    }
+
+
+    /**
+     * Writes a JSON tree, used for the data that is not held in the streaming model
+     */
+    public CborWriter value( JsonElement el ) throws IOException
+    {
+        if ( ( el == null ) || el.isJsonNull() )
+        {
+            return nullValue();
+        }
+
+        if ( el.isJsonObject() )
+        {
+            beginObject();
+
+            for ( Entry<String, JsonElement> e : ( ( JsonObject ) el ).entrySet() )
+            {
+                name( e.getKey() );
+                value( e.getValue() );
+            }
+
+            return endObject();
+        }
+
+        if ( el.isJsonArray() )
+        {
+            beginArray();
+
+            for ( JsonElement je : ( JsonArray ) el )
+            {
+                value( je );
+            }
+
+            return endArray();
+        }
+
+        JsonPrimitive prim = ( JsonPrimitive ) el;
+
+        if ( prim.isBoolean() )
+        {
+            return value( prim.getAsBoolean() );
+        }
+
+        if ( prim.isNumber() )
+        {
+            return value( prim.getAsNumber() );
+        }
+
+        return value( prim.getAsString() );
+    }
+
+
+    public void flush() throws IOException
+    {
+        out.write( buf, 0, pos );
+        pos = 0;
+        out.flush();
+    }
+
+
+    private CborWriter writeDouble( double d ) throws IOException
+    {
+        ensure( 9 );
+
+        buf[pos++] = ( byte ) FLOAT64;
+
+        long bits = Double.doubleToLongBits( d );
+
+        for ( int shift = 56; shift >= 0; shift -= 8 )
+        {
+            buf[pos++] = ( byte ) ( bits >>> shift );
+        }
+
+        return this;
+    }
+
+
+    private void writeText( String s ) throws IOException
+    {
+        int len = s.length();
+
+        // most of the data is ASCII, its length is known without encoding it
+        boolean ascii = true;
+
+        for ( int i = 0; i < len; i++ )
+        {
+            if ( s.charAt( i ) >= 0x80 )
+            {
+                ascii = false;
+                break;
+            }
+        }
+
+        if ( ascii )
+        {
+            writeHead( MAJOR_TEXT, len );
+
+            for ( int i = 0; i < len; i++ )
+            {
+                if ( pos == buf.length )
+                {
+                    drain( 1 );
+                }
+
+                buf[pos++] = ( byte ) s.charAt( i );
+            }
+        }
+        else
+        {
+            byte[] data;
+
+            try
+            {
+                data = s.getBytes( "UTF-8" );
+            }
+            catch ( UnsupportedEncodingException e )
+            {
+                throw new IllegalStateException( e );
+            }
+
+            writeHead( MAJOR_TEXT, data.length );
+            writeBytes( data );
+        }
+    }
+
+
+    /**
+     * Writes the initial byte of a data item with its argument in the shortest form
+     */
+    private void writeHead( int major, long arg ) throws IOException
+    {
+        ensure( 9 );
+
+        int mt = major << 5;
+
+        if ( arg < 24 )
+        {
+            buf[pos++] = ( byte ) ( mt | ( int ) arg );
+        }
+        else if ( arg < 0x100 )
+        {
+            buf[pos++] = ( byte ) ( mt | 24 );
+            buf[pos++] = ( byte ) arg;
+        }
+        else if ( arg < 0x10000 )
+        {
+            buf[pos++] = ( byte ) ( mt | 25 );
+            buf[pos++] = ( byte ) ( arg >> 8 );
+            buf[pos++] = ( byte ) arg;
+        }
+        else if ( arg < 0x100000000L )
+        {
+            buf[pos++] = ( byte ) ( mt | 26 );
+            buf[pos++] = ( byte ) ( arg >> 24 );
+            buf[pos++] = ( byte ) ( arg >> 16 );
+            buf[pos++] = ( byte ) ( arg >> 8 );
+            buf[pos++] = ( byte ) arg;
+        }
+        else
+        {
+            buf[pos++] = ( byte ) ( mt | 27 );
+
+            for ( int shift = 56; shift >= 0; shift -= 8 )
+            {
+                buf[pos++] = ( byte ) ( arg >>> shift );
+            }
+        }
+    }
+
+
+    private void writeBytes( byte[] b ) throws IOException
+    {
+        if ( b.length > ( buf.length - pos ) )
+        {
+            drain( b.length );
+
+            if ( b.length > buf.length )
+            {
+                out.write( b );
+                return;
+            }
+        }
+
+        System.arraycopy( b, 0, buf, pos, b.length );
+        pos += b.length;
+    }
+
+
+    private void writeByte( int b ) throws IOException
+    {
+        if ( pos == buf.length )
+        {
+            drain( 1 );
+        }
+
+        buf[pos++] = ( byte ) b;
+    }
+
+
+    private void ensure( int needed ) throws IOException
+    {
+        if ( ( buf.length - pos ) < needed )
+        {
+            drain( needed );
+        }
+    }
+
+
+    /**
+     * Makes room for the given number of bytes, writes out the buffer when there is a stream
+     * and grows the buffer otherwise
+     */
+    private void drain( int needed ) throws IOException
+    {
+        if ( out != null )
+        {
+            out.write( buf, 0, pos );
+            pos = 0;
+        }
+        else if ( ( buf.length - pos ) < needed )
+        {
+            byte[] tmp = new byte[Math.max( buf.length * 2, pos + needed )];
+            System.arraycopy( buf, 0, tmp, 0, pos );
+            buf = tmp;
+        }
+    }
+}
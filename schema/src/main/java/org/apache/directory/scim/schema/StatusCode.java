@@ -47,11 +47,15 @@ public enum StatusCode
     
     PRECONDITION_FAILED(412, "Failed to update as Resource changed on the server since last retrieved"),
     
+    GONE(410, "The requested state is no longer available"),
+    
     REQUEST_ENTITY_TOO_LARGE(413, "Requested entity too large"),
     
     INTERNAL_SERVER_ERROR(500, "Internal server error"),
     
-    NOT_IMPLEMENTED(501, "Service Provider does not support the requested operation");
+    NOT_IMPLEMENTED(501, "Service Provider does not support the requested operation"),
+    
+    SERVICE_UNAVAILABLE(503, "Service Provider is temporarily unable to handle the request");
     
     private int val;
     
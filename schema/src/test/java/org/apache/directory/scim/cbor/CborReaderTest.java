@@ -0,0 +1,351 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.cbor;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+
+
+/**
+ * Tests for decoding the examples of the RFC 7049 appendix A.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CborReaderTest
+{
+    @Test
+    public void testIntegers() throws Exception
+    {
+        assertDecoded( "0", "00" );
+        assertDecoded( "1", "01" );
+        assertDecoded( "10", "0a" );
+        assertDecoded( "23", "17" );
+        assertDecoded( "24", "1818" );
+        assertDecoded( "25", "1819" );
+        assertDecoded( "100", "1864" );
+        assertDecoded( "1000", "1903e8" );
+        assertDecoded( "1000000", "1a000f4240" );
+        assertDecoded( "1000000000000", "1b000000e8d4a51000" );
+        assertDecoded( "18446744073709551615", "1bffffffffffffffff" );
+        assertDecoded( "-18446744073709551616", "3bffffffffffffffff" );
+        assertDecoded( "-1", "20" );
+        assertDecoded( "-10", "29" );
+        assertDecoded( "-100", "3863" );
+        assertDecoded( "-1000", "3903e7" );
+
+        assertEquals( Long.MAX_VALUE, reader( "1b7fffffffffffffff" ).nextLong() );
+        assertEquals( Long.MIN_VALUE, reader( "3b7fffffffffffffff" ).nextLong() );
+        assertEquals( 1000000, reader( "1a000f4240" ).nextInt() );
+    }
+
+
+    @Test( expected = NumberFormatException.class )
+    public void testIntegerBeyondLong() throws Exception
+    {
+        reader( "1bffffffffffffffff" ).nextLong();
+    }
+
+
+    @Test
+    public void testHalfFloats() throws Exception
+    {
+        assertDecoded( "0.0", "f90000" );
+        assertDecoded( "-0.0", "f98000" );
+        assertDecoded( "1.0", "f93c00" );
+        assertDecoded( "1.5", "f93e00" );
+        assertDecoded( "65504.0", "f97bff" );
+        assertDecoded( "5.9604644775390625E-8", "f90001" );
+        assertDecoded( "6.103515625E-5", "f90400" );
+        assertDecoded( "-4.0", "f9c400" );
+        assertDecoded( "Infinity", "f97c00" );
+        assertDecoded( "NaN", "f97e00" );
+        assertDecoded( "-Infinity", "f9fc00" );
+    }
+
+
+    @Test
+    public void testSingleAndDoubleFloats() throws Exception
+    {
+        assertDecoded( "100000.0", "fa47c35000" );
+        assertDecoded( "3.4028234663852886E38", "fa7f7fffff" );
+        assertDecoded( "Infinity", "fa7f800000" );
+        assertDecoded( "NaN", "fa7fc00000" );
+        assertDecoded( "-Infinity", "faff800000" );
+
+        assertDecoded( "1.1", "fb3ff199999999999a" );
+        assertDecoded( "1.0E300", "fb7e37e43c8800759c" );
+        assertDecoded( "-4.1", "fbc010666666666666" );
+        assertDecoded( "Infinity", "fb7ff0000000000000" );
+        assertDecoded( "NaN", "fb7ff8000000000000" );
+        assertDecoded( "-Infinity", "fbfff0000000000000" );
+
+        assertEquals( 1.1, reader( "fb3ff199999999999a" ).nextDouble(), 0 );
+        assertEquals( 100000L, reader( "fa47c35000" ).nextLong() );
+    }
+
+
+    @Test
+    public void testSimpleValues() throws Exception
+    {
+        assertDecoded( false, "f4" );
+        assertDecoded( true, "f5" );
+        assertDecoded( null, "f6" );
+    }
+
+
+    @Test
+    public void testTextStrings() throws Exception
+    {
+        assertDecoded( "", "60" );
+        assertDecoded( "a", "6161" );
+        assertDecoded( "IETF", "6449455446" );
+        assertDecoded( "\"\\", "62225c" );
+        assertDecoded( "\u00fc", "62c3bc" );
+        assertDecoded( "\u6c34", "63e6b0b4" );
+        assertDecoded( "\ud800\udd51", "64f0908591" );
+        assertDecoded( "streaming", "7f657374726561646d696e67ff" );
+    }
+
+
+    @Test
+    public void testDefiniteArraysAndMaps() throws Exception
+    {
+        assertDecoded( list(), "80" );
+        assertDecoded( list( "1", "2", "3" ), "83010203" );
+        assertDecoded( list( "1", list( "2", "3" ), list( "4", "5" ) ), "8301820203820405" );
+        assertDecoded( oneToTwentyFive(), "98190102030405060708090a0b0c0d0e0f101112131415161718181819" );
+
+        assertDecoded( map(), "a0" );
+        assertDecoded( map( "a", "1", "b", list( "2", "3" ) ), "a26161016162820203" );
+        assertDecoded( list( "a", map( "b", "c" ) ), "826161a161626163" );
+        assertDecoded( map( "a", "A", "b", "B", "c", "C", "d", "D", "e", "E" ),
+            "a56161614161626142616361436164614461656145" );
+    }
+
+
+    @Test
+    public void testIndefiniteArraysAndMaps() throws Exception
+    {
+        Object nested = list( "1", list( "2", "3" ), list( "4", "5" ) );
+
+        assertDecoded( list(), "9fff" );
+        assertDecoded( nested, "9f018202039f0405ffff" );
+        assertDecoded( nested, "9f01820203820405ff" );
+        assertDecoded( nested, "83018202039f0405ff" );
+        assertDecoded( nested, "83019f0203ff820405" );
+        assertDecoded( oneToTwentyFive(), "9f0102030405060708090a0b0c0d0e0f101112131415161718181819ff" );
+
+        assertDecoded( map( "a", "1", "b", list( "2", "3" ) ), "bf61610161629f0203ffff" );
+        assertDecoded( list( "a", map( "b", "c" ) ), "826161bf61626163ff" );
+        assertDecoded( map( "Fun", true, "Amt", "-2" ), "bf6346756ef563416d7421ff" );
+    }
+
+
+    @Test
+    public void testTags() throws Exception
+    {
+        assertDecoded( "2013-03-21T20:04:00Z", "c074323031332d30332d32315432303a30343a30305a" );
+        assertDecoded( "1363896240", "c11a514b67b0" );
+        assertDecoded( "1.3638962405E9", "c1fb41d452d9ec200000" );
+        assertDecoded( "http://www.example.com", "d82076687474703a2f2f7777772e6578616d706c652e636f6d" );
+    }
+
+
+    @Test
+    public void testUnsupported() throws Exception
+    {
+        // undefined and the other simple values
+        assertMalformed( "f7" );
+        assertMalformed( "f0" );
+        assertMalformed( "f818" );
+        assertMalformed( "f8ff" );
+
+        // bignums and the other byte strings
+        assertMalformed( "c249010000000000000000" );
+        assertMalformed( "c349010000000000000000" );
+        assertMalformed( "d74401020304" );
+        assertMalformed( "40" );
+        assertMalformed( "4401020304" );
+        assertMalformed( "5f42010243030405ff" );
+
+        // maps without text keys
+        assertMalformed( "a201020304" );
+        assertMalformed( "bf0102ff" );
+    }
+
+
+    @Test
+    public void testMalformed() throws Exception
+    {
+        // reserved additional information
+        assertMalformed( "1c" );
+
+        // indefinite length integer
+        assertMalformed( "1f" );
+
+        // break in a definite length array
+        assertMalformed( "81ff" );
+
+        // key without a value
+        assertMalformed( "bf6161ff" );
+
+        // chunk of another type in an indefinite length text string
+        assertMalformed( "7f4161ff" );
+
+        // truncated
+        try
+        {
+            read( reader( "830102" ) );
+            fail( "Decoded a truncated array" );
+        }
+        catch ( EOFException e )
+        {
+            // expected
+        }
+    }
+
+
+    private static void assertDecoded( Object expected, String hex ) throws IOException
+    {
+        JsonReader reader = reader( hex );
+
+        assertEquals( expected, read( reader ) );
+        assertEquals( false, reader.hasNext() );
+    }
+
+
+    private static void assertMalformed( String hex ) throws IOException
+    {
+        try
+        {
+            read( reader( hex ) );
+            fail( "Decoded the malformed data " + hex );
+        }
+        catch ( MalformedJsonException e )
+        {
+            // expected
+        }
+    }
+
+
+    /**
+     * reads a value as lists, maps, booleans and strings, the numbers are read as strings
+     */
+    private static Object read( JsonReader reader ) throws IOException
+    {
+        switch ( reader.peek() )
+        {
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<Object>();
+
+                reader.beginArray();
+                while ( reader.hasNext() )
+                {
+                    list.add( read( reader ) );
+                }
+                reader.endArray();
+
+                return list;
+
+            case BEGIN_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+                reader.beginObject();
+                while ( reader.hasNext() )
+                {
+                    String name = reader.nextName();
+                    map.put( name, read( reader ) );
+                }
+                reader.endObject();
+
+                return map;
+
+            case BOOLEAN:
+                return reader.nextBoolean();
+
+            case NULL:
+                reader.nextNull();
+                return null;
+
+            default:
+                return reader.nextString();
+        }
+    }
+
+
+    private static JsonReader reader( String hex )
+    {
+        byte[] data = new byte[hex.length() / 2];
+
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = ( byte ) Integer.parseInt( hex.substring( i * 2, i * 2 + 2 ), 16 );
+        }
+
+        return new CborReader( new ByteArrayInputStream( data ) );
+    }
+
+
+    private static List<Object> list( Object... values )
+    {
+        return Arrays.asList( values );
+    }
+
+
+    private static Map<String, Object> map( Object... keysAndValues )
+    {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+        for ( int i = 0; i < keysAndValues.length; i += 2 )
+        {
+            map.put( ( String ) keysAndValues[i], keysAndValues[i + 1] );
+        }
+
+        return map;
+    }
+
+
+    private static List<Object> oneToTwentyFive()
+    {
+        List<Object> list = new ArrayList<Object>();
+
+        for ( int i = 1; i <= 25; i++ )
+        {
+            list.add( String.valueOf( i ) );
+        }
+
+        return list;
+    }
+}
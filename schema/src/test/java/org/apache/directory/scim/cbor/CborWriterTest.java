@@ -0,0 +1,152 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.cbor;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.internal.bind.TypeAdapters;
+
+
+/**
+ * Tests for encoding the examples of the RFC 7049 appendix A.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CborWriterTest
+{
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private CborWriter writer = new CborWriter( out );
+
+
+    @Test
+    public void testIntegers() throws Exception
+    {
+        assertEncoded( "00", writer.value( 0 ) );
+        assertEncoded( "17", writer.value( 23 ) );
+        assertEncoded( "1818", writer.value( 24 ) );
+        assertEncoded( "1864", writer.value( 100 ) );
+        assertEncoded( "1903e8", writer.value( 1000 ) );
+        assertEncoded( "1a000f4240", writer.value( 1000000 ) );
+        assertEncoded( "1b000000e8d4a51000", writer.value( 1000000000000L ) );
+        assertEncoded( "20", writer.value( -1 ) );
+        assertEncoded( "29", writer.value( -10 ) );
+        assertEncoded( "3863", writer.value( -100 ) );
+        assertEncoded( "3903e7", writer.value( -1000 ) );
+        assertEncoded( "1b7fffffffffffffff", writer.value( Long.MAX_VALUE ) );
+        assertEncoded( "3b7fffffffffffffff", writer.value( Long.MIN_VALUE ) );
+
+        // the numbers that are integers take the integer encoding
+        assertEncoded( "1903e8", writer.value( ( Number ) new BigInteger( "1000" ) ) );
+        assertEncoded( "3903e7", writer.value( ( Number ) Integer.valueOf( -1000 ) ) );
+    }
+
+
+    @Test
+    public void testFloats() throws Exception
+    {
+        assertEncoded( "fb3ff199999999999a", writer.value( ( Number ) Double.valueOf( 1.1 ) ) );
+        assertEncoded( "fb7e37e43c8800759c", writer.value( ( Number ) Double.valueOf( 1.0e300 ) ) );
+        assertEncoded( "fbc010666666666666", writer.value( ( Number ) Double.valueOf( -4.1 ) ) );
+        assertEncoded( "fb7ff0000000000000", writer.value( ( Number ) Double.valueOf( Double.POSITIVE_INFINITY ) ) );
+        assertEncoded( "fb7ff8000000000000", writer.value( ( Number ) Double.valueOf( Double.NaN ) ) );
+
+        // beyond the range of a long
+        assertEncoded( "fb43f0000000000000", writer.value( ( Number ) new BigInteger( "18446744073709551616" ) ) );
+    }
+
+
+    @Test
+    public void testSimpleValuesAndStrings() throws Exception
+    {
+        assertEncoded( "f4", writer.value( false ) );
+        assertEncoded( "f5", writer.value( true ) );
+        assertEncoded( "f6", writer.nullValue() );
+        assertEncoded( "f6", writer.value( ( String ) null ) );
+
+        assertEncoded( "60", writer.value( "" ) );
+        assertEncoded( "6449455446", writer.value( "IETF" ) );
+        assertEncoded( "62225c", writer.value( "\"\\" ) );
+        assertEncoded( "62c3bc", writer.value( "\u00fc" ) );
+        assertEncoded( "63e6b0b4", writer.repeatedValue( "\u6c34" ) );
+        assertEncoded( "64f0908591", writer.value( "\ud800\udd51" ) );
+
+        assertEquals( "6449455446", hex( CborWriter.textToken( "IETF" ) ) );
+    }
+
+
+    @Test
+    public void testIndefiniteArraysAndMaps() throws Exception
+    {
+        assertEncoded( "9fff", writer.beginArray().endArray() );
+        assertEncoded( "bf6346756ef563416d7421ff",
+            writer.beginObject().name( "Fun" ).value( true ).name( "Amt" ).value( -2 ).endObject() );
+        assertEncoded( "9f01bf61619f0203ffffff", writer.beginArray().value( 1 ).beginObject().name( "a" )
+            .value( new JsonParser().parse( "[2,3]" ) ).endObject().endArray() );
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        String json = "{\"a\":[1,-2,1.5,\"x\",true,null,{}],\"b\":{\"c\":[]},\"d\":\"\\u00fc\"}";
+
+        JsonElement el = new JsonParser().parse( json );
+        writer.value( el ).flush();
+
+        CborReader reader = new CborReader( new ByteArrayInputStream( out.toByteArray() ) );
+
+        assertEquals( el, TypeAdapters.JSON_ELEMENT.read( reader ) );
+    }
+
+
+    private void assertEncoded( String expected, CborWriter w ) throws IOException
+    {
+        w.flush();
+
+        assertEquals( expected, hex( out.toByteArray() ) );
+
+        out.reset();
+    }
+
+
+    private static String hex( byte[] data )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for ( byte b : data )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0x0F, 16 ) );
+            sb.append( Character.forDigit( b & 0x0F, 16 ) );
+        }
+
+        return sb.toString();
+    }
+}
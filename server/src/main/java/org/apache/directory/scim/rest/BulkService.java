@@ -0,0 +1,683 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.rest;
+
+
+import static org.apache.directory.scim.ScimUtil.buildError;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.directory.scim.BulkOperation;
+import org.apache.directory.scim.BulkOperation.Method;
+import org.apache.directory.scim.RequestContext;
+import org.apache.directory.scim.ResourceProvider;
+import org.apache.directory.scim.ScimUtil;
+import org.apache.directory.scim.ServerResource;
+import org.apache.directory.scim.exception.RequestTooLargeException;
+import org.apache.directory.scim.json.ResourceSerializer;
+import org.apache.directory.scim.schema.ErrorResponse;
+import org.apache.directory.scim.schema.ErrorResponse.ScimError;
+import org.apache.directory.scim.schema.StatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+
+/**
+ * Handles the bulk requests defined in RFC 7644 section 3.7.
+ * 
+ * The operations are performed using the add, put, patch and delete methods of the
+ * resource provider. An operation referring to the resource created by another operation
+ * using its bulkId is started only after that operation succeeded, operations on the same
+ * resource are performed in the order they are present in the request, all the other
+ * operations are performed in parallel.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Path("/Bulk")
+public class BulkService
+{
+    private static final Logger LOG = LoggerFactory.getLogger( BulkService.class );
+
+    /** the name of the context parameter holding the maximum number of operations in a bulk request */
+    public static final String MAX_OPERATIONS_PARAM = "bulkMaxOperations";
+
+    /** the name of the context parameter holding the maximum size of a bulk request in bytes */
+    public static final String MAX_PAYLOAD_SIZE_PARAM = "bulkMaxPayloadSize";
+
+    /** the name of the context parameter holding the number of threads performing the operations */
+    public static final String THREADS_PARAM = "bulkThreads";
+
+    private static final int DEFAULT_MAX_OPERATIONS = 1000;
+
+    private static final long DEFAULT_MAX_PAYLOAD_SIZE = 1048576;
+
+    private static final int DEFAULT_THREADS = 8;
+
+    private ExecutorService executor;
+
+    @Context
+    private ServletContext servletCtx;
+
+
+    public BulkService( int threads )
+    {
+        executor = Executors.newFixedThreadPool( threads, new ThreadFactory()
+        {
+            private AtomicInteger count = new AtomicInteger();
+
+
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "escimo-bulk-" + count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+
+    /**
+     * Creates the service using the number of threads configured in the given context
+     */
+    public static BulkService create( ServletContext ctx )
+    {
+        int threads = ( int ) getParam( ctx, THREADS_PARAM, DEFAULT_THREADS );
+
+        return new BulkService( threads );
+    }
+
+
+    public void stop()
+    {
+        executor.shutdownNow();
+    }
+
+
+    public static int getMaxOperations( ServletContext ctx )
+    {
+        return ( int ) getParam( ctx, MAX_OPERATIONS_PARAM, DEFAULT_MAX_OPERATIONS );
+    }
+
+
+    public static long getMaxPayloadSize( ServletContext ctx )
+    {
+        return getParam( ctx, MAX_PAYLOAD_SIZE_PARAM, DEFAULT_MAX_PAYLOAD_SIZE );
+    }
+
+
+    private static long getParam( ServletContext ctx, String name, long defaultValue )
+    {
+        String val = ctx.getInitParameter( name );
+
+        if ( val == null )
+        {
+            return defaultValue;
+        }
+
+        return Long.parseLong( val.trim() );
+    }
+
+
+    @POST
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response processBulk( InputStream in, @Context UriInfo uriInfo, @Context HttpServletRequest httpReq )
+    {
+        long maxPayloadSize = getMaxPayloadSize( servletCtx );
+
+        LimitedInputStream body = null;
+
+        try
+        {
+            if ( httpReq.getContentLength() > maxPayloadSize )
+            {
+                throw new RequestTooLargeException( "The size of the bulk request exceeds the maxPayloadSize "
+                    + maxPayloadSize );
+            }
+
+            body = new LimitedInputStream( in, maxPayloadSize );
+
+            JsonElement el = new JsonParser().parse( new InputStreamReader( body, "UTF-8" ) );
+
+            if ( !el.isJsonObject() )
+            {
+                throw new IllegalArgumentException( "The bulk request is not a JSON object" );
+            }
+
+            JsonObject obj = el.getAsJsonObject();
+
+            List<BulkOperation> operations = BulkOperation.parseAll( obj );
+
+            int maxOperations = getMaxOperations( servletCtx );
+
+            if ( operations.size() > maxOperations )
+            {
+                throw new RequestTooLargeException( "The number of operations exceeds the maxOperations "
+                    + maxOperations );
+            }
+
+            int failOnErrors = 0;
+
+            JsonElement failEl = obj.get( "failOnErrors" );
+
+            if ( ( failEl != null ) && !failEl.isJsonNull() )
+            {
+                failOnErrors = failEl.getAsInt();
+            }
+
+            ResourceProvider provider = ( ResourceProvider ) servletCtx
+                .getAttribute( ResourceProvider.SERVLET_CONTEXT_ATTRIBUTE_KEY );
+
+            JsonObject[] results = new BulkExecution( provider, operations, failOnErrors, uriInfo, httpReq ).run();
+
+            JsonArray schemas = new JsonArray();
+            schemas.add( new JsonPrimitive( BulkOperation.BULK_RESPONSE_URI ) );
+
+            JsonArray resultArray = new JsonArray();
+
+            for ( JsonObject result : results )
+            {
+                // the operations that were not performed after reaching the failOnErrors limit are left out
+                if ( result != null )
+                {
+                    resultArray.add( result );
+                }
+            }
+
+            JsonObject resp = new JsonObject();
+            resp.add( "schemas", schemas );
+            resp.add( BulkOperation.OPERATIONS, resultArray );
+
+            return Response.ok( resp.toString(), MediaType.APPLICATION_JSON ).build();
+        }
+        catch ( Exception e )
+        {
+            if ( ( body != null ) && body.isExceeded() )
+            {
+                e = new RequestTooLargeException( "The size of the bulk request exceeds the maxPayloadSize "
+                    + maxPayloadSize );
+            }
+            else if ( e instanceof JsonParseException )
+            {
+                e = new IllegalArgumentException( "Invalid JSON payload, " + e.getMessage(), e );
+            }
+
+            return buildError( e ).build();
+        }
+    }
+
+
+    /**
+     * Performs the operations of a single bulk request. All the bookkeeping is done
+     * in the thread serving the request, the worker threads only call the provider.
+     */
+    private class BulkExecution
+    {
+        private ResourceProvider provider;
+
+        private List<BulkOperation> operations;
+
+        private int failOnErrors;
+
+        private UriInfo uriInfo;
+
+        private HttpServletRequest httpReq;
+
+        private JsonObject[] results;
+
+        /** the number of operations each operation is waiting for */
+        private int[] pending;
+
+        /** the operations waiting for each operation */
+        private List<List<Integer>> dependents;
+
+        /** the IDs of the created resources keyed by bulkId */
+        private Map<String, String> resourceIds = new HashMap<String, String>();
+
+        private LinkedList<Integer> ready = new LinkedList<Integer>();
+
+        private boolean[] queued;
+
+        private int errors;
+
+
+        private BulkExecution( ResourceProvider provider, List<BulkOperation> operations, int failOnErrors,
+            UriInfo uriInfo, HttpServletRequest httpReq )
+        {
+            this.provider = provider;
+            this.operations = operations;
+            this.failOnErrors = failOnErrors;
+            this.uriInfo = uriInfo;
+            this.httpReq = httpReq;
+
+            int size = operations.size();
+
+            results = new JsonObject[size];
+            pending = new int[size];
+            queued = new boolean[size];
+            dependents = new ArrayList<List<Integer>>( size );
+
+            for ( int i = 0; i < size; i++ )
+            {
+                dependents.add( new ArrayList<Integer>() );
+            }
+        }
+
+
+        private JsonObject[] run() throws Exception
+        {
+            buildGraph();
+
+            CompletionService<OperationTask> cs = new ExecutorCompletionService<OperationTask>( executor );
+
+            int running = 0;
+
+            while ( true )
+            {
+                while ( !isStopped() && !ready.isEmpty() )
+                {
+                    int i = ready.removeFirst();
+
+                    BulkOperation op = operations.get( i );
+
+                    try
+                    {
+                        op.resolveReferences( resourceIds );
+                    }
+                    catch ( IllegalArgumentException e )
+                    {
+                        fail( i, new ScimError( StatusCode.BAD_REQUEST, e.getMessage() ) );
+                        continue;
+                    }
+
+                    RequestContext ctx = provider.createCtx( uriInfo, httpReq );
+                    ctx.setResourcePath( op.getPath() );
+
+                    // the headers of the bulk request don't apply to its operations
+                    Map<String, String> headers = new HashMap<String, String>();
+
+                    if ( op.getVersion() != null )
+                    {
+                        headers.put( "If-Match", op.getVersion() );
+                    }
+
+                    ctx.setReqHeaders( headers );
+
+                    cs.submit( new OperationTask( i, op, ctx ) );
+                    running++;
+                }
+
+                if ( running == 0 )
+                {
+                    break;
+                }
+
+                OperationTask task = cs.take().get();
+                running--;
+
+                int i = task.index;
+                JsonObject result = task.result;
+                results[i] = result;
+
+                if ( result.has( "response" ) )
+                {
+                    errors++;
+                    failDependents( i );
+                }
+                else
+                {
+                    BulkOperation op = operations.get( i );
+
+                    if ( op.getBulkId() != null )
+                    {
+                        resourceIds.put( op.getBulkId(), result.get( "id" ).getAsString() );
+                    }
+
+                    result.remove( "id" );
+
+                    release( i );
+                }
+            }
+
+            if ( !isStopped() )
+            {
+                // the operations which were never ready are part of a reference cycle
+                for ( int i = 0; i < results.length; i++ )
+                {
+                    if ( results[i] == null )
+                    {
+                        setError( i, new ScimError( StatusCode.CONFLICT,
+                            "Circular reference between the operations of the bulk request" ) );
+                    }
+                }
+            }
+
+            return results;
+        }
+
+
+        /**
+         * Links each operation to the operations it depends on and queues the operations that are ready
+         */
+        private void buildGraph()
+        {
+            Map<String, Integer> opByBulkId = new HashMap<String, Integer>();
+            Map<String, Integer> lastOpByPath = new HashMap<String, Integer>();
+
+            for ( int i = 0; i < operations.size(); i++ )
+            {
+                BulkOperation op = operations.get( i );
+
+                if ( op.getBulkId() != null )
+                {
+                    opByBulkId.put( op.getBulkId(), i );
+                }
+            }
+
+            List<Integer> invalid = new ArrayList<Integer>();
+
+            for ( int i = 0; i < operations.size(); i++ )
+            {
+                BulkOperation op = operations.get( i );
+
+                for ( String ref : op.getReferences() )
+                {
+                    Integer target = opByBulkId.get( ref );
+
+                    if ( target == null )
+                    {
+                        invalid.add( i );
+                    }
+                    else
+                    {
+                        addDependency( target, i );
+                    }
+                }
+
+                if ( op.getMethod() != Method.POST )
+                {
+                    Integer previous = lastOpByPath.put( op.getPath(), i );
+
+                    if ( previous != null )
+                    {
+                        addDependency( previous, i );
+                    }
+                }
+            }
+
+            for ( int i : invalid )
+            {
+                if ( results[i] == null )
+                {
+                    fail( i, new ScimError( StatusCode.BAD_REQUEST, "The operation refers to an unknown bulkId" ) );
+                }
+            }
+
+            for ( int i = 0; i < operations.size(); i++ )
+            {
+                if ( pending[i] == 0 )
+                {
+                    enqueue( i );
+                }
+            }
+        }
+
+
+        private void addDependency( int target, int dependent )
+        {
+            dependents.get( target ).add( dependent );
+            pending[dependent]++;
+        }
+
+
+        private void release( int i )
+        {
+            for ( int d : dependents.get( i ) )
+            {
+                release( i, d );
+            }
+        }
+
+
+        private void release( int i, int dependent )
+        {
+            pending[dependent]--;
+
+            if ( pending[dependent] == 0 )
+            {
+                enqueue( dependent );
+            }
+        }
+
+
+        private void enqueue( int i )
+        {
+            if ( ( results[i] == null ) && !queued[i] )
+            {
+                queued[i] = true;
+                ready.add( i );
+            }
+        }
+
+
+        private void fail( int i, ScimError error )
+        {
+            setError( i, error );
+            errors++;
+            failDependents( i );
+        }
+
+
+        /**
+         * Fails the operations referring to the resource the failed operation should have created,
+         * the operations which only had to wait for the failed operation are still performed
+         */
+        private void failDependents( int i )
+        {
+            BulkOperation failed = operations.get( i );
+
+            for ( int d : dependents.get( i ) )
+            {
+                if ( results[d] != null )
+                {
+                    continue;
+                }
+
+                if ( ( failed.getBulkId() != null ) && operations.get( d ).getReferences().contains( failed.getBulkId() ) )
+                {
+                    fail( d, new ScimError( StatusCode.CONFLICT, "The operation refers to the failed operation with bulkId "
+                        + failed.getBulkId() ) );
+                }
+                else
+                {
+                    release( i, d );
+                }
+            }
+        }
+
+
+        private void setError( int i, ScimError error )
+        {
+            BulkOperation op = operations.get( i );
+
+            results[i] = createResult( op, error.getCode().getVal() );
+            results[i].add( "response", toJson( error ) );
+        }
+
+
+        private boolean isStopped()
+        {
+            return ( failOnErrors > 0 ) && ( errors >= failOnErrors );
+        }
+    }
+
+
+    /**
+     * Performs a single operation in a worker thread
+     */
+    private class OperationTask implements Callable<OperationTask>
+    {
+        private int index;
+
+        private BulkOperation op;
+
+        private RequestContext ctx;
+
+        private JsonObject result;
+
+
+        private OperationTask( int index, BulkOperation op, RequestContext ctx )
+        {
+            this.index = index;
+            this.op = op;
+            this.ctx = ctx;
+        }
+
+
+        public OperationTask call() throws Exception
+        {
+            ResourceProvider provider = ctx.getProviderService();
+
+            try
+            {
+                ServerResource res = null;
+                int status = 200;
+
+                switch ( op.getMethod() )
+                {
+                    case POST:
+                        provider.addResource( op.getData().toString(), ctx );
+                        res = ctx.getCoreResource();
+                        status = 201;
+                        break;
+
+                    case PUT:
+                        res = provider.putResource( op.getResourceId(), op.getData().toString(), ctx );
+                        break;
+
+                    case PATCH:
+                        res = provider.patchResource( op.getResourceId(), op.getData().toString(), ctx );
+
+                        if ( res == null )
+                        {
+                            status = 204;
+                        }
+
+                        break;
+
+                    case DELETE:
+                        provider.deleteResource( op.getResourceId(), ctx );
+                        status = 204;
+                        break;
+                }
+
+                result = createResult( op, status );
+
+                String id = op.getResourceId();
+
+                if ( res != null )
+                {
+                    id = res.getId();
+
+                    if ( res.getVersion() != null )
+                    {
+                        result.addProperty( "version", "W/\"" + res.getVersion() + "\"" );
+                    }
+                }
+
+                if ( op.getMethod() != Method.DELETE )
+                {
+                    result.addProperty( "location", uriBase( ctx ) + op.getEndpoint().substring( 1 ) + "/" + id );
+                }
+
+                // used for resolving the references to this operation, removed before sending the response
+                result.addProperty( "id", id );
+            }
+            catch ( Exception e )
+            {
+                LOG.debug( "Failed to perform the bulk operation {}", op, e );
+
+                ScimError error = ScimUtil.buildScimError( e, false );
+
+                result = createResult( op, error.getCode().getVal() );
+                result.add( "response", toJson( error ) );
+            }
+
+            return this;
+        }
+    }
+
+
+    private static JsonObject createResult( BulkOperation op, int status )
+    {
+        JsonObject result = new JsonObject();
+        result.addProperty( "method", op.getMethod().name() );
+
+        if ( op.getBulkId() != null )
+        {
+            result.addProperty( "bulkId", op.getBulkId() );
+        }
+
+        result.addProperty( "status", String.valueOf( status ) );
+
+        return result;
+    }
+
+
+    private static JsonElement toJson( ScimError error )
+    {
+        return new JsonParser().parse( ResourceSerializer.serialize( new ErrorResponse( error ) ) );
+    }
+
+
+    private static String uriBase( RequestContext ctx )
+    {
+        return ctx.getUriInfo().getBaseUri().toString();
+    }
+}
@@ -41,6 +41,8 @@ public class EscimoContextListener implements ServletContextListener
 {
     private static ResourceProvider provider;
 
+    private static BulkService bulkService;
+
 
     public void contextInitialized( ServletContextEvent sce )
     {
@@ -78,11 +80,23 @@ public class EscimoContextListener implements ServletContextListener
             service.setPath( uri );
             instances.add( service );
         }
+
+        bulkService = BulkService.create( sce.getServletContext() );
+        instances.add( bulkService );
+
+        instances.add( new ImportService() );
+
+        instances.add( new EventService() );
     }
 
 
     public void contextDestroyed( ServletContextEvent sce )
     {
+        if ( bulkService != null )
+        {
+            bulkService.stop();
+        }
+
         provider.stop();
     }
 
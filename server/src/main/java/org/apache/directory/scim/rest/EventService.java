@@ -0,0 +1,190 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.rest;
+
+
+import static org.apache.directory.scim.ScimUtil.buildError;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.directory.scim.ChangeEvent;
+import org.apache.directory.scim.EventSubscription;
+import org.apache.directory.scim.RequestContext;
+import org.apache.directory.scim.ResourceProvider;
+import org.apache.directory.scim.exception.EscimoException;
+import org.apache.directory.scim.json.ResourceSerializer;
+import org.apache.directory.scim.json.Utf8JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Streams the changes made to the resources of a type as Server-Sent Events, e.x.
+ * <pre>
+ * id: 1445412356802-17
+ * event: update
+ * data: {"type":"update", "resourceType":"User", "id":"2819c223"}
+ * </pre>
+ * 
+ * The changed resources are sent along with their IDs when includeResource=true is given.
+ * A client reconnecting with the Last-Event-ID header receives the events it missed if they are
+ * still buffered, otherwise it gets a <code>resync</code> event and must read all the resources
+ * again. The same event is sent to a client that cannot keep up with the changes, the stream
+ * ends after it.
+ *
+ * Each subscriber holds a request thread as long as it is connected.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Path("/Events")
+public class EventService
+{
+    public static final String EVENT_STREAM = "text/event-stream";
+
+    /** the time after which a comment is sent when there are no events, detects the closed connections */
+    private static final long HEARTBEAT_INTERVAL = 15 * 1000;
+
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes( Charset.forName( "UTF-8" ) );
+
+    private static final Logger LOG = LoggerFactory.getLogger( EventService.class );
+
+    @Context
+    private ServletContext servletCtx;
+
+
+    @GET
+    @Produces({ EVENT_STREAM })
+    public Response subscribe( @QueryParam("resourceType") String resourceType,
+        @QueryParam("attributes") String attributes, @QueryParam("includeResource") boolean includeResource,
+        @HeaderParam("Last-Event-ID") String lastEventId, @Context UriInfo uriInfo,
+        @Context HttpServletRequest httpReq )
+    {
+        try
+        {
+            if ( ( resourceType == null ) || ( resourceType.trim().length() == 0 ) )
+            {
+                throw new IllegalArgumentException( "The resourceType parameter is required" );
+            }
+
+            ResourceProvider provider = ( ResourceProvider ) servletCtx
+                .getAttribute( ResourceProvider.SERVLET_CONTEXT_ATTRIBUTE_KEY );
+
+            RequestContext ctx = provider.createCtx( uriInfo, httpReq );
+
+            final EventSubscription subscription = provider.subscribe( resourceType.trim(), attributes,
+                includeResource, lastEventId, ctx );
+
+            StreamingOutput streamOut = new StreamingOutput()
+            {
+                public void write( OutputStream output ) throws IOException, WebApplicationException
+                {
+                    try
+                    {
+                        stream( subscription, output );
+                    }
+                    finally
+                    {
+                        subscription.close();
+                    }
+                }
+            };
+
+            return Response.ok( streamOut, EVENT_STREAM ).header( "Cache-Control", "no-cache" ).build();
+        }
+        catch ( Exception e )
+        {
+            return buildError( e ).build();
+        }
+    }
+
+
+    private static void stream( EventSubscription subscription, OutputStream output ) throws IOException
+    {
+        // the headers are sent right away
+        output.flush();
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        while ( !Thread.currentThread().isInterrupted() )
+        {
+            ChangeEvent event;
+
+            try
+            {
+                event = subscription.next( HEARTBEAT_INTERVAL );
+            }
+            catch ( EscimoException e )
+            {
+                LOG.warn( "Failed to read the next change event, ending the stream" );
+                LOG.debug( "", e );
+                return;
+            }
+
+            if ( event == null )
+            {
+                output.write( HEARTBEAT );
+                output.flush();
+                continue;
+            }
+
+            data.reset();
+            ResourceSerializer.serialize( event, new Utf8JsonWriter( data ) );
+
+            StringBuilder sb = new StringBuilder();
+
+            if ( event.getEventId() != null )
+            {
+                sb.append( "id: " ).append( event.getEventId() ).append( '\n' );
+            }
+
+            sb.append( "event: " ).append( event.getType().name().toLowerCase( Locale.ENGLISH ) ).append( '\n' );
+            sb.append( "data: " );
+
+            output.write( sb.toString().getBytes( "UTF-8" ) );
+            // the serialized JSON holds no line breaks
+            data.writeTo( output );
+            output.write( '\n' );
+            output.write( '\n' );
+            output.flush();
+
+            if ( event.getType() == ChangeEvent.Type.RESYNC )
+            {
+                return;
+            }
+        }
+    }
+}
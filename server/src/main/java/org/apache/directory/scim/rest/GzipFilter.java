@@ -0,0 +1,728 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.rest;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A filter negotiating the gzip content coding.
+ * 
+ * Request bodies sent with <code>Content-Encoding: gzip</code> are inflated while
+ * they are read, so the body size limits apply to the decompressed data.
+ * 
+ * Responses are compressed when the client accepts gzip and the body reaches
+ * the <code>minSize</code> threshold. Only the first minSize bytes are held back
+ * to take that decision, the rest is compressed as it is written. Flushing the
+ * response ends the hold-back, and a compressed response is flushed down to the
+ * client on Java 7 and later so that streamed responses are not delayed.
+ * Responses already carrying a Content-Encoding (e.g. the pre-compressed schema
+ * documents), partial responses and event streams are passed through untouched.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GzipFilter implements Filter
+{
+    private static final Logger LOG = LoggerFactory.getLogger( GzipFilter.class );
+
+    public static final String GZIP = "gzip";
+
+    private static final String X_GZIP = "x-gzip";
+
+    /** the default minimum size of a response body to be compressed */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    private int minSize = DEFAULT_MIN_SIZE;
+
+    /** the constructor of GZIPOutputStream taking the syncFlush flag, null before Java 7 */
+    private static final Constructor<GZIPOutputStream> SYNC_FLUSH_CONSTRUCTOR;
+
+    static
+    {
+        Constructor<GZIPOutputStream> c = null;
+
+        try
+        {
+            c = GZIPOutputStream.class.getConstructor( OutputStream.class, int.class, boolean.class );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            LOG.info( "The compressed responses cannot be flushed before they are complete" );
+        }
+
+        SYNC_FLUSH_CONSTRUCTOR = c;
+    }
+
+
+    public void init( FilterConfig filterConfig ) throws ServletException
+    {
+        String val = filterConfig.getInitParameter( "minSize" );
+
+        if ( val != null )
+        {
+            try
+            {
+                minSize = Integer.parseInt( val.trim() );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new ServletException( "Invalid minSize " + val, e );
+            }
+        }
+
+        LOG.info( "Compressing the responses of at least {} bytes", minSize );
+    }
+
+
+    public void doFilter( ServletRequest request, ServletResponse response, FilterChain chain ) throws IOException,
+        ServletException
+    {
+        if ( !( request instanceof HttpServletRequest ) )
+        {
+            chain.doFilter( request, response );
+            return;
+        }
+
+        HttpServletRequest httpReq = ( HttpServletRequest ) request;
+        HttpServletResponse httpResp = ( HttpServletResponse ) response;
+
+        String contentEncoding = httpReq.getHeader( "Content-Encoding" );
+
+        if ( contentEncoding != null )
+        {
+            contentEncoding = contentEncoding.trim();
+
+            if ( GZIP.equalsIgnoreCase( contentEncoding ) || X_GZIP.equalsIgnoreCase( contentEncoding ) )
+            {
+                httpReq = new GzipRequestWrapper( httpReq );
+            }
+            else if ( !"identity".equalsIgnoreCase( contentEncoding ) )
+            {
+                httpResp.sendError( HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported Content-Encoding "
+                    + contentEncoding );
+                return;
+            }
+        }
+
+        if ( !acceptsGzip( httpReq.getHeader( "Accept-Encoding" ) ) )
+        {
+            chain.doFilter( httpReq, httpResp );
+            return;
+        }
+
+        GzipResponseWrapper wrapper = new GzipResponseWrapper( httpResp, minSize );
+
+        try
+        {
+            chain.doFilter( httpReq, wrapper );
+        }
+        finally
+        {
+            wrapper.finish();
+        }
+    }
+
+
+    public void destroy()
+    {
+    }
+
+
+    /**
+     * Tells if the given value of the Accept-Encoding header allows the gzip coding,
+     * a coding with the quality value 0 is not acceptable
+     * 
+     * @param acceptEncoding the value of the Accept-Encoding header, can be null
+     * @return true if gzip is accepted
+     */
+    public static boolean acceptsGzip( String acceptEncoding )
+    {
+        if ( acceptEncoding == null )
+        {
+            return false;
+        }
+
+        boolean accepted = false;
+
+        for ( String coding : acceptEncoding.split( "," ) )
+        {
+            String name = coding;
+            float q = 1.0f;
+
+            int pos = coding.indexOf( ';' );
+
+            if ( pos >= 0 )
+            {
+                name = coding.substring( 0, pos );
+
+                String param = coding.substring( pos + 1 ).trim();
+
+                if ( param.startsWith( "q=" ) || param.startsWith( "Q=" ) )
+                {
+                    try
+                    {
+                        q = Float.parseFloat( param.substring( 2 ).trim() );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        q = 0;
+                    }
+                }
+            }
+
+            name = name.trim();
+
+            if ( GZIP.equalsIgnoreCase( name ) || X_GZIP.equalsIgnoreCase( name ) )
+            {
+                // an explicit entry wins over the wildcard
+                return ( q > 0 );
+            }
+            else if ( "*".equals( name ) )
+            {
+                accepted = ( q > 0 );
+            }
+        }
+
+        return accepted;
+    }
+
+    
+    /**
+     * A request whose body is inflated while it is read. The original length
+     * and coding are hidden from the application.
+     */
+    private static class GzipRequestWrapper extends HttpServletRequestWrapper
+    {
+        private ServletInputStream in;
+
+
+        public GzipRequestWrapper( HttpServletRequest request )
+        {
+            super( request );
+        }
+
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException
+        {
+            if ( in == null )
+            {
+                final InputStream gzIn = new GZIPInputStream( super.getInputStream() );
+
+                in = new ServletInputStream()
+                {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        return gzIn.read();
+                    }
+
+
+                    @Override
+                    public int read( byte[] b, int off, int len ) throws IOException
+                    {
+                        return gzIn.read( b, off, len );
+                    }
+
+
+                    @Override
+                    public void close() throws IOException
+                    {
+                        gzIn.close();
+                    }
+                };
+            }
+
+            return in;
+        }
+
+
+        @Override
+        public int getContentLength()
+        {
+            return -1;
+        }
+
+
+        @Override
+        public String getHeader( String name )
+        {
+            if ( "Content-Encoding".equalsIgnoreCase( name ) || "Content-Length".equalsIgnoreCase( name ) )
+            {
+                return null;
+            }
+
+            return super.getHeader( name );
+        }
+    }
+
+
+    /**
+     * A response compressing its body once it grows past the threshold
+     */
+    private static class GzipResponseWrapper extends HttpServletResponseWrapper
+    {
+        private int minSize;
+
+        private int status = SC_OK;
+
+        /** the length set by the application, held back until the coding is known */
+        private int contentLength = -1;
+
+        /** true if the application has set a Content-Encoding by itself */
+        private boolean encoded;
+
+        private GzipOutputStream out;
+
+        private PrintWriter writer;
+
+
+        public GzipResponseWrapper( HttpServletResponse response, int minSize )
+        {
+            super( response );
+            this.minSize = minSize;
+        }
+
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            if ( writer != null )
+            {
+                throw new IllegalStateException( "getWriter() has already been called" );
+            }
+
+            if ( out == null )
+            {
+                out = new GzipOutputStream( this );
+            }
+
+            return out;
+        }
+
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            if ( writer == null )
+            {
+                if ( out != null )
+                {
+                    throw new IllegalStateException( "getOutputStream() has already been called" );
+                }
+
+                out = new GzipOutputStream( this );
+                writer = new PrintWriter( new OutputStreamWriter( out, getCharacterEncoding() ) );
+            }
+
+            return writer;
+        }
+
+
+        @Override
+        public void setContentLength( int len )
+        {
+            contentLength = len;
+        }
+
+
+        @Override
+        public void setHeader( String name, String value )
+        {
+            if ( "Content-Length".equalsIgnoreCase( name ) )
+            {
+                setContentLength( Integer.parseInt( value.trim() ) );
+                return;
+            }
+
+            if ( "Content-Encoding".equalsIgnoreCase( name ) )
+            {
+                encoded = true;
+            }
+
+            super.setHeader( name, value );
+        }
+
+
+        @Override
+        public void addHeader( String name, String value )
+        {
+            if ( "Content-Length".equalsIgnoreCase( name ) )
+            {
+                setContentLength( Integer.parseInt( value.trim() ) );
+                return;
+            }
+
+            if ( "Content-Encoding".equalsIgnoreCase( name ) )
+            {
+                encoded = true;
+            }
+
+            super.addHeader( name, value );
+        }
+
+
+        @Override
+        public void setIntHeader( String name, int value )
+        {
+            if ( "Content-Length".equalsIgnoreCase( name ) )
+            {
+                setContentLength( value );
+                return;
+            }
+
+            super.setIntHeader( name, value );
+        }
+
+
+        @Override
+        public void setStatus( int sc )
+        {
+            status = sc;
+            super.setStatus( sc );
+        }
+
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus( int sc, String sm )
+        {
+            status = sc;
+            super.setStatus( sc, sm );
+        }
+
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            if ( writer != null )
+            {
+                writer.flush();
+            }
+            else if ( out != null )
+            {
+                out.flush();
+            }
+            else
+            {
+                super.flushBuffer();
+            }
+        }
+
+
+        @Override
+        public void reset()
+        {
+            if ( out != null )
+            {
+                out.reset();
+            }
+
+            contentLength = -1;
+            encoded = false;
+            status = SC_OK;
+            super.reset();
+        }
+
+
+        @Override
+        public void resetBuffer()
+        {
+            if ( out != null )
+            {
+                out.reset();
+            }
+
+            super.resetBuffer();
+        }
+
+
+        /**
+         * Tells if the body can be compressed, called once the threshold is reached
+         */
+        private boolean isCompressible()
+        {
+            if ( encoded || ( status == SC_PARTIAL_CONTENT ) || ( status == SC_NO_CONTENT )
+                || ( status == SC_NOT_MODIFIED ) )
+            {
+                return false;
+            }
+
+            if ( ( contentLength >= 0 ) && ( contentLength < minSize ) )
+            {
+                return false;
+            }
+
+            String contentType = getContentType();
+
+            if ( contentType == null )
+            {
+                return true;
+            }
+
+            contentType = contentType.toLowerCase( Locale.ENGLISH );
+
+            // the events must reach the client as soon as they are written
+            if ( contentType.startsWith( "text/event-stream" ) )
+            {
+                return false;
+            }
+
+            // images are already compressed
+            return contentType.contains( "json" ) || contentType.contains( "cbor" ) || contentType.startsWith( "text/" )
+                || contentType.contains( "xml" );
+        }
+
+
+        private void finish() throws IOException
+        {
+            if ( writer != null )
+            {
+                writer.close();
+            }
+            else if ( out != null )
+            {
+                out.close();
+            }
+            else if ( contentLength >= 0 )
+            {
+                // no body was written, e.g. HEAD
+                super.setContentLength( contentLength );
+            }
+        }
+    }
+
+
+    /**
+     * Holds back the first minSize bytes, then either writes them as they are
+     * or switches to a GZIPOutputStream for the rest of the body
+     */
+    private static class GzipOutputStream extends ServletOutputStream
+    {
+        private GzipResponseWrapper response;
+
+        private byte[] buf;
+
+        private int count;
+
+        /** null until the coding has been chosen */
+        private OutputStream target;
+
+        private boolean closed;
+
+
+        public GzipOutputStream( GzipResponseWrapper response )
+        {
+            this.response = response;
+            this.buf = new byte[Math.max( response.minSize, 1 )];
+        }
+
+
+        @Override
+        public void write( int b ) throws IOException
+        {
+            if ( target == null )
+            {
+                if ( count == buf.length )
+                {
+                    choose( true, false );
+                    target.write( b );
+                    return;
+                }
+
+                buf[count++] = ( byte ) b;
+            }
+            else
+            {
+                target.write( b );
+            }
+        }
+
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException
+        {
+            if ( closed )
+            {
+                throw new IOException( "The stream is closed" );
+            }
+
+            if ( target == null )
+            {
+                if ( ( count + len ) <= buf.length )
+                {
+                    System.arraycopy( b, off, buf, count, len );
+                    count += len;
+                    return;
+                }
+
+                choose( true, false );
+            }
+
+            target.write( b, off, len );
+        }
+
+
+        /**
+         * Flushes the data written so far. A body still below the threshold is
+         * sent without compression, the application wants it delivered now.
+         */
+        @Override
+        public void flush() throws IOException
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            if ( target == null )
+            {
+                choose( false, false );
+            }
+
+            target.flush();
+        }
+
+
+        @Override
+        public void close() throws IOException
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            closed = true;
+
+            if ( target == null )
+            {
+                choose( false, true );
+            }
+
+            if ( target instanceof GZIPOutputStream )
+            {
+                ( ( GZIPOutputStream ) target ).finish();
+            }
+
+            target.flush();
+        }
+
+
+        private void reset()
+        {
+            if ( target != null )
+            {
+                throw new IllegalStateException( "The response is already committed" );
+            }
+
+            count = 0;
+        }
+
+
+        /**
+         * Chooses the coding and writes out the held back bytes
+         * 
+         * @param thresholdReached true if the body has grown past the threshold
+         * @param complete true if the held back bytes are the whole body
+         */
+        private void choose( boolean thresholdReached, boolean complete ) throws IOException
+        {
+            HttpServletResponse resp = ( HttpServletResponse ) response.getResponse();
+
+            boolean compressible = response.isCompressible();
+
+            if ( compressible )
+            {
+                // the representation depends on the Accept-Encoding of the request
+                resp.addHeader( "Vary", "Accept-Encoding" );
+            }
+
+            OutputStream rawOut = resp.getOutputStream();
+
+            if ( compressible && thresholdReached )
+            {
+                resp.setHeader( "Content-Encoding", GZIP );
+                target = newGzipStream( rawOut );
+            }
+            else
+            {
+                if ( response.contentLength >= 0 )
+                {
+                    resp.setContentLength( response.contentLength );
+                }
+                else if ( complete )
+                {
+                    resp.setContentLength( count );
+                }
+
+                target = rawOut;
+            }
+
+            target.write( buf, 0, count );
+            buf = null;
+        }
+
+
+        /**
+         * Creates a gzip stream whose flush() also flushes the compressor when supported
+         */
+        private static GZIPOutputStream newGzipStream( OutputStream rawOut ) throws IOException
+        {
+            if ( SYNC_FLUSH_CONSTRUCTOR != null )
+            {
+                try
+                {
+                    return SYNC_FLUSH_CONSTRUCTOR.newInstance( rawOut, 8192, Boolean.TRUE );
+                }
+                catch ( Exception e )
+                {
+                    LOG.debug( "Failed to create a gzip stream with syncFlush", e );
+                }
+            }
+
+            return new GZIPOutputStream( rawOut, 8192 );
+        }
+    }
+}
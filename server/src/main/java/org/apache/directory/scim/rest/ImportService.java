@@ -0,0 +1,247 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.rest;
+
+
+import static org.apache.directory.scim.ScimUtil.buildError;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.directory.scim.ImportListener;
+import org.apache.directory.scim.RequestContext;
+import org.apache.directory.scim.ResourceProvider;
+import org.apache.directory.scim.ScimUtil;
+import org.apache.directory.scim.json.ResourceSerializer;
+import org.apache.directory.scim.schema.ErrorResponse;
+import org.apache.directory.scim.schema.ErrorResponse.ScimError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+/**
+ * Creates the resources sent as newline delimited JSON, one resource per line, and answers
+ * with a report holding the outcome of each line, e.x.
+ * <code>{"line":1, "bulkId":"u1", "status":"201", "id":"2819c223"}</code>.
+ * 
+ * The report is written to a temporary file while the request body is read and sent once
+ * all the lines were processed, the memory used doesn't depend on the number of lines.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Path("/Import")
+public class ImportService
+{
+    private static final Logger LOG = LoggerFactory.getLogger( ImportService.class );
+
+    @Context
+    private ServletContext servletCtx;
+
+
+    @POST
+    @Produces({ ResourceService.NDJSON })
+    public Response importResources( InputStream in, @Context UriInfo uriInfo, @Context HttpServletRequest httpReq )
+    {
+        File reportFile = null;
+
+        try
+        {
+            ResourceProvider provider = ( ResourceProvider ) servletCtx
+                .getAttribute( ResourceProvider.SERVLET_CONTEXT_ATTRIBUTE_KEY );
+
+            RequestContext ctx = provider.createCtx( uriInfo, httpReq );
+
+            // the headers of the import request don't apply to the imported resources
+            ctx.setReqHeaders( new HashMap<String, String>() );
+
+            reportFile = File.createTempFile( "escimo-import-report", ".ndjson" );
+
+            ReportWriter report = new ReportWriter( reportFile );
+
+            try
+            {
+                provider.importResources( in, report, ctx );
+            }
+            finally
+            {
+                report.close();
+            }
+
+            LOG.info( "Imported {} resources, {} failed", report.created, report.failed );
+
+            final File file = reportFile;
+            reportFile = null;
+
+            StreamingOutput streamOut = new StreamingOutput()
+            {
+                public void write( OutputStream output ) throws IOException, WebApplicationException
+                {
+                    InputStream fin = new FileInputStream( file );
+
+                    try
+                    {
+                        byte[] buf = new byte[8192];
+                        int len;
+
+                        while ( ( len = fin.read( buf ) ) > 0 )
+                        {
+                            output.write( buf, 0, len );
+                        }
+                    }
+                    finally
+                    {
+                        fin.close();
+                        file.delete();
+                    }
+                }
+            };
+
+            return Response.ok( streamOut, ResourceService.NDJSON ).build();
+        }
+        catch ( Exception e )
+        {
+            return buildError( e ).build();
+        }
+        finally
+        {
+            if ( reportFile != null )
+            {
+                reportFile.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Writes a line of the report for each line of the import
+     */
+    private static class ReportWriter implements ImportListener
+    {
+        private Writer writer;
+
+        private long created;
+
+        private long failed;
+
+        /** the first failure to write the report, the following lines are ignored */
+        private IOException error;
+
+
+        private ReportWriter( File file ) throws IOException
+        {
+            writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        }
+
+
+        public void created( long line, String bulkId, String id )
+        {
+            created++;
+
+            JsonObject result = createResult( line, bulkId, 201 );
+            result.addProperty( "id", id );
+
+            write( result );
+        }
+
+
+        public void failed( long line, String bulkId, Exception e )
+        {
+            failed++;
+
+            LOG.debug( "Failed to import the resource at line {}", line, e );
+
+            ScimError error = ScimUtil.buildScimError( e, false );
+
+            JsonObject result = createResult( line, bulkId, error.getCode().getVal() );
+            result.add( "response", new JsonParser().parse( ResourceSerializer.serialize( new ErrorResponse( error ) ) ) );
+
+            write( result );
+        }
+
+
+        private static JsonObject createResult( long line, String bulkId, int status )
+        {
+            JsonObject result = new JsonObject();
+            result.addProperty( "line", line );
+
+            if ( bulkId != null )
+            {
+                result.addProperty( "bulkId", bulkId );
+            }
+
+            result.addProperty( "status", String.valueOf( status ) );
+
+            return result;
+        }
+
+
+        private void write( JsonObject result )
+        {
+            if ( error != null )
+            {
+                return;
+            }
+
+            try
+            {
+                writer.write( result.toString() );
+                writer.write( '\n' );
+            }
+            catch ( IOException e )
+            {
+                LOG.warn( "Failed to write the import report", e );
+                error = e;
+            }
+        }
+
+
+        private void close() throws IOException
+        {
+            writer.close();
+
+            if ( error != null )
+            {
+                throw error;
+            }
+        }
+    }
+}
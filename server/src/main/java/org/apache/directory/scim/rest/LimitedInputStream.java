@@ -0,0 +1,113 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.rest;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * An input stream that fails once more than the given number of bytes are read,
+ * guards against request bodies that don't announce their length upfront.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LimitedInputStream extends FilterInputStream
+{
+    private long remaining;
+
+    private boolean exceeded;
+
+
+    public LimitedInputStream( InputStream in, long limit )
+    {
+        super( in );
+        this.remaining = limit;
+    }
+
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+
+        if ( b >= 0 )
+        {
+            consumed( 1 );
+        }
+
+        return b;
+    }
+
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        int count = super.read( b, off, len );
+
+        if ( count > 0 )
+        {
+            consumed( count );
+        }
+
+        return count;
+    }
+
+
+    @Override
+    public long skip( long n ) throws IOException
+    {
+        long count = super.skip( n );
+
+        consumed( count );
+
+        return count;
+    }
+
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+
+    private void consumed( long count ) throws IOException
+    {
+        remaining -= count;
+
+        if ( remaining < 0 )
+        {
+            exceeded = true;
+            throw new IOException( "The size of the request body exceeds the limit" );
+        }
+    }
+
+
+    /**
+     * @return true if the stream was read beyond the limit
+     */
+    public boolean isExceeded()
+    {
+        return exceeded;
+    }
+}
@@ -22,8 +22,11 @@ package org.apache.directory.scim.rest;
 
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -60,10 +63,20 @@ public class MetaSchemaService
     @Context
     private ServletContext servletCtx;
 
-    // variable to cache the schema object
-    private static String jsonSchemas;
+    @Context
+    private HttpServletRequest httpReq;
+
+    // variables to cache the schema documents, held pre-compressed
+    private static PrecompressedDocument jsonSchemas;
+
+    private static PrecompressedDocument resProviderSchema;
+
+    private static ConcurrentMap<String, PrecompressedDocument> schemaDocs = new ConcurrentHashMap<String, PrecompressedDocument>();
+
+    /** the ResourceType documents keyed by the base URI and the type name, their locations depend on the former */
+    private static final int MAX_RES_TYPE_DOCS = 256;
 
-    private static String resProviderSchema;
+    private static ConcurrentMap<String, PrecompressedDocument> resTypeDocs = new ConcurrentHashMap<String, PrecompressedDocument>();
 
     @GET
     @Produces(
@@ -122,12 +135,16 @@ public class MetaSchemaService
             
             meta.addProperty( "location", uriInfo.getBaseUri().toString() + "ServiceProviderConfig" );
             
-            resProviderSchema = obj.toString();
+            JsonObject bulk = obj.get( "bulk" ).getAsJsonObject();
+            bulk.addProperty( "maxOperations", BulkService.getMaxOperations( servletCtx ) );
+            bulk.addProperty( "maxPayloadSize", BulkService.getMaxPayloadSize( servletCtx ) );
+            
+            resProviderSchema = new PrecompressedDocument( obj.toString() );
         }
 
         if ( resProviderSchema != null )
         {
-            rb = Response.ok( resProviderSchema, MediaType.APPLICATION_JSON );
+            rb = resProviderSchema.ok( getAcceptEncoding() );
         }
         else
         {
@@ -166,18 +183,29 @@ public class MetaSchemaService
                     arr.add( je );
                 }
                 
-                jsonSchemas = arr.toString();
+                jsonSchemas = new PrecompressedDocument( arr.toString() );
             }
 
-            rb = Response.ok( jsonSchemas, MediaType.APPLICATION_JSON );
+            rb = jsonSchemas.ok( getAcceptEncoding() );
         }
         else
         {
-            JsonSchema jsonSchema = provider.getJsonSchemaById( schemaId );
+            PrecompressedDocument doc = schemaDocs.get( schemaId );
 
-            if ( jsonSchema != null )
+            if ( doc == null )
             {
-                rb = Response.ok( jsonSchema.getRawJson(), MediaType.APPLICATION_JSON );
+                JsonSchema jsonSchema = provider.getJsonSchemaById( schemaId );
+
+                if ( jsonSchema != null )
+                {
+                    doc = new PrecompressedDocument( jsonSchema.getRawJson() );
+                    schemaDocs.put( schemaId, doc );
+                }
+            }
+
+            if ( doc != null )
+            {
+                rb = doc.ok( getAcceptEncoding() );
             }
             else
             {
@@ -202,20 +230,40 @@ public class MetaSchemaService
 
         String servletCtxPath = uriInfo.getBaseUri().toString();
 
-        JsonElement el;
+        String key = servletCtxPath + ( ( resType == null ) ? "" : ( "#" + resType ) );
 
-        if ( resType == null )
-        {
-            el = provider.getAllResourceTypesSchema( servletCtxPath );
-        }
-        else
+        PrecompressedDocument doc = resTypeDocs.get( key );
+
+        if ( doc == null )
         {
-            el = provider.getResourceTypeSchema( servletCtxPath, resType );
+            JsonElement el;
+
+            if ( resType == null )
+            {
+                el = provider.getAllResourceTypesSchema( servletCtxPath );
+            }
+            else
+            {
+                el = provider.getResourceTypeSchema( servletCtxPath, resType );
+            }
+
+            if ( el != null )
+            {
+                doc = new PrecompressedDocument( el.toString() );
+
+                // the base URI comes from the Host header, don't let it grow the cache unbounded
+                if ( resTypeDocs.size() >= MAX_RES_TYPE_DOCS )
+                {
+                    resTypeDocs.clear();
+                }
+
+                resTypeDocs.put( key, doc );
+            }
         }
 
-        if ( el != null )
+        if ( doc != null )
         {
-            rb = Response.ok( el.toString(), MediaType.APPLICATION_JSON );
+            rb = doc.ok( getAcceptEncoding() );
         }
         else
         {
@@ -229,4 +277,10 @@ public class MetaSchemaService
         return rb.build();
     }
 
+
+    private String getAcceptEncoding()
+    {
+        return httpReq.getHeader( "Accept-Encoding" );
+    }
+
 }
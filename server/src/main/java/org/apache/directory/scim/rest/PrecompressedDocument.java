@@ -0,0 +1,104 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.rest;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
+
+/**
+ * A static JSON document held both as is and gzip compressed,
+ * so that it is never compressed again on each request.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PrecompressedDocument
+{
+    private byte[] data;
+
+    private byte[] gzipped;
+
+
+    public PrecompressedDocument( String json )
+    {
+        try
+        {
+            data = json.getBytes( "UTF-8" );
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream( data.length / 4 + 64 );
+            GZIPOutputStream gzOut = new GZIPOutputStream( bout );
+            gzOut.write( data );
+            gzOut.close();
+
+            gzipped = bout.toByteArray();
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch ( IOException e )
+        {
+            // cannot happen with a ByteArrayOutputStream
+            throw new IllegalStateException( e );
+        }
+    }
+
+
+    /**
+     * Builds a 200 response with the representation matching the given
+     * Accept-Encoding header
+     * 
+     * @param acceptEncoding the value of the Accept-Encoding header of the request
+     */
+    public ResponseBuilder ok( String acceptEncoding )
+    {
+        ResponseBuilder rb;
+
+        if ( GzipFilter.acceptsGzip( acceptEncoding ) )
+        {
+            rb = Response.ok( gzipped, MediaType.APPLICATION_JSON ).header( "Content-Encoding", GzipFilter.GZIP );
+        }
+        else
+        {
+            rb = Response.ok( data, MediaType.APPLICATION_JSON );
+        }
+
+        return rb.header( "Vary", "Accept-Encoding" );
+    }
+
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+
+    public byte[] getGzipped()
+    {
+        return gzipped;
+    }
+}
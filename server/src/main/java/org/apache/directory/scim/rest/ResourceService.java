@@ -21,6 +21,7 @@ package org.apache.directory.scim.rest;
 import static org.apache.directory.scim.ScimUtil.buildError;
 import static org.apache.directory.scim.ScimUtil.sendBadRequest;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,23 +38,38 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
+import org.apache.directory.scim.ChangeStream;
+import org.apache.directory.scim.DeleteResult;
 import org.apache.directory.scim.ListResponse;
+import org.apache.directory.scim.Photo;
 import org.apache.directory.scim.ResourceProvider;
+import org.apache.directory.scim.ResourceStream;
+import org.apache.directory.scim.ScimUtil;
 import org.apache.directory.scim.RequestContext;
 import org.apache.directory.scim.ServerResource;
+import org.apache.directory.scim.StreamingWriter;
+import org.apache.directory.scim.cbor.CborReader;
+import org.apache.directory.scim.cbor.CborWriter;
+import org.apache.directory.scim.exception.RequestTooLargeException;
 import org.apache.directory.scim.json.ResourceSerializer;
+import org.apache.directory.scim.json.Utf8JsonWriter;
 import org.apache.wink.common.AbstractDynamicResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonObject;
+
 /**
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
@@ -63,6 +79,20 @@ public class ResourceService extends AbstractDynamicResource
 
     private static final Logger LOG = LoggerFactory.getLogger( ResourceService.class );
     
+    /** the number of seconds a client can cache a photo */
+    private static final int PHOTO_MAX_AGE = 60 * 60;
+    
+    /** the name of the context parameter holding the maximum size of a request body in bytes */
+    public static final String MAX_BODY_SIZE_PARAM = "maxBodySize";
+    
+    /** the default maximum size of a request body, 10MB */
+    private static final long DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+    
+    private static final String SCIM_JSON = "application/scim+json";
+    
+    /** the media type of newline delimited JSON */
+    public static final String NDJSON = "application/x-ndjson";
+    
     @Context
     private HttpServletRequest httpReq;
     
@@ -72,7 +102,7 @@ public class ResourceService extends AbstractDynamicResource
     private ResourceProvider provider;
     
     @GET
-    @Produces({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE})
     @Path("{id}")
     public Response getResource( @PathParam("id") String userId, @Context UriInfo uriInfo )
     {
@@ -84,9 +114,22 @@ public class ResourceService extends AbstractDynamicResource
             
             RequestContext ctx = provider.createCtx( uriInfo, httpReq );
             
+            String ifNoneMatch = httpReq.getHeader( "If-None-Match" );
+            
+            if( ifNoneMatch != null )
+            {
+                // only the version is read, the resource is read when it has changed
+                String version = provider.getResourceVersion( ctx, userId );
+                
+                if( ScimUtil.matchesVersion( ifNoneMatch, version ) )
+                {
+                    return Response.notModified( toETag( version ) ).build();
+                }
+            }
+            
             ServerResource user = provider.getResource( ctx, userId );
-            String json = ResourceSerializer.serialize( user );
-            rb = Response.ok( json, MediaType.APPLICATION_JSON );
+            String type = getResponseType();
+            rb = Response.ok( toStream( user, type ), type ).tag( toETag( user.getVersion() ) );
         }
         catch( Exception e )
         {
@@ -118,38 +161,86 @@ public class ResourceService extends AbstractDynamicResource
     }
     
     
-    @POST
+    /**
+     * Deletes all the resources matching the given filter, answers with the
+     * numbers of deleted and failed resources
+     */
+    @DELETE
     @Produces({MediaType.APPLICATION_JSON})
-    public Response addResource( String jsonData, @Context UriInfo uriInfo )
+    public Response deleteResources( @QueryParam("filter") String filter, @Context UriInfo uriInfo )
     {
         ResponseBuilder rb = null;
-
-        if( ( jsonData == null ) || ( jsonData.trim().length() == 0 ) )
+        
+        if( ( filter == null ) || ( filter.trim().length() == 0 ) )
+        {
+            return sendBadRequest( "The filter parameter is required for deleting the resources at " + uriInfo.getAbsolutePath() );
+        }
+        
+        try
+        {
+            setProvider();
+            RequestContext ctx = provider.createCtx( uriInfo, httpReq );
+            DeleteResult result = provider.deleteResources( filter, ctx );
+            
+            JsonObject json = new JsonObject();
+            json.addProperty( "deleted", result.getDeleted() );
+            json.addProperty( "failed", result.getFailed() );
+            
+            rb = Response.ok( json.toString(), MediaType.APPLICATION_JSON );
+        }
+        catch( Exception e )
         {
-            return sendBadRequest( "No data is present with the call to " + uriInfo.getAbsolutePath() );
+            rb = buildError( e );
         }
         
-        LOG.debug( "Data received at the URI {}\n{}", uriInfo.getAbsolutePath(), jsonData );
+        return rb.build();
+    }
+    
+    
+    @POST
+    @Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE})
+    public Response addResource( InputStream in, @Context UriInfo uriInfo )
+    {
+        ResponseBuilder rb = null;
+        
+        LOG.debug( "Data received at the URI {}", uriInfo.getAbsolutePath() );
+        
+        LimitedInputStream body = null;
         
         try
         {
+            body = limitBody( in );
+            
+            InputStream jsonData = getNonEmptyBody( body );
+            
+            if( jsonData == null )
+            {
+                return sendBadRequest( "No data is present with the call to " + uriInfo.getAbsolutePath() );
+            }
+            
             setProvider();
             
             RequestContext ctx = provider.createCtx( uriInfo, httpReq );
             
-            provider.addResource( jsonData, ctx );
+            if( isCborBody() )
+            {
+                provider.addResource( new CborReader( jsonData ), ctx );
+            }
+            else
+            {
+                provider.addResource( jsonData, ctx );
+            }
             
             ServerResource res = ctx.getCoreResource();
             
-            String json = ResourceSerializer.serialize( res );
-            
             URI location = uriInfo.getBaseUriBuilder().build( res.getId() );
             
-            rb = Response.created( location ).entity( json );
+            String type = getResponseType();
+            rb = Response.created( location ).entity( toStream( res, type ) ).type( type ).tag( toETag( res.getVersion() ) );
         }
         catch( Exception e )
         {
-            rb = buildError( e );
+            rb = buildError( getBodyError( body, e ) );
         }
         
         return rb.build();
@@ -158,34 +249,48 @@ public class ResourceService extends AbstractDynamicResource
     
     @PUT
     @Path("{id}")
-    @Produces({MediaType.APPLICATION_JSON})
-    public Response replaceResource( @PathParam("id") String userId, String jsonData, @Context UriInfo uriInfo )
+    @Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE})
+    public Response replaceResource( @PathParam("id") String userId, InputStream in, @Context UriInfo uriInfo )
     {
         ResponseBuilder rb = null;
-
-        if( ( jsonData == null ) || ( jsonData.trim().length() == 0 ) )
-        {
-            return sendBadRequest( "No data is present with the call to " + uriInfo.getAbsolutePath() );
-        }
         
-        LOG.debug( "Data received at the URI {}\n{}", uriInfo.getAbsolutePath(), jsonData );
+        LOG.debug( "Data received at the URI {}", uriInfo.getAbsolutePath() );
+        
+        LimitedInputStream body = null;
         
         try
         {
+            body = limitBody( in );
+            
+            InputStream jsonData = getNonEmptyBody( body );
+            
+            if( jsonData == null )
+            {
+                return sendBadRequest( "No data is present with the call to " + uriInfo.getAbsolutePath() );
+            }
+            
             setProvider();
             RequestContext ctx = provider.createCtx( uriInfo, httpReq );
             
-            ServerResource res = provider.putResource( userId, jsonData, ctx );
+            ServerResource res;
             
-            String json = ResourceSerializer.serialize( res );
+            if( isCborBody() )
+            {
+                res = provider.putResource( userId, new CborReader( jsonData ), ctx );
+            }
+            else
+            {
+                res = provider.putResource( userId, jsonData, ctx );
+            }
             
             URI location = uriInfo.getBaseUriBuilder().build( res.getId() );
             
-            rb = Response.ok().entity( json ).location( location );
+            String type = getResponseType();
+            rb = Response.ok().entity( toStream( res, type ) ).type( type ).location( location ).tag( toETag( res.getVersion() ) );
         }
         catch( Exception e )
         {
-            rb = buildError( e );
+            rb = buildError( getBodyError( body, e ) );
         }
         
         return rb.build();
@@ -194,24 +299,39 @@ public class ResourceService extends AbstractDynamicResource
     
     @PATCH
     @Path("{id}")
-    @Produces({MediaType.APPLICATION_JSON})
-    public Response patchResource( @PathParam("id") String userId, String jsonData, @Context UriInfo uriInfo )
+    @Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE})
+    public Response patchResource( @PathParam("id") String userId, InputStream in, @Context UriInfo uriInfo )
     {
         ResponseBuilder rb = null;
-
-        if( ( jsonData == null ) || ( jsonData.trim().length() == 0 ) )
-        {
-            return sendBadRequest( "No data is present with the call to " + uriInfo.getAbsolutePath() );
-        }
         
-        LOG.debug( "Data received at the URI {}\n{}", uriInfo.getAbsolutePath(), jsonData );
+        LOG.debug( "Data received at the URI {}", uriInfo.getAbsolutePath() );
+        
+        LimitedInputStream body = null;
         
         try
         {
+            body = limitBody( in );
+            
+            InputStream jsonData = getNonEmptyBody( body );
+            
+            if( jsonData == null )
+            {
+                return sendBadRequest( "No data is present with the call to " + uriInfo.getAbsolutePath() );
+            }
+            
             setProvider();
             RequestContext ctx = provider.createCtx( uriInfo, httpReq );
             
-            ServerResource resource = provider.patchResource( userId, jsonData, ctx );
+            ServerResource resource;
+            
+            if( isCborBody() )
+            {
+                resource = provider.patchResource( userId, new CborReader( jsonData ), ctx );
+            }
+            else
+            {
+                resource = provider.patchResource( userId, jsonData, ctx );
+            }
             
             if( resource == null )
             {
@@ -219,13 +339,13 @@ public class ResourceService extends AbstractDynamicResource
             }
             else
             {
-                String json = ResourceSerializer.serialize( resource );
-                rb = Response.ok().entity( json );
+                String type = getResponseType();
+                rb = Response.ok().entity( toStream( resource, type ) ).type( type ).tag( toETag( resource.getVersion() ) );
             }
         }
         catch( Exception e )
         {
-            rb = buildError( e );
+            rb = buildError( getBodyError( body, e ) );
         }
         
         return rb.build();
@@ -233,7 +353,7 @@ public class ResourceService extends AbstractDynamicResource
 
 
     @GET
-    @Produces({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE})
     public Response search( @QueryParam("filter") String filter, @QueryParam("attributes") String attributes, @Context UriInfo uriInfo )
     {
         ResponseBuilder rb = null;
@@ -253,8 +373,8 @@ public class ResourceService extends AbstractDynamicResource
             RequestContext ctx = provider.createCtx( uriInfo, httpReq );
             ListResponse lr = provider.search( filter, attributes, ctx );
 
-            String json = ResourceSerializer.serialize( lr );
-            rb = Response.ok().entity( json );
+            String type = getResponseType();
+            rb = Response.ok().entity( toStream( lr, type ) ).type( type );
         }
         catch( Exception e )
         {
@@ -265,10 +385,150 @@ public class ResourceService extends AbstractDynamicResource
     }
 
     
+    /**
+     * Gives the resources created, modified or deleted since the given token along with the token
+     * for asking the next changes, all the resources are returned when no token is given.
+     * An expired token is answered with 410, the client must then read all the resources again.
+     * The resources are streamed, a failure after the status was sent closes the connection
+     * without ending the response and the client keeps using its previous token.
+     */
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE})
+    @Path("changes")
+    public Response getChanges( @QueryParam("token") String token, @QueryParam("attributes") String attributes, @Context UriInfo uriInfo )
+    {
+        ResponseBuilder rb = null;
+        
+        try
+        {
+            setProvider();
+            RequestContext ctx = provider.createCtx( uriInfo, httpReq );
+            
+            if( ( token != null ) && ( token.trim().length() == 0 ) )
+            {
+                token = null;
+            }
+            
+            ChangeStream cs = provider.getChanges( token, attributes, ctx );
+            
+            // the first page is read here, a failure is still reported with an error response
+            try
+            {
+                cs.next();
+            }
+            catch( Exception e )
+            {
+                cs.close();
+                throw e;
+            }
+            
+            String type = getResponseType();
+            rb = Response.ok().entity( toStream( cs, type ) ).type( type );
+        }
+        catch( Exception e )
+        {
+            rb = buildError( e );
+        }
+        
+        return rb.build();
+    }
+    
+    
+    /**
+     * Streams all the resources as newline delimited JSON, one resource per line. An interrupted
+     * export is resumed by passing the ID of the last received resource as the checkpoint.
+     * The response is compressed by the GzipFilter for the clients accepting gzip.
+     */
+    @GET
+    @Produces({NDJSON})
+    @Path("export")
+    public Response export( @QueryParam("checkpoint") String checkpoint, @QueryParam("attributes") String attributes, @Context UriInfo uriInfo )
+    {
+        ResponseBuilder rb = null;
+        
+        LOG.debug( "Exporting the resources at {} after {}", uriInfo.getAbsolutePath(), checkpoint );
+        
+        try
+        {
+            setProvider();
+            RequestContext ctx = provider.createCtx( uriInfo, httpReq );
+            
+            if( ( checkpoint != null ) && ( checkpoint.trim().length() == 0 ) )
+            {
+                checkpoint = null;
+            }
+            
+            final ResourceStream stream = provider.export( checkpoint, attributes, ctx );
+            
+            final boolean hasFirst;
+            
+            // the first page is read here, a failure is still reported with an error response
+            try
+            {
+                hasFirst = stream.next();
+            }
+            catch( Exception e )
+            {
+                stream.close();
+                throw e;
+            }
+            
+            StreamingOutput streamOut = new StreamingOutput()
+            {
+                public void write( OutputStream output ) throws IOException, WebApplicationException
+                {
+                    Utf8JsonWriter writer = new Utf8JsonWriter( output );
+                    
+                    int count = 0;
+                    
+                    try
+                    {
+                        if( hasFirst )
+                        {
+                            do
+                            {
+                                ResourceSerializer.serializeLine( stream.getResource(), writer );
+                                count++;
+                            }
+                            while( stream.next() );
+                        }
+                        
+                        writer.flush();
+                    }
+                    catch( IOException e )
+                    {
+                        LOG.debug( "The export was aborted after {} resources", count, e );
+                        throw e;
+                    }
+                    catch( Exception e )
+                    {
+                        // the status was already sent, the connection gets closed without ending
+                        // the response so that the client doesn't take the export as complete
+                        LOG.warn( "The export failed after {} resources", count, e );
+                        throw new IOException( e.getMessage() );
+                    }
+                    finally
+                    {
+                        stream.close();
+                    }
+                }
+            };
+            
+            rb = Response.ok( streamOut, NDJSON );
+        }
+        catch( Exception e )
+        {
+            rb = buildError( e );
+        }
+        
+        return rb.build();
+    }
+    
+    
     @GET
     @Produces({MediaType.APPLICATION_OCTET_STREAM})
     @Path("photo")
-    public Response getPhoto( @QueryParam("atName") String atName, @QueryParam("id") String id, @Context UriInfo uriInfo )
+    public Response getPhoto( @QueryParam("atName") String atName, @QueryParam("id") String id, @Context UriInfo uriInfo, @Context Request request )
     {
         ResponseBuilder rb = Response.ok();
         
@@ -277,42 +537,66 @@ public class ResourceService extends AbstractDynamicResource
             setProvider();
             RequestContext ctx = provider.createCtx( uriInfo, httpReq );
             
-            final InputStream in = provider.getUserPhoto( id, atName, ctx );
+            Photo photo = provider.getUserPhoto( id, atName, ctx );
             
-            if( in == null )
+            if( photo == null )
             {
                 rb.status( Status.NOT_FOUND ).entity( "No photo found for the resource with ID " + id + " and attribute name " + atName );
             }
             else
             {
-                StreamingOutput streamOut = new StreamingOutput()
+                final byte[] data = photo.getData();
+                
+                EntityTag etag = new EntityTag( photo.getTag() );
+                
+                CacheControl cc = new CacheControl();
+                cc.setPrivate( true );
+                cc.setMaxAge( PHOTO_MAX_AGE );
+                
+                // answers 304 if the client already has the same photo
+                ResponseBuilder notModified = request.evaluatePreconditions( etag );
+                
+                if( notModified != null )
+                {
+                    return notModified.tag( etag ).cacheControl( cc ).build();
+                }
+                
+                rb.tag( etag ).cacheControl( cc ).header( "Accept-Ranges", "bytes" );
+                
+                int start = 0;
+                int end = data.length - 1;
+                
+                String range = httpReq.getHeader( "Range" );
+                String ifRange = httpReq.getHeader( "If-Range" );
+                
+                // a range is served only if the photo didn't change since the client read a part of it
+                if( ( range != null ) && ( ( ifRange == null ) || ifRange.equals( etag.toString() ) ) )
                 {
+                    long[] bounds = parseRange( range, data.length );
                     
+                    if( bounds == null )
+                    {
+                        return Response.status( 416 ).header( "Content-Range", "bytes */" + data.length ).build();
+                    }
+                    
+                    start = ( int ) bounds[0];
+                    end = ( int ) bounds[1];
+                    
+                    rb.status( 206 ).header( "Content-Range", "bytes " + start + "-" + end + "/" + data.length );
+                }
+                
+                final int offset = start;
+                final int length = end - start + 1;
+                
+                StreamingOutput streamOut = new StreamingOutput()
+                {
                     public void write( OutputStream output ) throws IOException, WebApplicationException
                     {
-                        byte[] buf = new byte[1024];
-                        int read = -1;
-                        try
-                        {
-                            while( true )
-                            {
-                                read = in.read( buf );
-                                if( read <= 0 )
-                                {
-                                    break;
-                                }
-                                
-                                output.write( buf, 0, read );
-                            }
-                        }
-                        finally
-                        {
-                            in.close();
-                        }
+                        output.write( data, offset, length );
                     }
                 };
                 
-                rb.entity( streamOut );
+                rb.header( "Content-Length", String.valueOf( length ) ).entity( streamOut );
             }
         }
         catch( Exception e )
@@ -323,6 +607,285 @@ public class ResourceService extends AbstractDynamicResource
         return rb.build();
     }
     
+    
+    /**
+     * Wraps the request body in a stream that fails when the body grows beyond the configured limit,
+     * a body which announces a larger length is rejected without reading it
+     */
+    private LimitedInputStream limitBody( InputStream in ) throws RequestTooLargeException
+    {
+        long limit = DEFAULT_MAX_BODY_SIZE;
+        
+        String maxSize = servletCtx.getInitParameter( MAX_BODY_SIZE_PARAM );
+        
+        if( maxSize != null )
+        {
+            limit = Long.parseLong( maxSize.trim() );
+        }
+        
+        if( httpReq.getContentLength() > limit )
+        {
+            throw new RequestTooLargeException( "The size of the request body exceeds the limit of " + limit + " bytes" );
+        }
+        
+        return new LimitedInputStream( in, limit );
+    }
+    
+    
+    /**
+     * @return the stream of the request body, null if the body is empty
+     */
+    private static InputStream getNonEmptyBody( InputStream in ) throws IOException
+    {
+        BufferedInputStream bin = new BufferedInputStream( in );
+        
+        bin.mark( 1 );
+        
+        if( bin.read() < 0 )
+        {
+            return null;
+        }
+        
+        bin.reset();
+        
+        return bin;
+    }
+    
+    
+    /**
+     * Reports a failure caused by a request body that was read beyond the limit
+     * as such, reading the body fails then with an unrelated parse error
+     */
+    private static Exception getBodyError( LimitedInputStream body, Exception e )
+    {
+        if( ( body != null ) && body.isExceeded() )
+        {
+            return new RequestTooLargeException( "The size of the request body exceeds the limit" );
+        }
+        
+        return e;
+    }
+    
+    
+    /**
+     * Writes the resource directly to the response stream when the response is sent
+     * 
+     * @param type the negotiated media type, JSON or CBOR
+     */
+    private static StreamingOutput toStream( final ServerResource resource, final String type )
+    {
+        return new StreamingOutput()
+        {
+            public void write( OutputStream output ) throws IOException, WebApplicationException
+            {
+                ResourceSerializer.serialize( resource, newWriter( output, type ) );
+            }
+        };
+    }
+    
+    
+    private static StreamingOutput toStream( final ListResponse lr, final String type )
+    {
+        return new StreamingOutput()
+        {
+            public void write( OutputStream output ) throws IOException, WebApplicationException
+            {
+                ResourceSerializer.serialize( lr, newWriter( output, type ) );
+            }
+        };
+    }
+    
+    
+    private static StreamingOutput toStream( final ChangeStream cs, final String type )
+    {
+        return new StreamingOutput()
+        {
+            public void write( OutputStream output ) throws IOException, WebApplicationException
+            {
+                try
+                {
+                    ResourceSerializer.serialize( cs, newWriter( output, type ) );
+                }
+                catch( IOException e )
+                {
+                    LOG.debug( "Sending the changes was aborted", e );
+                    throw e;
+                }
+                catch( Exception e )
+                {
+                    // the status was already sent, the response is left incomplete so that
+                    // the client doesn't take a token skipping the unread changes
+                    LOG.warn( "Reading the changes failed", e );
+                    throw new IOException( e.getMessage() );
+                }
+                finally
+                {
+                    cs.close();
+                }
+            }
+        };
+    }
+    
+    
+    private static StreamingWriter newWriter( OutputStream output, String type )
+    {
+        if( CborWriter.MEDIA_TYPE.equals( type ) )
+        {
+            return new CborWriter( output );
+        }
+        
+        return new Utf8JsonWriter( output );
+    }
+    
+    
+    /**
+     * Negotiates the encoding of the response body, JSON unless the client prefers CBOR
+     * 
+     * @return the media type of the response body
+     */
+    private String getResponseType()
+    {
+        String accept = httpReq.getHeader( "Accept" );
+        
+        if( accept == null )
+        {
+            return MediaType.APPLICATION_JSON;
+        }
+        
+        float jsonQ = -1;
+        float cborQ = -1;
+        
+        for( String range : accept.split( "," ) )
+        {
+            String[] parts = range.split( ";" );
+            String name = parts[0].trim().toLowerCase();
+            
+            float q = 1.0f;
+            
+            for( int i = 1; i < parts.length; i++ )
+            {
+                String param = parts[i].trim();
+                
+                if( param.startsWith( "q=" ) )
+                {
+                    try
+                    {
+                        q = Float.parseFloat( param.substring( 2 ).trim() );
+                    }
+                    catch( NumberFormatException e )
+                    {
+                        q = 0;
+                    }
+                }
+            }
+            
+            if( CborWriter.MEDIA_TYPE.equals( name ) )
+            {
+                cborQ = Math.max( cborQ, q );
+            }
+            else if( MediaType.APPLICATION_JSON.equals( name ) || SCIM_JSON.equals( name ) 
+                || "application/*".equals( name ) || MediaType.WILDCARD.equals( name ) )
+            {
+                jsonQ = Math.max( jsonQ, q );
+            }
+        }
+        
+        if( ( cborQ > 0 ) && ( cborQ > jsonQ ) )
+        {
+            return CborWriter.MEDIA_TYPE;
+        }
+        
+        return MediaType.APPLICATION_JSON;
+    }
+    
+    
+    /**
+     * @return true if the request body is encoded in CBOR
+     */
+    private boolean isCborBody()
+    {
+        String contentType = httpReq.getContentType();
+        
+        return ( contentType != null ) && contentType.trim().toLowerCase().startsWith( CborWriter.MEDIA_TYPE );
+    }
+    
+    
+    /**
+     * @return the weak entity tag of the given resource version, null if there is no version
+     */
+    private static EntityTag toETag( String version )
+    {
+        if( version == null )
+        {
+            return null;
+        }
+        
+        return new EntityTag( version, true );
+    }
+    
+    
+    /**
+     * Parses a single byte range of the form bytes=start-end, bytes=start- or bytes=-suffixLength
+     * 
+     * @return the first and last positions of the range, null if the range cannot be satisfied
+     */
+    private static long[] parseRange( String range, int size )
+    {
+        range = range.trim();
+        
+        if( !range.startsWith( "bytes=" ) || ( range.indexOf( ',' ) > 0 ) || ( size == 0 ) )
+        {
+            return null;
+        }
+        
+        String spec = range.substring( 6 ).trim();
+        int dash = spec.indexOf( '-' );
+        
+        if( dash < 0 )
+        {
+            return null;
+        }
+        
+        try
+        {
+            String first = spec.substring( 0, dash ).trim();
+            String last = spec.substring( dash + 1 ).trim();
+            
+            long start;
+            long end;
+            
+            if( first.length() == 0 )
+            {
+                long suffix = Long.parseLong( last );
+                
+                if( suffix <= 0 )
+                {
+                    return null;
+                }
+                
+                start = Math.max( 0, size - suffix );
+                end = size - 1;
+            }
+            else
+            {
+                start = Long.parseLong( first );
+                end = ( last.length() == 0 ) ? size - 1 : Math.min( Long.parseLong( last ), size - 1 );
+            }
+            
+            if( ( start < 0 ) || ( start >= size ) || ( end < start ) )
+            {
+                return null;
+            }
+            
+            return new long[]{ start, end };
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+    
+    
     private void setProvider()
     {
         provider = ( ResourceProvider ) servletCtx.getAttribute( ResourceProvider.SERVLET_CONTEXT_ATTRIBUTE_KEY );
@@ -0,0 +1,371 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.scim.rest;
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for the content coding negotiation and the hold-back of the GzipFilter.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GzipFilterTest
+{
+    /**
+     * A response recording its headers and body
+     */
+    private static class FakeResponse implements InvocationHandler
+    {
+        private Map<String, String> headers = new HashMap<String, String>();
+
+        private String contentType;
+
+        private int contentLength = -1;
+
+        private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        /** the number of bytes seen by the client when the stream was last flushed */
+        private int flushed = -1;
+
+        private ServletOutputStream out = new ServletOutputStream()
+        {
+            @Override
+            public void write( int b ) throws IOException
+            {
+                body.write( b );
+            }
+
+
+            @Override
+            public void flush() throws IOException
+            {
+                flushed = body.size();
+            }
+        };
+
+
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+        {
+            String name = method.getName();
+
+            if ( name.equals( "getOutputStream" ) )
+            {
+                return out;
+            }
+            else if ( name.equals( "setContentType" ) )
+            {
+                contentType = ( String ) args[0];
+            }
+            else if ( name.equals( "getContentType" ) )
+            {
+                return contentType;
+            }
+            else if ( name.equals( "getCharacterEncoding" ) )
+            {
+                return "UTF-8";
+            }
+            else if ( name.equals( "setContentLength" ) )
+            {
+                contentLength = ( Integer ) args[0];
+            }
+            else if ( name.equals( "setHeader" ) || name.equals( "addHeader" ) )
+            {
+                headers.put( ( String ) args[0], ( String ) args[1] );
+            }
+            else if ( name.equals( "isCommitted" ) )
+            {
+                return Boolean.FALSE;
+            }
+
+            return null;
+        }
+
+
+        private HttpServletResponse proxy()
+        {
+            return ( HttpServletResponse ) Proxy.newProxyInstance( getClass().getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, this );
+        }
+    }
+
+
+    private static HttpServletRequest request( final String acceptEncoding )
+    {
+        InvocationHandler handler = new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+            {
+                if ( method.getName().equals( "getHeader" ) && "Accept-Encoding".equals( args[0] ) )
+                {
+                    return acceptEncoding;
+                }
+
+                return null;
+            }
+        };
+
+        return ( HttpServletRequest ) Proxy.newProxyInstance( GzipFilterTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, handler );
+    }
+
+
+    private static GzipFilter filter( final String minSize ) throws ServletException
+    {
+        InvocationHandler handler = new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+            {
+                if ( method.getName().equals( "getInitParameter" ) && "minSize".equals( args[0] ) )
+                {
+                    return minSize;
+                }
+
+                return null;
+            }
+        };
+
+        GzipFilter filter = new GzipFilter();
+        filter.init( ( FilterConfig ) Proxy.newProxyInstance( GzipFilterTest.class.getClassLoader(),
+            new Class<?>[] { FilterConfig.class }, handler ) );
+
+        return filter;
+    }
+
+
+    /**
+     * A chain writing the given body with the given content type
+     */
+    private static FilterChain writer( final String contentType, final byte[] body )
+    {
+        return new FilterChain()
+        {
+            public void doFilter( ServletRequest req, ServletResponse resp ) throws IOException, ServletException
+            {
+                resp.setContentType( contentType );
+                resp.getOutputStream().write( body );
+            }
+        };
+    }
+
+
+    private static byte[] body( int size )
+    {
+        byte[] data = new byte[size];
+
+        for ( int i = 0; i < size; i++ )
+        {
+            data[i] = ( byte ) ( 'a' + ( i % 26 ) );
+        }
+
+        return data;
+    }
+
+
+    private static byte[] gunzip( byte[] data ) throws IOException
+    {
+        InputStream in = new GZIPInputStream( new ByteArrayInputStream( data ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        byte[] buf = new byte[1024];
+        int len;
+
+        while ( ( len = in.read( buf ) ) > 0 )
+        {
+            out.write( buf, 0, len );
+        }
+
+        return out.toByteArray();
+    }
+
+
+    @Test
+    public void testAcceptsGzip()
+    {
+        assertFalse( GzipFilter.acceptsGzip( null ) );
+        assertFalse( GzipFilter.acceptsGzip( "" ) );
+        assertFalse( GzipFilter.acceptsGzip( "deflate, br" ) );
+        assertTrue( GzipFilter.acceptsGzip( "gzip" ) );
+        assertTrue( GzipFilter.acceptsGzip( "deflate, GZip;q=0.5" ) );
+        assertTrue( GzipFilter.acceptsGzip( "x-gzip" ) );
+        assertTrue( GzipFilter.acceptsGzip( "*" ) );
+        assertFalse( GzipFilter.acceptsGzip( "gzip;q=0" ) );
+        assertFalse( GzipFilter.acceptsGzip( "*, gzip;q=0" ) );
+        assertTrue( GzipFilter.acceptsGzip( "*;q=0, gzip" ) );
+        assertFalse( GzipFilter.acceptsGzip( "gzip;q=zero" ) );
+    }
+
+
+    @Test
+    public void testLargeBodyIsCompressed() throws Exception
+    {
+        byte[] data = body( 5000 );
+        FakeResponse resp = new FakeResponse();
+
+        filter( "1024" ).doFilter( request( "gzip" ), resp.proxy(), writer( "application/scim+json", data ) );
+
+        assertEquals( "gzip", resp.headers.get( "Content-Encoding" ) );
+        assertEquals( "Accept-Encoding", resp.headers.get( "Vary" ) );
+        assertEquals( -1, resp.contentLength );
+        assertTrue( resp.body.size() < data.length );
+        assertEquals( new String( data, "UTF-8" ), new String( gunzip( resp.body.toByteArray() ), "UTF-8" ) );
+    }
+
+
+    @Test
+    public void testSmallBodyIsNotCompressed() throws Exception
+    {
+        byte[] data = body( 100 );
+        FakeResponse resp = new FakeResponse();
+
+        filter( "1024" ).doFilter( request( "gzip" ), resp.proxy(), writer( "application/scim+json", data ) );
+
+        assertNull( resp.headers.get( "Content-Encoding" ) );
+        assertEquals( 100, resp.contentLength );
+        assertEquals( new String( data, "UTF-8" ), resp.body.toString( "UTF-8" ) );
+    }
+
+
+    @Test
+    public void testNotAccepted() throws Exception
+    {
+        byte[] data = body( 5000 );
+        FakeResponse resp = new FakeResponse();
+
+        filter( "1024" ).doFilter( request( "gzip;q=0" ), resp.proxy(), writer( "application/scim+json", data ) );
+
+        assertNull( resp.headers.get( "Content-Encoding" ) );
+        assertNull( resp.headers.get( "Vary" ) );
+        assertEquals( data.length, resp.body.size() );
+    }
+
+
+    @Test
+    public void testImageIsNotCompressed() throws Exception
+    {
+        byte[] data = body( 5000 );
+        FakeResponse resp = new FakeResponse();
+
+        filter( "1024" ).doFilter( request( "gzip" ), resp.proxy(), writer( "image/jpeg", data ) );
+
+        assertNull( resp.headers.get( "Content-Encoding" ) );
+        assertEquals( data.length, resp.body.size() );
+    }
+
+
+    @Test
+    public void testEventStreamIsNotCompressed() throws Exception
+    {
+        byte[] data = body( 5000 );
+        FakeResponse resp = new FakeResponse();
+
+        filter( "1024" ).doFilter( request( "gzip" ), resp.proxy(),
+            writer( "text/event-stream; charset=UTF-8", data ) );
+
+        assertNull( resp.headers.get( "Content-Encoding" ) );
+        assertEquals( data.length, resp.body.size() );
+    }
+
+
+    @Test
+    public void testFlushEndsHoldBack() throws Exception
+    {
+        final FakeResponse resp = new FakeResponse();
+
+        FilterChain chain = new FilterChain()
+        {
+            public void doFilter( ServletRequest req, ServletResponse r ) throws IOException, ServletException
+            {
+                r.setContentType( "text/plain" );
+                OutputStream out = r.getOutputStream();
+                out.write( "data: 1\n\n".getBytes( "UTF-8" ) );
+                out.flush();
+
+                // the small event must reach the client before the response completes
+                assertEquals( 9, resp.flushed );
+                assertEquals( 9, resp.body.size() );
+
+                out.write( "data: 2\n\n".getBytes( "UTF-8" ) );
+            }
+        };
+
+        filter( "1024" ).doFilter( request( "gzip" ), resp.proxy(), chain );
+
+        assertNull( resp.headers.get( "Content-Encoding" ) );
+        assertEquals( -1, resp.contentLength );
+        assertEquals( "data: 1\n\ndata: 2\n\n", resp.body.toString( "UTF-8" ) );
+    }
+
+
+    @Test
+    public void testFlushCompressedBody() throws Exception
+    {
+        final FakeResponse resp = new FakeResponse();
+        final byte[] data = body( 2000 );
+
+        FilterChain chain = new FilterChain()
+        {
+            public void doFilter( ServletRequest req, ServletResponse r ) throws IOException, ServletException
+            {
+                r.setContentType( "application/scim+json" );
+                OutputStream out = r.getOutputStream();
+                out.write( data );
+                out.flush();
+
+                // the compressed bytes written so far must have left the deflater
+                assertTrue( resp.body.size() > 10 );
+                assertEquals( resp.body.size(), resp.flushed );
+            }
+        };
+
+        filter( "1024" ).doFilter( request( "gzip" ), resp.proxy(), chain );
+
+        assertEquals( "gzip", resp.headers.get( "Content-Encoding" ) );
+        assertEquals( new String( data, "UTF-8" ), new String( gunzip( resp.body.toByteArray() ), "UTF-8" ) );
+    }
+}